@@ -0,0 +1,51 @@
+package com.nulianov.twofactorauthentication.benchmark;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nulianov.twofactorauthentication.model.ApiResponse;
+import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Jackson serialization cost of the success and error {@link ApiResponse} bodies.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ApiResponseSerializationBenchmark {
+
+  private ObjectMapper objectMapper;
+  private ApiResponse successResponse;
+  private ApiResponse errorResponse;
+
+  @Setup
+  public void setUp() {
+    objectMapper = new ObjectMapper();
+    successResponse = new ApiResponse("Two-factor authentication successful.");
+    errorResponse = new ApiResponse(
+        VerificationStatus.INVALID_CODE.name(), VerificationStatus.INVALID_CODE.getErrorMessage());
+  }
+
+  @Benchmark
+  public byte[] serializeSuccess() throws JsonProcessingException {
+    return objectMapper.writeValueAsBytes(successResponse);
+  }
+
+  @Benchmark
+  public byte[] serializeError() throws JsonProcessingException {
+    return objectMapper.writeValueAsBytes(errorResponse);
+  }
+}
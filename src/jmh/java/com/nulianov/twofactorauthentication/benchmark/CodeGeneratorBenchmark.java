@@ -0,0 +1,48 @@
+package com.nulianov.twofactorauthentication.benchmark;
+
+import com.nulianov.twofactorauthentication.config.CodeGeneratorProperties;
+import com.nulianov.twofactorauthentication.service.impl.SecureRandomCodeGenerator;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Codes per second from {@link SecureRandomCodeGenerator} against the earlier approaches: a new {@link Random} per
+ * code, and one {@link SecureRandom} shared by all threads. Compare thread counts with {@code -t}, for example
+ * {@code -Djmh.args="CodeGeneratorBenchmark -t 4"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodeGeneratorBenchmark {
+
+  private final SecureRandomCodeGenerator codeGenerator = new SecureRandomCodeGenerator(new CodeGeneratorProperties());
+  private final SecureRandom sharedSecureRandom = new SecureRandom();
+
+  @Benchmark
+  public String newRandom() {
+    return String.valueOf(100000 + new Random().nextInt(900000));
+  }
+
+  @Benchmark
+  public String sharedSecureRandom() {
+    return String.valueOf(100000 + sharedSecureRandom.nextInt(900000));
+  }
+
+  @Benchmark
+  public String bufferedSecureRandom() {
+    return codeGenerator.generate();
+  }
+}
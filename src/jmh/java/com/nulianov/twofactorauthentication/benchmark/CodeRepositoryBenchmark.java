@@ -0,0 +1,122 @@
+package com.nulianov.twofactorauthentication.benchmark;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.nulianov.twofactorauthentication.config.CodeDataExpiry;
+import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.model.VerificationOutcome;
+import com.nulianov.twofactorauthentication.model.VerificationResult;
+import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import com.nulianov.twofactorauthentication.repository.CodeRepository;
+import com.nulianov.twofactorauthentication.repository.impl.CaffeineCodeRepository;
+import com.nulianov.twofactorauthentication.repository.impl.MappedCodeRepository;
+import com.nulianov.twofactorauthentication.repository.impl.PackedCodeRepository;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link CodeRepository} operations over a pre-filled key set, for every store implementation.
+ *
+ * <p>The nested subclasses run the same benchmarks with one thread and with one thread per available processor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class CodeRepositoryBenchmark {
+
+  private static final int KEYS = 1 << 16;
+  private static final long VALIDITY = 300;
+
+  @Param({"caffeine", "packed", "mapped"})
+  public String store;
+
+  private CodeRepository codeRepository;
+  private String[] emails;
+  private CodeData codeData;
+  private Path mappedFile;
+
+  @Setup
+  public void setUp() throws IOException {
+    codeRepository = switch (store) {
+      case "caffeine" -> new CaffeineCodeRepository(Caffeine.newBuilder()
+          .expireAfter(new CodeDataExpiry(VALIDITY))
+          .build());
+      case "packed" -> new PackedCodeRepository(VALIDITY, KEYS, 64);
+      case "mapped" -> {
+        mappedFile = Files.createTempFile("codes", ".db");
+        Files.delete(mappedFile);
+        yield new MappedCodeRepository(mappedFile, VALIDITY, KEYS * 2, 64, null);
+      }
+      default -> throw new IllegalArgumentException("Unknown store: " + store);
+    };
+
+    codeData = new CodeData("123456", Instant.now().getEpochSecond());
+    emails = new String[KEYS];
+    for (int i = 0; i < KEYS; i++) {
+      emails[i] = "user" + i + "@example.com";
+      codeRepository.save(emails[i], codeData);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    if (codeRepository instanceof MappedCodeRepository mapped) {
+      mapped.destroy();
+      Files.deleteIfExists(mappedFile);
+    }
+  }
+
+  @Benchmark
+  public void save() {
+    codeRepository.save(nextEmail(), codeData);
+  }
+
+  @Benchmark
+  public CodeData findByEmail() {
+    return codeRepository.findByEmail(nextEmail());
+  }
+
+  @Benchmark
+  public void deleteAndSave() {
+    String email = nextEmail();
+    codeRepository.deleteByEmail(email);
+    codeRepository.save(email, codeData);
+  }
+
+  @Benchmark
+  public VerificationResult verify() {
+    return codeRepository.verify(nextEmail(), current -> new VerificationOutcome(
+        current, new VerificationResult(VerificationStatus.INVALID_CODE)));
+  }
+
+  private String nextEmail() {
+    return emails[ThreadLocalRandom.current().nextInt(KEYS)];
+  }
+
+  @Threads(1)
+  public static class SingleThreaded extends CodeRepositoryBenchmark {
+  }
+
+  @Threads(Threads.MAX)
+  public static class MultiThreaded extends CodeRepositoryBenchmark {
+  }
+}
@@ -0,0 +1,89 @@
+package com.nulianov.twofactorauthentication.benchmark;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.nulianov.twofactorauthentication.config.CodeDataExpiry;
+import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.repository.CodeRepository;
+import com.nulianov.twofactorauthentication.repository.impl.CaffeineCodeRepository;
+import com.nulianov.twofactorauthentication.repository.impl.PackedCodeRepository;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Heap kept per pending code by the in-memory stores, counting the email address and code data a request would have
+ * allocated. The score is the time to fill an empty store; the retained heap per entry, measured after a full
+ * collection with the store still reachable, is printed after each iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class CodeStoreFootprintBenchmark {
+
+  private static final long VALIDITY = 3600;
+
+  @Param({"caffeine", "packed"})
+  public String store;
+
+  @Param({"200000"})
+  public int entries;
+
+  private long heapBefore;
+  private CodeRepository filled;
+
+  @Setup(Level.Iteration)
+  public void measureBefore() {
+    filled = null;
+    heapBefore = usedHeap();
+  }
+
+  @TearDown(Level.Iteration)
+  public void measureAfter() {
+    long retained = usedHeap() - heapBefore;
+    if (filled.size() != entries) {
+      throw new IllegalStateException("Filled " + filled.size() + " of " + entries + " codes");
+    }
+    System.out.printf("%n%s store retains %.1f bytes per entry%n", store, (double) retained / entries);
+  }
+
+  @Benchmark
+  public CodeRepository fill() {
+    CodeRepository codeRepository = switch (store) {
+      case "caffeine" -> new CaffeineCodeRepository(Caffeine.newBuilder()
+          .expireAfter(new CodeDataExpiry(VALIDITY))
+          .build());
+      case "packed" -> new PackedCodeRepository(VALIDITY, 1024, 16);
+      default -> throw new IllegalArgumentException("Unknown store: " + store);
+    };
+    long creationTime = Instant.now().getEpochSecond();
+    for (int i = 0; i < entries; i++) {
+      CodeData codeData = new CodeData(String.format("%06d", i % 1_000_000), creationTime);
+      codeRepository.save("user" + i + "@example.com", codeData);
+    }
+    filled = codeRepository;
+    return codeRepository;
+  }
+
+  private static long usedHeap() {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+}
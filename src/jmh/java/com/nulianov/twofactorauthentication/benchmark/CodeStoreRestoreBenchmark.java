@@ -0,0 +1,110 @@
+package com.nulianov.twofactorauthentication.benchmark;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.nulianov.twofactorauthentication.config.CodeDataExpiry;
+import com.nulianov.twofactorauthentication.config.CodeStoreProperties;
+import com.nulianov.twofactorauthentication.config.TwoFactorAuthProperties;
+import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.repository.impl.CaffeineCodeRepository;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Time for a persistent {@link CaffeineCodeRepository} to come back with all of its codes after a restart, restoring
+ * either from the journal alone or from a snapshot. The score is the time the constructor takes to load the files and
+ * fill the cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CodeStoreRestoreBenchmark {
+
+  private static final int VALIDITY_SECONDS = 3600;
+
+  @Param({"1000000", "10000000"})
+  public int entries;
+
+  @Param({"journal", "snapshot"})
+  public String source;
+
+  private Path directory;
+  private TwoFactorAuthProperties properties;
+  private CodeStoreProperties storeProperties;
+  private CaffeineCodeRepository restored;
+
+  @Setup(org.openjdk.jmh.annotations.Level.Trial)
+  public void setUp() throws IOException {
+    ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+    directory = Files.createTempDirectory("codes");
+    properties = new TwoFactorAuthProperties();
+    properties.setCodeValidityDuration(VALIDITY_SECONDS);
+    storeProperties = new CodeStoreProperties();
+    CodeStoreProperties.CaffeineStore.Persistence persistence = storeProperties.getCaffeine().getPersistence();
+    persistence.setEnabled(true);
+    persistence.setPath(directory.toString());
+    persistence.setGroupCommit(false);
+    // A journal that fits in its active segment is never snapshotted; every record here takes under 64 bytes
+    persistence.setSegmentSize(source.equals("journal") ? DataSize.ofBytes(entries * 64L) : DataSize.ofMegabytes(16));
+
+    CaffeineCodeRepository repository = open();
+    long now = Instant.now().getEpochSecond();
+    for (int i = 0; i < entries; i++) {
+      repository.save("user" + i + "@example.com", new CodeData(String.format("%06d", i % 1_000_000), now, i % 3));
+    }
+    repository.destroy();
+  }
+
+  @TearDown(org.openjdk.jmh.annotations.Level.Iteration)
+  public void closeRestored() {
+    if (restored != null) {
+      if (restored.size() != entries) {
+        throw new IllegalStateException("Restored " + restored.size() + " of " + entries + " codes");
+      }
+      restored.destroy();
+      restored = null;
+    }
+  }
+
+  @TearDown(org.openjdk.jmh.annotations.Level.Trial)
+  public void tearDown() throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @Benchmark
+  public CaffeineCodeRepository restore() {
+    restored = open();
+    return restored;
+  }
+
+  private CaffeineCodeRepository open() {
+    return new CaffeineCodeRepository(Caffeine.newBuilder()
+        .expireAfter(new CodeDataExpiry(VALIDITY_SECONDS))
+        .build(), properties, storeProperties);
+  }
+}
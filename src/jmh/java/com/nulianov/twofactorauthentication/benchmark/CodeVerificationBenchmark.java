@@ -0,0 +1,52 @@
+package com.nulianov.twofactorauthentication.benchmark;
+
+import com.nulianov.twofactorauthentication.config.TwoFactorAuthProperties;
+import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.model.VerificationResult;
+import com.nulianov.twofactorauthentication.service.impl.CodeVerificationServiceImpl;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link CodeVerificationServiceImpl#verify} for a matching and a non-matching code.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodeVerificationBenchmark {
+
+  private CodeVerificationServiceImpl codeVerificationService;
+  private CodeData codeData;
+
+  @Setup
+  public void setUp() {
+    TwoFactorAuthProperties properties = new TwoFactorAuthProperties();
+    properties.setCodeValidityDuration(300);
+    properties.setMaxAttempts(3);
+    codeVerificationService = new CodeVerificationServiceImpl(properties);
+    codeData = new CodeData("123456", Instant.now().getEpochSecond());
+  }
+
+  @Benchmark
+  public VerificationResult verifyValidCode() {
+    return codeVerificationService.verify(codeData, "123456");
+  }
+
+  @Benchmark
+  public VerificationResult verifyInvalidCode() {
+    return codeVerificationService.verify(codeData, "654321");
+  }
+}
@@ -0,0 +1,72 @@
+package com.nulianov.twofactorauthentication.benchmark;
+
+import com.nulianov.twofactorauthentication.TwoFactorAuthenticationApplication;
+import com.nulianov.twofactorauthentication.service.impl.ExternalEmailService;
+import com.nulianov.twofactorauthentication.support.StubEmailServer;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Emails per second through {@link ExternalEmailService} against a local stub server, sending one request per email
+ * and with micro-batching through the batch endpoint.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Threads(64)
+@Fork(1)
+public class EmailBatchBenchmark {
+
+  @Param({"false", "true"})
+  public boolean batching;
+
+  @Param({"5"})
+  public long emailLatencyMillis;
+
+  private StubEmailServer emailServer;
+  private ConfigurableApplicationContext context;
+  private ExternalEmailService externalEmailService;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    emailServer = StubEmailServer.start(Duration.ofMillis(emailLatencyMillis));
+    context = new SpringApplicationBuilder(TwoFactorAuthenticationApplication.class)
+        .web(WebApplicationType.NONE)
+        .run(
+            "--email.service.url=" + emailServer.baseUrl(),
+            "--email.batch.enabled=" + batching,
+            "--logging.level.root=WARN",
+            "--logging.level.com.nulianov=WARN");
+    externalEmailService = context.getBean(ExternalEmailService.class);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    context.close();
+    emailServer.close();
+  }
+
+  @Benchmark
+  public void sendEmail() {
+    externalEmailService.sendEmail("user@example.com", "123456");
+  }
+}
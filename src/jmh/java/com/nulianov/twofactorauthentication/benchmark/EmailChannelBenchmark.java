@@ -0,0 +1,86 @@
+package com.nulianov.twofactorauthentication.benchmark;
+
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import com.nulianov.twofactorauthentication.TwoFactorAuthenticationApplication;
+import com.nulianov.twofactorauthentication.service.EmailService;
+import com.nulianov.twofactorauthentication.support.StubEmailServer;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.beans.factory.annotation.BeanFactoryAnnotationUtils;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Emails per second through the {@code emailDelivery} EmailService for each delivery channel: the HTTP email service
+ * API against the local stub server, and direct SMTP against an embedded GreenMail server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Threads(8)
+@Fork(1)
+public class EmailChannelBenchmark {
+
+  @Param({"http", "smtp"})
+  public String channel;
+
+  private StubEmailServer emailServer;
+  private GreenMail smtpServer;
+  private ConfigurableApplicationContext context;
+  private EmailService emailDelivery;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    emailServer = StubEmailServer.start(Duration.ZERO);
+    smtpServer = new GreenMail(ServerSetupTest.SMTP.dynamicPort());
+    smtpServer.start();
+    context = new SpringApplicationBuilder(TwoFactorAuthenticationApplication.class)
+        .web(WebApplicationType.NONE)
+        .run(
+            "--email.delivery.channel=" + channel,
+            "--email.service.url=" + emailServer.baseUrl(),
+            "--email.smtp.host=127.0.0.1",
+            "--email.smtp.port=" + smtpServer.getSmtp().getPort(),
+            "--logging.level.root=WARN",
+            "--logging.level.com.nulianov=WARN");
+    emailDelivery = BeanFactoryAnnotationUtils.qualifiedBeanOfType(
+        context.getBeanFactory(), EmailService.class, "emailDelivery");
+  }
+
+  @TearDown(Level.Iteration)
+  public void purgeMailboxes() throws Exception {
+    if (smtpServer != null) {
+      smtpServer.purgeEmailFromAllMailboxes();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    context.close();
+    smtpServer.stop();
+    emailServer.close();
+  }
+
+  @Benchmark
+  public void sendEmail() {
+    emailDelivery.sendEmail("user@example.com", "123456");
+  }
+}
@@ -0,0 +1,89 @@
+package com.nulianov.twofactorauthentication.benchmark;
+
+import com.nulianov.twofactorauthentication.config.EmailDispatchProperties;
+import com.nulianov.twofactorauthentication.service.EmailService;
+import com.nulianov.twofactorauthentication.service.impl.OutboxEmailService;
+import com.nulianov.twofactorauthentication.service.impl.QueuedEmailService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Cost of handing a verification email over for asynchronous delivery, with the in-memory dispatch queue and with the
+ * journaled outbox. Delivery itself is a no-op, so the score is what {@code sendEmail} adds to a request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 3)
+@Threads(4)
+@Fork(1)
+public class EmailOutboxBenchmark {
+
+  private static final int RECIPIENTS = 1 << 16;
+
+  @Param({"queue", "outbox"})
+  public String mode;
+
+  private EmailService emailService;
+  private Path outboxDirectory;
+  private String[] emails;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    EmailService delegate = (email, code) -> {
+    };
+    EmailDispatchProperties properties = new EmailDispatchProperties();
+    properties.setQueueCapacity(RECIPIENTS);
+    properties.setOverflowPolicy(EmailDispatchProperties.OverflowPolicy.DROP_OLDEST);
+    outboxDirectory = Files.createTempDirectory("outbox");
+    properties.getOutbox().setPath(outboxDirectory.toString());
+    properties.getOutbox().setCompactInterval(Duration.ofSeconds(1));
+
+    emailService = switch (mode) {
+      case "queue" -> new QueuedEmailService(delegate, properties);
+      case "outbox" -> new OutboxEmailService(delegate, properties, Duration.ofMinutes(5), new SimpleMeterRegistry());
+      default -> throw new IllegalArgumentException("Unknown mode: " + mode);
+    };
+
+    emails = new String[RECIPIENTS];
+    for (int i = 0; i < RECIPIENTS; i++) {
+      emails[i] = "user" + i + "@example.com";
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    ((DisposableBean) emailService).destroy();
+    try (Stream<Path> files = Files.walk(outboxDirectory)) {
+      files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @Benchmark
+  public void sendEmail() {
+    emailService.sendEmail(emails[ThreadLocalRandom.current().nextInt(RECIPIENTS)], "123456");
+  }
+}
@@ -0,0 +1,76 @@
+package com.nulianov.twofactorauthentication.benchmark;
+
+import com.nulianov.twofactorauthentication.TwoFactorAuthenticationApplication;
+import com.nulianov.twofactorauthentication.client.EmailServiceClient;
+import com.nulianov.twofactorauthentication.model.EmailServiceRequest;
+import com.nulianov.twofactorauthentication.support.StubEmailServer;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Requests per second through {@link EmailServiceClient} against a local stub server, for each Feign transport: the
+ * default {@code HttpURLConnection} client, the pooled Apache HttpClient 5 client and the JDK HttpClient.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Threads(32)
+@Fork(1)
+public class EmailTransportBenchmark {
+
+  @Param({"default", "hc5", "http2"})
+  public String transport;
+
+  @Param({"0"})
+  public long emailLatencyMillis;
+
+  private StubEmailServer emailServer;
+  private ConfigurableApplicationContext context;
+  private EmailServiceClient client;
+  private EmailServiceRequest request;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    emailServer = StubEmailServer.start(Duration.ofMillis(emailLatencyMillis));
+    context = new SpringApplicationBuilder(TwoFactorAuthenticationApplication.class)
+        .web(WebApplicationType.NONE)
+        .run(
+            "--email.service.url=" + emailServer.baseUrl(),
+            "--spring.cloud.openfeign.httpclient.hc5.enabled=" + transport.equals("hc5"),
+            "--spring.cloud.openfeign.http2client.enabled=" + transport.equals("http2"),
+            "--logging.level.root=WARN",
+            "--logging.level.com.nulianov=WARN");
+    client = context.getBean(EmailServiceClient.class);
+    request = new EmailServiceRequest("user@example.com", "Your code", "Your code is 123456");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    context.close();
+    emailServer.close();
+  }
+
+  @Benchmark
+  public void sendEmail() {
+    client.sendEmail(request);
+  }
+}
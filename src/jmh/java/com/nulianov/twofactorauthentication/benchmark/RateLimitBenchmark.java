@@ -0,0 +1,59 @@
+package com.nulianov.twofactorauthentication.benchmark;
+
+import com.nulianov.twofactorauthentication.config.RateLimitProperties;
+import com.nulianov.twofactorauthentication.service.impl.TokenBucketRateLimitService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of {@link TokenBucketRateLimitService#acquire} for admitted requests spread over many emails and clients.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(Threads.MAX)
+@Fork(1)
+public class RateLimitBenchmark {
+
+  private static final int KEYS = 65_536;
+
+  private TokenBucketRateLimitService rateLimitService;
+  private String[] emails;
+  private String[] clients;
+
+  @Setup
+  public void setUp() {
+    RateLimitProperties properties = new RateLimitProperties();
+    properties.setEmail(new RateLimitProperties.Limit(Integer.MAX_VALUE, Duration.ofMinutes(10)));
+    properties.setClient(new RateLimitProperties.Limit(Integer.MAX_VALUE, Duration.ofMinutes(1)));
+    rateLimitService = new TokenBucketRateLimitService(properties, new SimpleMeterRegistry());
+
+    emails = new String[KEYS];
+    clients = new String[KEYS];
+    for (int i = 0; i < KEYS; i++) {
+      emails[i] = "user" + i + "@example.com";
+      clients[i] = "10." + (i >>> 16) + "." + (i >>> 8 & 0xff) + "." + (i & 0xff);
+    }
+  }
+
+  @Benchmark
+  public void acquire() {
+    int i = ThreadLocalRandom.current().nextInt(KEYS);
+    rateLimitService.acquire(emails[i], clients[i]);
+  }
+}
@@ -0,0 +1,98 @@
+package com.nulianov.twofactorauthentication.benchmark;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.nulianov.twofactorauthentication.config.CodeStoreProperties;
+import com.nulianov.twofactorauthentication.config.TwoFactorAuthProperties;
+import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.model.VerificationOutcome;
+import com.nulianov.twofactorauthentication.model.VerificationResult;
+import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import com.nulianov.twofactorauthentication.repository.impl.RedisCodeRepository;
+import com.nulianov.twofactorauthentication.support.StubRedisServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link RedisCodeRepository} against the local stand-in server: lookups answered by the Bloom filter and the
+ * near-cache, and writes that go over the pipelined connection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class RedisCodeRepositoryBenchmark {
+
+  private static final int KEYS = 1 << 12;
+
+  private StubRedisServer server;
+  private RedisCodeRepository codeRepository;
+  private String[] emails;
+  private CodeData codeData;
+
+  @Setup
+  public void setUp() throws InterruptedException {
+    ((Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+    server = StubRedisServer.start();
+    TwoFactorAuthProperties properties = new TwoFactorAuthProperties();
+    properties.setCodeValidityDuration(300);
+    CodeStoreProperties storeProperties = new CodeStoreProperties();
+    storeProperties.getRedis().setHost("127.0.0.1");
+    storeProperties.getRedis().setPort(server.port());
+    codeRepository = new RedisCodeRepository(properties, storeProperties, new SimpleMeterRegistry());
+    while (!codeRepository.isSynchronized()) {
+      Thread.sleep(10);
+    }
+
+    codeData = new CodeData("123456", Instant.now().getEpochSecond());
+    emails = new String[KEYS];
+    for (int i = 0; i < KEYS; i++) {
+      emails[i] = "user" + i + "@example.com";
+      codeRepository.save(emails[i], codeData);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    codeRepository.destroy();
+    server.close();
+  }
+
+  @Benchmark
+  public VerificationResult verifyWithoutPendingCode() {
+    return codeRepository.verify("missing" + ThreadLocalRandom.current().nextInt(KEYS) + "@example.com",
+        current -> VerificationOutcome.removed(new VerificationResult(VerificationStatus.INVALID_CODE)));
+  }
+
+  @Benchmark
+  public CodeData findByEmail() {
+    return codeRepository.findByEmail(nextEmail());
+  }
+
+  @Benchmark
+  public void save() {
+    codeRepository.save(nextEmail(), codeData);
+  }
+
+  private String nextEmail() {
+    return emails[ThreadLocalRandom.current().nextInt(KEYS)];
+  }
+}
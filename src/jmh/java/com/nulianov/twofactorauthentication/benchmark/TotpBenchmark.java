@@ -0,0 +1,97 @@
+package com.nulianov.twofactorauthentication.benchmark;
+
+import com.nulianov.twofactorauthentication.config.TotpProperties;
+import com.nulianov.twofactorauthentication.model.TotpSecret;
+import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import com.nulianov.twofactorauthentication.repository.TotpSecretRepository;
+import com.nulianov.twofactorauthentication.service.impl.TotpAuthenticator;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link TotpAuthenticator#verify} throughput for a matching code and for a wrong one, which computes the code for
+ * every step in the drift window. Replay protection is bypassed so that the matching code stays valid. Run with
+ * {@code -prof gc} to see the allocation rate per verification.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class TotpBenchmark {
+
+  private static final String EMAIL = "user@example.com";
+  private static final byte[] SECRET = "12345678901234567890".getBytes();
+
+  private TotpAuthenticator totpAuthenticator;
+  private String currentCode;
+  private String wrongCode;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    TotpSecret secret = new TotpSecret(new SecretKeySpec(SECRET, "HmacSHA1"));
+    totpAuthenticator = new TotpAuthenticator(new TotpProperties(), new FixedSecretRepository(secret));
+  }
+
+  @Setup(Level.Iteration)
+  public void computeCodes() throws GeneralSecurityException {
+    long step = Instant.now().getEpochSecond() / 30;
+    Mac mac = Mac.getInstance("HmacSHA1");
+    mac.init(new SecretKeySpec(SECRET, "HmacSHA1"));
+    byte[] digest = mac.doFinal(ByteBuffer.allocate(8).putLong(step).array());
+    int offset = digest[digest.length - 1] & 0x0f;
+    int code = (ByteBuffer.wrap(digest, offset, 4).getInt() & 0x7fffffff) % 1_000_000;
+    currentCode = String.format("%06d", code);
+    wrongCode = String.format("%06d", (code + 1) % 1_000_000);
+  }
+
+  @Benchmark
+  public VerificationStatus verifyMatching() {
+    return totpAuthenticator.verify(EMAIL, currentCode);
+  }
+
+  @Benchmark
+  public VerificationStatus verifyWrong() {
+    return totpAuthenticator.verify(EMAIL, wrongCode);
+  }
+
+  private record FixedSecretRepository(TotpSecret secret) implements TotpSecretRepository {
+
+    @Override
+    public void save(String email, TotpSecret secret) {
+    }
+
+    @Override
+    public TotpSecret findByEmail(String email) {
+      return secret;
+    }
+
+    @Override
+    public boolean markUsed(String email, long step) {
+      return true;
+    }
+
+    @Override
+    public boolean recordFailure(String email, int maxAttempts, long now, long lockUntil) {
+      return false;
+    }
+  }
+}
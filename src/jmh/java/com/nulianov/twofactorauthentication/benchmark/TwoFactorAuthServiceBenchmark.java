@@ -0,0 +1,152 @@
+package com.nulianov.twofactorauthentication.benchmark;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.nulianov.twofactorauthentication.config.ChallengeProperties;
+import com.nulianov.twofactorauthentication.config.ClusterProperties;
+import com.nulianov.twofactorauthentication.config.CodeDataExpiry;
+import com.nulianov.twofactorauthentication.config.CodeGeneratorProperties;
+import com.nulianov.twofactorauthentication.config.TotpProperties;
+import com.nulianov.twofactorauthentication.config.TwoFactorAuthProperties;
+import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.model.VerificationOutcome;
+import com.nulianov.twofactorauthentication.model.VerificationResult;
+import com.nulianov.twofactorauthentication.repository.CodeRepository;
+import com.nulianov.twofactorauthentication.repository.impl.CaffeineCodeRepository;
+import com.nulianov.twofactorauthentication.repository.impl.InMemoryTotpSecretRepository;
+import com.nulianov.twofactorauthentication.service.impl.CodeVerificationServiceImpl;
+import com.nulianov.twofactorauthentication.service.impl.SecureRandomCodeGenerator;
+import com.nulianov.twofactorauthentication.service.impl.StatelessTwoFactorAuthService;
+import com.nulianov.twofactorauthentication.service.impl.TotpAuthenticator;
+import com.nulianov.twofactorauthentication.service.impl.TwoFactorAuthServiceImpl;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+/**
+ * End-to-end {@link TwoFactorAuthServiceImpl} flows with email delivery stubbed out.
+ *
+ * <p>{@code generateCode} runs initiate against a repository that discards everything, which leaves code generation as
+ * the only real work. {@code verifyCode} runs the full verification flow against a Caffeine store holding a fresh code.
+ * {@code initiateChallenge} and {@code verifyChallenge} run the same flows in {@link StatelessTwoFactorAuthService
+ * stateless challenge mode}; a challenge can only be verified once, so {@code verifyChallenge} issues the challenge it
+ * verifies. Codes are valid for one second there, to keep the tracked challenges of each second within its capacity.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TwoFactorAuthServiceBenchmark {
+
+  private static final String EMAIL = "user@example.com";
+
+  private TwoFactorAuthServiceImpl generatingService;
+  private TwoFactorAuthServiceImpl verifyingService;
+  private CodeRepository codeRepository;
+  private StatelessTwoFactorAuthService statelessService;
+  private String lastCode;
+
+  @Setup
+  public void setUp() {
+    ((Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+    TwoFactorAuthProperties properties = new TwoFactorAuthProperties();
+    properties.setCodeValidityDuration(300);
+    properties.setResendInterval(300);
+    properties.setMaxAttempts(3);
+    CodeVerificationServiceImpl codeVerificationService = new CodeVerificationServiceImpl(properties);
+
+    SecureRandomCodeGenerator codeGenerator = new SecureRandomCodeGenerator(new CodeGeneratorProperties());
+    TotpAuthenticator totpAuthenticator = new TotpAuthenticator(new TotpProperties(), new InMemoryTotpSecretRepository());
+
+    generatingService = new TwoFactorAuthServiceImpl(
+        properties, (email, code) -> { }, codeVerificationService, new DiscardingCodeRepository(),
+        codeGenerator, totpAuthenticator, new SimpleMeterRegistry());
+
+    codeRepository = new CaffeineCodeRepository(Caffeine.newBuilder()
+        .expireAfter(new CodeDataExpiry(properties.getCodeValidityDuration()))
+        .build());
+    verifyingService = new TwoFactorAuthServiceImpl(
+        properties, (email, code) -> { }, codeVerificationService, codeRepository, codeGenerator, totpAuthenticator,
+        new SimpleMeterRegistry());
+
+    TwoFactorAuthProperties challengeTimeouts = new TwoFactorAuthProperties();
+    challengeTimeouts.setCodeValidityDuration(1);
+    challengeTimeouts.setResendInterval(1);
+    challengeTimeouts.setMaxAttempts(3);
+    ChallengeProperties challengeProperties = new ChallengeProperties();
+    challengeProperties.setSecret(Base64.getEncoder().encodeToString(new byte[32]));
+    challengeProperties.setTrackedChallenges(1 << 21);
+    statelessService = new StatelessTwoFactorAuthService(
+        challengeTimeouts, challengeProperties, new ClusterProperties(), verifyingService,
+        (email, code) -> lastCode = code, codeGenerator, new SimpleMeterRegistry());
+  }
+
+  @Benchmark
+  public void generateCode() {
+    generatingService.initiateTwoFactorAuth(EMAIL);
+  }
+
+  @Benchmark
+  public VerificationResult verifyCode() {
+    codeRepository.save(EMAIL, new CodeData("123456", Instant.now().getEpochSecond()));
+    return verifyingService.verifyCode(EMAIL, "123456");
+  }
+
+  @Benchmark
+  public String initiateChallenge() {
+    return statelessService.initiateChallenge(EMAIL);
+  }
+
+  @Benchmark
+  public VerificationResult verifyChallenge() {
+    String challenge = statelessService.initiateChallenge(EMAIL);
+    return statelessService.verifyCode(EMAIL, lastCode, challenge);
+  }
+
+  private static final class DiscardingCodeRepository implements CodeRepository {
+
+    @Override
+    public void save(String email, CodeData codeData) {
+    }
+
+    @Override
+    public boolean saveIfAbsent(String email, CodeData codeData) {
+      return true;
+    }
+
+    @Override
+    public CodeData findByEmail(String email) {
+      return null;
+    }
+
+    @Override
+    public void deleteByEmail(String email) {
+    }
+
+    @Override
+    public VerificationResult verify(String email, Function<CodeData, VerificationOutcome> step) {
+      return step.apply(null).result();
+    }
+
+    @Override
+    public long size() {
+      return 0;
+    }
+  }
+}
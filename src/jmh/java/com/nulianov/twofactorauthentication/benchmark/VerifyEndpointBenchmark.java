@@ -0,0 +1,120 @@
+package com.nulianov.twofactorauthentication.benchmark;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.nulianov.twofactorauthentication.config.BatchProperties;
+import com.nulianov.twofactorauthentication.config.CodeDataExpiry;
+import com.nulianov.twofactorauthentication.config.CodeGeneratorProperties;
+import com.nulianov.twofactorauthentication.config.IdempotencyProperties;
+import com.nulianov.twofactorauthentication.config.RateLimitProperties;
+import com.nulianov.twofactorauthentication.config.TotpProperties;
+import com.nulianov.twofactorauthentication.config.TwoFactorAuthProperties;
+import com.nulianov.twofactorauthentication.controller.TwoFactorAuthController;
+import com.nulianov.twofactorauthentication.model.ApiResponse;
+import com.nulianov.twofactorauthentication.model.TwoFactorAuthRequest;
+import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import com.nulianov.twofactorauthentication.repository.impl.CaffeineCodeRepository;
+import com.nulianov.twofactorauthentication.repository.impl.InMemoryTotpSecretRepository;
+import com.nulianov.twofactorauthentication.service.impl.CaffeineIdempotencyService;
+import com.nulianov.twofactorauthentication.service.impl.CodeVerificationServiceImpl;
+import com.nulianov.twofactorauthentication.service.impl.SecureRandomCodeGenerator;
+import com.nulianov.twofactorauthentication.service.impl.TokenBucketRateLimitService;
+import com.nulianov.twofactorauthentication.service.impl.TotpAuthenticator;
+import com.nulianov.twofactorauthentication.service.impl.TwoFactorAuthServiceImpl;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/**
+ * {@link TwoFactorAuthController#verifyCode} from the parsed request to the response entity, with no code stored for
+ * the email, against building and serializing a new {@link ApiResponse} for the same outcome. Run with
+ * {@code -prof gc}: the controller path should stay close to zero bytes per operation.
+ *
+ * <p>Request logging is turned down to WARN, so the numbers show the cost of the request path itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VerifyEndpointBenchmark {
+
+  private final TwoFactorAuthRequest request = new TwoFactorAuthRequest("user@example.com", "123456");
+  private final MockHttpServletRequest servletRequest = new MockHttpServletRequest();
+
+  private ObjectMapper objectMapper;
+  private ExecutorService batchExecutor;
+  private TwoFactorAuthController controller;
+
+  @Setup
+  public void setUp() {
+    ((Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+
+    TwoFactorAuthProperties properties = new TwoFactorAuthProperties();
+    properties.setCodeValidityDuration(300);
+    properties.setResendInterval(300);
+    properties.setMaxAttempts(3);
+    RateLimitProperties rateLimitProperties = new RateLimitProperties();
+    rateLimitProperties.setEnabled(false);
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    TwoFactorAuthServiceImpl service = new TwoFactorAuthServiceImpl(
+        properties,
+        (email, code) -> { },
+        new CodeVerificationServiceImpl(properties),
+        new CaffeineCodeRepository(Caffeine.newBuilder()
+            .expireAfter(new CodeDataExpiry(properties.getCodeValidityDuration()))
+            .build()),
+        new SecureRandomCodeGenerator(new CodeGeneratorProperties()),
+        new TotpAuthenticator(new TotpProperties(), new InMemoryTotpSecretRepository()),
+        meterRegistry);
+
+    objectMapper = new ObjectMapper();
+    batchExecutor = Executors.newSingleThreadExecutor();
+    controller = new TwoFactorAuthController(
+        service,
+        new TokenBucketRateLimitService(rateLimitProperties, meterRegistry),
+        new CaffeineIdempotencyService(new IdempotencyProperties(), meterRegistry),
+        objectMapper,
+        batchExecutor,
+        new BatchProperties());
+    servletRequest.setRemoteAddr("192.0.2.1");
+  }
+
+  @TearDown
+  public void tearDown() {
+    batchExecutor.shutdownNow();
+  }
+
+  @Benchmark
+  public ResponseEntity<byte[]> verify() {
+    return controller.verifyCode(request, null, servletRequest);
+  }
+
+  @Benchmark
+  public byte[] serializeNewResponse() throws JsonProcessingException {
+    ResponseEntity<ApiResponse> response = ResponseEntity.status(HttpStatus.BAD_REQUEST).body(new ApiResponse(
+        VerificationStatus.INVALID_CODE.name(), VerificationStatus.INVALID_CODE.getErrorMessage()));
+    return objectMapper.writeValueAsBytes(response.getBody());
+  }
+}
@@ -0,0 +1,101 @@
+package com.nulianov.twofactorauthentication.benchmark;
+
+import com.nulianov.twofactorauthentication.TwoFactorAuthenticationApplication;
+import com.nulianov.twofactorauthentication.support.StubEmailServer;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Time to complete a burst of concurrent {@code /2fa/initiate} requests against a slow stub email server, with Tomcat
+ * on the platform thread pool and on virtual threads.
+ *
+ * <p>Email dispatch runs in {@code sync} mode so every request holds its servlet thread for the whole email call,
+ * which is the situation virtual threads are meant to relieve.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class VirtualThreadLoadBenchmark {
+
+  @Param({"false", "true"})
+  public boolean virtualThreads;
+
+  @Param({"1000", "10000"})
+  public int concurrency;
+
+  @Param({"200"})
+  public long emailLatencyMillis;
+
+  private StubEmailServer emailServer;
+  private ConfigurableApplicationContext context;
+  private ExecutorService clientExecutor;
+  private HttpClient client;
+  private String initiateUrl;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    emailServer = StubEmailServer.start(Duration.ofMillis(emailLatencyMillis));
+    context = new SpringApplicationBuilder(TwoFactorAuthenticationApplication.class).run(
+        "--server.port=0",
+        "--server.tomcat.max-connections=20000",
+        "--server.tomcat.accept-count=20000",
+        "--email.service.url=" + emailServer.baseUrl(),
+        "--email.dispatch.mode=sync",
+        "--spring.threads.virtual.enabled=" + virtualThreads,
+        "--logging.level.root=WARN",
+        "--logging.level.com.nulianov=WARN");
+    initiateUrl = "http://127.0.0.1:" + context.getEnvironment().getProperty("local.server.port")
+        + "/api/auth/2fa/initiate?email=";
+
+    clientExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    client = HttpClient.newBuilder()
+        .executor(clientExecutor)
+        .connectTimeout(Duration.ofSeconds(30))
+        .build();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    context.close();
+    emailServer.close();
+    clientExecutor.close();
+  }
+
+  @Benchmark
+  public long initiateBurst() {
+    CompletableFuture<?>[] responses = new CompletableFuture<?>[concurrency];
+    for (int i = 0; i < concurrency; i++) {
+      HttpRequest request = HttpRequest.newBuilder(URI.create(initiateUrl + "user" + i + "@example.com"))
+          .POST(HttpRequest.BodyPublishers.noBody())
+          .build();
+      responses[i] = client.sendAsync(request, HttpResponse.BodyHandlers.discarding());
+    }
+    CompletableFuture.allOf(responses).join();
+    return emailServer.requestCount();
+  }
+}
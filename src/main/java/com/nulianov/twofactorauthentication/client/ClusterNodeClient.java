@@ -0,0 +1,45 @@
+package com.nulianov.twofactorauthentication.client;
+
+import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.model.TotpEnrollment;
+import com.nulianov.twofactorauthentication.model.TwoFactorAuthRequest;
+import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import java.net.URI;
+import org.springframework.cloud.openfeign.FeignClient;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+
+/**
+ * Feign client for the internal endpoints of other instances in the cluster.
+ *
+ * <p>Every call names the instance it goes to; the configured url is never used. Requests carry the email address and,
+ * where there is one, the code in a {@link TwoFactorAuthRequest}.
+ */
+@FeignClient(name = "clusterNodeClient", url = "http://cluster-node")
+public interface ClusterNodeClient {
+
+  String TOKEN_HEADER = "X-Cluster-Token";
+
+  @PostMapping("/internal/cluster/initiate")
+  void initiateTwoFactorAuth(URI node, @RequestHeader(TOKEN_HEADER) String token, TwoFactorAuthRequest request);
+
+  @PostMapping("/internal/cluster/verify")
+  VerificationStatus verifyCode(URI node, @RequestHeader(TOKEN_HEADER) String token, TwoFactorAuthRequest request);
+
+  @PostMapping("/internal/cluster/resend")
+  boolean resendCode(URI node, @RequestHeader(TOKEN_HEADER) String token, TwoFactorAuthRequest request);
+
+  @PostMapping("/internal/cluster/totp/enroll")
+  TotpEnrollment enrollTotp(URI node, @RequestHeader(TOKEN_HEADER) String token, TwoFactorAuthRequest request);
+
+  @PostMapping("/internal/cluster/totp/verify")
+  VerificationStatus verifyTotp(URI node, @RequestHeader(TOKEN_HEADER) String token, TwoFactorAuthRequest request);
+
+  /**
+   * Removes the pending code for the email address from the instance and returns it.
+   *
+   * @return the code data, or {@code null} if the instance holds no code for the address
+   */
+  @PostMapping("/internal/cluster/codes/release")
+  CodeData releaseCode(URI node, @RequestHeader(TOKEN_HEADER) String token, TwoFactorAuthRequest request);
+}
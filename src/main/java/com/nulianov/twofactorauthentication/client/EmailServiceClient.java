@@ -1,15 +1,35 @@
 package com.nulianov.twofactorauthentication.client;
 
 import com.nulianov.twofactorauthentication.model.EmailServiceRequest;
+import com.nulianov.twofactorauthentication.model.EmailServiceResult;
+import java.net.URI;
+import java.util.List;
 import org.springframework.cloud.openfeign.FeignClient;
 import org.springframework.web.bind.annotation.PostMapping;
 
 /**
  * Feign client for interacting with the external email service.
+ *
+ * <p>The overloads taking a {@link URI} send to that provider instead of {@code email.service.url}.
  */
 @FeignClient(name = "emailServiceClient", url = "${email.service.url}")
 public interface EmailServiceClient {
 
   @PostMapping("/send")
   void sendEmail(EmailServiceRequest emailRequest);
+
+  @PostMapping("/send")
+  void sendEmail(URI provider, EmailServiceRequest emailRequest);
+
+  /**
+   * Submits several emails in one request.
+   *
+   * @param emailRequests the emails to send
+   * @return one result per request, in the same order
+   */
+  @PostMapping("/send/batch")
+  List<EmailServiceResult> sendEmails(List<EmailServiceRequest> emailRequests);
+
+  @PostMapping("/send/batch")
+  List<EmailServiceResult> sendEmails(URI provider, List<EmailServiceRequest> emailRequests);
 }
@@ -0,0 +1,33 @@
+package com.nulianov.twofactorauthentication.config;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class BatchConfig {
+
+  private final BatchProperties properties;
+
+  public BatchConfig(BatchProperties properties) {
+    this.properties = properties;
+  }
+
+  /**
+   * Worker pool shared by all bulk requests, so the number of items processed at once stays bounded however many
+   * batches arrive together. Items are queued for it up to {@code queue-capacity}, and refused beyond.
+   */
+  @Bean(destroyMethod = "shutdown")
+  public ExecutorService batchExecutor(@Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads) {
+    ThreadFactory threadFactory = virtualThreads
+        ? Thread.ofVirtual().name("batch-", 1).factory()
+        : Thread.ofPlatform().name("batch-", 1).daemon().factory();
+    return new ThreadPoolExecutor(properties.getParallelism(), properties.getParallelism(), 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(properties.getQueueCapacity()), threadFactory);
+  }
+}
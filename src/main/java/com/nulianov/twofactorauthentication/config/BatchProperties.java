@@ -0,0 +1,20 @@
+package com.nulianov.twofactorauthentication.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Setter
+@Getter
+@Configuration
+@ConfigurationProperties(prefix = "two-factor.batch")
+public class BatchProperties {
+
+  private int maxSize = 100;
+  private int parallelism = 16;
+  /**
+   * The number of batch items, across all bulk requests, that may wait for a worker; items beyond it are refused.
+   */
+  private int queueCapacity = 1000;
+}
@@ -2,8 +2,9 @@ package com.nulianov.twofactorauthentication.config;
 
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Scheduler;
 import com.nulianov.twofactorauthentication.model.CodeData;
-import java.util.concurrent.TimeUnit;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -17,9 +18,13 @@ public class CacheConfig {
   }
 
   @Bean
+  @ConditionalOnProperty(prefix = "two-factor.store", name = "type", havingValue = "caffeine", matchIfMissing = true)
   public Cache<String, CodeData> codeCache() {
     return Caffeine.newBuilder()
-        .expireAfterWrite(properties.getCodeValidityDuration(), TimeUnit.SECONDS)
+        .expireAfter(new CodeDataExpiry(properties.getCodeValidityDuration()))
+        .scheduler(Scheduler.systemScheduler())
+        .maximumSize(properties.getMaximumPendingCodes())
+        .recordStats()
         .build();
   }
 }
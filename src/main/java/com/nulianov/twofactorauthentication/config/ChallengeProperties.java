@@ -0,0 +1,34 @@
+package com.nulianov.twofactorauthentication.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Setter
+@Getter
+@Configuration
+@ConfigurationProperties(prefix = "two-factor.challenge")
+public class ChallengeProperties {
+
+  /**
+   * Issues signed challenges instead of keeping codes in the code store.
+   */
+  private boolean enabled = false;
+  /**
+   * Base64-encoded key that challenges are signed with; every instance must use the same one. Empty generates a
+   * random key at startup, which only suits a single instance.
+   */
+  private String secret = "";
+  /**
+   * Base64-encoded keys that challenges issued before a key rotation were signed with, still accepted for
+   * verification.
+   */
+  private List<String> previousSecrets = new ArrayList<>();
+  /**
+   * Verified challenges that can be tracked for replay and attempt counting per code validity period.
+   */
+  private int trackedChallenges = 1 << 17;
+}
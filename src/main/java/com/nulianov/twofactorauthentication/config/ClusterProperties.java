@@ -0,0 +1,55 @@
+package com.nulianov.twofactorauthentication.config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+
+@Setter
+@Getter
+@Configuration
+@ConfigurationProperties(prefix = "two-factor.cluster")
+public class ClusterProperties {
+
+  private boolean enabled = false;
+  /**
+   * The id of this instance among {@link #nodes}.
+   */
+  private String self;
+  private List<Node> nodes = new ArrayList<>();
+  private int virtualNodes = 128;
+  /**
+   * Shared token that instances send with internal calls; internal calls without it are refused. Required in cluster
+   * mode: an instance with an empty token does not start.
+   */
+  private String token = "";
+  private Handoff handoff = new Handoff();
+
+  @Setter
+  @Getter
+  public static class Node {
+
+    private String id;
+    /**
+     * Base URL of the instance, for example {@code http://10.0.0.12:8080}.
+     */
+    private String url;
+  }
+
+  @Setter
+  @Getter
+  public static class Handoff {
+
+    /**
+     * Whether this instance streams each pending code to the node that owns it without this instance when it shuts
+     * down, for an instance that leaves the cluster.
+     */
+    private boolean enabled = false;
+    private DataSize chunkSize = DataSize.ofKilobytes(64);
+    private Duration timeout = Duration.ofSeconds(60);
+  }
+}
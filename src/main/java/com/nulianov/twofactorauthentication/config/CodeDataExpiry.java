@@ -0,0 +1,44 @@
+package com.nulianov.twofactorauthentication.config;
+
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.nulianov.twofactorauthentication.model.CodeData;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caffeine expiry that ends an entry's life when its code stops being valid, counted from {@link CodeData#creationTime()}.
+ *
+ * <p>Saving an entry with an incremented attempt count therefore does not push its expiry out. Creation times have
+ * second precision and {@code CodeVerificationService} accepts a code until the end of its last valid second, so an
+ * entry lives for at most the validity duration from now and never past that second.
+ */
+public class CodeDataExpiry implements Expiry<String, CodeData> {
+
+  private final long codeValidityNanos;
+  private final long codeValidityMillis;
+
+  public CodeDataExpiry(long codeValidityDuration) {
+    this.codeValidityNanos = TimeUnit.SECONDS.toNanos(codeValidityDuration);
+    this.codeValidityMillis = TimeUnit.SECONDS.toMillis(codeValidityDuration);
+  }
+
+  @Override
+  public long expireAfterCreate(String email, CodeData codeData, long currentTime) {
+    return remainingNanos(codeData);
+  }
+
+  @Override
+  public long expireAfterUpdate(String email, CodeData codeData, long currentTime, long currentDuration) {
+    return remainingNanos(codeData);
+  }
+
+  @Override
+  public long expireAfterRead(String email, CodeData codeData, long currentTime, long currentDuration) {
+    return currentDuration;
+  }
+
+  private long remainingNanos(CodeData codeData) {
+    long lastValidMillis = TimeUnit.SECONDS.toMillis(codeData.creationTime() + 1) + codeValidityMillis;
+    long remainingMillis = lastValidMillis - System.currentTimeMillis();
+    return Math.max(0, Math.min(codeValidityNanos, TimeUnit.MILLISECONDS.toNanos(remainingMillis)));
+  }
+}
@@ -0,0 +1,17 @@
+package com.nulianov.twofactorauthentication.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Setter
+@Getter
+@Configuration
+@ConfigurationProperties(prefix = "two-factor.code")
+public class CodeGeneratorProperties {
+
+  private int length = 6;
+  private String alphabet = "0123456789";
+  private int bufferSize = 256;
+}
@@ -0,0 +1,133 @@
+package com.nulianov.twofactorauthentication.config;
+
+import java.time.Duration;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+
+@Setter
+@Getter
+@Configuration
+@ConfigurationProperties(prefix = "two-factor.store")
+public class CodeStoreProperties {
+
+  private StoreType type = StoreType.CAFFEINE;
+  private CaffeineStore caffeine = new CaffeineStore();
+  private Packed packed = new Packed();
+  private Mapped mapped = new Mapped();
+  private Redis redis = new Redis();
+
+  /**
+   * Available {@code CodeRepository} implementations.
+   */
+  public enum StoreType {
+    /**
+     * Caffeine cache of {@code CodeData} objects.
+     */
+    CAFFEINE,
+    /**
+     * Open-addressing table of codes packed into primitive longs.
+     */
+    PACKED,
+    /**
+     * Fixed-slot table of packed codes in a memory-mapped file that survives restarts.
+     */
+    MAPPED,
+    /**
+     * Remote key-value store speaking the Redis protocol, shared by every instance.
+     */
+    REDIS
+  }
+
+  @Setter
+  @Getter
+  public static class CaffeineStore {
+
+    private Persistence persistence = new Persistence();
+
+    @Setter
+    @Getter
+    public static class Persistence {
+
+      /**
+       * Records every change in a journal and periodic snapshots, so pending codes survive restarts.
+       */
+      private boolean enabled = false;
+      private String path = "data/codes";
+      private DataSize segmentSize = DataSize.ofMegabytes(16);
+      /**
+       * Whether a change waits until it is written through to disk, sharing each write with concurrent changes;
+       * otherwise the journal is written through every {@code sync-interval}.
+       */
+      private boolean groupCommit = true;
+      /**
+       * Whether a change that cannot be written through to disk still succeeds, since it already took effect in
+       * memory; otherwise the request fails. Either way the failure is counted.
+       */
+      private boolean tolerateSyncFailures = false;
+      private Duration syncInterval = Duration.ofSeconds(1);
+      private Duration snapshotInterval = Duration.ofMinutes(1);
+    }
+  }
+
+  @Setter
+  @Getter
+  public static class Packed {
+
+    private int initialCapacity = 1024;
+    private int segments = 16;
+  }
+
+  @Setter
+  @Getter
+  public static class Mapped {
+
+    private String path = "data/codes.db";
+    private int slots = 1 << 20;
+    private int segments = 64;
+    private Duration sweepInterval = Duration.ofSeconds(30);
+  }
+
+  @Setter
+  @Getter
+  public static class Redis {
+
+    private String host = "localhost";
+    private int port = 6379;
+    private String password = "";
+    private int database = 0;
+    private String keyPrefix = "2fa:code:";
+    private String channel = "2fa:code:changes";
+    private Duration connectTimeout = Duration.ofSeconds(2);
+    private Duration timeout = Duration.ofSeconds(2);
+    private int transactionConnections = 8;
+    private int maxTransactionRetries = 16;
+    private Duration reconnectDelay = Duration.ofSeconds(1);
+    /**
+     * How often the change subscription is pinged; it is dropped and subscribed again when a ping goes unanswered
+     * until the next one is due.
+     */
+    private Duration keepaliveInterval = Duration.ofSeconds(5);
+    private NearCache nearCache = new NearCache();
+    private Bloom bloom = new Bloom();
+
+    @Setter
+    @Getter
+    public static class NearCache {
+
+      private long maximumSize = 10_000;
+      private Duration ttl = Duration.ofSeconds(5);
+    }
+
+    @Setter
+    @Getter
+    public static class Bloom {
+
+      private long expectedCodes = 1_000_000;
+      private double falsePositiveRate = 0.01;
+      private Duration rebuildInterval = Duration.ofMinutes(10);
+    }
+  }
+}
@@ -0,0 +1,19 @@
+package com.nulianov.twofactorauthentication.config;
+
+import java.time.Duration;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Setter
+@Getter
+@Configuration
+@ConfigurationProperties(prefix = "email.batch")
+public class EmailBatchProperties {
+
+  private boolean enabled = false;
+  private int maxSize = 100;
+  private Duration linger = Duration.ofMillis(5);
+  private int maxInFlight = 4;
+}
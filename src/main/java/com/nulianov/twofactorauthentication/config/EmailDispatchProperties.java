@@ -0,0 +1,82 @@
+package com.nulianov.twofactorauthentication.config;
+
+import java.time.Duration;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.util.unit.DataSize;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Setter
+@Getter
+@Configuration
+@ConfigurationProperties(prefix = "email.dispatch")
+public class EmailDispatchProperties {
+
+  private DispatchMode mode = DispatchMode.QUEUE;
+  private int queueCapacity = 10_000;
+  private int workerThreads = 4;
+  /**
+   * The number of emails sent at once when dispatching on virtual threads, where {@code worker-threads} does not apply.
+   */
+  private int maxConcurrentSends = 256;
+  private OverflowPolicy overflowPolicy = OverflowPolicy.REJECT;
+  private Duration shutdownTimeout = Duration.ofSeconds(10);
+  private Outbox outbox = new Outbox();
+
+  /**
+   * How verification emails are handed over to the delivery service.
+   */
+  public enum DispatchMode {
+    /**
+     * Send on the calling thread.
+     */
+    SYNC,
+    /**
+     * Enqueue and send from the dispatch worker pool.
+     */
+    QUEUE,
+    /**
+     * Record in a durable journal and send, with retries, from the dispatch worker pool.
+     */
+    OUTBOX
+  }
+
+  /**
+   * What to do with a new message when the dispatch queue is full.
+   */
+  public enum OverflowPolicy {
+    /**
+     * Fail the caller with an {@code EmailSendingException}.
+     */
+    REJECT,
+    /**
+     * Discard the oldest queued message to make room.
+     */
+    DROP_OLDEST,
+    /**
+     * Send the message synchronously on the calling thread.
+     */
+    CALLER_RUNS
+  }
+
+  @Setter
+  @Getter
+  public static class Outbox {
+
+    /**
+     * Directory of the outbox journal. It holds pending codes in plaintext, so protect it like a credential store; it
+     * is locked while open, so every instance needs its own.
+     */
+    private String path = "data/outbox";
+    private DataSize segmentSize = DataSize.ofMegabytes(16);
+    /**
+     * How often the journal is written through to disk; zero writes through on every message.
+     */
+    private Duration syncInterval = Duration.ofSeconds(1);
+    private Duration compactInterval = Duration.ofSeconds(30);
+    private int maxAttempts = 10;
+    private Duration initialBackoff = Duration.ofSeconds(1);
+    private Duration maxBackoff = Duration.ofMinutes(1);
+  }
+}
@@ -0,0 +1,58 @@
+package com.nulianov.twofactorauthentication.config;
+
+import java.time.Duration;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Setter
+@Getter
+@Configuration
+@ConfigurationProperties(prefix = "email.resilience")
+public class EmailResilienceProperties {
+
+  private boolean enabled = true;
+  private CircuitBreaker circuitBreaker = new CircuitBreaker();
+  private Bulkhead bulkhead = new Bulkhead();
+  private Retry retry = new Retry();
+
+  @Setter
+  @Getter
+  public static class CircuitBreaker {
+
+    private float failureRateThreshold = 50;
+    private float slowCallRateThreshold = 50;
+    private Duration slowCallDuration = Duration.ofSeconds(2);
+    private int slidingWindowSize = 50;
+    private int minimumNumberOfCalls = 20;
+    private Duration waitDurationInOpenState = Duration.ofSeconds(30);
+    private int permittedCallsInHalfOpenState = 5;
+  }
+
+  @Setter
+  @Getter
+  public static class Bulkhead {
+
+    private int maxConcurrentCalls = 50;
+    private Duration maxWaitDuration = Duration.ZERO;
+  }
+
+  @Setter
+  @Getter
+  public static class Retry {
+
+    private int maxAttempts = 3;
+    private Duration initialBackoff = Duration.ofMillis(100);
+    private double backoffMultiplier = 2;
+    private double jitter = 0.5;
+    /**
+     * Retries allowed per call, on average. Each call adds this fraction of a retry to the budget.
+     */
+    private double budgetRatio = 0.2;
+    /**
+     * Retries available with no recent calls, and the most the budget can accumulate beyond what calls add.
+     */
+    private int budgetReserve = 10;
+  }
+}
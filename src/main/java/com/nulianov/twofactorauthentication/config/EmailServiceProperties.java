@@ -0,0 +1,56 @@
+package com.nulianov.twofactorauthentication.config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Setter
+@Getter
+@Configuration
+@ConfigurationProperties(prefix = "email.service")
+public class EmailServiceProperties {
+
+  private String url;
+  /**
+   * Base URLs of the email providers to route between. Defaults to {@code url} alone.
+   */
+  private List<String> providers = new ArrayList<>();
+  private Routing routing = new Routing();
+  private Hedging hedging = new Hedging();
+
+  @Setter
+  @Getter
+  public static class Routing {
+
+    /**
+     * Weight of the newest observation in the latency and error-rate averages.
+     */
+    private double smoothing = 0.2;
+    /**
+     * Time constant over which the statistics of an idle provider decay, so it is tried again.
+     */
+    private Duration idleDecay = Duration.ofSeconds(10);
+    /**
+     * Latency charged to a provider for a failed call.
+     */
+    private Duration failurePenalty = Duration.ofSeconds(1);
+  }
+
+  @Setter
+  @Getter
+  public static class Hedging {
+
+    private boolean enabled = false;
+    private double percentile = 0.95;
+    private Duration minDelay = Duration.ofMillis(20);
+    private Duration maxDelay = Duration.ofSeconds(1);
+    /**
+     * Maximum number of hedge requests in flight; a call is not hedged while this many are running.
+     */
+    private int maxInFlight = 16;
+  }
+}
@@ -0,0 +1,19 @@
+package com.nulianov.twofactorauthentication.config;
+
+import java.time.Duration;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Setter
+@Getter
+@Configuration
+@ConfigurationProperties(prefix = "two-factor.idempotency")
+public class IdempotencyProperties {
+
+  private boolean enabled = true;
+  private Duration window = Duration.ofMinutes(1);
+  private long maximumKeys = 100_000;
+  private int maxKeyLength = 255;
+}
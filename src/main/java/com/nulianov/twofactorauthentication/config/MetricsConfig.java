@@ -0,0 +1,63 @@
+package com.nulianov.twofactorauthentication.config;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.repository.CodeRepository;
+import com.nulianov.twofactorauthentication.repository.impl.CaffeineCodeRepository;
+import com.nulianov.twofactorauthentication.service.impl.OutboxEmailService;
+import com.nulianov.twofactorauthentication.service.impl.QueuedEmailService;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Meters that are not recorded inline by the services: store size, cache statistics, journal sync failures,
+ * dispatch queue and outbox depth.
+ */
+@Configuration
+public class MetricsConfig {
+
+  @Bean
+  public MeterBinder pendingCodesMetrics(CodeRepository codeRepository) {
+    return registry -> Gauge.builder("twofactor.codes.pending", codeRepository, CodeRepository::size)
+        .description("Verification codes waiting to be verified")
+        .register(registry);
+  }
+
+  @Bean
+  @ConditionalOnProperty(prefix = "two-factor.store", name = "type", havingValue = "caffeine", matchIfMissing = true)
+  public MeterBinder codeCacheMetrics(Cache<String, CodeData> codeCache) {
+    return new CaffeineCacheMetrics<>(codeCache, "codes", Tags.empty());
+  }
+
+  @Bean
+  public MeterBinder codeJournalMetrics(ObjectProvider<CaffeineCodeRepository> caffeineCodeRepository) {
+    return registry -> caffeineCodeRepository.ifAvailable(repository ->
+        FunctionCounter.builder("twofactor.codes.journal.sync.failures", repository,
+                CaffeineCodeRepository::getSyncFailures)
+            .description("Code store changes whose journal records could not be written through to disk")
+            .register(registry));
+  }
+
+  @Bean
+  public MeterBinder emailDispatchMetrics(ObjectProvider<QueuedEmailService> queuedEmailService) {
+    return registry -> queuedEmailService.ifAvailable(service ->
+        Gauge.builder("twofactor.email.dispatch.queued", service, QueuedEmailService::getQueueSize)
+            .description("Verification emails waiting in the dispatch queue")
+            .register(registry));
+  }
+
+  @Bean
+  public MeterBinder emailOutboxMetrics(ObjectProvider<OutboxEmailService> outboxEmailService) {
+    return registry -> outboxEmailService.ifAvailable(service ->
+        Gauge.builder("twofactor.email.outbox.pending", service, OutboxEmailService::getPendingCount)
+            .description("Verification emails recorded in the outbox and not yet delivered")
+            .register(registry));
+  }
+}
@@ -0,0 +1,38 @@
+package com.nulianov.twofactorauthentication.config;
+
+import java.time.Duration;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Setter
+@Getter
+@Configuration
+@ConfigurationProperties(prefix = "two-factor.rate-limit")
+public class RateLimitProperties {
+
+  private boolean enabled = true;
+  private long maximumKeys = 100_000;
+  private Limit email = new Limit(10, Duration.ofMinutes(10));
+  private Limit client = new Limit(100, Duration.ofMinutes(1));
+
+  /**
+   * A token bucket that holds up to {@code capacity} requests and refills completely over {@code refillPeriod}.
+   */
+  @Setter
+  @Getter
+  public static class Limit {
+
+    private int capacity;
+    private Duration refillPeriod;
+
+    public Limit() {
+    }
+
+    public Limit(int capacity, Duration refillPeriod) {
+      this.capacity = capacity;
+      this.refillPeriod = refillPeriod;
+    }
+  }
+}
@@ -0,0 +1,29 @@
+package com.nulianov.twofactorauthentication.config;
+
+import java.time.Duration;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Setter
+@Getter
+@Configuration
+@ConfigurationProperties(prefix = "email.smtp")
+public class SmtpProperties {
+
+  private String host = "localhost";
+  private int port = 25;
+  private String username;
+  private String password;
+  private String from;
+  private boolean startTls = false;
+  private int poolSize = 8;
+  private Duration borrowTimeout = Duration.ofSeconds(5);
+  private Duration connectionTimeout = Duration.ofSeconds(5);
+  private Duration timeout = Duration.ofSeconds(10);
+  /**
+   * Messages sent over one connection before it is replaced, to stay under server-side per-connection limits.
+   */
+  private int maxMessagesPerConnection = 1000;
+}
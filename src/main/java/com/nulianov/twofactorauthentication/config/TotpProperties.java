@@ -0,0 +1,51 @@
+package com.nulianov.twofactorauthentication.config;
+
+import java.time.Duration;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Setter
+@Getter
+@Configuration
+@ConfigurationProperties(prefix = "two-factor.totp")
+public class TotpProperties {
+
+  private String issuer = "Two-Factor Authentication";
+  private Algorithm algorithm = Algorithm.SHA1;
+  private int digits = 6;
+  private Duration period = Duration.ofSeconds(30);
+  /**
+   * How many time steps before and after the current one are still accepted, to allow for clock drift.
+   */
+  private int allowedDrift = 1;
+  private int secretSize = 20;
+  /**
+   * Wrong codes in a row after which the user is locked out, as {@code two-factor.max-attempts} does for emailed codes.
+   */
+  private int maxAttempts = 3;
+  /**
+   * How long every code is refused once the user is locked out.
+   */
+  private Duration lockout = Duration.ofMinutes(5);
+
+  /**
+   * HMAC algorithms defined for TOTP by RFC 6238.
+   */
+  public enum Algorithm {
+    SHA1("HmacSHA1"),
+    SHA256("HmacSHA256"),
+    SHA512("HmacSHA512");
+
+    private final String macAlgorithm;
+
+    Algorithm(String macAlgorithm) {
+      this.macAlgorithm = macAlgorithm;
+    }
+
+    public String getMacAlgorithm() {
+      return macAlgorithm;
+    }
+  }
+}
@@ -14,4 +14,5 @@ public class TwoFactorAuthProperties {
   private int codeValidityDuration;
   private int resendInterval;
   private int maxAttempts;
+  private long maximumPendingCodes = 1_000_000;
 }
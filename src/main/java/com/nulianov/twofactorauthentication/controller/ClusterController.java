@@ -0,0 +1,94 @@
+package com.nulianov.twofactorauthentication.controller;
+
+import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.model.TotpEnrollment;
+import com.nulianov.twofactorauthentication.model.TwoFactorAuthRequest;
+import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import com.nulianov.twofactorauthentication.service.impl.OwnerTwoFactorAuthService;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cloud.context.refresh.ContextRefresher;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Internal endpoints that other instances forward requests to in cluster mode. Requests are handled on this instance
+ * without being routed again, and are only accepted with the cluster token (see {@link ClusterTokenFilter}).
+ */
+@RestController
+@RequestMapping("/internal/cluster")
+@ConditionalOnProperty(prefix = "two-factor.cluster", name = "enabled", havingValue = "true")
+public class ClusterController {
+
+  private final OwnerTwoFactorAuthService ownerService;
+  private final ContextRefresher contextRefresher;
+
+  public ClusterController(OwnerTwoFactorAuthService ownerService, ContextRefresher contextRefresher) {
+    this.ownerService = ownerService;
+    this.contextRefresher = contextRefresher;
+  }
+
+  @PostMapping("/initiate")
+  public void initiateTwoFactorAuth(@RequestBody TwoFactorAuthRequest request) {
+    ownerService.initiateTwoFactorAuth(request.email());
+  }
+
+  @PostMapping("/verify")
+  public VerificationStatus verifyCode(@RequestBody TwoFactorAuthRequest request) {
+    return ownerService.verifyCode(request.email(), request.code()).status();
+  }
+
+  @PostMapping("/resend")
+  public boolean resendCode(@RequestBody TwoFactorAuthRequest request) {
+    return ownerService.resendCode(request.email());
+  }
+
+  @PostMapping("/totp/enroll")
+  public TotpEnrollment enrollTotp(@RequestBody TwoFactorAuthRequest request) {
+    return ownerService.enrollTotp(request.email());
+  }
+
+  @PostMapping("/totp/verify")
+  public VerificationStatus verifyTotp(@RequestBody TwoFactorAuthRequest request) {
+    return ownerService.verifyTotp(request.email(), request.code()).status();
+  }
+
+  /**
+   * Hands the pending code for an address over to its new owner after a membership change.
+   *
+   * @return the code data, or {@code 204 No Content} if this instance holds no code for the address
+   */
+  @PostMapping("/codes/release")
+  public ResponseEntity<CodeData> releaseCode(@RequestBody TwoFactorAuthRequest request) {
+    CodeData codeData = ownerService.releaseCode(request.email());
+    return codeData != null ? ResponseEntity.ok(codeData) : ResponseEntity.noContent().build();
+  }
+
+  /**
+   * Takes over the pending codes streamed by an instance that is shutting down. The body is read as it arrives, so a
+   * sender is held back by TCP flow control when this instance falls behind.
+   *
+   * @return the number of codes taken over
+   */
+  @PostMapping(value = "/codes/handoff", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+  public long acceptCodes(InputStream transfer) throws IOException {
+    return ownerService.acceptCodes(transfer);
+  }
+
+  /**
+   * Reloads the configuration sources, as {@code /actuator/refresh} would, so that a changed list of nodes takes
+   * effect without a restart. Unlike the actuator endpoint it needs the cluster token.
+   *
+   * @return the keys of the properties that changed
+   */
+  @PostMapping("/membership/refresh")
+  public Set<String> refreshMembership() {
+    return contextRefresher.refresh();
+  }
+}
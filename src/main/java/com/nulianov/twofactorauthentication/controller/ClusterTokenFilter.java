@@ -0,0 +1,67 @@
+package com.nulianov.twofactorauthentication.controller;
+
+import com.nulianov.twofactorauthentication.client.ClusterNodeClient;
+import com.nulianov.twofactorauthentication.config.ClusterProperties;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Refuses requests to the internal cluster endpoints that do not carry the configured cluster token.
+ *
+ * <p>The token is required: an instance in cluster mode does not start without one. Requests are matched on their
+ * decoded, normalized path, so path parameters or encoded characters cannot route around the check, and tokens are
+ * compared as SHA-256 digests, so the time taken depends on neither their content nor their length.
+ */
+@Component
+@Slf4j
+@ConditionalOnProperty(prefix = "two-factor.cluster", name = "enabled", havingValue = "true")
+public class ClusterTokenFilter extends OncePerRequestFilter {
+
+  static final String INTERNAL_PATH = "/internal/cluster";
+
+  private final byte[] tokenDigest;
+
+  public ClusterTokenFilter(ClusterProperties properties) {
+    if (properties.getToken() == null || properties.getToken().isBlank()) {
+      throw new IllegalStateException(
+          "two-factor.cluster.token must be set when two-factor.cluster.enabled is true");
+    }
+    this.tokenDigest = digest(properties.getToken());
+  }
+
+  @Override
+  protected boolean shouldNotFilter(HttpServletRequest request) {
+    String path = request.getServletPath() + (request.getPathInfo() == null ? "" : request.getPathInfo());
+    return !path.equals(INTERNAL_PATH) && !path.startsWith(INTERNAL_PATH + "/");
+  }
+
+  @Override
+  protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+      throws ServletException, IOException {
+    String presented = request.getHeader(ClusterNodeClient.TOKEN_HEADER);
+    if (presented == null || !MessageDigest.isEqual(tokenDigest, digest(presented))) {
+      log.warn("Refused internal cluster request from {} without a valid token", request.getRemoteAddr());
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+    chain.doFilter(request, response);
+  }
+
+  private static byte[] digest(String token) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+  }
+}
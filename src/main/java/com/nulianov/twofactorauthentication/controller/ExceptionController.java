@@ -1,10 +1,17 @@
 package com.nulianov.twofactorauthentication.controller;
 
+import com.nulianov.twofactorauthentication.exception.BatchTooLargeException;
+import com.nulianov.twofactorauthentication.exception.ClusterNodeUnavailableException;
 import com.nulianov.twofactorauthentication.exception.EmailSendingException;
+import com.nulianov.twofactorauthentication.exception.InvalidIdempotencyKeyException;
+import com.nulianov.twofactorauthentication.exception.MalformedBatchException;
+import com.nulianov.twofactorauthentication.exception.RateLimitExceededException;
 import com.nulianov.twofactorauthentication.model.ApiResponse;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
 
@@ -19,6 +26,46 @@ public class ExceptionController {
     return new ResponseEntity<>(response, HttpStatus.SERVICE_UNAVAILABLE);
   }
 
+  @ExceptionHandler(RateLimitExceededException.class)
+  public ResponseEntity<ApiResponse> handleRateLimitExceededException(RateLimitExceededException ex) {
+    long retryAfterSeconds = Math.max(1, (ex.getRetryAfter().toMillis() + 999) / 1000);
+    ApiResponse response = new ApiResponse("RATE_LIMIT_EXCEEDED", ex.getMessage());
+    return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+        .header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds))
+        .body(response);
+  }
+
+  @ExceptionHandler(ClusterNodeUnavailableException.class)
+  public ResponseEntity<ApiResponse> handleClusterNodeUnavailableException(ClusterNodeUnavailableException ex) {
+    ApiResponse response = new ApiResponse("CLUSTER_NODE_UNAVAILABLE", ex.getMessage());
+    return new ResponseEntity<>(response, HttpStatus.SERVICE_UNAVAILABLE);
+  }
+
+  @ExceptionHandler(BatchTooLargeException.class)
+  public ResponseEntity<ApiResponse> handleBatchTooLargeException(BatchTooLargeException ex) {
+    ApiResponse response = new ApiResponse("BATCH_TOO_LARGE", ex.getMessage());
+    return new ResponseEntity<>(response, HttpStatus.PAYLOAD_TOO_LARGE);
+  }
+
+  @ExceptionHandler(MalformedBatchException.class)
+  public ResponseEntity<ApiResponse> handleMalformedBatchException(MalformedBatchException ex) {
+    ApiResponse response = new ApiResponse("MALFORMED_BATCH", ex.getMessage());
+    return new ResponseEntity<>(response, HttpStatus.BAD_REQUEST);
+  }
+
+  @ExceptionHandler(HttpMessageNotReadableException.class)
+  public ResponseEntity<ApiResponse> handleHttpMessageNotReadableException(HttpMessageNotReadableException ex) {
+    log.debug("Unreadable request body: {}", ex.getMessage());
+    ApiResponse response = new ApiResponse("MALFORMED_REQUEST", "The request body could not be read.");
+    return new ResponseEntity<>(response, HttpStatus.BAD_REQUEST);
+  }
+
+  @ExceptionHandler(InvalidIdempotencyKeyException.class)
+  public ResponseEntity<ApiResponse> handleInvalidIdempotencyKeyException(InvalidIdempotencyKeyException ex) {
+    ApiResponse response = new ApiResponse("INVALID_IDEMPOTENCY_KEY", ex.getMessage());
+    return new ResponseEntity<>(response, HttpStatus.BAD_REQUEST);
+  }
+
   @ExceptionHandler(Exception.class)
   public ResponseEntity<ApiResponse> handleGenericException(Exception ex) {
     log.error("Unhandled exception: {}", ex.getMessage(), ex);
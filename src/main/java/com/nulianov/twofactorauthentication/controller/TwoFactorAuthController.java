@@ -1,88 +1,349 @@
 package com.nulianov.twofactorauthentication.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nulianov.twofactorauthentication.config.BatchProperties;
+import com.nulianov.twofactorauthentication.exception.BatchTooLargeException;
+import com.nulianov.twofactorauthentication.exception.ClusterNodeUnavailableException;
+import com.nulianov.twofactorauthentication.exception.EmailSendingException;
+import com.nulianov.twofactorauthentication.exception.MalformedBatchException;
+import com.nulianov.twofactorauthentication.exception.RateLimitExceededException;
 import com.nulianov.twofactorauthentication.model.ApiResponse;
+import com.nulianov.twofactorauthentication.model.CodeIssue;
+import com.nulianov.twofactorauthentication.model.TotpEnrollment;
 import com.nulianov.twofactorauthentication.model.TwoFactorAuthRequest;
 import com.nulianov.twofactorauthentication.model.VerificationResult;
 import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import com.nulianov.twofactorauthentication.service.IdempotencyService;
+import com.nulianov.twofactorauthentication.service.RateLimitService;
 import com.nulianov.twofactorauthentication.service.TwoFactorAuthService;
-import lombok.RequiredArgsConstructor;
+import jakarta.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.http.HttpStatus;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 /**
  * Controller for handling two-factor authentication.
+ *
+ * <p>Initiate, verify and resend requests may carry an {@code Idempotency-Key} header; a repeated request with the
+ * same key, from the same client and for the same input, is answered with the first response instead of being handled
+ * again.
+ *
+ * <p>In stateless challenge mode, initiate and resend answer with a {@code challenge} that the client presents with the
+ * code on verify, and with the previous challenge on resend.
  */
 @Slf4j
 @RestController
 @RequestMapping("/api/auth")
-@RequiredArgsConstructor
 public class TwoFactorAuthController {
 
+  private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
   private final TwoFactorAuthService twoFactorAuthService;
+  private final RateLimitService rateLimitService;
+  private final IdempotencyService idempotencyService;
+  private final ObjectMapper objectMapper;
+  private final VerificationResponses verificationResponses;
+  private final ExecutorService batchExecutor;
+  private final int maxBatchSize;
+
+  public TwoFactorAuthController(
+      TwoFactorAuthService twoFactorAuthService,
+      RateLimitService rateLimitService,
+      IdempotencyService idempotencyService,
+      ObjectMapper objectMapper,
+      @Qualifier("batchExecutor") ExecutorService batchExecutor,
+      BatchProperties batchProperties
+  ) {
+    this.twoFactorAuthService = twoFactorAuthService;
+    this.rateLimitService = rateLimitService;
+    this.idempotencyService = idempotencyService;
+    this.objectMapper = objectMapper;
+    this.verificationResponses = new VerificationResponses(objectMapper);
+    this.batchExecutor = batchExecutor;
+    this.maxBatchSize = batchProperties.getMaxSize();
+  }
 
   /**
    * Initiates the two-factor authentication process by sending a code to the user's email.
    *
-   * @param email The user's email address.
-   * @return A response indicating that the code has been sent.
+   * @param email          The user's email address.
+   * @param idempotencyKey Optional key identifying retries of the same request.
+   * @param servletRequest The HTTP request, used to identify the client.
+   * @return A response indicating that the code has been sent, with its challenge in stateless challenge mode.
    */
   @PostMapping("/2fa/initiate")
-  public ResponseEntity<ApiResponse> initiateTwoFactorAuth(@RequestParam String email) {
+  public ResponseEntity<ApiResponse> initiateTwoFactorAuth(
+      @RequestParam String email,
+      @RequestHeader(name = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+      HttpServletRequest servletRequest) {
     log.info("Initiating two-factor authentication for email: {}", email);
-    twoFactorAuthService.initiateTwoFactorAuth(email);
-    return ResponseEntity.ok(new ApiResponse("A verification code has been sent to your email."));
+    String scope = idempotencyScope(idempotencyKey, "initiate", servletRequest, email, null);
+    return idempotencyService.execute(scope, idempotencyKey, () -> {
+      rateLimitService.acquire(email, servletRequest.getRemoteAddr());
+      String challenge = twoFactorAuthService.initiateChallenge(email);
+      return ResponseEntity.ok(codeSent("A verification code has been sent to your email.", challenge));
+    });
   }
 
   /**
    * Verifies the code entered by the user.
    *
-   * @param request Contains the user's email and the code they entered.
+   * @param request        Contains the user's email, the code they entered and, in stateless challenge mode, the
+   *                       challenge issued with it.
+   * @param idempotencyKey Optional key identifying retries of the same request.
+   * @param servletRequest The HTTP request, used to identify the client.
    * @return A response indicating success or failure of code verification.
    */
   @PostMapping("/2fa/verify")
-  public ResponseEntity<ApiResponse> verifyCode(@RequestBody TwoFactorAuthRequest request) {
+  public ResponseEntity<byte[]> verifyCode(
+      @RequestBody TwoFactorAuthRequest request,
+      @RequestHeader(name = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+      HttpServletRequest servletRequest) {
     log.info("Verification attempt for email: {}", request.email());
-    VerificationResult result = twoFactorAuthService.verifyCode(request.email(), request.code());
+    String scope = idempotencyScope(idempotencyKey, "verify", servletRequest, request.email(), codeInput(request));
+    return idempotencyService.execute(scope, idempotencyKey, () -> {
+      rateLimitService.acquire(request.email(), servletRequest.getRemoteAddr());
+      VerificationResult result =
+          twoFactorAuthService.verifyCode(request.email(), request.code(), request.challenge());
 
-    return switch (result.status()) {
-      case SUCCESS -> ResponseEntity.ok(new ApiResponse("Two-factor authentication successful."));
-      case CODE_EXPIRED, MAX_ATTEMPTS_EXCEEDED, INVALID_CODE ->
-          ResponseEntity.status(getHttpStatusForStatus(result.status()))
-              .body(new ApiResponse(result.status().name(), result.getErrorMessage()));
-    };
+      return verificationResponses.response(result.status());
+    });
   }
 
   /**
    * Allows the user to request a new verification code.
    *
-   * @param email The user's email address.
-   * @return A response indicating that a new code has been sent.
+   * @param email          The user's email address.
+   * @param challenge      Optional challenge of the previous code, in stateless challenge mode.
+   * @param idempotencyKey Optional key identifying retries of the same request.
+   * @param servletRequest The HTTP request, used to identify the client.
+   * @return A response indicating that a new code has been sent, with its challenge in stateless challenge mode.
    */
   @PostMapping("/2fa/resend")
-  public ResponseEntity<ApiResponse> resendCode(@RequestParam String email) {
+  public ResponseEntity<ApiResponse> resendCode(
+      @RequestParam String email,
+      @RequestParam(required = false) String challenge,
+      @RequestHeader(name = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+      HttpServletRequest servletRequest) {
     log.info("Resending the code for email: {}", email);
-    boolean isResent = twoFactorAuthService.resendCode(email);
-    if (isResent) {
-      return ResponseEntity.ok(new ApiResponse("A new verification code has been sent to your email."));
-    } else {
-      return ResponseEntity
-          .badRequest()
-          .body(new ApiResponse("RESEND_NOT_ALLOWED", "You cannot request a new code at the moment."));
+    String scope = idempotencyScope(idempotencyKey, "resend", servletRequest, email, challenge);
+    return idempotencyService.execute(scope, idempotencyKey, () -> {
+      rateLimitService.acquire(email, servletRequest.getRemoteAddr());
+      CodeIssue issue = twoFactorAuthService.resendChallenge(email, challenge);
+      if (issue.issued()) {
+        return ResponseEntity.ok(codeSent("A new verification code has been sent to your email.", issue.challenge()));
+      } else {
+        return ResponseEntity
+            .badRequest()
+            .body(new ApiResponse("RESEND_NOT_ALLOWED", "You cannot request a new code at the moment."));
+      }
+    });
+  }
+
+  /**
+   * Enrolls the user for time-based one-time passwords. The request carries the email verification code, which proves
+   * ownership of the address and is consumed.
+   *
+   * @param request        Contains the user's email, their current email verification code and, in stateless
+   *                       challenge mode, the challenge issued with it.
+   * @param idempotencyKey Optional key identifying retries of the same request.
+   * @param servletRequest The HTTP request, used to identify the client.
+   * @return The new secret and its {@code otpauth://} URI, or the reason the email code was not accepted.
+   */
+  @PostMapping("/2fa/totp/enroll")
+  public ResponseEntity<?> enrollTotp(
+      @RequestBody TwoFactorAuthRequest request,
+      @RequestHeader(name = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+      HttpServletRequest servletRequest) {
+    log.info("TOTP enrollment for email: {}", request.email());
+    String scope = idempotencyScope(idempotencyKey, "totp-enroll", servletRequest, request.email(), codeInput(request));
+    return idempotencyService.execute(scope, idempotencyKey, () -> {
+      rateLimitService.acquire(request.email(), servletRequest.getRemoteAddr());
+      VerificationResult result =
+          twoFactorAuthService.verifyCode(request.email(), request.code(), request.challenge());
+      if (result.status() != VerificationStatus.SUCCESS) {
+        return verificationResponses.response(result.status());
+      }
+      TotpEnrollment enrollment = twoFactorAuthService.enrollTotp(request.email());
+      return ResponseEntity.ok(enrollment);
+    });
+  }
+
+  /**
+   * Verifies a code from the user's authenticator app.
+   *
+   * @param request        Contains the user's email and the code shown by their authenticator app.
+   * @param idempotencyKey Optional key identifying retries of the same request.
+   * @param servletRequest The HTTP request, used to identify the client.
+   * @return A response indicating success or failure of code verification.
+   */
+  @PostMapping("/2fa/totp/verify")
+  public ResponseEntity<byte[]> verifyTotp(
+      @RequestBody TwoFactorAuthRequest request,
+      @RequestHeader(name = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+      HttpServletRequest servletRequest) {
+    log.info("TOTP verification attempt for email: {}", request.email());
+    String scope = idempotencyScope(idempotencyKey, "totp-verify", servletRequest, request.email(), request.code());
+    return idempotencyService.execute(scope, idempotencyKey, () -> {
+      rateLimitService.acquire(request.email(), servletRequest.getRemoteAddr());
+      VerificationResult result = twoFactorAuthService.verifyTotp(request.email(), request.code());
+
+      return verificationResponses.response(result.status());
+    });
+  }
+
+  /**
+   * Initiates two-factor authentication for several email addresses at once.
+   *
+   * @param servletRequest The HTTP request, whose body is a JSON array of the users' email addresses, used to identify
+   *                       the client.
+   * @return A JSON array with one response per email, in request order, streamed as results become available; in
+   *     stateless challenge mode each success carries its challenge.
+   */
+  @PostMapping(value = "/2fa/initiate/batch", consumes = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<StreamingResponseBody> initiateTwoFactorAuthBatch(HttpServletRequest servletRequest)
+      throws IOException {
+    List<String> emails = readBatch(servletRequest, String.class);
+    log.info("Initiating two-factor authentication for a batch of {} emails", emails.size());
+    rateLimitService.acquireClient(servletRequest.getRemoteAddr(), emails.size());
+    return processBatch(emails, email -> {
+      rateLimitService.acquireEmail(email);
+      String challenge = twoFactorAuthService.initiateChallenge(email);
+      return codeSent("A verification code has been sent to your email.", challenge);
+    });
+  }
+
+  /**
+   * Verifies several codes at once.
+   *
+   * @param servletRequest The HTTP request, whose body is a JSON array of the emails, the codes entered for them and,
+   *                       in stateless challenge mode, their challenges, used to identify the client.
+   * @return A JSON array with one response per request, in request order, streamed as results become available.
+   */
+  @PostMapping(value = "/2fa/verify/batch", consumes = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<StreamingResponseBody> verifyCodeBatch(HttpServletRequest servletRequest) throws IOException {
+    List<TwoFactorAuthRequest> requests = readBatch(servletRequest, TwoFactorAuthRequest.class);
+    log.info("Verification attempt for a batch of {} emails", requests.size());
+    rateLimitService.acquireClient(servletRequest.getRemoteAddr(), requests.size());
+    return processBatch(requests, request -> {
+      rateLimitService.acquireEmail(request.email());
+      VerificationResult result =
+          twoFactorAuthService.verifyCode(request.email(), request.code(), request.challenge());
+      return verificationResponses.body(result.status());
+    });
+  }
+
+  /**
+   * Reads the JSON array of a bulk request one item at a time, refusing it as soon as it holds more items than a batch
+   * may, so an oversized batch is never read in full.
+   */
+  private <T> List<T> readBatch(HttpServletRequest servletRequest, Class<T> itemType) throws IOException {
+    List<T> items = new ArrayList<>();
+    try (JsonParser parser = objectMapper.getFactory().createParser(servletRequest.getInputStream())) {
+      if (parser.nextToken() != JsonToken.START_ARRAY) {
+        throw new MalformedBatchException("A batch must be a JSON array.");
+      }
+      JsonToken token;
+      while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+        if (token == null) {
+          throw new MalformedBatchException("The batch ends before its JSON array does.");
+        }
+        if (items.size() == maxBatchSize) {
+          throw new BatchTooLargeException("A batch can contain at most " + maxBatchSize + " items.");
+        }
+        items.add(objectMapper.readValue(parser, itemType));
+      }
+    } catch (JsonProcessingException ex) {
+      throw new MalformedBatchException("Could not read the batch: " + ex.getOriginalMessage(), ex);
     }
+    return items;
   }
 
-  private HttpStatus getHttpStatusForStatus(VerificationStatus status) {
-    return switch (status) {
-      case CODE_EXPIRED -> HttpStatus.GONE;
-      case MAX_ATTEMPTS_EXCEEDED -> HttpStatus.TOO_MANY_REQUESTS;
-      case INVALID_CODE -> HttpStatus.BAD_REQUEST;
-      default -> HttpStatus.INTERNAL_SERVER_ERROR;
+  /**
+   * Runs the handler for every item on the batch executor and streams the responses back in item order. A failing
+   * item is reported in its own response and does not affect the others.
+   */
+  private <T> ResponseEntity<StreamingResponseBody> processBatch(List<T> items, Function<T, ApiResponse> handler) {
+    List<CompletableFuture<ApiResponse>> responses = items.stream()
+        .map(item -> submitBatchItem(item, handler))
+        .toList();
+
+    StreamingResponseBody body = outputStream -> {
+      try (JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+        generator.writeStartArray();
+        for (CompletableFuture<ApiResponse> response : responses) {
+          generator.writeObject(response.join());
+          generator.flush();
+        }
+        generator.writeEndArray();
+      }
     };
+    return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+  }
+
+  private <T> CompletableFuture<ApiResponse> submitBatchItem(T item, Function<T, ApiResponse> handler) {
+    try {
+      return CompletableFuture.supplyAsync(() -> handleBatchItem(item, handler), batchExecutor);
+    } catch (RejectedExecutionException ex) {
+      return CompletableFuture.completedFuture(
+          new ApiResponse("SERVER_BUSY", "Too many requests are being processed, please try again later."));
+    }
+  }
+
+  private <T> ApiResponse handleBatchItem(T item, Function<T, ApiResponse> handler) {
+    try {
+      return handler.apply(item);
+    } catch (RateLimitExceededException ex) {
+      return new ApiResponse("RATE_LIMIT_EXCEEDED", ex.getMessage());
+    } catch (EmailSendingException ex) {
+      return new ApiResponse("EMAIL_SENDING_FAILED", ex.getMessage());
+    } catch (ClusterNodeUnavailableException ex) {
+      return new ApiResponse("CLUSTER_NODE_UNAVAILABLE", ex.getMessage());
+    } catch (Exception ex) {
+      log.error("Unhandled exception in batch item: {}", ex.getMessage(), ex);
+      return new ApiResponse("INTERNAL_SERVER_ERROR", "An unexpected error occurred.");
+    }
+  }
+
+  private static ApiResponse codeSent(String message, String challenge) {
+    return challenge == null ? new ApiResponse(message) : ApiResponse.withChallenge(message, challenge);
+  }
+
+  /**
+   * Returns the code and challenge of a request as one idempotency scope component.
+   */
+  private static String codeInput(TwoFactorAuthRequest request) {
+    return request.challenge() == null ? request.code() : request.code() + '\n' + request.challenge();
+  }
+
+  /**
+   * Returns the scope the idempotency key is tracked in, or {@code null} if the request has no key and none is needed.
+   */
+  private String idempotencyScope(
+      String idempotencyKey, String operation, HttpServletRequest servletRequest, String email, String code) {
+    if (idempotencyKey == null) {
+      return null;
+    }
+    String scope = operation + '\n' + servletRequest.getRemoteAddr() + '\n' + email;
+    return code == null ? scope : scope + '\n' + code;
   }
 }
@@ -0,0 +1,64 @@
+package com.nulianov.twofactorauthentication.controller;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nulianov.twofactorauthentication.model.ApiResponse;
+import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import java.util.EnumMap;
+import java.util.Map;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+
+/**
+ * The fixed responses to verification requests, one per {@link VerificationStatus}, serialized once up front.
+ *
+ * <p>Each response holds its JSON body as bytes, which are written out unchanged instead of serializing a new
+ * {@link ApiResponse} on every request. Response headers are read-only, so every request can share the same instance.
+ */
+final class VerificationResponses {
+
+  private final Map<VerificationStatus, ApiResponse> bodies = new EnumMap<>(VerificationStatus.class);
+  private final Map<VerificationStatus, ResponseEntity<byte[]>> responses = new EnumMap<>(VerificationStatus.class);
+
+  VerificationResponses(ObjectMapper objectMapper) {
+    for (VerificationStatus status : VerificationStatus.values()) {
+      ApiResponse body = switch (status) {
+        case SUCCESS -> new ApiResponse("Two-factor authentication successful.");
+        case CODE_EXPIRED, MAX_ATTEMPTS_EXCEEDED, INVALID_CODE ->
+            new ApiResponse(status.name(), status.getErrorMessage());
+      };
+      bodies.put(status, body);
+      try {
+        responses.put(status, ResponseEntity.status(httpStatus(status))
+            .contentType(MediaType.APPLICATION_JSON)
+            .body(objectMapper.writeValueAsBytes(body)));
+      } catch (JsonProcessingException e) {
+        throw new IllegalStateException("Could not serialize verification response for " + status, e);
+      }
+    }
+  }
+
+  /**
+   * Returns the response body for the status, for callers that serialize it along with other content.
+   */
+  ApiResponse body(VerificationStatus status) {
+    return bodies.get(status);
+  }
+
+  /**
+   * Returns the complete response for the status.
+   */
+  ResponseEntity<byte[]> response(VerificationStatus status) {
+    return responses.get(status);
+  }
+
+  private static HttpStatus httpStatus(VerificationStatus status) {
+    return switch (status) {
+      case SUCCESS -> HttpStatus.OK;
+      case CODE_EXPIRED -> HttpStatus.GONE;
+      case MAX_ATTEMPTS_EXCEEDED -> HttpStatus.TOO_MANY_REQUESTS;
+      case INVALID_CODE -> HttpStatus.BAD_REQUEST;
+    };
+  }
+}
@@ -0,0 +1,8 @@
+package com.nulianov.twofactorauthentication.exception;
+
+public class ClusterNodeUnavailableException extends RuntimeException {
+
+  public ClusterNodeUnavailableException(String message) {
+    super(message);
+  }
+}
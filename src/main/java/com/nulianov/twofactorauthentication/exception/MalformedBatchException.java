@@ -0,0 +1,12 @@
+package com.nulianov.twofactorauthentication.exception;
+
+public class MalformedBatchException extends RuntimeException {
+
+  public MalformedBatchException(String message) {
+    super(message);
+  }
+
+  public MalformedBatchException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
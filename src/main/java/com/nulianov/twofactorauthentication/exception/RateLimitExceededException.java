@@ -0,0 +1,15 @@
+package com.nulianov.twofactorauthentication.exception;
+
+import java.time.Duration;
+import lombok.Getter;
+
+@Getter
+public class RateLimitExceededException extends RuntimeException {
+
+  private final Duration retryAfter;
+
+  public RateLimitExceededException(String message, Duration retryAfter) {
+    super(message);
+    this.retryAfter = retryAfter;
+  }
+}
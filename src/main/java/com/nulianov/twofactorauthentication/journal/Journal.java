@@ -0,0 +1,340 @@
+package com.nulianov.twofactorauthentication.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.ObjLongConsumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Append-only log of opaque records, stored as a sequence of fixed-size memory-mapped segment files in one directory.
+ *
+ * <p>Appending copies the record into the mapped active segment, so it reaches the page cache without a system call
+ * and survives a crash of the process; {@link #force()} makes it survive a crash of the machine as well. Each record
+ * is framed by its length and a CRC-32C checksum, and the length is written last, so a torn record at the tail is
+ * detected and discarded when the journal is reopened.
+ *
+ * <p>Space is reclaimed a whole segment at a time with {@link #deleteSegmentsBefore(long)}; owners keep records they
+ * still need by appending them again before the segment holding them is deleted.
+ *
+ * <p>Only one journal can be open on a directory at a time: opening takes an exclusive lock on a {@code .lock} file in
+ * it, held until {@link #close()}, so two processes pointed at the same directory cannot interleave their records.
+ * Records are stored as given, not encrypted; on POSIX file systems the directory and segments are created readable by
+ * the owner only.
+ */
+@Slf4j
+public final class Journal implements Closeable {
+
+  private static final long MAGIC = 0x3246414A524E4CL;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int FRAME_SIZE = 8;
+  private static final String SUFFIX = ".log";
+  private static final int CLEAR_CHUNK_SIZE = 4096;
+  private static final String LOCK_FILE = ".lock";
+  private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+  private final Path directory;
+  private final int segmentSize;
+  private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+
+  private long activeSegment;
+  private MappedByteBuffer active;
+  private FileChannel lockChannel;
+  private boolean closed;
+
+  private Journal(Path directory, int segmentSize) {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * Opens the journal in the given directory, creating it if it does not exist.
+   *
+   * @param directory   the directory holding the segment files
+   * @param segmentSize the size of each segment file in bytes; records larger than a segment cannot be appended
+   * @return the opened journal, positioned after its last intact record
+   * @throws IllegalStateException if another journal holds the directory
+   */
+  public static Journal open(Path directory, int segmentSize) {
+    if (segmentSize <= HEADER_SIZE + FRAME_SIZE) {
+      throw new IllegalArgumentException("Journal segment size is too small: " + segmentSize);
+    }
+    Journal journal = new Journal(directory, segmentSize);
+    try {
+      journal.load();
+    } catch (IOException e) {
+      journal.close();
+      throw new UncheckedIOException("Could not open journal " + directory, e);
+    } catch (RuntimeException e) {
+      journal.close();
+      throw e;
+    }
+    return journal;
+  }
+
+  /**
+   * Appends a record, moving on to a new segment when the active one is full.
+   *
+   * @param record the record bytes, from the buffer's position to its limit
+   * @return the segment the record was written to
+   */
+  public synchronized long append(ByteBuffer record) {
+    ensureOpen();
+    int length = record.remaining();
+    if (length == 0 || length > segmentSize - HEADER_SIZE - FRAME_SIZE) {
+      throw new IllegalArgumentException("Journal record size out of range: " + length);
+    }
+    if (active.remaining() < FRAME_SIZE + length) {
+      roll();
+    }
+
+    int offset = active.position();
+    CRC32C crc = new CRC32C();
+    crc.update(record.duplicate());
+    active.putInt(offset + 4, (int) crc.getValue());
+    active.put(offset + FRAME_SIZE, record, record.position(), length);
+    active.putInt(offset, length);
+    active.position(offset + FRAME_SIZE + length);
+    return activeSegment;
+  }
+
+  /**
+   * Passes every intact record to the consumer, oldest first. The buffer is only valid during the call.
+   *
+   * @param consumer receives each record as a read-only buffer, with the segment holding it
+   */
+  public synchronized void replay(ObjLongConsumer<ByteBuffer> consumer) {
+    ensureOpen();
+    for (Map.Entry<Long, MappedByteBuffer> entry : segments.entrySet()) {
+      MappedByteBuffer segment = entry.getValue();
+      int offset = HEADER_SIZE;
+      while (true) {
+        int length = recordLength(segment, offset);
+        if (length < 0) {
+          break;
+        }
+        consumer.accept(segment.slice(offset + FRAME_SIZE, length).asReadOnlyBuffer(), entry.getKey());
+        offset += FRAME_SIZE + length;
+      }
+    }
+  }
+
+  /**
+   * Returns the oldest segment still on disk.
+   */
+  public synchronized long firstSegment() {
+    return segments.firstKey();
+  }
+
+  /**
+   * Returns the segment that records are currently appended to.
+   */
+  public synchronized long activeSegment() {
+    return activeSegment;
+  }
+
+  /**
+   * Deletes every segment older than the given one. The active segment is never deleted.
+   *
+   * @param segment the oldest segment to keep
+   * @return the number of segments deleted
+   */
+  public synchronized int deleteSegmentsBefore(long segment) {
+    ensureOpen();
+    long limit = Math.min(segment, activeSegment);
+    List<Long> deleted = new ArrayList<>();
+    for (Long index : segments.headMap(limit).keySet()) {
+      try {
+        Files.deleteIfExists(segmentPath(index));
+      } catch (IOException e) {
+        log.warn("Could not delete journal segment {}: {}", segmentPath(index), e.getMessage());
+        break;
+      }
+      deleted.add(index);
+    }
+    deleted.forEach(segments::remove);
+    return deleted.size();
+  }
+
+  /**
+   * Writes appended records through to the storage device.
+   */
+  public synchronized void force() {
+    if (!closed) {
+      active.force();
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (active != null) {
+      active.force();
+    }
+    segments.clear();
+    active = null;
+    if (lockChannel != null) {
+      try {
+        lockChannel.close();
+      } catch (IOException e) {
+        log.warn("Could not release the lock on journal {}: {}", directory, e.getMessage());
+      }
+    }
+  }
+
+  private void load() throws IOException {
+    if (POSIX) {
+      Files.createDirectories(directory,
+          PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+    } else {
+      Files.createDirectories(directory);
+    }
+    lock();
+    List<Long> indexes;
+    try (Stream<Path> files = Files.list(directory)) {
+      indexes = files
+          .map(path -> path.getFileName().toString())
+          .filter(name -> name.endsWith(SUFFIX))
+          .map(name -> Long.parseLong(name.substring(0, name.length() - SUFFIX.length())))
+          .sorted()
+          .toList();
+    }
+
+    for (long index : indexes) {
+      segments.put(index, map(index, false));
+    }
+    if (segments.isEmpty()) {
+      activeSegment = 0;
+      active = map(0, true);
+      segments.put(0L, active);
+      return;
+    }
+
+    activeSegment = segments.lastKey();
+    active = segments.lastEntry().getValue();
+    int offset = HEADER_SIZE;
+    int length;
+    while ((length = recordLength(active, offset)) >= 0) {
+      offset += FRAME_SIZE + length;
+    }
+    // Clear whatever follows the last intact record, so a torn write cannot be mistaken for a record later on
+    ByteBuffer zeros = ByteBuffer.allocate(CLEAR_CHUNK_SIZE);
+    for (int i = offset; i < active.limit(); i += CLEAR_CHUNK_SIZE) {
+      int size = Math.min(CLEAR_CHUNK_SIZE, active.limit() - i);
+      ByteBuffer chunk = active.slice(i, size);
+      if (chunk.mismatch(zeros.slice(0, size)) >= 0) {
+        chunk.put(zeros.slice(0, size));
+      }
+    }
+    active.position(offset);
+    log.info("Reopened journal {} with {} segments", directory, segments.size());
+  }
+
+  private void lock() throws IOException {
+    lockChannel = FileChannel.open(directory.resolve(LOCK_FILE),
+        Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE), fileAttributes());
+    FileLock lock;
+    try {
+      lock = lockChannel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      lock = null;
+    }
+    if (lock == null) {
+      lockChannel.close();
+      lockChannel = null;
+      throw new IllegalStateException("Journal " + directory + " is in use by another process");
+    }
+  }
+
+  private void roll() {
+    active.force();
+    MappedByteBuffer next;
+    try {
+      next = map(activeSegment + 1, true);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not create journal segment " + segmentPath(activeSegment + 1), e);
+    }
+    activeSegment++;
+    active = next;
+    segments.put(activeSegment, active);
+  }
+
+  private MappedByteBuffer map(long index, boolean create) throws IOException {
+    Path path = segmentPath(index);
+    try (FileChannel channel = FileChannel.open(path, fileOptions(create), fileAttributes())) {
+      if (!create && channel.size() != segmentSize) {
+        throw new IllegalStateException("Journal segment " + path + " was created with a different size");
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+      if (create) {
+        buffer.putLong(0, MAGIC);
+        buffer.putInt(8, VERSION);
+      } else if (buffer.getLong(0) != MAGIC || buffer.getInt(8) != VERSION) {
+        throw new IllegalStateException("Journal segment " + path + " is not a journal segment of this version");
+      }
+      buffer.position(HEADER_SIZE);
+      return buffer;
+    }
+  }
+
+  private static Set<OpenOption> fileOptions(boolean create) {
+    return create
+        ? Set.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+        : Set.of(StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  private static FileAttribute<?>[] fileAttributes() {
+    return POSIX
+        ? new FileAttribute<?>[] {PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))}
+        : new FileAttribute<?>[0];
+  }
+
+  /**
+   * Returns the length of the record at the offset, or -1 if there is no intact record there.
+   */
+  private int recordLength(ByteBuffer segment, int offset) {
+    if (offset > segment.limit() - FRAME_SIZE) {
+      return -1;
+    }
+    int length = segment.getInt(offset);
+    if (length <= 0 || length > segment.limit() - offset - FRAME_SIZE) {
+      return -1;
+    }
+    CRC32C crc = new CRC32C();
+    crc.update(segment.slice(offset + FRAME_SIZE, length));
+    return (int) crc.getValue() == segment.getInt(offset + 4) ? length : -1;
+  }
+
+  private Path segmentPath(long index) {
+    return directory.resolve(String.format("%020d%s", index, SUFFIX));
+  }
+
+  private void ensureOpen() {
+    if (closed) {
+      throw new IllegalStateException("Journal " + directory + " is closed");
+    }
+  }
+}
@@ -11,16 +11,27 @@ public class ApiResponse {
   String status;
   String message;
   String errorCode;
+  String challenge;
 
   public ApiResponse(String message) {
-    this.status = "success";
-    this.message = message;
-    this.errorCode = null;
+    this("success", message, null, null);
   }
 
   public ApiResponse(String errorCode, String message) {
-    this.status = "error";
-    this.errorCode = errorCode;
+    this("error", message, errorCode, null);
+  }
+
+  private ApiResponse(String status, String message, String errorCode, String challenge) {
+    this.status = status;
     this.message = message;
+    this.errorCode = errorCode;
+    this.challenge = challenge;
+  }
+
+  /**
+   * Returns a success response carrying the challenge to present with the code that was sent.
+   */
+  public static ApiResponse withChallenge(String message, String challenge) {
+    return new ApiResponse("success", message, null, challenge);
   }
 }
@@ -0,0 +1,13 @@
+package com.nulianov.twofactorauthentication.model;
+
+/**
+ * Whether a new code was sent and, for services that keep no per-code state, the challenge to present with it.
+ *
+ * @param issued    whether a new code was sent
+ * @param challenge the challenge issued with the code, or {@code null}
+ */
+public record CodeIssue(boolean issued, String challenge) {
+
+  public static final CodeIssue ISSUED = new CodeIssue(true, null);
+  public static final CodeIssue NOT_ISSUED = new CodeIssue(false, null);
+}
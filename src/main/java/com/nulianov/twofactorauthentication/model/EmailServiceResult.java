@@ -0,0 +1,4 @@
+package com.nulianov.twofactorauthentication.model;
+
+public record EmailServiceResult(boolean accepted, String error) {
+}
@@ -0,0 +1,7 @@
+package com.nulianov.twofactorauthentication.model;
+
+/**
+ * A newly provisioned TOTP secret, as base32 text and as an {@code otpauth://} URI for authenticator apps.
+ */
+public record TotpEnrollment(String secret, String uri) {
+}
@@ -0,0 +1,36 @@
+package com.nulianov.twofactorauthentication.model;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The shared TOTP secret of an enrolled user, with the last time step a code was accepted for, the number of wrong
+ * codes submitted since then and the epoch second until which the user is locked out.
+ */
+public record TotpSecret(SecretKeySpec key, long lastUsedStep, int failedAttempts, long lockedUntil) {
+
+  public TotpSecret(SecretKeySpec key) {
+    this(key, Long.MIN_VALUE, 0, 0);
+  }
+
+  /**
+   * Returns this secret with the step recorded as used and the failed attempts cleared.
+   */
+  public TotpSecret withLastUsedStep(long step) {
+    return new TotpSecret(key, step, 0, 0);
+  }
+
+  /**
+   * Returns this secret with one more failed attempt, locked out until the given time once {@code maxAttempts}
+   * attempts have failed in a row.
+   */
+  public TotpSecret withFailedAttempt(int maxAttempts, long lockUntil) {
+    int failed = failedAttempts + 1;
+    return failed >= maxAttempts
+        ? new TotpSecret(key, lastUsedStep, 0, lockUntil)
+        : new TotpSecret(key, lastUsedStep, failed, lockedUntil);
+  }
+
+  public boolean isLockedAt(long epochSecond) {
+    return epochSecond < lockedUntil;
+  }
+}
@@ -1,4 +1,11 @@
 package com.nulianov.twofactorauthentication.model;
 
-public record TwoFactorAuthRequest(String email, String code) {
+/**
+ * An email with the code entered for it and, in stateless challenge mode, the challenge issued with that code.
+ */
+public record TwoFactorAuthRequest(String email, String code, String challenge) {
+
+  public TwoFactorAuthRequest(String email, String code) {
+    this(email, code, null);
+  }
 }
@@ -0,0 +1,25 @@
+package com.nulianov.twofactorauthentication.model;
+
+/**
+ * The result of a single verification step together with the code data that should remain stored afterwards.
+ *
+ * @param codeData the code data to keep, or {@code null} to remove it
+ * @param result   the verification result reported to the caller
+ */
+public record VerificationOutcome(CodeData codeData, VerificationResult result) {
+
+  private static final VerificationOutcome[] REMOVED = new VerificationOutcome[VerificationStatus.values().length];
+
+  static {
+    for (VerificationStatus status : VerificationStatus.values()) {
+      REMOVED[status.ordinal()] = new VerificationOutcome(null, VerificationResult.of(status));
+    }
+  }
+
+  /**
+   * Returns the shared outcome that removes the code data and reports the given result.
+   */
+  public static VerificationOutcome removed(VerificationResult result) {
+    return REMOVED[result.status().ordinal()];
+  }
+}
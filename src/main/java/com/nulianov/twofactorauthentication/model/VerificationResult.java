@@ -3,6 +3,21 @@ package com.nulianov.twofactorauthentication.model;
 
 public record VerificationResult(VerificationStatus status) {
 
+  private static final VerificationResult[] CANONICAL = new VerificationResult[VerificationStatus.values().length];
+
+  static {
+    for (VerificationStatus status : VerificationStatus.values()) {
+      CANONICAL[status.ordinal()] = new VerificationResult(status);
+    }
+  }
+
+  /**
+   * Returns the shared result for the status, so the verification path does not allocate one per request.
+   */
+  public static VerificationResult of(VerificationStatus status) {
+    return CANONICAL[status.ordinal()];
+  }
+
   public String getErrorMessage() {
     return status.getErrorMessage();
   }
@@ -0,0 +1,284 @@
+package com.nulianov.twofactorauthentication.redis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Thread-safe client that multiplexes the commands of all callers over one pipelined connection.
+ *
+ * <p>Callers queue their commands and wait for the replies. A writer thread drains everything queued since its last
+ * write and sends it with a single flush, so concurrent commands share one network write and no command waits for the
+ * reply to an earlier one; a reader thread completes the callers' futures as the replies arrive, in order. If the
+ * connection fails, every command in flight fails with it and the next batch opens a new connection. A reply that
+ * misses its caller's deadline counts as a failure of the connection it was sent on, so a server or network that
+ * stops answering without closing the connection is dropped rather than waited on forever. Commands that only read,
+ * such as {@code GET}, are sent once more on a new connection when the one they went out on fails; writes are not,
+ * since they may already have been applied.
+ *
+ * <p>Commands that depend on connection state, such as {@code WATCH}, {@code MULTI} or {@code SUBSCRIBE}, must not be
+ * sent through this client; use a dedicated {@link RespConnection} for those.
+ */
+@Slf4j
+public final class RespClient implements Closeable {
+
+  private static final int MAX_BATCH = 1024;
+  private static final Set<String> READS = Set.of("GET", "MGET", "EXISTS", "TTL", "PTTL", "SCAN", "PING");
+
+  private final Supplier<RespConnection> connector;
+  private final Duration timeout;
+  private final BlockingQueue<Batch> queue = new LinkedBlockingQueue<>();
+  private final Thread writer;
+
+  private Link link;
+  private volatile boolean closed;
+
+  /**
+   * Creates a client that connects lazily.
+   *
+   * @param connector opens a new connection; it is called on the writer thread
+   * @param timeout   how long {@link #execute} waits for its replies
+   */
+  public RespClient(Supplier<RespConnection> connector, Duration timeout) {
+    this.connector = connector;
+    this.timeout = timeout;
+    this.writer = Thread.ofPlatform().name("resp-writer").daemon().start(this::writeLoop);
+  }
+
+  /**
+   * Sends a command and waits for its reply.
+   *
+   * @throws RespException        if the server answers with an error
+   * @throws UncheckedIOException if the connection fails or the reply does not arrive in time
+   */
+  public Object call(String... command) {
+    return execute(List.<String[]>of(command)).get(0);
+  }
+
+  /**
+   * Sends several commands back to back, in one write, and waits for all of their replies.
+   *
+   * @param commands the commands, each given as its arguments
+   * @return the replies, in command order
+   * @throws RespException        if the server answers any of the commands with an error
+   * @throws UncheckedIOException if the connection fails or the replies do not arrive in time; commands that only read
+   *                              are sent once more on a new connection before a connection failure is thrown
+   */
+  public List<Object> execute(List<String[]> commands) {
+    return execute(commands, commands.stream().allMatch(command -> READS.contains(command[0])));
+  }
+
+  private List<Object> execute(List<String[]> commands, boolean retry) {
+    Batch batch = enqueue(commands);
+    long deadline = System.nanoTime() + timeout.toNanos();
+    List<Object> results = new ArrayList<>(commands.size());
+    try {
+      for (CompletableFuture<Object> reply : batch.replies) {
+        results.add(reply.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+      }
+    } catch (ExecutionException e) {
+      if (retry && !closed && e.getCause() instanceof UncheckedIOException failure) {
+        log.debug("Connection failed under a read, sending it again: {}", failure.getMessage());
+        return execute(commands, false);
+      }
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw new IllegalStateException(e.getCause());
+    } catch (TimeoutException e) {
+      UncheckedIOException failure = new UncheckedIOException(new IOException("No reply within " + timeout));
+      Link stalled = batch.link;
+      if (stalled != null && !stalled.failed) {
+        log.warn("No reply from the key-value store within {}, dropping the connection", timeout);
+        stalled.fail(failure);
+      }
+      throw failure;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new UncheckedIOException(new IOException("Interrupted while waiting for a reply"));
+    }
+    return results;
+  }
+
+  /**
+   * Queues commands to be sent back to back without waiting for their replies.
+   *
+   * @param commands the commands, each given as its arguments
+   * @return futures completed with the replies, in command order
+   */
+  public List<CompletableFuture<Object>> send(List<String[]> commands) {
+    return enqueue(commands).replies;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    writer.interrupt();
+    try {
+      writer.join(timeout.toMillis());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    Batch batch;
+    while ((batch = queue.poll()) != null) {
+      batch.fail(closedException());
+    }
+  }
+
+  private Batch enqueue(List<String[]> commands) {
+    List<CompletableFuture<Object>> replies = new ArrayList<>(commands.size());
+    for (int i = 0; i < commands.size(); i++) {
+      replies.add(new CompletableFuture<>());
+    }
+    Batch batch = new Batch(commands, replies);
+    if (closed) {
+      batch.fail(closedException());
+    } else {
+      queue.add(batch);
+    }
+    return batch;
+  }
+
+  private void writeLoop() {
+    List<Batch> batches = new ArrayList<>();
+    try {
+      while (!closed) {
+        batches.add(queue.take());
+        queue.drainTo(batches, MAX_BATCH - 1);
+        write(batches);
+        batches.clear();
+      }
+    } catch (InterruptedException e) {
+      batches.forEach(batch -> batch.fail(closedException()));
+    } finally {
+      if (link != null) {
+        link.fail(closedException());
+      }
+    }
+  }
+
+  private void write(List<Batch> batches) {
+    if (link == null || link.failed) {
+      try {
+        link = new Link(connector.get());
+      } catch (RuntimeException e) {
+        log.warn("Could not connect to the key-value store: {}", e.getMessage());
+        batches.forEach(batch -> batch.fail(e));
+        return;
+      }
+    }
+    Link current = link;
+    try {
+      for (Batch batch : batches) {
+        batch.link = current;
+        for (int i = 0; i < batch.commands.size(); i++) {
+          // Register the reply before writing, so the reader never sees a reply without its future
+          current.pending.add(batch.replies.get(i));
+          current.connection.write(batch.commands.get(i));
+        }
+      }
+      current.connection.flush();
+    } catch (IOException e) {
+      current.fail(new UncheckedIOException(e));
+    }
+  }
+
+  private static UncheckedIOException closedException() {
+    return new UncheckedIOException(new IOException("Client is closed"));
+  }
+
+  /**
+   * Commands queued together, with the connection they were written to once they have been.
+   */
+  private static final class Batch {
+
+    private final List<String[]> commands;
+    private final List<CompletableFuture<Object>> replies;
+    private volatile Link link;
+
+    Batch(List<String[]> commands, List<CompletableFuture<Object>> replies) {
+      this.commands = commands;
+      this.replies = replies;
+    }
+
+    void fail(RuntimeException e) {
+      replies.forEach(reply -> reply.completeExceptionally(e));
+    }
+  }
+
+  /**
+   * One connection with the replies it still owes.
+   */
+  private static final class Link {
+
+    private final RespConnection connection;
+    private final ConcurrentLinkedQueue<CompletableFuture<Object>> pending = new ConcurrentLinkedQueue<>();
+    private volatile boolean failed;
+
+    Link(RespConnection connection) {
+      this.connection = connection;
+      try {
+        // An idle connection is not a failure; callers wait with their own deadlines and fail the link when one passes
+        connection.setReadTimeout(Duration.ZERO);
+      } catch (IOException e) {
+        connection.close();
+        throw new UncheckedIOException(e);
+      }
+      Thread.ofPlatform().name("resp-reader").daemon().start(this::readLoop);
+    }
+
+    private void readLoop() {
+      try {
+        while (!failed) {
+          Object reply;
+          try {
+            reply = connection.read();
+          } catch (RespException e) {
+            complete(null, e);
+            continue;
+          }
+          complete(reply, null);
+        }
+      } catch (IOException | RuntimeException e) {
+        if (!failed) {
+          log.warn("Connection to the key-value store failed: {}", e.getMessage());
+        }
+        fail(new UncheckedIOException(new IOException("Connection to the key-value store failed", e)));
+      }
+    }
+
+    private void complete(Object reply, RespException error) {
+      CompletableFuture<Object> future = pending.poll();
+      if (future == null) {
+        throw new IllegalStateException("Received a reply that no command was waiting for");
+      }
+      if (error != null) {
+        future.completeExceptionally(error);
+      } else {
+        future.complete(reply);
+      }
+    }
+
+    void fail(RuntimeException e) {
+      failed = true;
+      connection.close();
+      CompletableFuture<Object> future;
+      while ((future = pending.poll()) != null) {
+        future.completeExceptionally(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,195 @@
+package com.nulianov.twofactorauthentication.redis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One connection to a server speaking the Redis serialization protocol (RESP2). Not thread-safe.
+ *
+ * <p>Commands are buffered by {@link #write} and sent by {@link #flush}, so several commands can be pipelined in one
+ * write; their replies are then read in order with {@link #read}. Replies are returned as {@link String} for simple and
+ * bulk strings, {@link Long} for integers, {@link List} for arrays and {@code null} for nil. An error reply is thrown as
+ * a {@link RespException} at the top level and returned as one inside arrays, such as the results of {@code EXEC}.
+ */
+public final class RespConnection implements Closeable {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final byte[] CRLF = {'\r', '\n'};
+
+  private final Socket socket;
+  private final InputStream in;
+  private final OutputStream out;
+
+  private RespConnection(Socket socket) throws IOException {
+    this.socket = socket;
+    this.in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+    this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+  }
+
+  /**
+   * Connects, authenticates if a password is given and selects the database.
+   *
+   * @param host           the server host
+   * @param port           the server port
+   * @param connectTimeout how long to wait for the connection
+   * @param readTimeout    how long to wait for a reply; zero waits indefinitely
+   * @param password       the password, or an empty string
+   * @param database       the database index
+   * @return the open connection
+   */
+  public static RespConnection open(
+      String host, int port, Duration connectTimeout, Duration readTimeout, String password, int database) {
+    Socket socket = new Socket();
+    try {
+      socket.setTcpNoDelay(true);
+      socket.setKeepAlive(true);
+      socket.connect(new InetSocketAddress(host, port), (int) connectTimeout.toMillis());
+      socket.setSoTimeout((int) readTimeout.toMillis());
+      RespConnection connection = new RespConnection(socket);
+      if (password != null && !password.isEmpty()) {
+        connection.call("AUTH", password);
+      }
+      if (database != 0) {
+        connection.call("SELECT", Integer.toString(database));
+      }
+      return connection;
+    } catch (IOException e) {
+      closeQuietly(socket);
+      throw new UncheckedIOException("Could not connect to " + host + ":" + port, e);
+    } catch (RuntimeException e) {
+      closeQuietly(socket);
+      throw e;
+    }
+  }
+
+  /**
+   * Sends a command and reads its reply.
+   */
+  public Object call(String... args) throws IOException {
+    write(args);
+    flush();
+    return read();
+  }
+
+  /**
+   * Buffers a command without sending it.
+   */
+  public void write(String... args) throws IOException {
+    out.write('*');
+    writeNumber(args.length);
+    for (String arg : args) {
+      byte[] bytes = arg.getBytes(StandardCharsets.UTF_8);
+      out.write('$');
+      writeNumber(bytes.length);
+      out.write(bytes);
+      out.write(CRLF);
+    }
+  }
+
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  /**
+   * Reads the next reply.
+   *
+   * @throws RespException if the reply is an error
+   */
+  public Object read() throws IOException {
+    Object reply = readReply();
+    if (reply instanceof RespException error) {
+      throw new RespException(error.getMessage());
+    }
+    return reply;
+  }
+
+  /**
+   * Changes how long {@link #read} waits for a reply; zero waits indefinitely.
+   */
+  public void setReadTimeout(Duration readTimeout) throws IOException {
+    socket.setSoTimeout((int) readTimeout.toMillis());
+  }
+
+  @Override
+  public void close() {
+    closeQuietly(socket);
+  }
+
+  private Object readReply() throws IOException {
+    int type = in.read();
+    switch (type) {
+      case '+':
+        return readLine();
+      case '-':
+        return new RespException(readLine());
+      case ':':
+        return Long.parseLong(readLine());
+      case '$': {
+        int length = Integer.parseInt(readLine());
+        if (length < 0) {
+          return null;
+        }
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length < length || in.read() != '\r' || in.read() != '\n') {
+          throw new EOFException("Connection closed in the middle of a reply");
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+      }
+      case '*': {
+        int count = Integer.parseInt(readLine());
+        if (count < 0) {
+          return null;
+        }
+        List<Object> elements = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          elements.add(readReply());
+        }
+        return elements;
+      }
+      case -1:
+        throw new EOFException("Connection closed by the server");
+      default:
+        throw new IOException("Unexpected reply type: " + (char) type);
+    }
+  }
+
+  private String readLine() throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = in.read()) != '\r') {
+      if (c == -1) {
+        throw new EOFException("Connection closed in the middle of a reply");
+      }
+      line.append((char) c);
+    }
+    if (in.read() != '\n') {
+      throw new IOException("Malformed reply line");
+    }
+    return line.toString();
+  }
+
+  private void writeNumber(int value) throws IOException {
+    out.write(Integer.toString(value).getBytes(StandardCharsets.US_ASCII));
+    out.write(CRLF);
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException ignored) {
+      // Nothing to do; the connection is being discarded
+    }
+  }
+}
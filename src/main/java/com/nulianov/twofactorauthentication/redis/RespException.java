@@ -0,0 +1,11 @@
+package com.nulianov.twofactorauthentication.redis;
+
+/**
+ * An error reply from the server, such as {@code ERR unknown command} or {@code WRONGTYPE ...}.
+ */
+public class RespException extends RuntimeException {
+
+  public RespException(String message) {
+    super(message);
+  }
+}
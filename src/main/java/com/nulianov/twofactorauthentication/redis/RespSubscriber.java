@@ -0,0 +1,153 @@
+package com.nulianov.twofactorauthentication.redis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Listens on a publish/subscribe channel from a background thread, reconnecting whenever the connection is lost.
+ *
+ * <p>Messages published while the subscriber is disconnected are lost. Callers that need every message must treat
+ * {@link #isSubscribed()} being false as not knowing what changed, and resynchronize in the {@code onSubscribed}
+ * callback, which runs on the listening thread before any message received on the new connection is delivered.
+ *
+ * <p>A subscribed connection is otherwise silent, so a server or network that stops answering without closing it would
+ * go unnoticed. The subscriber therefore sends a {@code PING} every {@code keepaliveInterval}; if nothing has been
+ * received since the previous one by the time the next is due, the connection is dropped and subscribed again.
+ */
+@Slf4j
+public final class RespSubscriber implements Closeable {
+
+  private final Supplier<RespConnection> connector;
+  private final String channel;
+  private final Consumer<String> onMessage;
+  private final Runnable onSubscribed;
+  private final Duration reconnectDelay;
+  private final Duration keepaliveInterval;
+  private final Thread listener;
+  private final ScheduledExecutorService keepalive;
+
+  private volatile RespConnection connection;
+  private volatile boolean subscribed;
+  private volatile boolean awaitingReply;
+  private volatile boolean closed;
+
+  /**
+   * Starts listening.
+   *
+   * @param connector         opens a new connection; its read timeout bounds the wait for the subscription to be
+   *     confirmed
+   * @param channel           the channel to subscribe to
+   * @param onMessage         receives the payload of each message
+   * @param onSubscribed      runs after each successful subscription
+   * @param reconnectDelay    how long to wait before reconnecting after a failure
+   * @param keepaliveInterval how often to check that the subscribed connection still answers
+   */
+  public RespSubscriber(
+      Supplier<RespConnection> connector,
+      String channel,
+      Consumer<String> onMessage,
+      Runnable onSubscribed,
+      Duration reconnectDelay,
+      Duration keepaliveInterval
+  ) {
+    this.connector = connector;
+    this.channel = channel;
+    this.onMessage = onMessage;
+    this.onSubscribed = onSubscribed;
+    this.reconnectDelay = reconnectDelay;
+    this.keepaliveInterval = keepaliveInterval;
+    this.listener = Thread.ofPlatform().name("resp-subscriber").daemon().start(this::listen);
+    this.keepalive = Executors.newSingleThreadScheduledExecutor(
+        Thread.ofPlatform().name("resp-subscriber-keepalive").daemon().factory());
+    long keepaliveMillis = keepaliveInterval.toMillis();
+    keepalive.scheduleWithFixedDelay(this::ping, keepaliveMillis, keepaliveMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Returns whether the subscriber is connected and every message since the last {@code onSubscribed} callback has
+   * been delivered.
+   */
+  public boolean isSubscribed() {
+    return subscribed;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    keepalive.shutdownNow();
+    RespConnection current = connection;
+    if (current != null) {
+      current.close();
+    }
+    listener.interrupt();
+  }
+
+  private void listen() {
+    while (!closed) {
+      try (RespConnection current = connector.get()) {
+        connection = current;
+        if (closed) {
+          return;
+        }
+        current.call("SUBSCRIBE", channel);
+        // Messages may be far apart; the keepalive detects a connection that stopped answering instead
+        current.setReadTimeout(Duration.ZERO);
+        onSubscribed.run();
+        awaitingReply = false;
+        subscribed = true;
+        log.info("Subscribed to channel {}", channel);
+        while (true) {
+          Object reply = current.read();
+          awaitingReply = false;
+          if (reply instanceof List<?> message && message.size() == 3 && "message".equals(message.get(0))) {
+            onMessage.accept((String) message.get(2));
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        subscribed = false;
+        if (closed) {
+          return;
+        }
+        log.warn("Subscription to channel {} lost, reconnecting in {}: {}", channel, reconnectDelay, e.getMessage());
+      }
+      try {
+        Thread.sleep(reconnectDelay);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Runs on the keepalive thread: drops the connection if the previous {@code PING} went unanswered, or sends another.
+   * Only this thread writes to the connection once it is subscribed.
+   */
+  private void ping() {
+    RespConnection current = connection;
+    if (!subscribed || current == null) {
+      return;
+    }
+    if (awaitingReply) {
+      log.warn("No reply on channel {} within {}, reconnecting", channel, keepaliveInterval);
+      subscribed = false;
+      current.close();
+      return;
+    }
+    awaitingReply = true;
+    try {
+      current.write("PING");
+      current.flush();
+    } catch (IOException e) {
+      subscribed = false;
+      current.close();
+    }
+  }
+}
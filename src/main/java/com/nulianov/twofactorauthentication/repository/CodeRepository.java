@@ -1,6 +1,9 @@
 package com.nulianov.twofactorauthentication.repository;
 
 import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.model.VerificationOutcome;
+import com.nulianov.twofactorauthentication.model.VerificationResult;
+import java.util.function.Function;
 
 /**
  * Repository interface for managing verification codes associated with user emails.
@@ -15,6 +18,16 @@ public interface CodeRepository {
    */
   void save(String email, CodeData codeData);
 
+  /**
+   * Saves the code data associated with the specified email unless code data is already stored for it, atomically with
+   * respect to other updates for the same email.
+   *
+   * @param email    the user's email address
+   * @param codeData the code data to save
+   * @return {@code true} if the code data was saved; {@code false} if code data was already stored
+   */
+  boolean saveIfAbsent(String email, CodeData codeData);
+
   /**
    * Retrieves the code data associated with the specified email.
    *
@@ -29,4 +42,24 @@ public interface CodeRepository {
    * @param email the user's email address
    */
   void deleteByEmail(String email);
+
+  /**
+   * Atomically applies a verification step to the code data associated with the specified email.
+   *
+   * <p>The step receives the stored code data, or {@code null} if there is none, and decides which code data remains
+   * stored afterwards. No other update for the same email can interleave with the step, so attempt counting is exact
+   * under concurrent verification requests.
+   *
+   * @param email the user's email address
+   * @param step  computes the verification outcome from the stored code data
+   * @return the verification result produced by the step
+   */
+  VerificationResult verify(String email, Function<CodeData, VerificationOutcome> step);
+
+  /**
+   * Returns the number of stored codes. Implementations may include expired codes that have not been removed yet.
+   *
+   * @return the approximate number of pending codes
+   */
+  long size();
 }
@@ -0,0 +1,20 @@
+package com.nulianov.twofactorauthentication.repository;
+
+import com.nulianov.twofactorauthentication.model.CodeData;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A {@link CodeRepository} that can list the email addresses it holds codes for, so its codes can be handed over to
+ * another instance.
+ */
+public interface ListableCodeRepository extends CodeRepository {
+
+  /**
+   * Returns the stored codes. The iteration reflects the codes at some point during it and does not fail on concurrent
+   * changes.
+   *
+   * @return the email addresses with their code data
+   */
+  Iterator<Map.Entry<String, CodeData>> entries();
+}
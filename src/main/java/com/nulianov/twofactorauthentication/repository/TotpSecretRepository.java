@@ -0,0 +1,47 @@
+package com.nulianov.twofactorauthentication.repository;
+
+import com.nulianov.twofactorauthentication.model.TotpSecret;
+
+/**
+ * Repository interface for the TOTP secrets of enrolled users.
+ */
+public interface TotpSecretRepository {
+
+  /**
+   * Saves the secret for the specified email, replacing any previous enrollment.
+   *
+   * @param email  the user's email address
+   * @param secret the secret to save
+   */
+  void save(String email, TotpSecret secret);
+
+  /**
+   * Retrieves the secret associated with the specified email.
+   *
+   * @param email the user's email address
+   * @return the secret if the user is enrolled; {@code null} otherwise
+   */
+  TotpSecret findByEmail(String email);
+
+  /**
+   * Atomically records that a code for the given time step was accepted, unless a code for that step or a later one
+   * already was.
+   *
+   * @param email the user's email address
+   * @param step  the time step of the accepted code
+   * @return {@code true} if the step was recorded; {@code false} if it would replay an earlier code
+   */
+  boolean markUsed(String email, long step);
+
+  /**
+   * Atomically counts a wrong code against the user, locking them out once {@code maxAttempts} codes in a row were
+   * wrong. A user who is already locked out stays locked out until the original time.
+   *
+   * @param email       the user's email address
+   * @param maxAttempts the number of wrong codes in a row that locks the user out
+   * @param now         the current epoch second
+   * @param lockUntil   the epoch second until which a user reaching {@code maxAttempts} is locked out
+   * @return {@code true} if the user is locked out after this attempt
+   */
+  boolean recordFailure(String email, int maxAttempts, long now, long lockUntil);
+}
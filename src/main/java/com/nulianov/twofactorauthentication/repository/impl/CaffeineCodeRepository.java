@@ -1,27 +1,116 @@
 package com.nulianov.twofactorauthentication.repository.impl;
 
 import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.nulianov.twofactorauthentication.config.CodeStoreProperties;
+import com.nulianov.twofactorauthentication.config.TwoFactorAuthProperties;
 import com.nulianov.twofactorauthentication.model.CodeData;
-import com.nulianov.twofactorauthentication.repository.CodeRepository;
+import com.nulianov.twofactorauthentication.model.VerificationOutcome;
+import com.nulianov.twofactorauthentication.model.VerificationResult;
+import com.nulianov.twofactorauthentication.repository.ListableCodeRepository;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Repository;
 
+/**
+ * CodeRepository backed by a Caffeine cache.
+ *
+ * <p>With {@code two-factor.store.caffeine.persistence.enabled}, every change is also recorded in a {@link CodeJournal}
+ * and the cache is restored from it on startup, so pending codes survive restarts. The journal is compacted into a
+ * snapshot every {@code snapshot-interval} and on shutdown. Entries the cache evicts to stay within its size bound are
+ * not recorded, so they can come back after a restart until they expire. A change is visible as soon as its record is
+ * appended. If the journal then cannot be written through to disk, the request fails, although its change has taken
+ * effect in memory; with {@code tolerate-sync-failures} the error is only logged and counted, and the journal keeps
+ * retrying.
+ */
 @Repository
 @Slf4j
-public class CaffeineCodeRepository implements CodeRepository {
+@ConditionalOnProperty(prefix = "two-factor.store", name = "type", havingValue = "caffeine", matchIfMissing = true)
+public class CaffeineCodeRepository implements ListableCodeRepository, DisposableBean {
 
   private final Cache<String, CodeData> codeCache;
+  private final CodeJournal journal;
+  private final boolean tolerateSyncFailures;
+  private final LongAdder syncFailures = new LongAdder();
+  private final ScheduledExecutorService snapshotter;
 
   public CaffeineCodeRepository(Cache<String, CodeData> codeCache) {
+    this(codeCache, null, false);
+  }
+
+  CaffeineCodeRepository(Cache<String, CodeData> codeCache, CodeJournal journal, boolean tolerateSyncFailures) {
+    this.codeCache = codeCache;
+    this.journal = journal;
+    this.tolerateSyncFailures = tolerateSyncFailures;
+    this.snapshotter = null;
+  }
+
+  @Autowired
+  public CaffeineCodeRepository(
+      Cache<String, CodeData> codeCache,
+      TwoFactorAuthProperties properties,
+      CodeStoreProperties storeProperties
+  ) {
+    CodeStoreProperties.CaffeineStore.Persistence persistence = storeProperties.getCaffeine().getPersistence();
     this.codeCache = codeCache;
+    this.tolerateSyncFailures = persistence.isTolerateSyncFailures();
+    if (!persistence.isEnabled()) {
+      this.journal = null;
+      this.snapshotter = null;
+      return;
+    }
+
+    this.journal = new CodeJournal(
+        Path.of(persistence.getPath()),
+        Math.toIntExact(persistence.getSegmentSize().toBytes()),
+        properties.getCodeValidityDuration(),
+        persistence.isGroupCommit(),
+        persistence.getSyncInterval());
+    // Replay into a plain map, so codes saved and deleted again within the journal never reach the cache
+    Map<String, CodeData> restored = new HashMap<>();
+    journal.restore(restored::put, restored::remove);
+    codeCache.putAll(restored);
+
+    this.snapshotter = Executors.newSingleThreadScheduledExecutor(
+        Thread.ofPlatform().name("code-store-snapshot").daemon().factory());
+    long snapshotMillis = persistence.getSnapshotInterval().toMillis();
+    snapshotter.scheduleWithFixedDelay(this::snapshot, snapshotMillis, snapshotMillis, TimeUnit.MILLISECONDS);
   }
 
   @Override
   public void save(String email, CodeData codeData) {
-    codeCache.put(email, codeData);
+    if (journal == null) {
+      codeCache.put(email, codeData);
+    } else {
+      update(email, current -> codeData);
+    }
     log.debug("Saved code data for email: {}", email);
   }
 
+  @Override
+  public boolean saveIfAbsent(String email, CodeData codeData) {
+    boolean[] saved = new boolean[1];
+    update(email, current -> {
+      saved[0] = current == null;
+      return saved[0] ? codeData : current;
+    });
+    log.debug("Saved code data for email {}: {}", email, saved[0]);
+    return saved[0];
+  }
+
   @Override
   public CodeData findByEmail(String email) {
     log.debug("Retrieved code data for email: {}", email);
@@ -30,7 +119,119 @@ public class CaffeineCodeRepository implements CodeRepository {
 
   @Override
   public void deleteByEmail(String email) {
-    codeCache.invalidate(email);
+    if (journal == null) {
+      codeCache.invalidate(email);
+    } else {
+      update(email, current -> null);
+    }
     log.debug("Deleted code data for email: {}", email);
   }
+
+  @Override
+  public VerificationResult verify(String email, Function<CodeData, VerificationOutcome> step) {
+    // Verifying an address with no pending code changes nothing, so answer it without the cost of an atomic compute.
+    // A code saved concurrently is left alone, as if it had been saved just after this verification.
+    if (codeCache.asMap().get(email) == null) {
+      VerificationOutcome outcome = step.apply(null);
+      if (outcome.codeData() == null) {
+        log.debug("No code data to verify for email: {}", email);
+        return outcome.result();
+      }
+    }
+    VerificationResult[] result = new VerificationResult[1];
+    update(email, codeData -> {
+      VerificationOutcome outcome = step.apply(codeData);
+      result[0] = outcome.result();
+      return outcome.codeData();
+    });
+    log.debug("Verified code data for email: {}", email);
+    return result[0];
+  }
+
+  @Override
+  public long size() {
+    return codeCache.estimatedSize();
+  }
+
+  @Override
+  public Iterator<Map.Entry<String, CodeData>> entries() {
+    return codeCache.asMap().entrySet().iterator();
+  }
+
+  /**
+   * Returns the number of changes whose journal records could not be written through to disk.
+   */
+  public long getSyncFailures() {
+    return syncFailures.sum();
+  }
+
+  /**
+   * Returns the cache statistics, including the number of entries evicted by expiry or by the size bound.
+   *
+   * @return a snapshot of the cache statistics
+   */
+  public CacheStats stats() {
+    return codeCache.stats();
+  }
+
+  /**
+   * Compacts the journal into a snapshot of the current codes. Does nothing without persistence.
+   */
+  public void snapshot() {
+    if (journal == null) {
+      return;
+    }
+    try {
+      journal.snapshot(codeCache.asMap());
+    } catch (RuntimeException e) {
+      log.warn("Could not snapshot the code store: {}", e.getMessage());
+    }
+  }
+
+  @Override
+  public void destroy() {
+    if (journal == null) {
+      return;
+    }
+    if (snapshotter != null) {
+      snapshotter.shutdownNow();
+    }
+    // Leave as little journal as possible to replay on the next start
+    snapshot();
+    journal.close();
+  }
+
+  /**
+   * Replaces the entry for the email atomically, recording the change in the journal first when there is one.
+   */
+  private void update(String email, UnaryOperator<CodeData> change) {
+    if (journal == null) {
+      codeCache.asMap().compute(email, (key, codeData) -> change.apply(codeData));
+      return;
+    }
+    long[] ticket = new long[1];
+    int token = journal.enter();
+    try {
+      codeCache.asMap().compute(email, (key, codeData) -> {
+        CodeData updated = change.apply(codeData);
+        if (updated != codeData) {
+          ticket[0] = updated == null ? journal.appendDelete(key) : journal.appendSave(key, updated);
+        }
+        return updated;
+      });
+    } finally {
+      journal.exit(token);
+    }
+    try {
+      journal.awaitDurable(ticket[0]);
+    } catch (UncheckedIOException e) {
+      syncFailures.increment();
+      log.error("Code store change for email {} is not written through to disk yet: {}", email,
+          e.getCause().getMessage());
+      if (!tolerateSyncFailures) {
+        throw e;
+      }
+      // The change is already visible and its record is in the page cache, so it survives a crash of the process
+    }
+  }
 }
@@ -0,0 +1,406 @@
+package com.nulianov.twofactorauthentication.repository.impl;
+
+import com.nulianov.twofactorauthentication.journal.Journal;
+import com.nulianov.twofactorauthentication.model.CodeData;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Write-ahead journal and compacted snapshots of the codes held by {@link CaffeineCodeRepository}, so pending codes
+ * survive a restart.
+ *
+ * <p>Every change is appended to a {@link Journal} as a save or delete record while the entry is locked, so the
+ * records of one address are in the order the changes were made. With group commit, the caller then waits until the
+ * record is written through to disk by the commit thread, which forces every record appended so far at once: callers
+ * arriving while a force is running share the next one, so durability costs one force per batch instead of one per
+ * change. Without it the journal is forced every {@code sync-interval}; the records reach the page cache on append and
+ * survive a crash of the process either way.
+ *
+ * <p>A snapshot writes the live entries to a single file and then deletes the journal segments older than the one
+ * that was active when it started, so the journal holds only the changes since the last snapshot. Changes are
+ * bracketed by {@link #enter()} and {@link #exit(int)}; the snapshot waits for the changes already under way when it
+ * started, so each change is either visible to the snapshot or recorded in a segment it keeps. Startup loads the
+ * snapshot and replays the kept segments over it; expired codes are skipped.
+ */
+@Slf4j
+final class CodeJournal implements Closeable {
+
+  private static final byte SAVE = 1;
+  private static final byte DELETE = 2;
+  private static final long SNAPSHOT_MAGIC = 0x3246415343534E50L;
+  private static final int SNAPSHOT_VERSION = 1;
+  private static final int SNAPSHOT_HEADER_SIZE = 8 + 4 + 8;
+  private static final String SNAPSHOT_FILE = "codes.snapshot";
+  private static final String SNAPSHOT_TEMP_FILE = "codes.snapshot.tmp";
+  private static final long RETRY_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final Path directory;
+  private final Journal journal;
+  private final long codeValidityDuration;
+  private final boolean groupCommit;
+  private final long syncIntervalNanos;
+  private final AtomicLong appended = new AtomicLong();
+  private final AtomicLong[] inFlight = {new AtomicLong(), new AtomicLong()};
+  private final ReentrantLock commitLock = new ReentrantLock();
+  private final Condition commitRequested = commitLock.newCondition();
+  private final Condition committed = commitLock.newCondition();
+  private final Thread committer;
+
+  private volatile long durable;
+  private volatile RuntimeException commitFailure;
+  private volatile int epoch;
+  private volatile boolean running = true;
+
+  /**
+   * Opens the journal in the given directory, creating it if it does not exist.
+   *
+   * @param directory            the directory holding the journal segments and the snapshot
+   * @param segmentSize          the size of each journal segment in bytes
+   * @param codeValidityDuration the code validity in seconds, used to skip expired codes
+   * @param groupCommit          whether changes wait until they are written through to disk
+   * @param syncInterval         how often the journal is written through to disk without group commit
+   */
+  CodeJournal(Path directory, int segmentSize, long codeValidityDuration, boolean groupCommit, Duration syncInterval) {
+    this.directory = directory;
+    this.journal = Journal.open(directory, segmentSize);
+    this.codeValidityDuration = codeValidityDuration;
+    this.groupCommit = groupCommit;
+    this.syncIntervalNanos = syncInterval.toNanos();
+    this.committer = Thread.ofPlatform().name("code-journal-commit").daemon().start(this::commitLoop);
+  }
+
+  /**
+   * Loads the snapshot and replays the journal over it.
+   *
+   * @param save   receives every code that is still valid
+   * @param delete receives every address whose code was removed after an earlier {@code save} for it
+   * @return the number of records read
+   */
+  long restore(BiConsumer<String, CodeData> save, Consumer<String> delete) {
+    long start = System.nanoTime();
+    long now = Instant.now().getEpochSecond();
+    long[] records = new long[1];
+    long cut = loadSnapshot(now, save, records);
+    journal.replay((record, segment) -> {
+      // Left behind by a snapshot that could not delete them; the snapshot already holds their changes
+      if (segment < cut) {
+        return;
+      }
+      records[0]++;
+      byte type = record.get();
+      if (type == SAVE) {
+        long creationTime = record.getLong();
+        int attempts = record.getInt();
+        String email = readString(record, record.getInt());
+        String code = readString(record, record.remaining());
+        if (isExpired(creationTime, now)) {
+          delete.accept(email);
+        } else {
+          save.accept(email, new CodeData(code, creationTime, attempts));
+        }
+      } else {
+        delete.accept(readString(record, record.remaining()));
+      }
+    });
+    log.info("Restored code store from {}: {} records in {} ms", directory, records[0],
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    return records[0];
+  }
+
+  /**
+   * Marks the start of a change, before its record is appended.
+   *
+   * @return the token to pass to {@link #exit(int)} once the change is visible
+   */
+  int enter() {
+    int current = epoch;
+    inFlight[current & 1].incrementAndGet();
+    return current;
+  }
+
+  /**
+   * Marks the end of a change started with {@link #enter()}.
+   */
+  void exit(int token) {
+    inFlight[token & 1].decrementAndGet();
+  }
+
+  /**
+   * Appends a save record.
+   *
+   * @return the ticket to wait for with {@link #awaitDurable(long)}
+   */
+  long appendSave(String email, CodeData codeData) {
+    journal.append(encodeSave(email, codeData));
+    return appended.incrementAndGet();
+  }
+
+  /**
+   * Appends a delete record.
+   *
+   * @return the ticket to wait for with {@link #awaitDurable(long)}
+   */
+  long appendDelete(String email) {
+    byte[] key = email.getBytes(StandardCharsets.UTF_8);
+    journal.append(ByteBuffer.allocate(1 + key.length).put(DELETE).put(key).flip());
+    return appended.incrementAndGet();
+  }
+
+  /**
+   * With group commit, waits until the record with the given ticket is written through to disk.
+   *
+   * @throws UncheckedIOException if the journal could not be written through
+   */
+  void awaitDurable(long ticket) {
+    if (!groupCommit || durable >= ticket) {
+      return;
+    }
+    commitLock.lock();
+    try {
+      commitRequested.signal();
+      while (durable < ticket) {
+        RuntimeException failure = commitFailure;
+        if (failure != null) {
+          throw new UncheckedIOException(new IOException("Could not write the code journal to disk", failure));
+        }
+        committed.awaitUninterruptibly();
+      }
+    } finally {
+      commitLock.unlock();
+    }
+  }
+
+  /**
+   * Writes the entries to a new snapshot and deletes the journal segments it replaces. Does nothing if the journal
+   * still fits in its active segment.
+   *
+   * @param entries the live entries; iterating them must see every change that completed before the iteration began
+   * @return whether a snapshot was written
+   */
+  synchronized boolean snapshot(Map<String, CodeData> entries) {
+    long cut = journal.activeSegment();
+    if (journal.firstSegment() >= cut) {
+      return false;
+    }
+    // Changes started from now on either append to the cut segment or later, or are already counted in the new epoch
+    int previous = epoch;
+    epoch = previous + 1;
+    while (inFlight[previous & 1].get() != 0) {
+      Thread.yield();
+    }
+
+    long start = System.nanoTime();
+    int written;
+    try {
+      written = writeSnapshot(cut, entries);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not write code store snapshot to " + directory, e);
+    }
+    int deleted = journal.deleteSegmentsBefore(cut);
+    log.debug("Wrote code store snapshot with {} codes in {} ms, {} journal segments deleted", written,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), deleted);
+    return true;
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    commitLock.lock();
+    try {
+      commitRequested.signal();
+    } finally {
+      commitLock.unlock();
+    }
+    try {
+      committer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    journal.close();
+  }
+
+  private void commitLoop() {
+    boolean stopping = false;
+    while (!stopping) {
+      commitLock.lock();
+      try {
+        if (groupCommit) {
+          while (running && appended.get() == durable) {
+            commitRequested.awaitUninterruptibly();
+          }
+        } else if (running) {
+          commitRequested.awaitNanos(syncIntervalNanos);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        commitLock.unlock();
+      }
+      // Commit once more on the way out, so no caller is left waiting
+      stopping = !running || Thread.currentThread().isInterrupted();
+
+      long target = appended.get();
+      if (target == durable) {
+        continue;
+      }
+      try {
+        journal.force();
+        commitFailure = null;
+        durable = target;
+      } catch (RuntimeException e) {
+        log.error("Could not write the code journal to disk: {}", e.getMessage());
+        commitFailure = e;
+      }
+      commitLock.lock();
+      try {
+        committed.signalAll();
+      } finally {
+        commitLock.unlock();
+      }
+      if (commitFailure != null) {
+        LockSupport.parkNanos(RETRY_DELAY_NANOS);
+      }
+    }
+  }
+
+  private int writeSnapshot(long cut, Map<String, CodeData> entries) throws IOException {
+    long now = Instant.now().getEpochSecond();
+    Path temp = directory.resolve(SNAPSHOT_TEMP_FILE);
+    CRC32C crc = new CRC32C();
+    int written = 0;
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+      buffer.putLong(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putLong(cut);
+      for (Map.Entry<String, CodeData> entry : entries.entrySet()) {
+        CodeData codeData = entry.getValue();
+        if (isExpired(codeData.creationTime(), now)) {
+          continue;
+        }
+        ByteBuffer record = encodeSave(entry.getKey(), codeData);
+        if (buffer.remaining() < 4 + record.remaining()) {
+          flush(channel, buffer, crc);
+        }
+        if (buffer.remaining() < 4 + record.remaining()) {
+          throw new IOException("Code store entry too large for a snapshot: " + entry.getKey());
+        }
+        buffer.putInt(record.remaining()).put(record);
+        written++;
+      }
+      // A zero length ends the records; the checksum of everything after the header follows
+      if (buffer.remaining() < 4) {
+        flush(channel, buffer, crc);
+      }
+      buffer.putInt(0);
+      flush(channel, buffer, crc);
+      buffer.putInt((int) crc.getValue()).flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(true);
+    }
+    Files.move(temp, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    return written;
+  }
+
+  private static void flush(FileChannel channel, ByteBuffer buffer, CRC32C crc) throws IOException {
+    buffer.flip();
+    // The header is written first and is not covered by the checksum
+    int checked = channel.position() == 0 ? SNAPSHOT_HEADER_SIZE : 0;
+    crc.update(buffer.slice(checked, buffer.limit() - checked));
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /**
+   * Loads the snapshot, if there is an intact one.
+   *
+   * @return the journal segment that the snapshot was cut at, or 0 if there is no snapshot
+   */
+  private long loadSnapshot(long now, BiConsumer<String, CodeData> save, long[] records) {
+    Path path = directory.resolve(SNAPSHOT_FILE);
+    if (!Files.exists(path)) {
+      return 0;
+    }
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      MappedByteBuffer snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      int size = snapshot.limit();
+      if (size < SNAPSHOT_HEADER_SIZE + 8
+          || snapshot.getLong(0) != SNAPSHOT_MAGIC
+          || snapshot.getInt(8) != SNAPSHOT_VERSION) {
+        throw new IOException("not a code store snapshot of this version");
+      }
+      CRC32C crc = new CRC32C();
+      crc.update(snapshot.slice(SNAPSHOT_HEADER_SIZE, size - SNAPSHOT_HEADER_SIZE - 4));
+      if ((int) crc.getValue() != snapshot.getInt(size - 4)) {
+        throw new IOException("checksum mismatch");
+      }
+
+      long cut = snapshot.getLong(12);
+      int offset = SNAPSHOT_HEADER_SIZE;
+      int length;
+      while ((length = snapshot.getInt(offset)) > 0) {
+        ByteBuffer record = snapshot.slice(offset + 4 + 1, length - 1);
+        long creationTime = record.getLong();
+        int attempts = record.getInt();
+        String email = readString(record, record.getInt());
+        if (!isExpired(creationTime, now)) {
+          save.accept(email, new CodeData(readString(record, record.remaining()), creationTime, attempts));
+        }
+        records[0]++;
+        offset += 4 + length;
+      }
+      return cut;
+    } catch (IOException | RuntimeException e) {
+      // The journal may no longer hold what the snapshot replaced, so whatever it does hold is the best there is
+      log.error("Ignoring unreadable code store snapshot {}: {}", path, e.getMessage());
+      return 0;
+    }
+  }
+
+  private boolean isExpired(long creationTime, long now) {
+    return now - creationTime > codeValidityDuration;
+  }
+
+  private static ByteBuffer encodeSave(String email, CodeData codeData) {
+    byte[] key = email.getBytes(StandardCharsets.UTF_8);
+    byte[] code = codeData.code().getBytes(StandardCharsets.UTF_8);
+    return ByteBuffer.allocate(1 + 8 + 4 + 4 + key.length + code.length)
+        .put(SAVE)
+        .putLong(codeData.creationTime())
+        .putInt(codeData.attempts())
+        .putInt(key.length).put(key)
+        .put(code)
+        .flip();
+  }
+
+  private static String readString(ByteBuffer record, int length) {
+    byte[] bytes = new byte[length];
+    record.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,73 @@
+package com.nulianov.twofactorauthentication.repository.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe Bloom filter of email addresses, keyed by their {@link EmailKey}.
+ *
+ * <p>{@link #mightContain} never answers {@code false} for an address that was added, and answers {@code true} for an
+ * address that was not added with roughly the false positive rate the filter was sized for, as long as no more than
+ * the expected number of addresses are added. Addresses cannot be removed; owners replace the filter with a fresh one
+ * instead. The bit positions are derived from the two halves of the key by double hashing.
+ */
+final class EmailBloomFilter {
+
+  private final AtomicLongArray words;
+  private final long bitCount;
+  private final int hashCount;
+
+  /**
+   * Creates an empty filter.
+   *
+   * @param expectedInsertions the number of addresses the filter is sized for
+   * @param falsePositiveRate  the false positive rate to aim for at that size, between 0 and 1
+   */
+  EmailBloomFilter(long expectedInsertions, double falsePositiveRate) {
+    if (expectedInsertions < 1) {
+      throw new IllegalArgumentException("Expected insertions must be positive");
+    }
+    if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+      throw new IllegalArgumentException("False positive rate must be between 0 and 1");
+    }
+    double ln2 = Math.log(2);
+    long bits = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (ln2 * ln2));
+    int wordCount = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (bits + 63) / 64));
+    this.words = new AtomicLongArray(wordCount);
+    this.bitCount = (long) wordCount * 64;
+    this.hashCount = (int) Math.max(1, Math.round((double) bitCount / expectedInsertions * ln2));
+  }
+
+  void add(EmailKey key) {
+    long combined = key.high();
+    for (int i = 0; i < hashCount; i++) {
+      long bit = (combined & Long.MAX_VALUE) % bitCount;
+      int index = (int) (bit >>> 6);
+      long mask = 1L << bit;
+      long word = words.get(index);
+      while ((word & mask) == 0 && !words.weakCompareAndSetVolatile(index, word, word | mask)) {
+        word = words.get(index);
+      }
+      combined += key.low();
+    }
+  }
+
+  boolean mightContain(EmailKey key) {
+    long combined = key.high();
+    for (int i = 0; i < hashCount; i++) {
+      long bit = (combined & Long.MAX_VALUE) % bitCount;
+      if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+        return false;
+      }
+      combined += key.low();
+    }
+    return true;
+  }
+
+  int hashCount() {
+    return hashCount;
+  }
+
+  long bitCount() {
+    return bitCount;
+  }
+}
@@ -0,0 +1,53 @@
+package com.nulianov.twofactorauthentication.repository.impl;
+
+import com.nulianov.twofactorauthentication.model.TotpSecret;
+import com.nulianov.twofactorauthentication.repository.TotpSecretRepository;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Repository;
+
+/**
+ * TotpSecretRepository that keeps enrollments in memory.
+ *
+ * <p>Enrollments are lost when the instance stops, and in cluster mode they stay on the instance that owned the email
+ * address when it enrolled: after a restart, or once the address moves to another owner, the user has to enroll again.
+ */
+@Repository
+@Slf4j
+public class InMemoryTotpSecretRepository implements TotpSecretRepository {
+
+  private final ConcurrentMap<String, TotpSecret> secrets = new ConcurrentHashMap<>();
+
+  @Override
+  public void save(String email, TotpSecret secret) {
+    secrets.put(email, secret);
+    log.debug("Saved TOTP secret for email: {}", email);
+  }
+
+  @Override
+  public TotpSecret findByEmail(String email) {
+    return secrets.get(email);
+  }
+
+  @Override
+  public boolean markUsed(String email, long step) {
+    boolean[] marked = new boolean[1];
+    secrets.computeIfPresent(email, (key, secret) -> {
+      if (step <= secret.lastUsedStep()) {
+        return secret;
+      }
+      marked[0] = true;
+      return secret.withLastUsedStep(step);
+    });
+    return marked[0];
+  }
+
+  @Override
+  public boolean recordFailure(String email, int maxAttempts, long now, long lockUntil) {
+    TotpSecret updated = secrets.computeIfPresent(email, (key, secret) -> secret.isLockedAt(now)
+        ? secret
+        : secret.withFailedAttempt(maxAttempts, lockUntil));
+    return updated != null && updated.isLockedAt(now);
+  }
+}
@@ -0,0 +1,528 @@
+package com.nulianov.twofactorauthentication.repository.impl;
+
+import com.nulianov.twofactorauthentication.config.CodeGeneratorProperties;
+import com.nulianov.twofactorauthentication.config.CodeStoreProperties;
+import com.nulianov.twofactorauthentication.config.TwoFactorAuthProperties;
+import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.model.VerificationOutcome;
+import com.nulianov.twofactorauthentication.model.VerificationResult;
+import com.nulianov.twofactorauthentication.repository.CodeRepository;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.BitSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+/**
+ * CodeRepository backed by a fixed-slot hash table in a memory-mapped file.
+ *
+ * <p>Slots hold the {@link EmailKey} and the {@link PackedCodeData} value of an entry and a checksum over both, 32
+ * bytes in total, outside the Java heap. The table is split into independently locked, linearly probed segments, each
+ * mapped on its own. Creation times are absolute, so reopening the file after a restart or crash keeps every
+ * outstanding code with its original expiry. Slots whose checksum does not match, such as those torn by a machine
+ * crash in the middle of a write, are dropped on reopening. The file is locked while open, so only one process can use
+ * it.
+ *
+ * <p>Expired slots are reclaimed lazily when a probe reaches them, and by a background sweeper. When a segment is full,
+ * an insert looks at a small sample of slots after a cursor that moves on with every eviction: an expired code in the
+ * sample is reclaimed, otherwise the oldest code in it is evicted, approximating the size bound of the default cache
+ * without scanning the whole segment.
+ */
+@Repository
+@Slf4j
+@ConditionalOnProperty(prefix = "two-factor.store", name = "type", havingValue = "mapped")
+public class MappedCodeRepository implements CodeRepository, DisposableBean {
+
+  private static final long MAGIC = 0x3246414344415441L;
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 64;
+  private static final int SLOT_SIZE = 32;
+  private static final float LOAD_FACTOR = 0.9f;
+  private static final int EVICTION_SAMPLE = 16;
+
+  private final long codeValidityDuration;
+  private final Segment[] segments;
+  private final int segmentShift;
+  private final ScheduledExecutorService sweeper;
+  private FileChannel channel;
+
+  @Autowired
+  public MappedCodeRepository(
+      TwoFactorAuthProperties properties,
+      CodeStoreProperties storeProperties,
+      CodeGeneratorProperties codeProperties
+  ) {
+    this(
+        Path.of(storeProperties.getMapped().getPath()),
+        properties.getCodeValidityDuration(),
+        storeProperties.getMapped().getSlots(),
+        storeProperties.getMapped().getSegments(),
+        storeProperties.getMapped().getSweepInterval()
+    );
+    if (properties.getMaxAttempts() > PackedCodeData.MAX_ATTEMPTS) {
+      throw new IllegalArgumentException(
+          "Mapped code store supports at most " + PackedCodeData.MAX_ATTEMPTS + " verification attempts");
+    }
+    if (!PackedCodeData.canPack(codeProperties.getLength(), codeProperties.getAlphabet())) {
+      throw new IllegalArgumentException(
+          "Mapped code store supports only numeric codes of up to " + PackedCodeData.MAX_CODE_LENGTH + " digits");
+    }
+  }
+
+  /**
+   * Opens the table at the given path, creating the file if it does not exist.
+   *
+   * @param path                 the table file
+   * @param codeValidityDuration the code validity in seconds
+   * @param slots                the total number of slots, split evenly between segments
+   * @param segments             the number of segments, rounded up to a power of two
+   * @param sweepInterval        how often expired slots are swept, or {@code null} to disable the sweeper
+   */
+  public MappedCodeRepository(Path path, long codeValidityDuration, int slots, int segments, Duration sweepInterval) {
+    int segmentCount = segments <= 1 ? 1 : Integer.highestOneBit(segments - 1) << 1;
+    int slotsPerSegment = Math.max(2, Integer.highestOneBit(Math.max(1, slots / segmentCount - 1)) << 1);
+    if ((long) slotsPerSegment * SLOT_SIZE > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many slots per segment: " + slotsPerSegment);
+    }
+
+    this.codeValidityDuration = codeValidityDuration;
+    this.segments = new Segment[segmentCount];
+    this.segmentShift = 64 - Integer.numberOfTrailingZeros(segmentCount);
+
+    try {
+      open(path, segmentCount, slotsPerSegment);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not open code store " + path, e);
+    }
+
+    if (sweepInterval != null && !sweepInterval.isZero()) {
+      this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "code-store-sweeper");
+        thread.setDaemon(true);
+        return thread;
+      });
+      sweeper.scheduleWithFixedDelay(
+          this::sweep, sweepInterval.toMillis(), sweepInterval.toMillis(), TimeUnit.MILLISECONDS);
+    } else {
+      this.sweeper = null;
+    }
+  }
+
+  @Override
+  public void save(String email, CodeData codeData) {
+    EmailKey key = EmailKey.of(email);
+    long packed = PackedCodeData.pack(codeData);
+    Segment segment = segmentFor(key);
+    synchronized (segment) {
+      segment.put(key.high(), key.low(), packed, now());
+    }
+    log.debug("Saved code data for email: {}", email);
+  }
+
+  @Override
+  public boolean saveIfAbsent(String email, CodeData codeData) {
+    EmailKey key = EmailKey.of(email);
+    long packed = PackedCodeData.pack(codeData);
+    Segment segment = segmentFor(key);
+    synchronized (segment) {
+      long now = now();
+      if (segment.find(key.high(), key.low(), now) >= 0) {
+        return false;
+      }
+      segment.put(key.high(), key.low(), packed, now);
+    }
+    log.debug("Saved code data for email: {}", email);
+    return true;
+  }
+
+  @Override
+  public CodeData findByEmail(String email) {
+    EmailKey key = EmailKey.of(email);
+    Segment segment = segmentFor(key);
+    long packed;
+    synchronized (segment) {
+      int slot = segment.find(key.high(), key.low(), now());
+      if (slot < 0) {
+        return null;
+      }
+      packed = segment.value(slot);
+    }
+    log.debug("Retrieved code data for email: {}", email);
+    return PackedCodeData.unpack(packed);
+  }
+
+  @Override
+  public void deleteByEmail(String email) {
+    EmailKey key = EmailKey.of(email);
+    Segment segment = segmentFor(key);
+    synchronized (segment) {
+      int slot = segment.find(key.high(), key.low(), now());
+      if (slot >= 0) {
+        segment.removeAt(slot);
+      }
+    }
+    log.debug("Deleted code data for email: {}", email);
+  }
+
+  @Override
+  public VerificationResult verify(String email, Function<CodeData, VerificationOutcome> step) {
+    EmailKey key = EmailKey.of(email);
+    Segment segment = segmentFor(key);
+    VerificationOutcome outcome;
+    synchronized (segment) {
+      long now = now();
+      int slot = segment.find(key.high(), key.low(), now);
+      outcome = step.apply(slot < 0 ? null : PackedCodeData.unpack(segment.value(slot)));
+
+      if (outcome.codeData() != null) {
+        segment.put(key.high(), key.low(), PackedCodeData.pack(outcome.codeData()), now);
+      } else if (slot >= 0) {
+        segment.removeAt(slot);
+      }
+    }
+    log.debug("Verified code data for email: {}", email);
+    return outcome.result();
+  }
+
+  @Override
+  public long size() {
+    long size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Reclaims every expired slot. Runs periodically on the sweeper thread.
+   */
+  public void sweep() {
+    long now = now();
+    int reclaimed = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        reclaimed += segment.sweep(now);
+      }
+    }
+    if (reclaimed > 0) {
+      log.debug("Reclaimed {} expired code slots", reclaimed);
+    }
+  }
+
+  @Override
+  public void destroy() {
+    if (sweeper != null) {
+      sweeper.shutdownNow();
+    }
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        segment.buffer.force();
+      }
+    }
+    try {
+      // Releases the file lock; the mappings stay valid until they are collected
+      channel.close();
+    } catch (IOException e) {
+      log.warn("Could not close code store: {}", e.getMessage());
+    }
+  }
+
+  private void open(Path path, int segmentCount, int slotsPerSegment) throws IOException {
+    if (path.getParent() != null) {
+      Files.createDirectories(path.getParent());
+    }
+    long segmentBytes = (long) slotsPerSegment * SLOT_SIZE;
+
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      FileLock lock;
+      try {
+        lock = channel.tryLock();
+      } catch (OverlappingFileLockException e) {
+        lock = null;
+      }
+      if (lock == null) {
+        throw new IllegalStateException("Code store " + path + " is in use by another process");
+      }
+
+      MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+      boolean existing = header.getLong(0) == MAGIC;
+
+      if (existing) {
+        if (header.getInt(8) != VERSION || header.getInt(12) != segmentCount || header.getInt(16) != slotsPerSegment) {
+          throw new IllegalStateException("Code store " + path + " was created with a different layout");
+        }
+      } else {
+        header.putLong(0, MAGIC);
+        header.putInt(8, VERSION);
+        header.putInt(12, segmentCount);
+        header.putInt(16, slotsPerSegment);
+      }
+
+      long now = now();
+      long restored = 0;
+      long torn = 0;
+      for (int i = 0; i < segmentCount; i++) {
+        MappedByteBuffer buffer = channel.map(
+            FileChannel.MapMode.READ_WRITE, HEADER_SIZE + segmentBytes * i, segmentBytes);
+        segments[i] = new Segment(buffer, slotsPerSegment);
+        if (existing) {
+          torn += segments[i].dropTorn();
+          segments[i].sweep(now);
+          restored += segments[i].size;
+        }
+      }
+      header.force();
+
+      if (torn > 0) {
+        log.warn("Dropped {} partially written codes from code store {}", torn, path);
+      }
+      if (existing) {
+        log.info("Reopened code store {} with {} outstanding codes", path, restored);
+      }
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private Segment segmentFor(EmailKey key) {
+    return segments[segmentShift == 64 ? 0 : (int) (key.high() >>> segmentShift)];
+  }
+
+  private long now() {
+    return Instant.now().getEpochSecond();
+  }
+
+  private boolean isExpired(long packed, long now) {
+    return now - PackedCodeData.creationTime(packed) > codeValidityDuration;
+  }
+
+  /**
+   * Mixes the key and value of a slot into a value that is never zero, so a slot whose checksum was not written yet
+   * does not match.
+   */
+  private static long checksum(long high, long low, long value) {
+    long h = high * 0x9e3779b97f4a7c15L + low;
+    h = (h ^ (h >>> 32)) * 0xff51afd7ed558ccdL + value;
+    h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return (h ^ (h >>> 33)) | 1;
+  }
+
+  /**
+   * Linear-probing table over a mapped region. A slot is empty when both key halves are zero. All access happens while
+   * holding the segment's monitor.
+   */
+  private final class Segment {
+
+    private final MappedByteBuffer buffer;
+    private final int mask;
+    private final int limit;
+    private int size;
+    private int evictionCursor;
+
+    Segment(MappedByteBuffer buffer, int slots) {
+      this.buffer = buffer;
+      this.mask = slots - 1;
+      this.limit = (int) (slots * LOAD_FACTOR);
+      for (int slot = 0; slot < slots; slot++) {
+        if (!isEmpty(slot)) {
+          size++;
+        }
+      }
+    }
+
+    /**
+     * Returns the slot holding the key, or -1 if it is absent. Expired entries met while probing are reclaimed.
+     */
+    int find(long high, long low, long now) {
+      int slot = (int) low & mask;
+      while (!isEmpty(slot)) {
+        if (isExpired(value(slot), now)) {
+          removeAt(slot);
+          continue;
+        }
+        if (keyHigh(slot) == high && keyLow(slot) == low) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+      return -1;
+    }
+
+    void put(long high, long low, long value, long now) {
+      int slot = find(high, low, now);
+      if (slot >= 0) {
+        write(slot, high, low, value);
+        return;
+      }
+
+      if (size >= limit) {
+        makeRoom(now);
+      }
+
+      slot = (int) low & mask;
+      while (!isEmpty(slot)) {
+        slot = (slot + 1) & mask;
+      }
+      write(slot, high, low, value);
+      size++;
+    }
+
+    /**
+     * Removes the entry at the slot and shifts later entries of the same probe run back, so no tombstones are needed.
+     */
+    void removeAt(int slot) {
+      int hole = slot;
+      for (int next = (slot + 1) & mask; !isEmpty(next); next = (next + 1) & mask) {
+        int home = (int) keyLow(next) & mask;
+        if (((next - home) & mask) >= ((next - hole) & mask)) {
+          write(hole, keyHigh(next), keyLow(next), value(next));
+          hole = next;
+        }
+      }
+      write(hole, 0, 0, 0);
+      size--;
+    }
+
+    /**
+     * Frees a slot by reclaiming the first expired entry among the sampled slots, or else evicting the oldest of them.
+     */
+    private void makeRoom(long now) {
+      int sample = Math.min(EVICTION_SAMPLE, mask + 1);
+      int start = evictionCursor;
+      evictionCursor = (start + sample) & mask;
+      int oldest = -1;
+      for (int i = 0; i < sample; i++) {
+        int slot = (start + i) & mask;
+        if (isEmpty(slot)) {
+          continue;
+        }
+        if (isExpired(value(slot), now)) {
+          removeAt(slot);
+          return;
+        }
+        if (oldest < 0 || PackedCodeData.creationTime(value(slot)) < PackedCodeData.creationTime(value(oldest))) {
+          oldest = slot;
+        }
+      }
+      if (oldest >= 0) {
+        removeAt(oldest);
+        log.debug("Evicted an old code from a full code store segment");
+      }
+    }
+
+    /**
+     * Removes the entries whose checksum does not match, and returns how many there were.
+     *
+     * <p>Every torn slot is cleared before anything moves, since shifting a torn entry back would give it a valid
+     * checksum and its home position is read from a key that may be garbage. The intact entries after each cleared
+     * slot are then placed again from their home positions, so they stay reachable; they move with the checksum that
+     * was verified.
+     */
+    int dropTorn() {
+      BitSet torn = new BitSet(mask + 1);
+      for (int slot = 0; slot <= mask; slot++) {
+        if (!isEmpty(slot) && check(slot) != checksum(keyHigh(slot), keyLow(slot), value(slot))) {
+          clear(slot);
+          torn.set(slot);
+          size--;
+        }
+      }
+      for (int hole = torn.nextSetBit(0); hole >= 0; hole = torn.nextSetBit(hole + 1)) {
+        for (int slot = (hole + 1) & mask; !isEmpty(slot); slot = (slot + 1) & mask) {
+          reinsert(slot);
+        }
+      }
+      return torn.cardinality();
+    }
+
+    /**
+     * Moves the intact entry at the slot to the first free slot of its probe run, which may be the slot itself.
+     */
+    private void reinsert(int slot) {
+      long high = keyHigh(slot);
+      long low = keyLow(slot);
+      long value = value(slot);
+      long check = check(slot);
+      clear(slot);
+      int target = (int) low & mask;
+      while (!isEmpty(target)) {
+        target = (target + 1) & mask;
+      }
+      int offset = target * SLOT_SIZE;
+      buffer.putLong(offset + 16, value);
+      buffer.putLong(offset + 24, check);
+      buffer.putLong(offset + 8, low);
+      buffer.putLong(offset, high);
+    }
+
+    int sweep(long now) {
+      int reclaimed = 0;
+      int slot = 0;
+      while (slot <= mask) {
+        if (!isEmpty(slot) && isExpired(value(slot), now)) {
+          removeAt(slot);
+          reclaimed++;
+        } else {
+          slot++;
+        }
+      }
+      return reclaimed;
+    }
+
+    long value(int slot) {
+      return buffer.getLong(slot * SLOT_SIZE + 16);
+    }
+
+    private long keyHigh(int slot) {
+      return buffer.getLong(slot * SLOT_SIZE);
+    }
+
+    private long keyLow(int slot) {
+      return buffer.getLong(slot * SLOT_SIZE + 8);
+    }
+
+    private long check(int slot) {
+      return buffer.getLong(slot * SLOT_SIZE + 24);
+    }
+
+    private void write(int slot, long high, long low, long value) {
+      int offset = slot * SLOT_SIZE;
+      buffer.putLong(offset + 16, value);
+      buffer.putLong(offset + 8, low);
+      buffer.putLong(offset, high);
+      buffer.putLong(offset + 24, high == 0 && low == 0 ? 0 : checksum(high, low, value));
+    }
+
+    private void clear(int slot) {
+      int offset = slot * SLOT_SIZE;
+      buffer.putLong(offset, 0);
+      buffer.putLong(offset + 8, 0);
+      buffer.putLong(offset + 16, 0);
+      buffer.putLong(offset + 24, 0);
+    }
+
+    private boolean isEmpty(int slot) {
+      return keyHigh(slot) == 0 && keyLow(slot) == 0;
+    }
+  }
+}
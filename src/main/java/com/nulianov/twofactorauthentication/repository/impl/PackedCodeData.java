@@ -0,0 +1,61 @@
+package com.nulianov.twofactorauthentication.repository.impl;
+
+import com.nulianov.twofactorauthentication.model.CodeData;
+
+/**
+ * Packs {@link CodeData} into a single {@code long}.
+ *
+ * <p>Layout, from the most significant bit: 4 bits of attempts, 28 bits of code and 32 bits of creation time in
+ * unsigned seconds since the epoch. The code is stored as the number {@code 1} followed by its digits, which keeps
+ * leading zeros, so only numeric codes of up to {@value #MAX_CODE_LENGTH} digits can be packed.
+ */
+final class PackedCodeData {
+
+  static final int MAX_CODE_LENGTH = 8;
+  static final int MAX_ATTEMPTS = 15;
+
+  private static final long CODE_MASK = (1L << 28) - 1;
+  private static final long TIME_MASK = 0xffffffffL;
+
+  private PackedCodeData() {
+  }
+
+  /**
+   * Returns whether every code of the given length made of the given alphabet can be packed.
+   */
+  static boolean canPack(int codeLength, String alphabet) {
+    return codeLength <= MAX_CODE_LENGTH && alphabet.chars().allMatch(c -> c >= '0' && c <= '9');
+  }
+
+  static long pack(CodeData codeData) {
+    String code = codeData.code();
+    if (code.isEmpty() || code.length() > MAX_CODE_LENGTH) {
+      throw new IllegalArgumentException("Only numeric codes of up to " + MAX_CODE_LENGTH + " digits can be packed");
+    }
+
+    long prefixedCode = 1;
+    for (int i = 0; i < code.length(); i++) {
+      int digit = code.charAt(i) - '0';
+      if (digit < 0 || digit > 9) {
+        throw new IllegalArgumentException("Only numeric codes of up to " + MAX_CODE_LENGTH + " digits can be packed");
+      }
+      prefixedCode = prefixedCode * 10 + digit;
+    }
+
+    long attempts = Math.min(codeData.attempts(), MAX_ATTEMPTS);
+    return attempts << 60 | prefixedCode << 32 | (codeData.creationTime() & TIME_MASK);
+  }
+
+  static CodeData unpack(long packed) {
+    String prefixedCode = Long.toString(packed >>> 32 & CODE_MASK);
+    return new CodeData(prefixedCode.substring(1), creationTime(packed), attempts(packed));
+  }
+
+  static long creationTime(long packed) {
+    return packed & TIME_MASK;
+  }
+
+  static int attempts(long packed) {
+    return (int) (packed >>> 60);
+  }
+}
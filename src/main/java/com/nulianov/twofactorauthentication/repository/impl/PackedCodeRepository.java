@@ -0,0 +1,311 @@
+package com.nulianov.twofactorauthentication.repository.impl;
+
+import com.nulianov.twofactorauthentication.config.CodeGeneratorProperties;
+import com.nulianov.twofactorauthentication.config.CodeStoreProperties;
+import com.nulianov.twofactorauthentication.config.TwoFactorAuthProperties;
+import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.model.VerificationOutcome;
+import com.nulianov.twofactorauthentication.model.VerificationResult;
+import com.nulianov.twofactorauthentication.repository.CodeRepository;
+import java.time.Instant;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Compact CodeRepository that keeps each pending code as one packed {@code long} in an open-addressing table.
+ *
+ * <p>Emails are not stored: entries are keyed by the 128-bit {@link EmailKey} of the address. The table
+ * is split into segments selected by the key, each guarded by its own lock and probed linearly. An entry costs
+ * {@value #SLOT_BYTES} bytes per slot, against well over 150 bytes for a cached {@link CodeData} with its email key.
+ *
+ * <p>Expired entries are treated as absent on access and dropped whenever a segment is resized.
+ */
+@Repository
+@Slf4j
+@ConditionalOnProperty(prefix = "two-factor.store", name = "type", havingValue = "packed")
+public class PackedCodeRepository implements CodeRepository {
+
+  private static final float LOAD_FACTOR = 0.75f;
+  static final int SLOT_BYTES = 3 * Long.BYTES;
+
+  private final long codeValidityDuration;
+  private final Segment[] segments;
+  private final int segmentShift;
+
+  @Autowired
+  public PackedCodeRepository(
+      TwoFactorAuthProperties properties,
+      CodeStoreProperties storeProperties,
+      CodeGeneratorProperties codeProperties
+  ) {
+    this(
+        properties.getCodeValidityDuration(),
+        storeProperties.getPacked().getInitialCapacity(),
+        storeProperties.getPacked().getSegments()
+    );
+    if (properties.getMaxAttempts() > PackedCodeData.MAX_ATTEMPTS) {
+      throw new IllegalArgumentException(
+          "Packed code store supports at most " + PackedCodeData.MAX_ATTEMPTS + " verification attempts");
+    }
+    if (!PackedCodeData.canPack(codeProperties.getLength(), codeProperties.getAlphabet())) {
+      throw new IllegalArgumentException(
+          "Packed code store supports only numeric codes of up to " + PackedCodeData.MAX_CODE_LENGTH + " digits");
+    }
+  }
+
+  /**
+   * Creates a repository with the given sizing.
+   *
+   * @param codeValidityDuration the code validity in seconds
+   * @param initialCapacity      the number of entries to size the table for
+   * @param segments             the number of independently locked segments, rounded up to a power of two
+   */
+  public PackedCodeRepository(long codeValidityDuration, int initialCapacity, int segments) {
+    int segmentCount = segments <= 1 ? 1 : Integer.highestOneBit(segments - 1) << 1;
+    int segmentCapacity = Math.max(1, initialCapacity / segmentCount);
+
+    this.codeValidityDuration = codeValidityDuration;
+    this.segments = new Segment[segmentCount];
+    this.segmentShift = 64 - Integer.numberOfTrailingZeros(segmentCount);
+    for (int i = 0; i < segmentCount; i++) {
+      this.segments[i] = new Segment(tableSizeFor(segmentCapacity));
+    }
+  }
+
+  @Override
+  public void save(String email, CodeData codeData) {
+    EmailKey key = EmailKey.of(email);
+    long packed = PackedCodeData.pack(codeData);
+    Segment segment = segmentFor(key);
+    synchronized (segment) {
+      segment.put(key.high(), key.low(), packed, now());
+    }
+    log.debug("Saved code data for email: {}", email);
+  }
+
+  @Override
+  public boolean saveIfAbsent(String email, CodeData codeData) {
+    EmailKey key = EmailKey.of(email);
+    long packed = PackedCodeData.pack(codeData);
+    Segment segment = segmentFor(key);
+    synchronized (segment) {
+      long now = now();
+      if (segment.find(key.high(), key.low(), now) >= 0) {
+        return false;
+      }
+      segment.put(key.high(), key.low(), packed, now);
+    }
+    log.debug("Saved code data for email: {}", email);
+    return true;
+  }
+
+  @Override
+  public CodeData findByEmail(String email) {
+    EmailKey key = EmailKey.of(email);
+    Segment segment = segmentFor(key);
+    long packed;
+    synchronized (segment) {
+      int slot = segment.find(key.high(), key.low(), now());
+      if (slot < 0) {
+        return null;
+      }
+      packed = segment.values[slot];
+    }
+    log.debug("Retrieved code data for email: {}", email);
+    return PackedCodeData.unpack(packed);
+  }
+
+  @Override
+  public void deleteByEmail(String email) {
+    EmailKey key = EmailKey.of(email);
+    Segment segment = segmentFor(key);
+    synchronized (segment) {
+      int slot = segment.find(key.high(), key.low(), now());
+      if (slot >= 0) {
+        segment.removeAt(slot);
+      }
+    }
+    log.debug("Deleted code data for email: {}", email);
+  }
+
+  @Override
+  public VerificationResult verify(String email, Function<CodeData, VerificationOutcome> step) {
+    EmailKey key = EmailKey.of(email);
+    Segment segment = segmentFor(key);
+    VerificationOutcome outcome;
+    synchronized (segment) {
+      long now = now();
+      int slot = segment.find(key.high(), key.low(), now);
+      outcome = step.apply(slot < 0 ? null : PackedCodeData.unpack(segment.values[slot]));
+
+      if (outcome.codeData() != null) {
+        segment.put(key.high(), key.low(), PackedCodeData.pack(outcome.codeData()), now);
+      } else if (slot >= 0) {
+        segment.removeAt(slot);
+      }
+    }
+    log.debug("Verified code data for email: {}", email);
+    return outcome.result();
+  }
+
+  @Override
+  public long size() {
+    long size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Returns the bytes taken by the tables' slots, used or not.
+   */
+  long tableBytes() {
+    long bytes = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        bytes += (long) (segment.mask + 1) * SLOT_BYTES;
+      }
+    }
+    return bytes;
+  }
+
+  private Segment segmentFor(EmailKey key) {
+    return segments[segmentShift == 64 ? 0 : (int) (key.high() >>> segmentShift)];
+  }
+
+  private long now() {
+    return Instant.now().getEpochSecond();
+  }
+
+  private boolean isExpired(long packed, long now) {
+    return now - PackedCodeData.creationTime(packed) > codeValidityDuration;
+  }
+
+  private static int tableSizeFor(int entries) {
+    int slots = (int) Math.ceil(entries / LOAD_FACTOR);
+    return Math.max(2, Integer.highestOneBit(slots - 1) << 1);
+  }
+
+  /**
+   * Linear-probing table of parallel arrays. A slot is empty when both key halves are zero. All access happens while
+   * holding the segment's monitor.
+   */
+  private final class Segment {
+
+    private long[] keyHigh;
+    private long[] keyLow;
+    private long[] values;
+    private int mask;
+    private int size;
+
+    Segment(int capacity) {
+      allocate(capacity);
+    }
+
+    /**
+     * Returns the slot holding the key, or -1 if it is absent. An expired entry is removed and reported as absent.
+     */
+    int find(long high, long low, long now) {
+      for (int slot = (int) low & mask; !isEmpty(slot); slot = (slot + 1) & mask) {
+        if (keyHigh[slot] == high && keyLow[slot] == low) {
+          if (isExpired(values[slot], now)) {
+            removeAt(slot);
+            return -1;
+          }
+          return slot;
+        }
+      }
+      return -1;
+    }
+
+    void put(long high, long low, long value, long now) {
+      int slot = (int) low & mask;
+      for (; !isEmpty(slot); slot = (slot + 1) & mask) {
+        if (keyHigh[slot] == high && keyLow[slot] == low) {
+          values[slot] = value;
+          return;
+        }
+      }
+
+      if (size + 1 > (mask + 1) * LOAD_FACTOR) {
+        rehash(now);
+        put(high, low, value, now);
+        return;
+      }
+
+      keyHigh[slot] = high;
+      keyLow[slot] = low;
+      values[slot] = value;
+      size++;
+    }
+
+    /**
+     * Removes the entry at the slot and shifts later entries of the same probe run back, so no tombstones are needed.
+     */
+    void removeAt(int slot) {
+      int hole = slot;
+      for (int next = (slot + 1) & mask; !isEmpty(next); next = (next + 1) & mask) {
+        int home = (int) keyLow[next] & mask;
+        if (((next - home) & mask) >= ((next - hole) & mask)) {
+          keyHigh[hole] = keyHigh[next];
+          keyLow[hole] = keyLow[next];
+          values[hole] = values[next];
+          hole = next;
+        }
+      }
+      keyHigh[hole] = 0;
+      keyLow[hole] = 0;
+      values[hole] = 0;
+      size--;
+    }
+
+    /**
+     * Drops expired entries and grows the table if the live entries still exceed half of the load limit.
+     */
+    private void rehash(long now) {
+      long[] oldHigh = keyHigh;
+      long[] oldLow = keyLow;
+      long[] oldValues = values;
+
+      int live = 0;
+      for (int i = 0; i < oldValues.length; i++) {
+        if ((oldHigh[i] != 0 || oldLow[i] != 0) && !isExpired(oldValues[i], now)) {
+          live++;
+        }
+      }
+      int capacity = live + 1 > oldValues.length * LOAD_FACTOR / 2 ? oldValues.length << 1 : oldValues.length;
+
+      allocate(capacity);
+      for (int i = 0; i < oldValues.length; i++) {
+        if ((oldHigh[i] != 0 || oldLow[i] != 0) && !isExpired(oldValues[i], now)) {
+          int slot = (int) oldLow[i] & mask;
+          while (!isEmpty(slot)) {
+            slot = (slot + 1) & mask;
+          }
+          keyHigh[slot] = oldHigh[i];
+          keyLow[slot] = oldLow[i];
+          values[slot] = oldValues[i];
+          size++;
+        }
+      }
+    }
+
+    private void allocate(int capacity) {
+      keyHigh = new long[capacity];
+      keyLow = new long[capacity];
+      values = new long[capacity];
+      mask = capacity - 1;
+      size = 0;
+    }
+
+    private boolean isEmpty(int slot) {
+      return keyHigh[slot] == 0 && keyLow[slot] == 0;
+    }
+  }
+}
@@ -0,0 +1,431 @@
+package com.nulianov.twofactorauthentication.repository.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.nulianov.twofactorauthentication.config.CodeStoreProperties;
+import com.nulianov.twofactorauthentication.config.TwoFactorAuthProperties;
+import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.model.VerificationOutcome;
+import com.nulianov.twofactorauthentication.model.VerificationResult;
+import com.nulianov.twofactorauthentication.redis.RespClient;
+import com.nulianov.twofactorauthentication.redis.RespConnection;
+import com.nulianov.twofactorauthentication.redis.RespSubscriber;
+import com.nulianov.twofactorauthentication.repository.CodeRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+/**
+ * CodeRepository backed by a key-value store speaking the Redis protocol, so every instance sees the same codes.
+ *
+ * <p>Each code is stored under {@code key-prefix} plus the email address, and expires in the store when it stops
+ * being valid. Reads and writes share one pipelined {@link RespClient}, so concurrent requests are sent in the same
+ * network writes. Verification runs the step between {@code WATCH} and {@code MULTI}/{@code EXEC} on a connection of
+ * its own and retries if the code changed in between, so attempt counting stays exact across instances; the step may
+ * therefore run more than once.
+ *
+ * <p>Every change is published on {@code channel}. Instances keep two pieces of local state up to date from these
+ * messages:
+ * <ul>
+ *   <li>a Bloom filter of the addresses that may have a pending code, so verifying or resending for an address without
+ *   one is answered without a round trip to the store;</li>
+ *   <li>a small near-cache of recently read codes, dropped on every change message for their address.</li>
+ * </ul>
+ * A code saved on another instance can be missed for the moment it takes its change message to arrive. The filter is
+ * rebuilt from a scan of the store every {@code rebuild-interval}, since addresses cannot be removed from it, and after
+ * each (re)subscription. While the subscription is down, both are bypassed and every call goes to the store. The
+ * subscription is pinged every {@code keepalive-interval}, so one that silently stopped delivering messages is noticed
+ * and replaced within two intervals instead of leaving the filter to miss codes saved elsewhere.
+ */
+@Repository
+@Slf4j
+@ConditionalOnProperty(prefix = "two-factor.store", name = "type", havingValue = "redis")
+public class RedisCodeRepository implements CodeRepository, DisposableBean {
+
+  private static final int SCAN_COUNT = 1000;
+
+  private final long codeValidityDuration;
+  private final String keyPrefix;
+  private final String channel;
+  private final int maxTransactionRetries;
+  private final long expectedCodes;
+  private final double falsePositiveRate;
+  private final Duration timeout;
+  private final Supplier<RespConnection> connector;
+  private final RespClient client;
+  private final Semaphore transactionPermits;
+  private final ConcurrentLinkedQueue<RespConnection> idleConnections = new ConcurrentLinkedQueue<>();
+  private final Cache<String, CodeData> nearCache;
+  private final AtomicLong invalidations = new AtomicLong();
+  private final AtomicLong savedSinceRebuild = new AtomicLong();
+  private final Counter filterLookups;
+  private final Counter nearCacheLookups;
+  private final Counter storeLookups;
+  private final RespSubscriber subscriber;
+  private final ScheduledExecutorService rebuilder;
+
+  private volatile EmailBloomFilter filter;
+  private volatile EmailBloomFilter nextFilter;
+  private volatile long scannedCodes;
+
+  public RedisCodeRepository(
+      TwoFactorAuthProperties properties,
+      CodeStoreProperties storeProperties,
+      MeterRegistry meterRegistry
+  ) {
+    CodeStoreProperties.Redis redis = storeProperties.getRedis();
+    this.codeValidityDuration = properties.getCodeValidityDuration();
+    this.keyPrefix = redis.getKeyPrefix();
+    this.channel = redis.getChannel();
+    this.maxTransactionRetries = redis.getMaxTransactionRetries();
+    this.expectedCodes = redis.getBloom().getExpectedCodes();
+    this.falsePositiveRate = redis.getBloom().getFalsePositiveRate();
+    this.timeout = redis.getTimeout();
+    this.connector = () -> RespConnection.open(redis.getHost(), redis.getPort(), redis.getConnectTimeout(),
+        redis.getTimeout(), redis.getPassword(), redis.getDatabase());
+    this.client = new RespClient(connector, redis.getTimeout());
+    this.transactionPermits = new Semaphore(redis.getTransactionConnections());
+    this.nearCache = Caffeine.newBuilder()
+        .maximumSize(redis.getNearCache().getMaximumSize())
+        .expireAfterWrite(redis.getNearCache().getTtl())
+        .build();
+    this.filterLookups = lookupCounter(meterRegistry, "bloom-filter");
+    this.nearCacheLookups = lookupCounter(meterRegistry, "near-cache");
+    this.storeLookups = lookupCounter(meterRegistry, "store");
+    // Reject invalid filter settings at startup rather than on the subscriber thread
+    new EmailBloomFilter(expectedCodes, falsePositiveRate);
+
+    this.subscriber = new RespSubscriber(
+        connector,
+        channel,
+        this::onChange,
+        this::resynchronize,
+        redis.getReconnectDelay(),
+        redis.getKeepaliveInterval());
+    this.rebuilder = Executors.newSingleThreadScheduledExecutor(
+        Thread.ofPlatform().name("code-filter-rebuilder").daemon().factory());
+    long rebuildMillis = redis.getBloom().getRebuildInterval().toMillis();
+    rebuilder.scheduleWithFixedDelay(this::scheduledRebuild, rebuildMillis, rebuildMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void save(String email, CodeData codeData) {
+    addToFilter(email);
+    String key = keyPrefix + email;
+    long ttl = ttlMillis(codeData);
+    String[] write = ttl > 0
+        ? new String[] {"SET", key, encode(codeData), "PX", Long.toString(ttl)}
+        : new String[] {"DEL", key};
+    client.execute(List.of(write, new String[] {"PUBLISH", channel, email}));
+    invalidateNearCache(email);
+    savedSinceRebuild.incrementAndGet();
+    log.debug("Saved code data for email: {}", email);
+  }
+
+  @Override
+  public boolean saveIfAbsent(String email, CodeData codeData) {
+    long ttl = ttlMillis(codeData);
+    if (ttl <= 0) {
+      return false;
+    }
+    addToFilter(email);
+    String key = keyPrefix + email;
+    if (client.call("SET", key, encode(codeData), "PX", Long.toString(ttl), "NX") == null) {
+      return false;
+    }
+    client.call("PUBLISH", channel, email);
+    invalidateNearCache(email);
+    savedSinceRebuild.incrementAndGet();
+    log.debug("Saved code data for email: {}", email);
+    return true;
+  }
+
+  @Override
+  public CodeData findByEmail(String email) {
+    if (!mightHaveCode(email)) {
+      filterLookups.increment();
+      return null;
+    }
+    boolean synchronizedState = subscriber.isSubscribed();
+    if (synchronizedState) {
+      CodeData cached = nearCache.getIfPresent(email);
+      if (cached != null) {
+        nearCacheLookups.increment();
+        return cached;
+      }
+    }
+
+    long seen = invalidations.get();
+    CodeData codeData = decode((String) client.call("GET", keyPrefix + email));
+    storeLookups.increment();
+    if (synchronizedState && codeData != null) {
+      // Only cache what was read if no change arrived meanwhile, or a stale code could outlive its invalidation
+      nearCache.asMap().compute(email, (key, cached) -> invalidations.get() == seen ? codeData : cached);
+    }
+    log.debug("Retrieved code data for email: {}", email);
+    return codeData;
+  }
+
+  @Override
+  public void deleteByEmail(String email) {
+    client.execute(List.of(new String[] {"DEL", keyPrefix + email}, new String[] {"PUBLISH", channel, email}));
+    invalidateNearCache(email);
+    log.debug("Deleted code data for email: {}", email);
+  }
+
+  @Override
+  public VerificationResult verify(String email, Function<CodeData, VerificationOutcome> step) {
+    if (!mightHaveCode(email)) {
+      VerificationOutcome outcome = step.apply(null);
+      if (outcome.codeData() == null) {
+        filterLookups.increment();
+        log.debug("No code data to verify for email: {}", email);
+        return outcome.result();
+      }
+    }
+
+    String key = keyPrefix + email;
+    RespConnection connection = borrowConnection();
+    boolean reusable = false;
+    try {
+      for (int attempt = 0; attempt < maxTransactionRetries; attempt++) {
+        connection.write("WATCH", key);
+        connection.write("GET", key);
+        connection.flush();
+        connection.read();
+        CodeData current = decode((String) connection.read());
+        storeLookups.increment();
+
+        VerificationOutcome outcome = step.apply(current);
+        CodeData next = outcome.codeData();
+        if (current == null && next == null) {
+          connection.call("UNWATCH");
+          reusable = true;
+          return outcome.result();
+        }
+
+        if (next != null) {
+          addToFilter(email);
+        }
+        long ttl = next == null ? 0 : ttlMillis(next);
+        connection.write("MULTI");
+        if (ttl > 0) {
+          connection.write("SET", key, encode(next), "PX", Long.toString(ttl));
+        } else {
+          connection.write("DEL", key);
+        }
+        connection.write("PUBLISH", channel, email);
+        connection.write("EXEC");
+        connection.flush();
+        connection.read();
+        connection.read();
+        connection.read();
+        if (connection.read() != null) {
+          invalidateNearCache(email);
+          reusable = true;
+          log.debug("Verified code data for email: {}", email);
+          return outcome.result();
+        }
+        log.debug("Code data for email {} changed during verification, retrying", email);
+      }
+      reusable = true;
+      throw new IllegalStateException(
+          "Code data for " + email + " kept changing during " + maxTransactionRetries + " verification attempts");
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not verify code data for " + email, e);
+    } finally {
+      releaseConnection(connection, reusable);
+    }
+  }
+
+  /**
+   * Returns the number of codes found by the last scan of the store plus the codes saved since. Verified and expired
+   * codes are only subtracted by the next scan.
+   */
+  @Override
+  public long size() {
+    return scannedCodes + savedSinceRebuild.get();
+  }
+
+  @Override
+  public void destroy() {
+    rebuilder.shutdownNow();
+    subscriber.close();
+    client.close();
+    RespConnection connection;
+    while ((connection = idleConnections.poll()) != null) {
+      connection.close();
+    }
+  }
+
+  /**
+   * Returns whether the Bloom filter and near-cache are in use, which requires a live subscription to the change
+   * channel.
+   */
+  public boolean isSynchronized() {
+    return subscriber.isSubscribed() && filter != null;
+  }
+
+  /**
+   * Replaces the Bloom filter with one built from a scan of the store.
+   *
+   * <p>Addresses saved while the scan runs are added to both filters, and change messages keep arriving for codes
+   * saved elsewhere, so the new filter cannot miss a code that exists when it is swapped in.
+   */
+  synchronized void rebuildFilter() {
+    EmailBloomFilter rebuilt = new EmailBloomFilter(expectedCodes, falsePositiveRate);
+    nextFilter = rebuilt;
+    try {
+      long count = 0;
+      String cursor = "0";
+      String pattern = escapeGlob(keyPrefix) + "*";
+      do {
+        List<?> page = (List<?>) client.call("SCAN", cursor, "MATCH", pattern, "COUNT", Integer.toString(SCAN_COUNT));
+        cursor = (String) page.get(0);
+        for (Object key : (List<?>) page.get(1)) {
+          rebuilt.add(EmailKey.of(((String) key).substring(keyPrefix.length())));
+          count++;
+        }
+      } while (!"0".equals(cursor));
+      savedSinceRebuild.set(0);
+      scannedCodes = count;
+      filter = rebuilt;
+      log.debug("Rebuilt pending code filter from {} stored codes", count);
+    } finally {
+      nextFilter = null;
+    }
+  }
+
+  private void scheduledRebuild() {
+    if (!subscriber.isSubscribed()) {
+      return;
+    }
+    try {
+      rebuildFilter();
+    } catch (RuntimeException e) {
+      log.warn("Could not rebuild the pending code filter: {}", e.getMessage());
+    }
+  }
+
+  /**
+   * Runs on the subscriber thread after every (re)subscription: changes published while it was down are unknown, so
+   * start over from the store.
+   */
+  private void resynchronize() {
+    invalidations.incrementAndGet();
+    nearCache.invalidateAll();
+    rebuildFilter();
+  }
+
+  private void onChange(String email) {
+    addToFilter(email);
+    invalidateNearCache(email);
+  }
+
+  private boolean mightHaveCode(String email) {
+    EmailBloomFilter current = filter;
+    return current == null || !subscriber.isSubscribed() || current.mightContain(EmailKey.of(email));
+  }
+
+  private void addToFilter(String email) {
+    EmailKey key = EmailKey.of(email);
+    EmailBloomFilter current = filter;
+    if (current != null) {
+      current.add(key);
+    }
+    EmailBloomFilter rebuilding = nextFilter;
+    if (rebuilding != null) {
+      rebuilding.add(key);
+    }
+  }
+
+  private void invalidateNearCache(String email) {
+    invalidations.incrementAndGet();
+    nearCache.asMap().remove(email);
+  }
+
+  private RespConnection borrowConnection() {
+    try {
+      if (!transactionPermits.tryAcquire(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+        throw new UncheckedIOException(new IOException("No connection to the key-value store available"));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new UncheckedIOException(new IOException("Interrupted while waiting for a connection"));
+    }
+    RespConnection connection = idleConnections.poll();
+    if (connection != null) {
+      return connection;
+    }
+    try {
+      return connector.get();
+    } catch (RuntimeException e) {
+      transactionPermits.release();
+      throw e;
+    }
+  }
+
+  private void releaseConnection(RespConnection connection, boolean reusable) {
+    if (reusable) {
+      idleConnections.offer(connection);
+    } else {
+      // The connection may be in the middle of a transaction or a reply
+      connection.close();
+    }
+    transactionPermits.release();
+  }
+
+  private long ttlMillis(CodeData codeData) {
+    return (codeData.creationTime() + codeValidityDuration) * 1000 - System.currentTimeMillis();
+  }
+
+  static String encode(CodeData codeData) {
+    return codeData.creationTime() + ":" + codeData.attempts() + ":" + codeData.code();
+  }
+
+  static CodeData decode(String value) {
+    if (value == null) {
+      return null;
+    }
+    int first = value.indexOf(':');
+    int second = value.indexOf(':', first + 1);
+    return new CodeData(
+        value.substring(second + 1),
+        Long.parseLong(value, 0, first, 10),
+        Integer.parseInt(value, first + 1, second, 10));
+  }
+
+  private static String escapeGlob(String literal) {
+    StringBuilder escaped = new StringBuilder(literal.length());
+    for (int i = 0; i < literal.length(); i++) {
+      char c = literal.charAt(i);
+      if (c == '*' || c == '?' || c == '[' || c == ']' || c == '\\') {
+        escaped.append('\\');
+      }
+      escaped.append(c);
+    }
+    return escaped.toString();
+  }
+
+  private static Counter lookupCounter(MeterRegistry meterRegistry, String source) {
+    return Counter.builder("twofactor.codes.lookups")
+        .description("Code store lookups by where they were answered")
+        .tag("source", source)
+        .register(meterRegistry);
+  }
+}
@@ -0,0 +1,14 @@
+package com.nulianov.twofactorauthentication.service;
+
+/**
+ * Source of verification codes.
+ */
+public interface CodeGenerator {
+
+  /**
+   * Generates a new verification code.
+   *
+   * @return a code that cannot be predicted from earlier ones
+   */
+  String generate();
+}
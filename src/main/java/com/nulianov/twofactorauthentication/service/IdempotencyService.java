@@ -0,0 +1,24 @@
+package com.nulianov.twofactorauthentication.service;
+
+import com.nulianov.twofactorauthentication.exception.InvalidIdempotencyKeyException;
+import java.util.function.Supplier;
+
+/**
+ * Service interface for replaying the results of requests that carry an idempotency key.
+ */
+public interface IdempotencyService {
+
+  /**
+   * Runs the action once per key within the retention window and returns its result to every call with that key.
+   * A call made while the first one is still running waits for it. Actions that throw are not retained, so the
+   * request can be retried with the same key.
+   *
+   * @param scope  what the request does and to whom, so that a key is only matched by an identical request
+   * @param key    the client-supplied idempotency key, or {@code null} to run the action unconditionally
+   * @param action the request handling
+   * @param <T>    the result type
+   * @return the result of the action, possibly replayed
+   * @throws InvalidIdempotencyKeyException if the key is empty or too long
+   */
+  <T> T execute(String scope, String key, Supplier<T> action);
+}
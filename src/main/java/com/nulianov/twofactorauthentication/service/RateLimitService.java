@@ -0,0 +1,49 @@
+package com.nulianov.twofactorauthentication.service;
+
+import com.nulianov.twofactorauthentication.exception.RateLimitExceededException;
+
+/**
+ * Service interface for throttling two-factor authentication requests.
+ */
+public interface RateLimitService {
+
+  /**
+   * Takes one request from the budgets of the email address and of the client that sent it.
+   *
+   * @param email         the email address the request is for
+   * @param clientAddress the address of the client that sent the request
+   * @throws RateLimitExceededException if either budget is exhausted
+   */
+  default void acquire(String email, String clientAddress) {
+    acquireClient(clientAddress);
+    acquireEmail(email);
+  }
+
+  /**
+   * Takes one request from the budget of a client.
+   *
+   * @param clientAddress the address of the client that sent the request
+   * @throws RateLimitExceededException if the budget is exhausted
+   */
+  default void acquireClient(String clientAddress) {
+    acquireClient(clientAddress, 1);
+  }
+
+  /**
+   * Takes several requests from the budget of a client at once, such as the items of a bulk request. Either all of
+   * them are taken or none.
+   *
+   * @param clientAddress the address of the client that sent the request
+   * @param permits       the number of requests to take
+   * @throws RateLimitExceededException if the budget does not hold that many requests
+   */
+  void acquireClient(String clientAddress, int permits);
+
+  /**
+   * Takes one request from the budget of an email address.
+   *
+   * @param email the email address the request is for
+   * @throws RateLimitExceededException if the budget is exhausted
+   */
+  void acquireEmail(String email);
+}
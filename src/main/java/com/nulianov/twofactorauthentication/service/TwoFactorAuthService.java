@@ -1,5 +1,7 @@
 package com.nulianov.twofactorauthentication.service;
 
+import com.nulianov.twofactorauthentication.model.CodeIssue;
+import com.nulianov.twofactorauthentication.model.TotpEnrollment;
 import com.nulianov.twofactorauthentication.model.VerificationResult;
 
 /**
@@ -30,4 +32,59 @@ public interface TwoFactorAuthService {
    * @return True if a new code is sent; false if the user must wait longer.
    */
   boolean resendCode(String email);
+
+  /**
+   * Initiates two-factor authentication and returns the challenge the code must be verified against. Services that
+   * keep the code themselves issue no challenge.
+   *
+   * @param email the user's email address
+   * @return the challenge token, or {@code null}
+   */
+  default String initiateChallenge(String email) {
+    initiateTwoFactorAuth(email);
+    return null;
+  }
+
+  /**
+   * Verifies the code against the challenge it was issued with. Services that keep the code themselves ignore the
+   * challenge.
+   *
+   * @param email     the user's email address
+   * @param code      the verification code entered by the user
+   * @param challenge the challenge returned when the code was sent, or {@code null}
+   * @return a {@link VerificationResult} indicating the outcome of the verification attempt
+   */
+  default VerificationResult verifyCode(String email, String code, String challenge) {
+    return verifyCode(email, code);
+  }
+
+  /**
+   * Requests a new verification code, as {@link #resendCode}, and returns the challenge issued with it.
+   *
+   * @param email     the user's email address
+   * @param challenge the challenge of the previous code, or {@code null}; services that keep no per-code state use it
+   *                  to enforce the resend interval
+   * @return whether a new code was sent, with its challenge if one was issued
+   */
+  default CodeIssue resendChallenge(String email, String challenge) {
+    return resendCode(email) ? CodeIssue.ISSUED : CodeIssue.NOT_ISSUED;
+  }
+
+  /**
+   * Provisions a time-based one-time password secret for the user, replacing any earlier one. The caller must already
+   * have verified that the request comes from the owner of the email address.
+   *
+   * @param email the user's email address
+   * @return the secret to load into the user's authenticator app
+   */
+  TotpEnrollment enrollTotp(String email);
+
+  /**
+   * Verifies a code from the user's authenticator app. A code is accepted only once.
+   *
+   * @param email the user's email address
+   * @param code  the time-based one-time password entered by the user
+   * @return a {@link VerificationResult} indicating the outcome of the verification attempt
+   */
+  VerificationResult verifyTotp(String email, String code);
 }
@@ -0,0 +1,75 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.nulianov.twofactorauthentication.config.IdempotencyProperties;
+import com.nulianov.twofactorauthentication.exception.InvalidIdempotencyKeyException;
+import com.nulianov.twofactorauthentication.service.IdempotencyService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+/**
+ * IdempotencyService that keeps results in a size-bounded Caffeine cache for a fixed window after they were first
+ * produced.
+ *
+ * <p>The cache holds futures rather than results, so a duplicate that arrives while the first request is still being
+ * handled waits for it instead of running the action a second time.
+ */
+@Service
+@Slf4j
+public class CaffeineIdempotencyService implements IdempotencyService {
+
+  private final boolean enabled;
+  private final int maxKeyLength;
+  private final ConcurrentMap<String, CompletableFuture<Object>> results;
+  private final Counter replays;
+
+  public CaffeineIdempotencyService(IdempotencyProperties properties, MeterRegistry meterRegistry) {
+    this.enabled = properties.isEnabled();
+    this.maxKeyLength = properties.getMaxKeyLength();
+    Cache<String, CompletableFuture<Object>> cache = Caffeine.newBuilder()
+        .maximumSize(properties.getMaximumKeys())
+        .expireAfterWrite(properties.getWindow())
+        .build();
+    this.results = cache.asMap();
+    this.replays = Counter.builder("twofactor.idempotency.replayed")
+        .description("Requests answered with the result of an earlier request with the same idempotency key")
+        .register(meterRegistry);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T> T execute(String scope, String key, Supplier<T> action) {
+    if (key == null || !enabled) {
+      return action.get();
+    }
+    if (key.isBlank() || key.length() > maxKeyLength) {
+      throw new InvalidIdempotencyKeyException(
+          "Idempotency-Key must be between 1 and " + maxKeyLength + " characters.");
+    }
+
+    String cacheKey = scope + '\n' + key;
+    CompletableFuture<Object> result = new CompletableFuture<>();
+    CompletableFuture<Object> existing = results.putIfAbsent(cacheKey, result);
+    if (existing != null) {
+      replays.increment();
+      log.debug("Replaying result for idempotency key {}", key);
+      return (T) SingleFlight.join(existing);
+    }
+
+    try {
+      T value = action.get();
+      result.complete(value);
+      return value;
+    } catch (RuntimeException | Error ex) {
+      results.remove(cacheKey, result);
+      result.completeExceptionally(ex);
+      throw ex;
+    }
+  }
+}
@@ -0,0 +1,209 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Issues and checks the signed challenges that stand in for stored codes.
+ *
+ * <p>A challenge is the URL-safe Base64 form of a version byte, the creation time, a nonce, a tag and a check. The tag
+ * is an HMAC-SHA256 over the first three fields and the email address, so a challenge is only accepted for the
+ * address it was issued for and its creation time cannot be altered; the check is an HMAC over the tag and the code,
+ * so the code can be verified without being stored and cannot be recovered from the challenge without the key. Both
+ * are truncated to 128 bits. Challenges are signed with the first key and accepted under any of them, so keys can be rotated.
+ *
+ * <p>Like {@link TotpAuthenticator}, every platform thread keeps its own {@link Mac}s and virtual threads borrow them
+ * from a shared pool.
+ */
+final class ChallengeSigner {
+
+  private static final byte VERSION = 1;
+  private static final byte TAG_DOMAIN = 1;
+  private static final byte CHECK_DOMAIN = 2;
+  private static final int HEADER_LENGTH = 1 + 8 + 8;
+  private static final int MAC_LENGTH = 16;
+  private static final int TOKEN_LENGTH = HEADER_LENGTH + 2 * MAC_LENGTH;
+  private static final int ENCODED_LENGTH = (TOKEN_LENGTH * 4 + 2) / 3;
+  private static final String ALGORITHM = "HmacSHA256";
+
+  private final List<SecretKeySpec> keys;
+  private final ThreadLocal<MacState> threadState;
+  private final ConcurrentLinkedQueue<MacState> sharedStates = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Creates a signer.
+   *
+   * @param keys the raw keys; the first signs new challenges, and all of them are accepted
+   */
+  ChallengeSigner(List<byte[]> keys) {
+    if (keys.isEmpty()) {
+      throw new IllegalArgumentException("At least one challenge key is required");
+    }
+    for (byte[] key : keys) {
+      if (key.length < 16) {
+        throw new IllegalArgumentException("Challenge keys must be at least 128 bits long");
+      }
+    }
+    this.keys = keys.stream().map(key -> new SecretKeySpec(key, ALGORITHM)).toList();
+    this.threadState = ThreadLocal.withInitial(() -> new MacState(this.keys));
+  }
+
+  /**
+   * Returns the challenge for a code issued to the email address.
+   */
+  String sign(String email, String code, long creationTime, long nonce) {
+    byte[] token = new byte[TOKEN_LENGTH];
+    token[0] = VERSION;
+    putLong(token, 1, creationTime);
+    putLong(token, 9, nonce);
+    withState(state -> {
+      tag(state.macs[0], state, token, email);
+      System.arraycopy(state.digest, 0, token, HEADER_LENGTH, MAC_LENGTH);
+      check(state.macs[0], state, token, HEADER_LENGTH, code);
+      System.arraycopy(state.digest, 0, token, HEADER_LENGTH + MAC_LENGTH, MAC_LENGTH);
+      return null;
+    });
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+  }
+
+  /**
+   * Decodes a challenge and checks that it was issued for the email address.
+   *
+   * @return the challenge, or {@code null} if it is malformed or was not issued for the address under any key
+   */
+  Challenge open(String email, String challenge) {
+    if (challenge == null || challenge.length() != ENCODED_LENGTH) {
+      return null;
+    }
+    byte[] token;
+    try {
+      token = Base64.getUrlDecoder().decode(challenge);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    if (token.length != TOKEN_LENGTH || token[0] != VERSION) {
+      return null;
+    }
+    Integer keyIndex = withState(state -> {
+      for (int i = 0; i < state.macs.length; i++) {
+        tag(state.macs[i], state, token, email);
+        if (MessageDigest.isEqual(
+            Arrays.copyOf(state.digest, MAC_LENGTH),
+            Arrays.copyOfRange(token, HEADER_LENGTH, HEADER_LENGTH + MAC_LENGTH))) {
+          return i;
+        }
+      }
+      return null;
+    });
+    return keyIndex == null ? null : new Challenge(getLong(token, 1), getLong(token, 9), keyIndex, token);
+  }
+
+  /**
+   * Returns whether the code is the one the challenge was issued with.
+   */
+  boolean matches(Challenge challenge, String code) {
+    if (code == null) {
+      return false;
+    }
+    return withState(state -> {
+      check(state.macs[challenge.keyIndex()], state, challenge.token(), HEADER_LENGTH, code);
+      return MessageDigest.isEqual(
+          Arrays.copyOf(state.digest, MAC_LENGTH),
+          Arrays.copyOfRange(challenge.token(), HEADER_LENGTH + MAC_LENGTH, TOKEN_LENGTH));
+    });
+  }
+
+  private static void tag(Mac mac, MacState state, byte[] token, String email) {
+    mac.update(TAG_DOMAIN);
+    mac.update(token, 0, HEADER_LENGTH);
+    mac.update(email.getBytes(StandardCharsets.UTF_8));
+    doFinal(mac, state);
+  }
+
+  private static void check(Mac mac, MacState state, byte[] token, int tagOffset, String code) {
+    mac.update(CHECK_DOMAIN);
+    mac.update(token, tagOffset, MAC_LENGTH);
+    mac.update(code.getBytes(StandardCharsets.UTF_8));
+    doFinal(mac, state);
+  }
+
+  private static void doFinal(Mac mac, MacState state) {
+    try {
+      mac.doFinal(state.digest, 0);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Could not compute challenge MAC", e);
+    }
+  }
+
+  private <T> T withState(Function<MacState, T> action) {
+    boolean virtual = Thread.currentThread().isVirtual();
+    MacState state = virtual ? borrowState() : threadState.get();
+    try {
+      return action.apply(state);
+    } finally {
+      if (virtual) {
+        sharedStates.offer(state);
+      }
+    }
+  }
+
+  private MacState borrowState() {
+    MacState state = sharedStates.poll();
+    return state != null ? state : new MacState(keys);
+  }
+
+  private static void putLong(byte[] bytes, int offset, long value) {
+    for (int i = offset + 7; i >= offset; i--) {
+      bytes[i] = (byte) value;
+      value >>>= 8;
+    }
+  }
+
+  private static long getLong(byte[] bytes, int offset) {
+    long value = 0;
+    for (int i = offset; i < offset + 8; i++) {
+      value = (value << 8) | (bytes[i] & 0xff);
+    }
+    return value;
+  }
+
+  /**
+   * A challenge that was issued for the address it was opened with.
+   *
+   * @param creationTime the time the code was issued, in epoch seconds
+   * @param nonce        the random value identifying the challenge
+   * @param keyIndex     the key the challenge was signed with
+   * @param token        the decoded challenge
+   */
+  record Challenge(long creationTime, long nonce, int keyIndex, byte[] token) {
+  }
+
+  /**
+   * One keyed {@link Mac} per key, with the buffer they finish into.
+   */
+  private static final class MacState {
+
+    private final Mac[] macs;
+    private final byte[] digest = new byte[32];
+
+    MacState(List<SecretKeySpec> keys) {
+      this.macs = new Mac[keys.size()];
+      try {
+        for (int i = 0; i < macs.length; i++) {
+          macs[i] = Mac.getInstance(ALGORITHM);
+          macs[i].init(keys.get(i));
+        }
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("HMAC algorithm not available: " + ALGORITHM, e);
+      }
+    }
+  }
+}
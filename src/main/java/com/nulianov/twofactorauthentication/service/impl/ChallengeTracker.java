@@ -0,0 +1,176 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Compact record of the failed attempts on each signed challenge, and of the challenges that can no longer be used.
+ *
+ * <p>Challenges are identified by their nonce and filed under the time bucket of their creation time. A bucket spans
+ * one code validity period, so a challenge that is still valid falls into the current or the previous bucket; older
+ * buckets are dropped whole instead of expiring entries one by one. Each bucket is an open-addressing table of
+ * {@code long}s updated with compare-and-set, holding the upper 56 bits of the nonce and an 8-bit state in each slot.
+ * Only challenges that have been verified at least once take a slot. A full bucket refuses further challenges rather
+ * than evicting any, since forgetting a challenge would reset its attempts and let a used one be replayed.
+ */
+final class ChallengeTracker {
+
+  /**
+   * The state of a challenge that was used successfully or ran out of attempts.
+   */
+  static final int TERMINATED = 0xff;
+
+  private static final int BUCKETS = 4;
+  private static final long STATE_MASK = 0xffL;
+
+  private final long bucketSeconds;
+  private final int capacity;
+  private final int slotMask;
+  private final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<>(BUCKETS);
+
+  /**
+   * Creates an empty tracker.
+   *
+   * @param bucketSeconds the span of each time bucket, at least the code validity
+   * @param capacity      the number of challenges each bucket can hold
+   */
+  ChallengeTracker(long bucketSeconds, int capacity) {
+    if (bucketSeconds < 1 || capacity < 1) {
+      throw new IllegalArgumentException("Challenge tracker needs a positive bucket span and capacity");
+    }
+    int slots = Integer.highestOneBit(Math.max(2, capacity * 4 / 3) - 1) << 1;
+    this.bucketSeconds = bucketSeconds;
+    this.capacity = capacity;
+    this.slotMask = slots - 1;
+  }
+
+  /**
+   * Returns a nonce that the tracker can tell apart from an empty slot.
+   */
+  static long usableNonce(long random) {
+    return (random & ~STATE_MASK) == 0 ? random | 0x100 : random;
+  }
+
+  /**
+   * Returns the state of a challenge: the number of failed attempts so far, or {@link #TERMINATED}.
+   *
+   * @param creationTime the creation time of the challenge, in epoch seconds
+   * @param nonce        the nonce of the challenge, as returned by {@link #usableNonce}
+   */
+  int state(long creationTime, long nonce) {
+    Bucket bucket = bucket(creationTime);
+    long key = nonce & ~STATE_MASK;
+    for (int slot = spread(key) & slotMask; ; slot = (slot + 1) & slotMask) {
+      long entry = bucket.slots.get(slot);
+      if (entry == 0) {
+        return 0;
+      }
+      if ((entry & ~STATE_MASK) == key) {
+        return (int) (entry & STATE_MASK);
+      }
+    }
+  }
+
+  /**
+   * Moves a challenge from one state to another.
+   *
+   * @return {@code false} if the challenge was no longer in the expected state
+   * @throws BucketFullException if the bucket has no room for another challenge
+   */
+  boolean transition(long creationTime, long nonce, int from, int to) {
+    Bucket bucket = bucket(creationTime);
+    long key = nonce & ~STATE_MASK;
+    int slot = spread(key) & slotMask;
+    while (true) {
+      long entry = bucket.slots.get(slot);
+      if (entry == 0) {
+        if (from != 0) {
+          return false;
+        }
+        if (bucket.used.get() >= capacity) {
+          throw new BucketFullException();
+        }
+        if (bucket.slots.compareAndSet(slot, 0, key | to)) {
+          bucket.used.incrementAndGet();
+          return true;
+        }
+        // Another challenge took the slot first; look at what it is
+        continue;
+      }
+      if ((entry & ~STATE_MASK) == key) {
+        return (entry & STATE_MASK) == from && bucket.slots.compareAndSet(slot, entry, key | to);
+      }
+      slot = (slot + 1) & slotMask;
+    }
+  }
+
+  /**
+   * Returns how long until challenges created from the given time on are filed in a new bucket.
+   *
+   * @param now the current time, in epoch seconds
+   * @return the seconds until the current bucket's span ends
+   */
+  long secondsUntilNextBucket(long now) {
+    return bucketSeconds - Math.floorMod(now, bucketSeconds);
+  }
+
+  /**
+   * Returns the number of challenges tracked in the buckets that are still in use.
+   */
+  long size() {
+    long size = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      Bucket bucket = buckets.get(i);
+      if (bucket != null) {
+        size += bucket.used.get();
+      }
+    }
+    return size;
+  }
+
+  private Bucket bucket(long creationTime) {
+    long epoch = Math.floorDiv(creationTime, bucketSeconds);
+    int index = (int) Math.floorMod(epoch, BUCKETS);
+    while (true) {
+      Bucket bucket = buckets.get(index);
+      if (bucket != null && bucket.epoch >= epoch) {
+        if (bucket.epoch > epoch) {
+          throw new IllegalArgumentException("Challenge is older than the tracked buckets");
+        }
+        return bucket;
+      }
+      Bucket fresh = new Bucket(epoch, slotMask + 1);
+      if (buckets.compareAndSet(index, bucket, fresh)) {
+        return fresh;
+      }
+    }
+  }
+
+  private static int spread(long key) {
+    long h = key * 0x9e3779b97f4a7c15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /**
+   * Thrown when a challenge cannot be tracked because its bucket is full.
+   */
+  static final class BucketFullException extends IllegalStateException {
+
+    BucketFullException() {
+      super("Too many challenges verified within one code validity period");
+    }
+  }
+
+  private static final class Bucket {
+
+    private final long epoch;
+    private final AtomicLongArray slots;
+    private final AtomicInteger used = new AtomicInteger();
+
+    Bucket(long epoch, int slots) {
+      this.epoch = epoch;
+      this.slots = new AtomicLongArray(slots);
+    }
+  }
+}
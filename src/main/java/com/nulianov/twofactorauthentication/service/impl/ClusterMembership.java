@@ -0,0 +1,176 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import com.nulianov.twofactorauthentication.config.ClusterProperties;
+import com.nulianov.twofactorauthentication.config.TwoFactorAuthProperties;
+import java.net.URI;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.cloud.context.environment.EnvironmentChangeEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * The instances of the cluster and which of them owns each email address.
+ *
+ * <p>Membership comes from {@code two-factor.cluster.nodes} and is reloaded when those properties change, for example
+ * through {@code /actuator/refresh}. After a change, the previous ring is kept for one code validity period so that a
+ * new owner can take over codes still held by the previous one; after that, every such code has expired.
+ */
+@Component
+@Slf4j
+@ConditionalOnProperty(prefix = "two-factor.cluster", name = "enabled", havingValue = "true")
+public class ClusterMembership {
+
+  private final Environment environment;
+  private final String self;
+  private final int virtualNodes;
+  private final long handoffWindowNanos;
+  private final LongSupplier nanoClock;
+  private volatile View view;
+
+  @Autowired
+  public ClusterMembership(
+      ClusterProperties properties,
+      TwoFactorAuthProperties twoFactorAuthProperties,
+      Environment environment
+  ) {
+    this(properties, Duration.ofSeconds(twoFactorAuthProperties.getCodeValidityDuration()), environment,
+        System::nanoTime);
+  }
+
+  ClusterMembership(
+      ClusterProperties properties,
+      Duration handoffWindow,
+      Environment environment,
+      LongSupplier nanoClock
+  ) {
+    if (properties.getSelf() == null || properties.getSelf().isBlank()) {
+      throw new IllegalArgumentException("two-factor.cluster.self must name this instance");
+    }
+    this.environment = environment;
+    this.self = properties.getSelf();
+    this.virtualNodes = properties.getVirtualNodes();
+    this.handoffWindowNanos = handoffWindow.toNanos();
+    this.nanoClock = nanoClock;
+    Map<String, URI> urls = urls(properties.getNodes());
+    this.view = new View(ring(urls), urls, null, 0, urls);
+    if (!view.urls().containsKey(self)) {
+      log.warn("This instance ({}) is not among the cluster nodes and will forward every request", self);
+    }
+    log.info("Cluster membership: {}", view.ring().nodes());
+  }
+
+  /**
+   * Returns the id of the node that owns the email address.
+   */
+  public String owner(String email) {
+    return view.ring().owner(email);
+  }
+
+  /**
+   * Returns the id of the node that owned the email address before the last membership change, or {@code null} if
+   * membership has not changed within the last code validity period.
+   */
+  public String previousOwner(String email) {
+    View current = view;
+    if (current.previous() == null || nanoClock.getAsLong() - current.previousUntil() > 0) {
+      return null;
+    }
+    return current.previous().owner(email);
+  }
+
+  /**
+   * Returns the ring of the current nodes other than this instance, which own this instance's email addresses once it
+   * has left, or {@code null} if this instance is the only node.
+   */
+  ConsistentHashRing ringWithoutSelf() {
+    List<String> others = view.urls().keySet().stream()
+        .filter(node -> !self.equals(node))
+        .toList();
+    return others.isEmpty() ? null : new ConsistentHashRing(others, virtualNodes);
+  }
+
+  public boolean isSelf(String node) {
+    return self.equals(node);
+  }
+
+  /**
+   * Returns the base URL of a current or previous node.
+   */
+  public URI url(String node) {
+    return view.knownUrls().get(node);
+  }
+
+  @EventListener
+  public void onEnvironmentChange(EnvironmentChangeEvent event) {
+    if (event.getKeys().stream().anyMatch(key -> key.startsWith("two-factor.cluster.nodes"))) {
+      ClusterProperties properties = Binder.get(environment)
+          .bind("two-factor.cluster", ClusterProperties.class)
+          .orElseGet(ClusterProperties::new);
+      update(properties.getNodes());
+    }
+  }
+
+  /**
+   * Replaces the membership. Does nothing if the nodes are unchanged.
+   */
+  synchronized void update(List<ClusterProperties.Node> nodes) {
+    Map<String, URI> urls = urls(nodes);
+    View current = view;
+    if (urls.equals(current.urls())) {
+      return;
+    }
+    // Keep the addresses of nodes that left, so codes can still be taken over from them
+    Map<String, URI> known = new HashMap<>(current.urls());
+    known.putAll(urls);
+    view = new View(ring(urls), urls, current.ring(), nanoClock.getAsLong() + handoffWindowNanos, known);
+    log.info("Cluster membership changed from {} to {}", current.ring().nodes(), view.ring().nodes());
+  }
+
+  private ConsistentHashRing ring(Map<String, URI> urls) {
+    return new ConsistentHashRing(List.copyOf(urls.keySet()), virtualNodes);
+  }
+
+  private static Map<String, URI> urls(List<ClusterProperties.Node> nodes) {
+    Map<String, URI> urls = new LinkedHashMap<>();
+    for (ClusterProperties.Node node : nodes) {
+      if (node.getId() == null || node.getUrl() == null) {
+        throw new IllegalArgumentException("Every cluster node needs an id and a url");
+      }
+      if (urls.put(node.getId(), URI.create(node.getUrl())) != null) {
+        throw new IllegalArgumentException("Duplicate cluster node id: " + node.getId());
+      }
+    }
+    if (urls.isEmpty()) {
+      throw new IllegalArgumentException("two-factor.cluster.nodes must list at least one node");
+    }
+    return urls;
+  }
+
+  /**
+   * An immutable snapshot of the membership, replaced as a whole on every change.
+   *
+   * @param ring          the current ring
+   * @param urls          the current nodes
+   * @param previous      the ring before the last change, or {@code null}
+   * @param previousUntil when the previous ring stops being used, in {@link System#nanoTime()} terms
+   * @param knownUrls     the current nodes and those that left in the last change
+   */
+  private record View(
+      ConsistentHashRing ring,
+      Map<String, URI> urls,
+      ConsistentHashRing previous,
+      long previousUntil,
+      Map<String, URI> knownUrls
+  ) {
+  }
+}
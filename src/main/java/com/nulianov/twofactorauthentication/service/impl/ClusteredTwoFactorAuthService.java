@@ -0,0 +1,133 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nulianov.twofactorauthentication.client.ClusterNodeClient;
+import com.nulianov.twofactorauthentication.config.ClusterProperties;
+import com.nulianov.twofactorauthentication.exception.ClusterNodeUnavailableException;
+import com.nulianov.twofactorauthentication.exception.EmailSendingException;
+import com.nulianov.twofactorauthentication.model.TotpEnrollment;
+import com.nulianov.twofactorauthentication.model.TwoFactorAuthRequest;
+import com.nulianov.twofactorauthentication.model.VerificationResult;
+import com.nulianov.twofactorauthentication.service.TwoFactorAuthService;
+import feign.FeignException;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.net.URI;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Service;
+
+/**
+ * Cluster mode entry point: every request is handled by the instance that owns the email address.
+ *
+ * <p>The owner is found on the {@link ClusterMembership} hash ring. Requests for addresses owned by this instance go
+ * to the {@link OwnerTwoFactorAuthService}; the rest are forwarded to the owner's internal endpoints, so a verify
+ * reaches the same store as the initiate that issued the code whichever instance the load balancer picked. An email
+ * sending failure on the owner is reported as one here; any other failure to reach the owner fails the request with
+ * {@link ClusterNodeUnavailableException}.
+ */
+@Service
+@Primary
+@Slf4j
+@ConditionalOnProperty(prefix = "two-factor.cluster", name = "enabled", havingValue = "true")
+public class ClusteredTwoFactorAuthService implements TwoFactorAuthService {
+
+  private final OwnerTwoFactorAuthService ownerService;
+  private final ClusterMembership clusterMembership;
+  private final ClusterNodeClient clusterNodeClient;
+  private final ObjectMapper objectMapper;
+  private final MeterRegistry meterRegistry;
+  private final String token;
+
+  public ClusteredTwoFactorAuthService(
+      OwnerTwoFactorAuthService ownerService,
+      ClusterMembership clusterMembership,
+      ClusterNodeClient clusterNodeClient,
+      ObjectMapper objectMapper,
+      ClusterProperties properties,
+      MeterRegistry meterRegistry
+  ) {
+    this.ownerService = ownerService;
+    this.clusterMembership = clusterMembership;
+    this.clusterNodeClient = clusterNodeClient;
+    this.objectMapper = objectMapper;
+    this.meterRegistry = meterRegistry;
+    this.token = properties.getToken();
+  }
+
+  @Override
+  public void initiateTwoFactorAuth(String email) {
+    route(email, "initiate",
+        () -> {
+          ownerService.initiateTwoFactorAuth(email);
+          return null;
+        },
+        node -> {
+          clusterNodeClient.initiateTwoFactorAuth(node, token, new TwoFactorAuthRequest(email, null));
+          return null;
+        });
+  }
+
+  @Override
+  public VerificationResult verifyCode(String email, String code) {
+    return route(email, "verify",
+        () -> ownerService.verifyCode(email, code),
+        node -> VerificationResult.of(
+            clusterNodeClient.verifyCode(node, token, new TwoFactorAuthRequest(email, code))));
+  }
+
+  @Override
+  public boolean resendCode(String email) {
+    return route(email, "resend",
+        () -> ownerService.resendCode(email),
+        node -> clusterNodeClient.resendCode(node, token, new TwoFactorAuthRequest(email, null)));
+  }
+
+  @Override
+  public TotpEnrollment enrollTotp(String email) {
+    return route(email, "totp-enroll",
+        () -> ownerService.enrollTotp(email),
+        node -> clusterNodeClient.enrollTotp(node, token, new TwoFactorAuthRequest(email, null)));
+  }
+
+  @Override
+  public VerificationResult verifyTotp(String email, String code) {
+    return route(email, "totp-verify",
+        () -> ownerService.verifyTotp(email, code),
+        node -> VerificationResult.of(
+            clusterNodeClient.verifyTotp(node, token, new TwoFactorAuthRequest(email, code))));
+  }
+
+  private <T> T route(String email, String operation, Supplier<T> local, Function<URI, T> remote) {
+    String owner = clusterMembership.owner(email);
+    if (clusterMembership.isSelf(owner)) {
+      return local.get();
+    }
+    log.debug("Forwarding {} for email {} to node {}", operation, email, owner);
+    meterRegistry.counter("twofactor.cluster.forwarded", "operation", operation).increment();
+    try {
+      return remote.apply(clusterMembership.url(owner));
+    } catch (FeignException ex) {
+      throw translate(owner, ex);
+    }
+  }
+
+  private RuntimeException translate(String owner, FeignException ex) {
+    if (ex.status() == 503) {
+      try {
+        JsonNode body = objectMapper.readTree(ex.contentUTF8());
+        if ("EMAIL_SENDING_FAILED".equals(body.path("errorCode").asText())) {
+          return new EmailSendingException(body.path("message").asText());
+        }
+      } catch (IOException ignored) {
+        // Not an error response from the owner; treat it as unavailable
+      }
+    }
+    log.error("Could not reach cluster node {}: {}", owner, ex.getMessage());
+    return new ClusterNodeUnavailableException("The instance responsible for this email address is unavailable.");
+  }
+}
@@ -0,0 +1,190 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import com.nulianov.twofactorauthentication.client.ClusterNodeClient;
+import com.nulianov.twofactorauthentication.config.ClusterProperties;
+import com.nulianov.twofactorauthentication.config.TwoFactorAuthProperties;
+import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.repository.CodeRepository;
+import com.nulianov.twofactorauthentication.repository.ListableCodeRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.StreamSupport;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.context.WebServerGracefulShutdownLifecycle;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Service;
+
+/**
+ * Hands this instance's pending codes over to the other nodes when it shuts down, so users in the middle of a login do
+ * not lose their code when the instance leaves the cluster.
+ *
+ * <p>Each code goes to the node that owns its email address in the ring without this instance, which is where the other
+ * nodes route the address once this instance is removed from {@code two-factor.cluster.nodes}. The handoff runs after
+ * the web server has stopped, when the codes no longer change. For every other node, the codes it will own are streamed
+ * in the {@link CodeTransfer} format to its {@code /internal/cluster/codes/handoff} endpoint, keeping their creation
+ * times and attempt counts; expired codes are left out. Once a node has accepted its transfer, the codes sent to it are
+ * deleted here, so a snapshot taken on shutdown does not restore them should this instance rejoin under the same id,
+ * where they would shadow the handed-off codes and allow a used code to be verified again. The requests are sent with
+ * the JDK {@link HttpClient} rather than {@link ClusterNodeClient}, since Feign buffers the whole request body: here
+ * chunks are encoded only as the connection takes them, so the store is read at the pace the receiving node reads the
+ * stream, once per node.
+ *
+ * <p>Only stores that can list their codes, a {@link ListableCodeRepository}, take part; the packed and mapped stores
+ * key codes by a hash of the email address, and a Redis-protocol store is already shared. Without a cluster token
+ * nothing is handed off.
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(prefix = "two-factor.cluster", name = {"enabled", "handoff.enabled"}, havingValue = "true")
+public class CodeHandoffService implements SmartLifecycle {
+
+  private static final String HANDOFF_PATH = "/internal/cluster/codes/handoff";
+
+  private final CodeRepository codeRepository;
+  private final ClusterMembership clusterMembership;
+  private final ClusterProperties properties;
+  private final long codeValidityDuration;
+  private final HttpClient httpClient;
+  private final Counter handedOff;
+  private volatile boolean running;
+
+  public CodeHandoffService(
+      CodeRepository codeRepository,
+      ClusterMembership clusterMembership,
+      ClusterProperties properties,
+      TwoFactorAuthProperties twoFactorAuthProperties,
+      MeterRegistry meterRegistry
+  ) {
+    this.codeRepository = codeRepository;
+    this.clusterMembership = clusterMembership;
+    this.properties = properties;
+    this.codeValidityDuration = twoFactorAuthProperties.getCodeValidityDuration();
+    this.httpClient = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(properties.getHandoff().getTimeout())
+        .build();
+    this.handedOff = Counter.builder("twofactor.cluster.handed-off")
+        .description("Pending codes handed over to the other nodes on shutdown")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Streams every pending code to the node that owns it once this instance has left. The codes sent to a node that
+   * accepted the transfer are removed from this instance's store. Failures are logged; the codes sent to a node that
+   * failed stay here.
+   *
+   * @return the number of codes the other nodes took over
+   */
+  public long handOff() {
+    if (properties.getToken() == null || properties.getToken().isBlank()) {
+      log.warn("Not handing off pending codes: two-factor.cluster.token is not set");
+      return 0;
+    }
+    if (!(codeRepository instanceof ListableCodeRepository listable)) {
+      log.info("Not handing off pending codes: {} cannot list its codes", codeRepository.getClass().getSimpleName());
+      return 0;
+    }
+    ConsistentHashRing successors = clusterMembership.ringWithoutSelf();
+    if (successors == null) {
+      log.warn("Not handing off pending codes: there is no other cluster node");
+      return 0;
+    }
+
+    long now = Instant.now().getEpochSecond();
+    long accepted = 0;
+    for (String node : successors.nodes()) {
+      List<String> sent = new ArrayList<>();
+      Iterator<Map.Entry<String, CodeData>> owned = StreamSupport.stream(
+              Spliterators.spliteratorUnknownSize(listable.entries(), Spliterator.NONNULL), false)
+          .filter(entry -> node.equals(successors.owner(entry.getKey())))
+          .peek(entry -> sent.add(entry.getKey()))
+          .iterator();
+      long taken = handOff(node, owned, now);
+      if (taken >= 0) {
+        // The node has the codes now; left here, they would be snapshotted and come back when this instance restarts
+        sent.forEach(codeRepository::deleteByEmail);
+        accepted += taken;
+      }
+    }
+    handedOff.increment(accepted);
+    return accepted;
+  }
+
+  /**
+   * Streams the codes to the node.
+   *
+   * @return the number of codes the node took over, or -1 if the handoff failed
+   */
+  private long handOff(String node, Iterator<Map.Entry<String, CodeData>> entries, long now) {
+    URI url = clusterMembership.url(node);
+    // Read on every handoff, since the settings may have changed through a property refresh
+    ClusterProperties.Handoff handoff = properties.getHandoff();
+    CodeTransfer.Encoder transfer = CodeTransfer.encode(entries, Math.toIntExact(handoff.getChunkSize().toBytes()),
+        creationTime -> now - creationTime > codeValidityDuration);
+    HttpRequest request = HttpRequest.newBuilder(URI.create(url + HANDOFF_PATH))
+        .timeout(handoff.getTimeout())
+        .header(ClusterNodeClient.TOKEN_HEADER, properties.getToken())
+        .header("Content-Type", "application/octet-stream")
+        .POST(HttpRequest.BodyPublishers.ofInputStream(() -> transfer))
+        .build();
+    long start = System.nanoTime();
+    try {
+      HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+      if (response.statusCode() != 200) {
+        log.error("Node {} refused the handoff of pending codes with status {}", node, response.statusCode());
+        return -1;
+      }
+      long accepted = Long.parseLong(response.body().trim());
+      log.info("Handed off {} pending codes to node {} in {} ms, {} taken over", transfer.written(), node,
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), accepted);
+      return accepted;
+    } catch (IOException | NumberFormatException e) {
+      log.error("Could not hand off pending codes to node {}: {}", node, e.getMessage());
+      return -1;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.error("Interrupted while handing off pending codes to node {}", node);
+      return -1;
+    }
+  }
+
+  @Override
+  public void start() {
+    running = true;
+  }
+
+  @Override
+  public void stop() {
+    if (running) {
+      running = false;
+      handOff();
+    }
+  }
+
+  @Override
+  public boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * Stops after the web server, so no request changes the codes while they are handed off.
+   */
+  @Override
+  public int getPhase() {
+    return WebServerGracefulShutdownLifecycle.SMART_LIFECYCLE_PHASE - 2048;
+  }
+}
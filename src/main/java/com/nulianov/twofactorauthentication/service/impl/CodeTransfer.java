@@ -0,0 +1,172 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import com.nulianov.twofactorauthentication.model.CodeData;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.LongPredicate;
+
+/**
+ * The binary format in which an instance hands its pending codes over to another.
+ *
+ * <p>A transfer is a header followed by chunks. Each chunk is its length in bytes and the codes it holds, each written
+ * as its creation time, attempt count, email address and code, the strings as an unsigned 16-bit length and UTF-8
+ * bytes. A chunk of length zero ends the transfer, so a transfer cut short can be told from a complete one.
+ *
+ * <p>The sending side is an {@link InputStream} that encodes the next chunk only when the previous one has been read,
+ * so it reads the store no faster than the connection takes the data and never holds more than one chunk. The
+ * receiving side reads one chunk at a time as well.
+ */
+final class CodeTransfer {
+
+  private static final long MAGIC = 0x3246414844464652L;
+  private static final int VERSION = 1;
+  private static final int MAX_RECORD_SIZE = 8 + 4 + 2 * (2 + 0xffff);
+
+  private CodeTransfer() {
+  }
+
+  /**
+   * Returns a stream of the codes in the chunked format.
+   *
+   * @param entries   the codes to send
+   * @param chunkSize the size a chunk is filled to, in bytes
+   * @param skip      skips the codes with the creation times it accepts, such as expired ones
+   */
+  static Encoder encode(Iterator<Map.Entry<String, CodeData>> entries, int chunkSize, LongPredicate skip) {
+    return new Encoder(entries, chunkSize, skip);
+  }
+
+  /**
+   * Reads a transfer to its end.
+   *
+   * @param in       the transfer
+   * @param consumer receives each code as it is read
+   * @return the number of codes read
+   * @throws IOException if the stream is not a transfer of this version, or ends before the final chunk
+   */
+  static long decode(InputStream in, BiConsumer<String, CodeData> consumer) throws IOException {
+    DataInputStream data = new DataInputStream(in);
+    if (data.readLong() != MAGIC || data.readInt() != VERSION) {
+      throw new IOException("Not a code transfer of this version");
+    }
+    long read = 0;
+    ByteBuffer chunk = ByteBuffer.allocate(0);
+    int length;
+    while ((length = data.readInt()) != 0) {
+      if (length < 0) {
+        throw new IOException("Malformed code transfer chunk");
+      }
+      if (chunk.capacity() < length) {
+        chunk = ByteBuffer.allocate(length);
+      }
+      data.readFully(chunk.array(), 0, length);
+      chunk.clear().limit(length);
+      try {
+        while (chunk.hasRemaining()) {
+          long creationTime = chunk.getLong();
+          int attempts = chunk.getInt();
+          String email = getString(chunk);
+          String code = getString(chunk);
+          consumer.accept(email, new CodeData(code, creationTime, attempts));
+          read++;
+        }
+      } catch (BufferUnderflowException e) {
+        throw new IOException("Malformed code transfer chunk");
+      }
+    }
+    return read;
+  }
+
+  private static String getString(ByteBuffer chunk) {
+    int length = Short.toUnsignedInt(chunk.getShort());
+    String value = new String(chunk.array(), chunk.position(), length, StandardCharsets.UTF_8);
+    chunk.position(chunk.position() + length);
+    return value;
+  }
+
+  /**
+   * The sending side of a transfer.
+   */
+  static final class Encoder extends InputStream {
+
+    private final Iterator<Map.Entry<String, CodeData>> entries;
+    private final LongPredicate skip;
+    private final ByteBuffer chunk;
+    private boolean finished;
+    private long written;
+
+    private Encoder(Iterator<Map.Entry<String, CodeData>> entries, int chunkSize, LongPredicate skip) {
+      this.entries = entries;
+      this.skip = skip;
+      // Room for the length and for a record that starts just before the chunk is full
+      this.chunk = ByteBuffer.allocate(4 + chunkSize + MAX_RECORD_SIZE);
+      chunk.putLong(MAGIC).putInt(VERSION).flip();
+    }
+
+    /**
+     * Returns the number of codes encoded so far.
+     */
+    long written() {
+      return written;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!chunk.hasRemaining()) {
+        if (finished) {
+          return -1;
+        }
+        fill();
+      }
+      int n = Math.min(len, chunk.remaining());
+      chunk.get(b, off, n);
+      return n;
+    }
+
+    /**
+     * Encodes the next chunk, or the final empty one once every code has been encoded.
+     */
+    private void fill() throws IOException {
+      int end = chunk.capacity() - MAX_RECORD_SIZE;
+      chunk.clear().position(4);
+      while (chunk.position() < end && entries.hasNext()) {
+        Map.Entry<String, CodeData> entry = entries.next();
+        CodeData codeData = entry.getValue();
+        if (skip.test(codeData.creationTime())) {
+          continue;
+        }
+        chunk.putLong(codeData.creationTime()).putInt(codeData.attempts());
+        putString(entry.getKey());
+        putString(codeData.code());
+        written++;
+      }
+      int length = chunk.position() - 4;
+      chunk.putInt(0, length).flip();
+      finished = length == 0;
+    }
+
+    private void putString(String value) throws IOException {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      if (bytes.length > 0xffff) {
+        throw new IOException("String too long for a code transfer");
+      }
+      chunk.putShort((short) bytes.length).put(bytes);
+    }
+  }
+}
@@ -30,17 +30,17 @@ public class CodeVerificationServiceImpl implements CodeVerificationService {
     long currentTime = Instant.now().getEpochSecond();
 
     if (currentTime - codeData.creationTime() > properties.getCodeValidityDuration()) {
-      return new VerificationResult(CODE_EXPIRED);
+      return VerificationResult.of(CODE_EXPIRED);
     }
 
     if (codeData.attempts() >= properties.getMaxAttempts()) {
-      return new VerificationResult(MAX_ATTEMPTS_EXCEEDED);
+      return VerificationResult.of(MAX_ATTEMPTS_EXCEEDED);
     }
 
     if (codeData.code().equals(code)) {
-      return new VerificationResult(SUCCESS);
+      return VerificationResult.of(SUCCESS);
     } else {
-      return new VerificationResult(INVALID_CODE);
+      return VerificationResult.of(INVALID_CODE);
     }
   }
 }
@@ -0,0 +1,97 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Consistent-hash ring that assigns every email address to one node.
+ *
+ * <p>Each node is placed on the ring at {@code virtualNodes} pseudo-random points, and an address belongs to the node
+ * at the first point at or after the address's own hash. Adding or removing a node therefore only moves the addresses
+ * between that node and its neighbours, about {@code 1 / nodes} of them, and leaves the rest where they were. Addresses
+ * are trimmed and lower-cased first, so every spelling of an address is routed to the same node.
+ */
+final class ConsistentHashRing {
+
+  private final List<String> nodes;
+  private final long[] points;
+  private final String[] owners;
+
+  /**
+   * Builds the ring.
+   *
+   * @param nodes        the node ids, at least one
+   * @param virtualNodes the number of points per node
+   */
+  ConsistentHashRing(List<String> nodes, int virtualNodes) {
+    if (nodes.isEmpty() || virtualNodes < 1) {
+      throw new IllegalArgumentException("A hash ring needs at least one node and one point per node");
+    }
+    this.nodes = List.copyOf(nodes);
+    int size = nodes.size() * virtualNodes;
+    long[] placed = new long[size];
+    String[] placedOwners = new String[size];
+    int index = 0;
+    for (String node : nodes) {
+      for (int i = 0; i < virtualNodes; i++) {
+        placed[index] = hash(node + '#' + i);
+        placedOwners[index] = node;
+        index++;
+      }
+    }
+
+    // Sort the points together with their owners; equal points are broken by node id so every instance agrees
+    Integer[] order = new Integer[size];
+    Arrays.setAll(order, i -> i);
+    Arrays.sort(order, (a, b) -> placed[a] != placed[b]
+        ? Long.compare(placed[a], placed[b])
+        : placedOwners[a].compareTo(placedOwners[b]));
+    this.points = new long[size];
+    this.owners = new String[size];
+    for (int i = 0; i < size; i++) {
+      points[i] = placed[order[i]];
+      owners[i] = placedOwners[order[i]];
+    }
+  }
+
+  /**
+   * Returns the node that owns the email address.
+   */
+  String owner(String email) {
+    long hash = hash(email.trim().toLowerCase(Locale.ROOT));
+    int index = Arrays.binarySearch(points, hash);
+    if (index < 0) {
+      index = -index - 1;
+    } else {
+      // Several nodes may share a point; the first of them owns it
+      while (index > 0 && points[index - 1] == hash) {
+        index--;
+      }
+    }
+    return owners[index == points.length ? 0 : index];
+  }
+
+  List<String> nodes() {
+    return nodes;
+  }
+
+  /**
+   * 64-bit FNV-1a of the UTF-8 bytes followed by the MurmurHash3 finalizer, which spreads similar inputs such as
+   * {@code node#1} and {@code node#2} evenly over the ring.
+   */
+  static long hash(String value) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
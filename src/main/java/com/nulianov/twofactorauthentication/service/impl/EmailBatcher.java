@@ -0,0 +1,169 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import com.nulianov.twofactorauthentication.exception.EmailSendingException;
+import com.nulianov.twofactorauthentication.model.EmailServiceRequest;
+import com.nulianov.twofactorauthentication.model.EmailServiceResult;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Groups concurrent email requests into batch submissions.
+ *
+ * <p>Callers block in {@link #send} while a collector thread gathers requests until {@code maxSize} are waiting or
+ * {@code linger} has passed since the first, then hands the batch to one of {@code maxInFlight} sender threads. Each
+ * caller gets the outcome of its own item: a rejected item fails only its caller, a failed submission fails the whole
+ * batch.
+ */
+@Slf4j
+final class EmailBatcher implements AutoCloseable {
+
+  private static final long POLL_INTERVAL_MILLIS = 100;
+
+  private final Function<List<EmailServiceRequest>, List<EmailServiceResult>> submitter;
+  private final Consumer<Integer> batchSizeRecorder;
+  private final int maxSize;
+  private final long lingerNanos;
+  private final BlockingQueue<PendingEmail> queue = new LinkedBlockingQueue<>();
+  private final ExecutorService collector;
+  private final ExecutorService senders;
+
+  private volatile boolean running = true;
+
+  EmailBatcher(
+      Function<List<EmailServiceRequest>, List<EmailServiceResult>> submitter,
+      Consumer<Integer> batchSizeRecorder,
+      int maxSize,
+      Duration linger,
+      int maxInFlight
+  ) {
+    this.submitter = submitter;
+    this.batchSizeRecorder = batchSizeRecorder;
+    this.maxSize = maxSize;
+    this.lingerNanos = linger.toNanos();
+    this.collector = Executors.newSingleThreadExecutor(Thread.ofPlatform().name("email-batcher").daemon().factory());
+    this.senders = Executors.newFixedThreadPool(
+        maxInFlight, Thread.ofPlatform().name("email-batch-sender-", 1).daemon().factory());
+    collector.execute(this::collect);
+  }
+
+  /**
+   * Sends the request as part of the next batch and waits for its outcome.
+   *
+   * @param request the email to send
+   * @throws EmailSendingException if the email service rejected the item
+   * @throws RuntimeException      the exception the batch submission failed with
+   */
+  void send(EmailServiceRequest request) {
+    if (!running) {
+      throw new EmailSendingException("Email batching is shutting down.");
+    }
+
+    PendingEmail pending = new PendingEmail(request, new CompletableFuture<>());
+    queue.add(pending);
+    try {
+      pending.result().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new EmailSendingException("Interrupted while waiting for the email batch.");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      }
+      throw new EmailSendingException("Failed to send verification email.");
+    }
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    collector.shutdown();
+    senders.shutdown();
+    try {
+      collector.awaitTermination(POLL_INTERVAL_MILLIS * 2, TimeUnit.MILLISECONDS);
+      senders.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    PendingEmail pending;
+    while ((pending = queue.poll()) != null) {
+      pending.result().completeExceptionally(new EmailSendingException("Email batching is shutting down."));
+    }
+  }
+
+  private void collect() {
+    while (running || !queue.isEmpty()) {
+      try {
+        PendingEmail first = queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+
+        List<PendingEmail> batch = new ArrayList<>(maxSize);
+        batch.add(first);
+        long deadline = System.nanoTime() + lingerNanos;
+        while (batch.size() < maxSize) {
+          queue.drainTo(batch, maxSize - batch.size());
+          long remaining = deadline - System.nanoTime();
+          if (batch.size() >= maxSize || remaining <= 0) {
+            break;
+          }
+          PendingEmail next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+          if (next != null) {
+            batch.add(next);
+          }
+        }
+        senders.execute(() -> submit(batch));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private void submit(List<PendingEmail> batch) {
+    batchSizeRecorder.accept(batch.size());
+    List<EmailServiceRequest> requests = batch.stream().map(PendingEmail::request).toList();
+
+    List<EmailServiceResult> results;
+    try {
+      results = submitter.apply(requests);
+    } catch (RuntimeException ex) {
+      log.error("Batch of {} emails could not be submitted: {}", batch.size(), ex.getMessage());
+      batch.forEach(pending -> pending.result().completeExceptionally(ex));
+      return;
+    }
+
+    if (results == null || results.size() != batch.size()) {
+      log.error("Email service returned {} results for a batch of {}", results == null ? 0 : results.size(),
+          batch.size());
+      EmailSendingException ex = new EmailSendingException("Email service returned an incomplete batch response.");
+      batch.forEach(pending -> pending.result().completeExceptionally(ex));
+      return;
+    }
+
+    for (int i = 0; i < batch.size(); i++) {
+      EmailServiceResult result = results.get(i);
+      CompletableFuture<Void> future = batch.get(i).result();
+      if (result.accepted()) {
+        future.complete(null);
+      } else {
+        future.completeExceptionally(
+            new EmailSendingException("Email service rejected the message: " + result.error()));
+      }
+    }
+  }
+
+  private record PendingEmail(EmailServiceRequest request, CompletableFuture<Void> result) {
+  }
+}
@@ -0,0 +1,413 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import com.nulianov.twofactorauthentication.config.EmailServiceProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Routes email service calls between several providers.
+ *
+ * <p>Each provider keeps a peak-sensitive moving average of its latency and a moving average of its error rate. A
+ * call goes to the provider with the lowest {@code latency * (inFlight + 1) / (1 - errorRate)}; on a server failure
+ * it fails over to the next one. A failed call counts as taking at least the failure penalty, so a provider that
+ * fails fast does not look fast. The averages of an idle provider decay towards zero, so a provider that was avoided
+ * is tried again once it has been idle for a while.
+ *
+ * <p>With hedging enabled, a call that the chosen provider has not answered within its latency percentile is sent to
+ * the second-best provider as well, and the first successful answer wins. A provider with fewer than
+ * {@value #MIN_LATENCY_SAMPLES} latency samples is not hedged, since its percentile means nothing yet. The first
+ * request runs on the caller's thread; hedges run on a bounded executor, need a permit of the
+ * {@link EmailServiceGuard} bulkhead, and are skipped when either is exhausted. The losing request is interrupted and
+ * its own latency is not recorded; a first request that loses is charged the time it had taken when the hedge won. An
+ * interrupt only aborts a request where the transport honours it, so a hedged email can be delivered twice.
+ */
+@Component
+@Slf4j
+public class EmailProviderRouter implements DisposableBean {
+
+  private static final int MIN_LATENCY_SAMPLES = 32;
+
+  private final Provider[] providers;
+  private final double smoothing;
+  private final long idleDecayNanos;
+  private final long failurePenaltyNanos;
+  private final boolean hedging;
+  private final double hedgePercentile;
+  private final long minHedgeDelayNanos;
+  private final long maxHedgeDelayNanos;
+  private final EmailServiceGuard emailServiceGuard;
+  private final Semaphore hedgeSlots;
+  private final ExecutorService hedgeExecutor;
+  private final ScheduledThreadPoolExecutor hedgeScheduler;
+  private final Counter hedges;
+
+  @Autowired
+  public EmailProviderRouter(
+      EmailServiceProperties properties,
+      MeterRegistry meterRegistry,
+      EmailServiceGuard emailServiceGuard,
+      @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads
+  ) {
+    List<String> urls = properties.getProviders().isEmpty() ? List.of(properties.getUrl()) : properties.getProviders();
+    this.providers = urls.stream().map(url -> new Provider(URI.create(url))).toArray(Provider[]::new);
+    this.smoothing = properties.getRouting().getSmoothing();
+    this.idleDecayNanos = properties.getRouting().getIdleDecay().toNanos();
+    this.failurePenaltyNanos = properties.getRouting().getFailurePenalty().toNanos();
+    this.hedging = properties.getHedging().isEnabled() && providers.length > 1;
+    this.hedgePercentile = properties.getHedging().getPercentile();
+    this.minHedgeDelayNanos = properties.getHedging().getMinDelay().toNanos();
+    this.maxHedgeDelayNanos = properties.getHedging().getMaxDelay().toNanos();
+    this.emailServiceGuard = emailServiceGuard;
+    int maxHedges = properties.getHedging().getMaxInFlight();
+    this.hedgeSlots = new Semaphore(maxHedges);
+    this.hedgeExecutor = virtualThreads
+        ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("email-hedge-", 1).factory())
+        : new ThreadPoolExecutor(0, maxHedges, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+            Thread.ofPlatform().name("email-hedge-", 1).daemon().factory());
+    this.hedgeScheduler = new ScheduledThreadPoolExecutor(1,
+        Thread.ofPlatform().name("email-hedge-timer").daemon().factory());
+    hedgeScheduler.setRemoveOnCancelPolicy(true);
+    this.hedges = Counter.builder("twofactor.email.hedges")
+        .description("Email service calls hedged to a second provider")
+        .register(meterRegistry);
+
+    for (Provider provider : providers) {
+      Gauge.builder("twofactor.email.provider.latency", provider, p -> p.latency(System.nanoTime()) / 1e6)
+          .description("Smoothed email provider latency in milliseconds")
+          .tag("provider", provider.uri.getAuthority())
+          .register(meterRegistry);
+      Gauge.builder("twofactor.email.provider.error.rate", provider, p -> p.errorRate(System.nanoTime()))
+          .description("Smoothed email provider error rate")
+          .tag("provider", provider.uri.getAuthority())
+          .register(meterRegistry);
+    }
+  }
+
+  /**
+   * Calls the best provider, failing over or hedging as configured. The first attempt runs on the calling thread.
+   *
+   * @param call the call to make against a provider's base URI
+   * @return the result of the first successful call
+   */
+  public <T> T execute(Function<URI, T> call) {
+    List<Provider> ranked = rank();
+    if (!hedging) {
+      return failover(ranked, 0, call);
+    }
+
+    Provider primary = ranked.get(0);
+    long hedgeDelay = hedgeDelay(primary);
+    if (hedgeDelay < 0) {
+      return failover(ranked, 0, call);
+    }
+    Hedge<T> hedge = new Hedge<>(ranked.get(1), call);
+    hedge.trigger = hedgeScheduler.schedule(hedge::launch, hedgeDelay, TimeUnit.NANOSECONDS);
+    T result = null;
+    RuntimeException failure = null;
+    primary.inFlight.incrementAndGet();
+    long start = System.nanoTime();
+    try {
+      result = call.apply(primary.uri);
+    } catch (RuntimeException ex) {
+      failure = ex;
+    } finally {
+      primary.inFlight.decrementAndGet();
+    }
+    long elapsed = System.nanoTime() - start;
+
+    boolean serverFailure = failure != null && EmailServiceGuard.isServerFailure(failure);
+    if (!hedge.finishPrimary(serverFailure)) {
+      // The hedge won and interrupted this call, which only shows the provider took at least this long
+      Thread.interrupted();
+      primary.recordAbandoned(hedge.primaryLostAt - start);
+      return hedge.result.join();
+    }
+    primary.record(elapsed, serverFailure);
+    if (failure == null) {
+      return result;
+    }
+    if (!serverFailure) {
+      throw failure;
+    }
+    if (hedge.launched) {
+      try {
+        return hedge.result.join();
+      } catch (CompletionException e) {
+        throw unwrap(e);
+      }
+    }
+    return failover(ranked, 1, call);
+  }
+
+  /**
+   * Returns the provider base URIs, best first.
+   */
+  public List<URI> rankedProviders() {
+    return rank().stream().map(provider -> provider.uri).toList();
+  }
+
+  @Override
+  public void destroy() {
+    hedgeScheduler.shutdownNow();
+    hedgeExecutor.shutdownNow();
+  }
+
+  private <T> T failover(List<Provider> ranked, int from, Function<URI, T> call) {
+    RuntimeException failure = null;
+    for (int i = from; i < ranked.size(); i++) {
+      try {
+        return attempt(ranked.get(i), call);
+      } catch (RuntimeException ex) {
+        if (!EmailServiceGuard.isServerFailure(ex)) {
+          throw ex;
+        }
+        if (i + 1 < ranked.size()) {
+          log.warn("Email provider {} failed, failing over to {}: {}", ranked.get(i).uri, ranked.get(i + 1).uri,
+              ex.getMessage());
+        }
+        failure = ex;
+      }
+    }
+    throw failure;
+  }
+
+  private <T> T attempt(Provider provider, Function<URI, T> call) {
+    provider.inFlight.incrementAndGet();
+    long start = System.nanoTime();
+    try {
+      T result = call.apply(provider.uri);
+      provider.record(System.nanoTime() - start, false);
+      return result;
+    } catch (RuntimeException ex) {
+      provider.record(System.nanoTime() - start, EmailServiceGuard.isServerFailure(ex));
+      throw ex;
+    } finally {
+      provider.inFlight.decrementAndGet();
+    }
+  }
+
+  private List<Provider> rank() {
+    long now = System.nanoTime();
+    List<Provider> ranked = new ArrayList<>(Arrays.asList(providers));
+    ranked.sort(Comparator.comparingDouble(provider -> provider.score(now)));
+    return ranked;
+  }
+
+  /**
+   * Returns how long to wait for the provider before hedging, or -1 if it has too few latency samples to tell a slow
+   * call from a cold start.
+   */
+  private long hedgeDelay(Provider provider) {
+    long percentile = provider.latencyPercentile(hedgePercentile);
+    if (percentile < 0) {
+      return -1;
+    }
+    return Math.max(minHedgeDelayNanos, Math.min(maxHedgeDelayNanos, percentile));
+  }
+
+  private static RuntimeException unwrap(Throwable ex) {
+    Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+    return cause instanceof RuntimeException runtimeException
+        ? runtimeException
+        : new IllegalStateException(cause);
+  }
+
+  /**
+   * The hedge of one call. It is launched by the scheduler once the hedge delay has passed, if the first request is
+   * still running and a hedge slot and a bulkhead permit are free. Whichever request succeeds first wins: a winning
+   * hedge interrupts the caller, and a first request that finishes cancels the hedge unless it failed on the server
+   * side. State changes are guarded by the hedge's monitor.
+   */
+  private final class Hedge<T> {
+
+    private final Provider provider;
+    private final Function<URI, T> call;
+    private final Thread caller = Thread.currentThread();
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private ScheduledFuture<?> trigger;
+    private Future<?> task;
+    private boolean launched;
+    private boolean primaryDone;
+    private boolean primaryAbandoned;
+    private long primaryLostAt;
+    private boolean hedgeAbandoned;
+
+    Hedge(Provider provider, Function<URI, T> call) {
+      this.provider = provider;
+      this.call = call;
+    }
+
+    synchronized void launch() {
+      if (primaryDone || !hedgeSlots.tryAcquire()) {
+        return;
+      }
+      if (!emailServiceGuard.tryAcquirePermission()) {
+        hedgeSlots.release();
+        return;
+      }
+      try {
+        task = hedgeExecutor.submit(this::run);
+      } catch (RejectedExecutionException e) {
+        emailServiceGuard.releasePermission();
+        hedgeSlots.release();
+        return;
+      }
+      launched = true;
+      hedges.increment();
+      log.debug("Email provider is slow, hedging to {}", provider.uri);
+    }
+
+    /**
+     * Marks the first request as finished.
+     *
+     * @param awaitHedge whether a running hedge should be kept, because the first request failed on the server side
+     * @return false if the hedge has already won and the first request was abandoned
+     */
+    synchronized boolean finishPrimary(boolean awaitHedge) {
+      if (primaryAbandoned) {
+        return false;
+      }
+      primaryDone = true;
+      trigger.cancel(false);
+      if (launched && !awaitHedge) {
+        hedgeAbandoned = true;
+        task.cancel(true);
+      }
+      return true;
+    }
+
+    private void run() {
+      provider.inFlight.incrementAndGet();
+      long start = System.nanoTime();
+      try {
+        T value = call.apply(provider.uri);
+        synchronized (this) {
+          if (!hedgeAbandoned) {
+            provider.record(System.nanoTime() - start, false);
+            result.complete(value);
+            if (!primaryDone) {
+              primaryAbandoned = true;
+              primaryLostAt = System.nanoTime();
+              caller.interrupt();
+            }
+          }
+        }
+      } catch (RuntimeException ex) {
+        synchronized (this) {
+          if (!hedgeAbandoned) {
+            provider.record(System.nanoTime() - start, EmailServiceGuard.isServerFailure(ex));
+          }
+        }
+        result.completeExceptionally(ex);
+      } finally {
+        provider.inFlight.decrementAndGet();
+        emailServiceGuard.releasePermission();
+        hedgeSlots.release();
+      }
+    }
+  }
+
+  /**
+   * Statistics of one provider. The averages and latency samples are guarded by the provider's monitor.
+   */
+  private final class Provider {
+
+    private final URI uri;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final long[] samples = new long[256];
+    private int sampleCount;
+    private double latency;
+    private double errorRate;
+    private long lastUpdate = System.nanoTime();
+
+    Provider(URI uri) {
+      this.uri = uri;
+    }
+
+    synchronized void record(long elapsedNanos, boolean failed) {
+      long now = System.nanoTime();
+      double currentErrorRate = errorRate(now);
+      updateLatency(now, failed ? Math.max(elapsedNanos, failurePenaltyNanos) : elapsedNanos);
+      errorRate = currentErrorRate + smoothing * ((failed ? 1 : 0) - currentErrorRate);
+      lastUpdate = now;
+
+      if (!failed) {
+        samples[sampleCount++ % samples.length] = elapsedNanos;
+      }
+    }
+
+    /**
+     * Records a request that was abandoned after the given time. It is only known to have taken at least that long,
+     * so it moves the latency average but is neither a latency sample nor an error.
+     */
+    synchronized void recordAbandoned(long elapsedNanos) {
+      long now = System.nanoTime();
+      double currentErrorRate = errorRate(now);
+      updateLatency(now, elapsedNanos);
+      errorRate = currentErrorRate;
+      lastUpdate = now;
+    }
+
+    synchronized double score(long now) {
+      double penalty = 1 - Math.min(errorRate(now), 0.99);
+      return (latency(now) + 1) * (inFlight.get() + 1) / penalty;
+    }
+
+    synchronized double latency(long now) {
+      return latency * decay(now);
+    }
+
+    synchronized double errorRate(long now) {
+      return errorRate * decay(now);
+    }
+
+    /**
+     * Returns the given percentile of recent successful call latencies, or -1 if there are too few samples.
+     */
+    synchronized long latencyPercentile(double percentile) {
+      int count = Math.min(sampleCount, samples.length);
+      if (count < MIN_LATENCY_SAMPLES) {
+        return -1;
+      }
+      long[] sorted = Arrays.copyOf(samples, count);
+      Arrays.sort(sorted);
+      return sorted[(int) Math.min(count - 1, Math.ceil(percentile * count) - 1)];
+    }
+
+    private void updateLatency(long now, long observed) {
+      double currentLatency = latency(now);
+      latency = observed > currentLatency
+          ? observed
+          : currentLatency + smoothing * (observed - currentLatency);
+    }
+
+    private double decay(long now) {
+      return Math.exp(-(double) Math.max(0, now - lastUpdate) / idleDecayNanos);
+    }
+  }
+}
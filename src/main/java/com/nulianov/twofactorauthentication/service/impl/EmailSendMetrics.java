@@ -0,0 +1,44 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * The {@code twofactor.email.send} timer and {@code twofactor.email.send.errors} counter, shared by the delivery
+ * channels so every channel reports sends under the same meters.
+ */
+final class EmailSendMetrics {
+
+  private final MeterRegistry meterRegistry;
+  private final Timer successTimer;
+  private final Timer failureTimer;
+
+  EmailSendMetrics(MeterRegistry meterRegistry) {
+    this.meterRegistry = meterRegistry;
+    this.successTimer = sendTimer(meterRegistry, "success");
+    this.failureTimer = sendTimer(meterRegistry, "failure");
+  }
+
+  /**
+   * Starts timing a send.
+   */
+  Timer.Sample start() {
+    return Timer.start(meterRegistry);
+  }
+
+  void recordSuccess(Timer.Sample sample) {
+    sample.stop(successTimer);
+  }
+
+  void recordFailure(Timer.Sample sample, Exception ex) {
+    sample.stop(failureTimer);
+    meterRegistry.counter("twofactor.email.send.errors", "exception", ex.getClass().getSimpleName()).increment();
+  }
+
+  private static Timer sendTimer(MeterRegistry meterRegistry, String outcome) {
+    return Timer.builder("twofactor.email.send")
+        .description("Time spent calling the email service")
+        .tag("outcome", outcome)
+        .register(meterRegistry);
+  }
+}
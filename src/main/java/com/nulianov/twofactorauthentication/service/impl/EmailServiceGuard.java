@@ -0,0 +1,177 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import com.nulianov.twofactorauthentication.config.EmailResilienceProperties;
+import feign.FeignException;
+import feign.RetryableException;
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadConfig;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.github.resilience4j.core.IntervalFunction;
+import io.github.resilience4j.micrometer.tagged.TaggedBulkheadMetrics;
+import io.github.resilience4j.micrometer.tagged.TaggedCircuitBreakerMetrics;
+import io.github.resilience4j.micrometer.tagged.TaggedRetryMetrics;
+import io.github.resilience4j.retry.Retry;
+import io.github.resilience4j.retry.RetryConfig;
+import io.github.resilience4j.retry.RetryRegistry;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Protects calls to the email service with a retry, a circuit breaker and a bulkhead, applied in that order.
+ *
+ * <p>Only server-side failures are retried and counted by the circuit breaker: 5xx and 429 responses and I/O errors.
+ * Retries back off exponentially with random jitter and are limited by a {@link RetryBudget}, which is only drawn on
+ * when another attempt will actually be made. The bulkhead fails fast once {@code maxConcurrentCalls} sends are in
+ * flight, and an open circuit fails calls without contacting the service, so a degraded email service no longer ties
+ * up callers for a full timeout each.
+ */
+@Component
+@Slf4j
+public class EmailServiceGuard {
+
+  private static final String NAME = "emailService";
+
+  private final boolean enabled;
+  private final CircuitBreaker circuitBreaker;
+  private final Bulkhead bulkhead;
+  private final Retry retry;
+  private final RetryBudget retryBudget;
+  private final int maxAttempts;
+  // Attempts made by the call running on this thread; the retry predicate cannot see the retry context
+  private final ThreadLocal<int[]> attempts = ThreadLocal.withInitial(() -> new int[1]);
+
+  @Autowired
+  public EmailServiceGuard(EmailResilienceProperties properties, MeterRegistry meterRegistry) {
+    this.enabled = properties.isEnabled();
+    this.retryBudget = new RetryBudget(
+        properties.getRetry().getBudgetRatio(), properties.getRetry().getBudgetReserve());
+    this.maxAttempts = properties.getRetry().getMaxAttempts();
+
+    CircuitBreakerRegistry circuitBreakerRegistry = CircuitBreakerRegistry.of(circuitBreakerConfig(properties));
+    BulkheadRegistry bulkheadRegistry = BulkheadRegistry.of(bulkheadConfig(properties));
+    RetryRegistry retryRegistry = RetryRegistry.of(retryConfig(properties));
+    this.circuitBreaker = circuitBreakerRegistry.circuitBreaker(NAME);
+    this.bulkhead = bulkheadRegistry.bulkhead(NAME);
+    this.retry = retryRegistry.retry(NAME);
+
+    circuitBreaker.getEventPublisher().onStateTransition(event ->
+        log.warn("Email service circuit breaker changed state: {}", event.getStateTransition()));
+
+    TaggedCircuitBreakerMetrics.ofCircuitBreakerRegistry(circuitBreakerRegistry).bindTo(meterRegistry);
+    TaggedBulkheadMetrics.ofBulkheadRegistry(bulkheadRegistry).bindTo(meterRegistry);
+    TaggedRetryMetrics.ofRetryRegistry(retryRegistry).bindTo(meterRegistry);
+    Gauge.builder("twofactor.email.retry.budget", retryBudget, RetryBudget::available)
+        .description("Retries currently available to email service calls")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Returns a guard that calls straight through, for use when no resilience policy is wanted.
+   */
+  public static EmailServiceGuard disabled() {
+    EmailResilienceProperties properties = new EmailResilienceProperties();
+    properties.setEnabled(false);
+    return new EmailServiceGuard(properties, new SimpleMeterRegistry());
+  }
+
+  /**
+   * Runs the call under the retry, circuit breaker and bulkhead.
+   *
+   * @param call the call to the email service
+   * @return the call's result
+   * @throws io.github.resilience4j.circuitbreaker.CallNotPermittedException if the circuit is open
+   * @throws io.github.resilience4j.bulkhead.BulkheadFullException         if too many calls are in flight
+   */
+  public <T> T execute(Supplier<T> call) {
+    if (!enabled) {
+      return call.get();
+    }
+    retryBudget.deposit();
+    Supplier<T> guarded = CircuitBreaker.decorateSupplier(circuitBreaker, Bulkhead.decorateSupplier(bulkhead, call));
+    int[] attempt = attempts.get();
+    int outer = attempt[0];
+    attempt[0] = 0;
+    try {
+      return Retry.decorateSupplier(retry, () -> {
+        attempt[0]++;
+        return guarded.get();
+      }).get();
+    } finally {
+      attempt[0] = outer;
+    }
+  }
+
+  public void execute(Runnable call) {
+    execute(() -> {
+      call.run();
+      return null;
+    });
+  }
+
+  /**
+   * Takes a bulkhead permit without waiting, for a request made outside {@link #execute(Supplier)} such as a hedge.
+   * A permit taken here must be given back with {@link #releasePermission()}.
+   */
+  boolean tryAcquirePermission() {
+    return !enabled || bulkhead.tryAcquirePermission();
+  }
+
+  void releasePermission() {
+    if (enabled) {
+      bulkhead.onComplete();
+    }
+  }
+
+  public CircuitBreaker.State getCircuitBreakerState() {
+    return circuitBreaker.getState();
+  }
+
+  private static CircuitBreakerConfig circuitBreakerConfig(EmailResilienceProperties properties) {
+    EmailResilienceProperties.CircuitBreaker config = properties.getCircuitBreaker();
+    return CircuitBreakerConfig.custom()
+        .failureRateThreshold(config.getFailureRateThreshold())
+        .slowCallRateThreshold(config.getSlowCallRateThreshold())
+        .slowCallDurationThreshold(config.getSlowCallDuration())
+        .slidingWindowSize(config.getSlidingWindowSize())
+        .minimumNumberOfCalls(config.getMinimumNumberOfCalls())
+        .waitDurationInOpenState(config.getWaitDurationInOpenState())
+        .permittedNumberOfCallsInHalfOpenState(config.getPermittedCallsInHalfOpenState())
+        .recordException(EmailServiceGuard::isServerFailure)
+        .build();
+  }
+
+  private static BulkheadConfig bulkheadConfig(EmailResilienceProperties properties) {
+    return BulkheadConfig.custom()
+        .maxConcurrentCalls(properties.getBulkhead().getMaxConcurrentCalls())
+        .maxWaitDuration(properties.getBulkhead().getMaxWaitDuration())
+        .build();
+  }
+
+  private RetryConfig retryConfig(EmailResilienceProperties properties) {
+    EmailResilienceProperties.Retry config = properties.getRetry();
+    return RetryConfig.custom()
+        .maxAttempts(config.getMaxAttempts())
+        .intervalFunction(IntervalFunction.ofExponentialRandomBackoff(
+            config.getInitialBackoff(), config.getBackoffMultiplier(), config.getJitter()))
+        .retryOnException(ex -> isServerFailure(ex) && (attempts.get()[0] >= maxAttempts || retryBudget.tryWithdraw()))
+        .build();
+  }
+
+  static boolean isServerFailure(Throwable ex) {
+    if (ex instanceof RetryableException) {
+      return true;
+    }
+    if (ex instanceof FeignException feignException) {
+      return feignException.status() >= 500 || feignException.status() == 429;
+    }
+    return false;
+  }
+}
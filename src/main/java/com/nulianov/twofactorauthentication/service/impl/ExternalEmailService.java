@@ -1,35 +1,88 @@
 package com.nulianov.twofactorauthentication.service.impl;
 
 import com.nulianov.twofactorauthentication.client.EmailServiceClient;
+import com.nulianov.twofactorauthentication.config.EmailBatchProperties;
 import com.nulianov.twofactorauthentication.exception.EmailSendingException;
 import com.nulianov.twofactorauthentication.model.EmailServiceRequest;
 import com.nulianov.twofactorauthentication.service.EmailService;
 import feign.FeignException;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 
 /**
  * Implementation of EmailService using Feign client to send emails.
+ *
+ * <p>With {@code email.batch.enabled}, concurrent sends are grouped by an {@link EmailBatcher} and submitted through
+ * the batch endpoint; each caller still blocks until its own email has been accepted or rejected. Every call to the
+ * email service goes through the {@link EmailServiceGuard} and is routed to a provider by the
+ * {@link EmailProviderRouter}.
  */
 @Service
+@Qualifier("emailDelivery")
 @Slf4j
-public class ExternalEmailService implements EmailService {
+@ConditionalOnProperty(prefix = "email.delivery", name = "channel", havingValue = "http", matchIfMissing = true)
+public class ExternalEmailService implements EmailService, DisposableBean {
 
   private final EmailServiceClient emailServiceClient;
   private final String emailSubject;
   private final String emailBodyTemplate;
+  private final EmailSendMetrics sendMetrics;
+  private final EmailServiceGuard emailServiceGuard;
+  private final EmailProviderRouter emailProviderRouter;
+  private final EmailBatcher emailBatcher;
+
+  public ExternalEmailService(
+      EmailServiceClient emailServiceClient,
+      String emailSubject,
+      String emailBodyTemplate,
+      MeterRegistry meterRegistry,
+      EmailProviderRouter emailProviderRouter
+  ) {
+    this(emailServiceClient, emailSubject, emailBodyTemplate, meterRegistry, new EmailBatchProperties(),
+        EmailServiceGuard.disabled(), emailProviderRouter);
+  }
 
   @Autowired
   public ExternalEmailService(
       EmailServiceClient emailServiceClient,
       @Value("${email.subject}") String emailSubject,
-      @Value("${email.body.template}") String emailBodyTemplate
+      @Value("${email.body.template}") String emailBodyTemplate,
+      MeterRegistry meterRegistry,
+      EmailBatchProperties batchProperties,
+      EmailServiceGuard emailServiceGuard,
+      EmailProviderRouter emailProviderRouter
   ) {
     this.emailServiceClient = emailServiceClient;
     this.emailSubject = emailSubject;
     this.emailBodyTemplate = emailBodyTemplate;
+    this.sendMetrics = new EmailSendMetrics(meterRegistry);
+    this.emailServiceGuard = emailServiceGuard;
+    this.emailProviderRouter = emailProviderRouter;
+
+    if (batchProperties.isEnabled()) {
+      DistributionSummary batchSize = DistributionSummary.builder("twofactor.email.batch.size")
+          .description("Emails per batch submitted to the email service")
+          .register(meterRegistry);
+      this.emailBatcher = new EmailBatcher(
+          requests -> emailServiceGuard.execute(() -> emailProviderRouter.execute(
+              provider -> emailServiceClient.sendEmails(provider, requests))),
+          batchSize::record,
+          batchProperties.getMaxSize(),
+          batchProperties.getLinger(),
+          batchProperties.getMaxInFlight());
+    } else {
+      this.emailBatcher = null;
+    }
   }
 
   @Override
@@ -43,15 +96,41 @@ public class ExternalEmailService implements EmailService {
         emailBody
     );
 
+    Timer.Sample sample = sendMetrics.start();
     try {
-      emailServiceClient.sendEmail(emailRequest);
+      if (emailBatcher != null) {
+        emailBatcher.send(emailRequest);
+      } else {
+        emailServiceGuard.execute(() -> emailProviderRouter.execute(provider -> {
+          emailServiceClient.sendEmail(provider, emailRequest);
+          return null;
+        }));
+      }
+      sendMetrics.recordSuccess(sample);
       log.info("Email sent successfully to {}", email);
+    } catch (EmailSendingException ese) {
+      sendMetrics.recordFailure(sample, ese);
+      log.error("Email to {} was not sent: {}", email, ese.getMessage());
+      throw ese;
+    } catch (CallNotPermittedException | BulkheadFullException ex) {
+      sendMetrics.recordFailure(sample, ex);
+      log.error("Email to {} was not sent: {}", email, ex.getMessage());
+      throw new EmailSendingException("Email service is temporarily unavailable.");
     } catch (FeignException fe) {
+      sendMetrics.recordFailure(sample, fe);
       log.error("Failed to send email to {}: {}", email, fe.getMessage());
       throw new EmailSendingException("Failed to send verification email.");
     } catch (Exception ex) {
+      sendMetrics.recordFailure(sample, ex);
       log.error("An unexpected error occurred while sending email to {}: {}", email, ex.getMessage());
       throw new EmailSendingException("An unexpected error occurred while sending verification email.");
     }
   }
+
+  @Override
+  public void destroy() {
+    if (emailBatcher != null) {
+      emailBatcher.close();
+    }
+  }
 }
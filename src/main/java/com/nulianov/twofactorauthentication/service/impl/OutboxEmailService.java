@@ -0,0 +1,376 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import com.nulianov.twofactorauthentication.config.EmailDispatchProperties;
+import com.nulianov.twofactorauthentication.config.TwoFactorAuthProperties;
+import com.nulianov.twofactorauthentication.exception.EmailSendingException;
+import com.nulianov.twofactorauthentication.journal.Journal;
+import com.nulianov.twofactorauthentication.service.EmailService;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Service;
+
+/**
+ * Asynchronous EmailService that records every message in a durable {@link Journal} before returning, and delivers
+ * it from a worker pool, retrying failed sends with jittered exponential backoff.
+ *
+ * <p>Messages that were not delivered when the application stopped are replayed from the journal on startup. A
+ * message is given up once its code has expired or after {@code max-attempts} sends, and, as with
+ * {@link QueuedEmailService}, a message superseded by a newer code for the same recipient is not sent at all.
+ *
+ * <p>Delivered messages are compacted away a segment at a time: pending messages still held by the oldest segments
+ * are appended again, then those segments are deleted.
+ */
+@Service
+@Primary
+@Slf4j
+@ConditionalOnProperty(prefix = "email.dispatch", name = "mode", havingValue = "outbox")
+public class OutboxEmailService implements EmailService, DisposableBean {
+
+  private static final long POLL_INTERVAL_MILLIS = 100;
+  private static final byte MESSAGE = 1;
+  private static final byte RESOLVED = 2;
+
+  private final EmailService delegate;
+  private final Journal journal;
+  private final MeterRegistry meterRegistry;
+  private final long messageTtlMillis;
+  private final int maxAttempts;
+  private final long initialBackoffNanos;
+  private final long maxBackoffNanos;
+  private final boolean syncEveryMessage;
+  private final Duration shutdownTimeout;
+  private final AtomicLong nextId = new AtomicLong(1);
+  private final ConcurrentMap<Long, Message> pending = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Long> latestByEmail = new ConcurrentHashMap<>();
+  private final DelayQueue<Message> due = new DelayQueue<>();
+  private final ExecutorService workers;
+  private final ScheduledExecutorService maintenance;
+
+  private volatile boolean running = true;
+
+  public OutboxEmailService(
+      EmailService delegate,
+      EmailDispatchProperties properties,
+      Duration messageTtl,
+      MeterRegistry meterRegistry
+  ) {
+    this(delegate, properties, messageTtl, meterRegistry, false);
+  }
+
+  @Autowired
+  public OutboxEmailService(
+      @Qualifier("emailDelivery") EmailService delegate,
+      EmailDispatchProperties properties,
+      TwoFactorAuthProperties authProperties,
+      MeterRegistry meterRegistry,
+      @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads
+  ) {
+    this(delegate, properties, Duration.ofSeconds(authProperties.getCodeValidityDuration()), meterRegistry,
+        virtualThreads);
+  }
+
+  private OutboxEmailService(
+      EmailService delegate,
+      EmailDispatchProperties properties,
+      Duration messageTtl,
+      MeterRegistry meterRegistry,
+      boolean virtualThreads
+  ) {
+    EmailDispatchProperties.Outbox outbox = properties.getOutbox();
+    this.delegate = delegate;
+    this.meterRegistry = meterRegistry;
+    this.messageTtlMillis = messageTtl.toMillis();
+    this.maxAttempts = outbox.getMaxAttempts();
+    this.initialBackoffNanos = outbox.getInitialBackoff().toNanos();
+    this.maxBackoffNanos = outbox.getMaxBackoff().toNanos();
+    this.syncEveryMessage = outbox.getSyncInterval().isZero();
+    this.shutdownTimeout = properties.getShutdownTimeout();
+    this.journal = Journal.open(Path.of(outbox.getPath()), Math.toIntExact(outbox.getSegmentSize().toBytes()));
+    restore();
+
+    ThreadFactory threadFactory = virtualThreads
+        ? Thread.ofVirtual().name("email-outbox-", 1).factory()
+        : Thread.ofPlatform().name("email-outbox-", 1).daemon().factory();
+    this.workers = Executors.newFixedThreadPool(properties.getWorkerThreads(), threadFactory);
+    for (int i = 0; i < properties.getWorkerThreads(); i++) {
+      workers.execute(this::drain);
+    }
+
+    this.maintenance = Executors.newSingleThreadScheduledExecutor(
+        Thread.ofPlatform().name("email-outbox-maintenance").daemon().factory());
+    if (!syncEveryMessage) {
+      long syncMillis = outbox.getSyncInterval().toMillis();
+      maintenance.scheduleWithFixedDelay(journal::force, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+    }
+    long compactMillis = outbox.getCompactInterval().toMillis();
+    maintenance.scheduleWithFixedDelay(this::compact, compactMillis, compactMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void sendEmail(String email, String code) {
+    if (!running) {
+      throw new EmailSendingException("Email dispatch is shutting down.");
+    }
+
+    Message message = new Message(nextId.getAndIncrement(), email, code, System.currentTimeMillis());
+    synchronized (message) {
+      pending.put(message.id, message);
+      try {
+        message.segment = journal.append(encode(message));
+        if (syncEveryMessage) {
+          journal.force();
+        }
+      } catch (RuntimeException ex) {
+        pending.remove(message.id);
+        log.error("Could not record verification email for {} in the outbox: {}", email, ex.getMessage());
+        throw new EmailSendingException("Could not queue verification email.");
+      }
+    }
+    latestByEmail.put(email, message.id);
+    due.add(message);
+    log.debug("Recorded verification email for {} in the outbox", email);
+  }
+
+  /**
+   * Returns the number of messages recorded but not yet delivered or given up.
+   *
+   * @return the outbox depth
+   */
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Appends the pending messages held by segments older than the active one again, then deletes those segments.
+   * Runs periodically on the maintenance thread.
+   */
+  public void compact() {
+    long activeSegment = journal.activeSegment();
+    if (journal.firstSegment() >= activeSegment) {
+      return;
+    }
+    int moved = 0;
+    for (Message message : pending.values()) {
+      synchronized (message) {
+        if (!message.resolved && message.segment < activeSegment) {
+          message.segment = journal.append(encode(message));
+          moved++;
+        }
+      }
+    }
+    // The copies have to be on disk before the segments holding the originals go
+    journal.force();
+    int deleted = journal.deleteSegmentsBefore(activeSegment);
+    log.debug("Compacted email outbox: {} segments deleted, {} pending messages moved", deleted, moved);
+  }
+
+  @Override
+  public void destroy() throws InterruptedException {
+    running = false;
+    workers.shutdown();
+    if (!workers.awaitTermination(shutdownTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+      workers.shutdownNow();
+    }
+    maintenance.shutdownNow();
+    journal.close();
+    if (!pending.isEmpty()) {
+      log.info("Email outbox stopped with {} pending emails, they will be sent after restart", pending.size());
+    }
+  }
+
+  private void drain() {
+    while (running) {
+      Message message;
+      try {
+        message = due.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      if (message != null) {
+        deliver(message);
+      }
+    }
+  }
+
+  private void deliver(Message message) {
+    if (!Objects.equals(latestByEmail.get(message.email), message.id)) {
+      log.debug("Skipped verification email for {} superseded by a newer code", message.email);
+      resolve(message);
+      return;
+    }
+    if (System.currentTimeMillis() - message.createdAt >= messageTtlMillis) {
+      log.warn("Gave up on verification email for {}: the code has expired", message.email);
+      drop(message, "expired");
+      return;
+    }
+
+    try {
+      delegate.sendEmail(message.email, message.code);
+      resolve(message);
+    } catch (Exception ex) {
+      message.attempts++;
+      if (message.attempts >= maxAttempts) {
+        log.error("Gave up on verification email for {} after {} attempts: {}",
+            message.email, message.attempts, ex.getMessage());
+        drop(message, "attempts");
+        return;
+      }
+      long backoff = backoff(message.attempts);
+      log.warn("Email to {} failed on attempt {}, retrying in {} ms: {}",
+          message.email, message.attempts, TimeUnit.NANOSECONDS.toMillis(backoff), ex.getMessage());
+      message.dueAt = System.nanoTime() + backoff;
+      due.add(message);
+    }
+  }
+
+  private void drop(Message message, String reason) {
+    meterRegistry.counter("twofactor.email.outbox.dropped", "reason", reason).increment();
+    resolve(message);
+  }
+
+  /**
+   * Marks the message as done so that it is neither sent again nor replayed after a restart.
+   */
+  private void resolve(Message message) {
+    synchronized (message) {
+      if (message.resolved) {
+        return;
+      }
+      message.resolved = true;
+      pending.remove(message.id);
+      latestByEmail.remove(message.email, message.id);
+      try {
+        journal.append(ByteBuffer.allocate(9).put(RESOLVED).putLong(message.id).flip());
+      } catch (RuntimeException ex) {
+        log.warn("Could not record completion of email to {}, it may be sent again after restart: {}",
+            message.email, ex.getMessage());
+      }
+    }
+  }
+
+  private long backoff(int attempts) {
+    long base = Math.min(maxBackoffNanos, initialBackoffNanos << Math.min(attempts - 1, 20));
+    return base / 2 + ThreadLocalRandom.current().nextLong(base / 2 + 1);
+  }
+
+  /**
+   * Rebuilds the pending messages from the journal. Records are matched by id, so a message is done once a
+   * completion record exists for it, wherever either record sits.
+   */
+  private void restore() {
+    Map<Long, Message> recorded = new HashMap<>();
+    Set<Long> resolved = new HashSet<>();
+    journal.replay((record, segment) -> {
+      byte type = record.get();
+      long id = record.getLong();
+      nextId.accumulateAndGet(id + 1, Math::max);
+      if (type == MESSAGE) {
+        Message message = decode(id, record);
+        message.segment = segment;
+        recorded.put(id, message);
+      } else {
+        resolved.add(id);
+      }
+    });
+    recorded.keySet().removeAll(resolved);
+
+    long now = System.currentTimeMillis();
+    recorded.values().stream()
+        .filter(message -> now - message.createdAt < messageTtlMillis)
+        .sorted(Comparator.comparingLong(message -> message.id))
+        .forEach(message -> {
+          pending.put(message.id, message);
+          latestByEmail.put(message.email, message.id);
+          due.add(message);
+        });
+    if (!pending.isEmpty()) {
+      log.info("Restored {} pending verification emails from the outbox", pending.size());
+    }
+  }
+
+  private static ByteBuffer encode(Message message) {
+    byte[] email = message.email.getBytes(StandardCharsets.UTF_8);
+    byte[] code = message.code.getBytes(StandardCharsets.UTF_8);
+    return ByteBuffer.allocate(1 + 8 + 8 + 4 + email.length + 4 + code.length)
+        .put(MESSAGE)
+        .putLong(message.id)
+        .putLong(message.createdAt)
+        .putInt(email.length).put(email)
+        .putInt(code.length).put(code)
+        .flip();
+  }
+
+  private static Message decode(long id, ByteBuffer record) {
+    long createdAt = record.getLong();
+    String email = readString(record);
+    String code = readString(record);
+    return new Message(id, email, code, createdAt);
+  }
+
+  private static String readString(ByteBuffer record) {
+    byte[] bytes = new byte[record.getInt()];
+    record.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * A recorded message. Its journal position and completion are guarded by its monitor; the attempt count is only
+   * touched by the worker that holds it.
+   */
+  private static final class Message implements Delayed {
+
+    private final long id;
+    private final String email;
+    private final String code;
+    private final long createdAt;
+    private long segment;
+    private boolean resolved;
+    private int attempts;
+    private volatile long dueAt = System.nanoTime();
+
+    Message(long id, String email, String code, long createdAt) {
+      this.id = id;
+      this.email = email;
+      this.code = code;
+      this.createdAt = createdAt;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(dueAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      return Long.compare(dueAt, ((Message) other).dueAt);
+    }
+  }
+}
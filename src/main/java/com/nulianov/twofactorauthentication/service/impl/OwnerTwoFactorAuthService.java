@@ -0,0 +1,158 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import com.nulianov.twofactorauthentication.client.ClusterNodeClient;
+import com.nulianov.twofactorauthentication.config.ClusterProperties;
+import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.model.TotpEnrollment;
+import com.nulianov.twofactorauthentication.model.TwoFactorAuthRequest;
+import com.nulianov.twofactorauthentication.model.VerificationOutcome;
+import com.nulianov.twofactorauthentication.model.VerificationResult;
+import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import com.nulianov.twofactorauthentication.repository.CodeRepository;
+import com.nulianov.twofactorauthentication.service.TwoFactorAuthService;
+import feign.FeignException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/**
+ * Handles requests on the instance that owns the email address, in cluster mode.
+ *
+ * <p>Requests run against the local stores, except that after a membership change the owner first takes over a
+ * pending code still held by the address's previous owner. Concurrent requests for the same address share one
+ * takeover. An instance that shuts down can also hand all of its codes over at once (see {@link CodeHandoffService}).
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(prefix = "two-factor.cluster", name = "enabled", havingValue = "true")
+public class OwnerTwoFactorAuthService implements TwoFactorAuthService {
+
+  private final TwoFactorAuthServiceImpl localService;
+  private final CodeRepository codeRepository;
+  private final ClusterMembership clusterMembership;
+  private final ClusterNodeClient clusterNodeClient;
+  private final String token;
+  private final Counter handoffs;
+  private final SingleFlight<String, Boolean> takeovers = new SingleFlight<>();
+
+  public OwnerTwoFactorAuthService(
+      TwoFactorAuthServiceImpl localService,
+      CodeRepository codeRepository,
+      ClusterMembership clusterMembership,
+      ClusterNodeClient clusterNodeClient,
+      ClusterProperties properties,
+      MeterRegistry meterRegistry
+  ) {
+    this.localService = localService;
+    this.codeRepository = codeRepository;
+    this.clusterMembership = clusterMembership;
+    this.clusterNodeClient = clusterNodeClient;
+    this.token = properties.getToken();
+    this.handoffs = Counter.builder("twofactor.cluster.handoffs")
+        .description("Pending codes taken over from another instance after a membership change or on its shutdown")
+        .register(meterRegistry);
+  }
+
+  @Override
+  public void initiateTwoFactorAuth(String email) {
+    localService.initiateTwoFactorAuth(email);
+  }
+
+  @Override
+  public VerificationResult verifyCode(String email, String code) {
+    takeOverCode(email);
+    return localService.verifyCode(email, code);
+  }
+
+  @Override
+  public boolean resendCode(String email) {
+    takeOverCode(email);
+    return localService.resendCode(email);
+  }
+
+  @Override
+  public TotpEnrollment enrollTotp(String email) {
+    return localService.enrollTotp(email);
+  }
+
+  @Override
+  public VerificationResult verifyTotp(String email, String code) {
+    return localService.verifyTotp(email, code);
+  }
+
+  /**
+   * Removes the pending code for the email address from this instance, for its new owner.
+   *
+   * @param email the user's email address
+   * @return the code data, or {@code null} if there is none
+   */
+  public CodeData releaseCode(String email) {
+    CodeData[] released = new CodeData[1];
+    codeRepository.verify(email, codeData -> {
+      released[0] = codeData;
+      return VerificationOutcome.removed(VerificationResult.of(VerificationStatus.INVALID_CODE));
+    });
+    if (released[0] != null) {
+      log.info("Released pending code for email {} to its new owner", email);
+    }
+    return released[0];
+  }
+
+  /**
+   * Takes over the pending codes that another instance streams to this one as it shuts down, keeping their creation
+   * times and attempt counts. A code already pending here for the same address was issued later and is kept.
+   *
+   * @param transfer the codes in the {@link CodeTransfer} format
+   * @return the number of codes taken over
+   * @throws IOException if the transfer is malformed or cut short; the codes read until then are kept
+   */
+  public long acceptCodes(InputStream transfer) throws IOException {
+    long start = System.nanoTime();
+    long[] accepted = new long[1];
+    long received = CodeTransfer.decode(transfer, (email, codeData) -> {
+      if (codeRepository.saveIfAbsent(email, codeData)) {
+        accepted[0]++;
+      }
+    });
+    handoffs.increment(accepted[0]);
+    log.info("Took over {} of {} pending codes handed off by another instance in {} ms", accepted[0], received,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    return accepted[0];
+  }
+
+  private void takeOverCode(String email) {
+    String previousOwner = clusterMembership.previousOwner(email);
+    if (previousOwner == null || clusterMembership.isSelf(previousOwner)) {
+      return;
+    }
+    takeovers.execute(email, () -> {
+      if (codeRepository.findByEmail(email) != null) {
+        return false;
+      }
+      URI node = clusterMembership.url(previousOwner);
+      try {
+        CodeData codeData = clusterNodeClient.releaseCode(node, token, new TwoFactorAuthRequest(email, null));
+        if (codeData == null) {
+          return false;
+        }
+        // A code initiated here while the old one was being released is newer and wins
+        if (!codeRepository.saveIfAbsent(email, codeData)) {
+          return false;
+        }
+        handoffs.increment();
+        log.info("Took over pending code for email {} from node {}", email, previousOwner);
+        return true;
+      } catch (FeignException ex) {
+        log.warn("Could not take over pending code for email {} from node {}: {}", email, previousOwner,
+            ex.getMessage());
+        return false;
+      }
+    });
+  }
+}
@@ -0,0 +1,224 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import com.nulianov.twofactorauthentication.config.EmailDispatchProperties;
+import com.nulianov.twofactorauthentication.config.EmailDispatchProperties.OverflowPolicy;
+import com.nulianov.twofactorauthentication.exception.EmailSendingException;
+import com.nulianov.twofactorauthentication.service.EmailService;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Service;
+
+/**
+ * Asynchronous EmailService that queues messages and delivers them from a worker pool.
+ *
+ * <p>The queue holds recipients rather than messages: the newest code for a recipient is kept in a side map, so a
+ * message that is still waiting in the queue is replaced instead of a second one being sent.
+ *
+ * <p>On platform threads, {@code worker-threads} workers each take the next recipient from the queue and send to it.
+ * When {@code spring.threads.virtual.enabled} is set, a single dispatcher takes recipients from the queue instead and
+ * sends to each on a virtual thread of its own, with at most {@code max-concurrent-sends} sends in flight, so a slow
+ * email service parks cheap threads rather than capping throughput at the pool size.
+ */
+@Service
+@Primary
+@Slf4j
+@ConditionalOnProperty(prefix = "email.dispatch", name = "mode", havingValue = "queue", matchIfMissing = true)
+public class QueuedEmailService implements EmailService, DisposableBean {
+
+  private static final long POLL_INTERVAL_MILLIS = 100;
+
+  private final EmailService delegate;
+  private final OverflowPolicy overflowPolicy;
+  private final Duration shutdownTimeout;
+  private final BlockingQueue<String> queue;
+  private final ConcurrentMap<String, String> pendingCodes = new ConcurrentHashMap<>();
+  private final ExecutorService workers;
+  private final ExecutorService senders;
+  private final Semaphore sendPermits;
+
+  private volatile boolean running = true;
+
+  public QueuedEmailService(EmailService delegate, EmailDispatchProperties properties) {
+    this(delegate, properties, false);
+  }
+
+  @Autowired
+  public QueuedEmailService(
+      @Qualifier("emailDelivery") EmailService delegate,
+      EmailDispatchProperties properties,
+      @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads
+  ) {
+    this.delegate = delegate;
+    this.overflowPolicy = properties.getOverflowPolicy();
+    this.shutdownTimeout = properties.getShutdownTimeout();
+    this.queue = new ArrayBlockingQueue<>(properties.getQueueCapacity());
+
+    if (virtualThreads) {
+      this.workers = Executors.newSingleThreadExecutor(Thread.ofVirtual().name("email-dispatcher").factory());
+      this.senders = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("email-dispatch-", 1).factory());
+      this.sendPermits = new Semaphore(properties.getMaxConcurrentSends());
+      workers.execute(this::dispatch);
+    } else {
+      ThreadFactory threadFactory = Thread.ofPlatform().name("email-dispatch-", 1).daemon().factory();
+      this.workers = Executors.newFixedThreadPool(properties.getWorkerThreads(), threadFactory);
+      this.senders = null;
+      this.sendPermits = null;
+      for (int i = 0; i < properties.getWorkerThreads(); i++) {
+        workers.execute(this::drain);
+      }
+    }
+  }
+
+  @Override
+  public void sendEmail(String email, String code) {
+    if (!running) {
+      throw new EmailSendingException("Email dispatch is shutting down.");
+    }
+
+    if (pendingCodes.put(email, code) != null) {
+      log.debug("Replaced queued verification email for {}", email);
+      return;
+    }
+
+    while (!queue.offer(email)) {
+      switch (overflowPolicy) {
+        case DROP_OLDEST -> {
+          String dropped = queue.poll();
+          if (dropped != null && pendingCodes.remove(dropped) != null) {
+            log.warn("Email dispatch queue is full, dropped queued email for {}", dropped);
+          }
+        }
+        case CALLER_RUNS -> {
+          String latestCode = pendingCodes.remove(email);
+          if (latestCode != null) {
+            log.warn("Email dispatch queue is full, sending email to {} on the calling thread", email);
+            delegate.sendEmail(email, latestCode);
+          }
+          return;
+        }
+        default -> {
+          if (!pendingCodes.remove(email, code)) {
+            // A concurrent caller replaced the code and was told it is queued, so it has to be sent from here
+            String latestCode = pendingCodes.remove(email);
+            if (latestCode != null) {
+              log.warn("Email dispatch queue is full, sending email to {} on the calling thread", email);
+              delegate.sendEmail(email, latestCode);
+            }
+            return;
+          }
+          log.error("Email dispatch queue is full, rejected email for {}", email);
+          throw new EmailSendingException("Email dispatch queue is full.");
+        }
+      }
+    }
+    log.debug("Queued verification email for {}", email);
+  }
+
+  /**
+   * Returns the number of recipients currently waiting for delivery.
+   *
+   * @return the queue depth
+   */
+  public int getQueueSize() {
+    return queue.size();
+  }
+
+  @Override
+  public void destroy() throws InterruptedException {
+    running = false;
+    long deadline = System.nanoTime() + shutdownTimeout.toNanos();
+    workers.shutdown();
+    boolean drained = workers.awaitTermination(shutdownTimeout.toNanos(), TimeUnit.NANOSECONDS);
+    if (drained && senders != null) {
+      // The dispatcher has handed out every queued email, so only the sends in flight are left
+      senders.shutdown();
+      drained = senders.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+    if (!drained) {
+      log.warn("Email dispatch did not drain within {}, {} emails were not sent", shutdownTimeout, queue.size());
+      workers.shutdownNow();
+      if (senders != null) {
+        senders.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Sends to queued recipients one at a time, until shutdown has emptied the queue.
+   */
+  private void drain() {
+    String email;
+    while ((email = next()) != null) {
+      deliver(email);
+    }
+  }
+
+  /**
+   * Hands each queued recipient to a sender thread of its own, waiting for a permit when too many sends are in flight.
+   */
+  private void dispatch() {
+    String email;
+    while ((email = next()) != null) {
+      try {
+        sendPermits.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      String recipient = email;
+      senders.execute(() -> {
+        try {
+          deliver(recipient);
+        } finally {
+          sendPermits.release();
+        }
+      });
+    }
+  }
+
+  /**
+   * Waits for the next queued recipient, or returns {@code null} once shutdown has emptied the queue.
+   */
+  private String next() {
+    while (running || !queue.isEmpty()) {
+      try {
+        String email = queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        if (email != null) {
+          return email;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+    return null;
+  }
+
+  private void deliver(String email) {
+    String code = pendingCodes.remove(email);
+    if (code == null) {
+      return;
+    }
+
+    try {
+      delegate.sendEmail(email, code);
+    } catch (Exception ex) {
+      log.error("Queued email to {} could not be delivered: {}", email, ex.getMessage());
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps retries to a fraction of calls, so that retries cannot multiply the load on a service that is already failing.
+ *
+ * <p>Every call deposits {@code ratio} of a retry and every retry withdraws a whole one. The balance starts at
+ * {@code reserve} retries and is capped at twice that, so a quiet period cannot bank an unbounded burst of retries.
+ */
+final class RetryBudget {
+
+  private static final long UNIT = 1000;
+
+  private final long deposit;
+  private final long capacity;
+  private final AtomicLong balance;
+
+  RetryBudget(double ratio, int reserve) {
+    this.deposit = Math.round(ratio * UNIT);
+    this.capacity = 2 * reserve * UNIT;
+    this.balance = new AtomicLong(reserve * UNIT);
+  }
+
+  void deposit() {
+    balance.getAndUpdate(current -> Math.min(capacity, current + deposit));
+  }
+
+  boolean tryWithdraw() {
+    while (true) {
+      long current = balance.get();
+      if (current < UNIT) {
+        return false;
+      }
+      if (balance.compareAndSet(current, current - UNIT)) {
+        return true;
+      }
+    }
+  }
+
+  double available() {
+    return (double) balance.get() / UNIT;
+  }
+}
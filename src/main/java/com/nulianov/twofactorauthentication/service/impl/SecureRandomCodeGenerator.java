@@ -0,0 +1,135 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import com.nulianov.twofactorauthentication.config.CodeGeneratorProperties;
+import com.nulianov.twofactorauthentication.service.CodeGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Generates codes of a configured length from a configured alphabet using {@link SecureRandom}.
+ *
+ * <p>Random bytes are drawn in bulk into a buffer and codes are taken from the buffer, so most codes cost no call into
+ * the random number generator at all. Every platform thread has its own generator and buffer, which avoids the lock
+ * inside a shared {@link SecureRandom}; the generator is a DRBG seeded once from the operating system, so refilling
+ * the buffer does not make a system call either. Virtual threads are not reused, so they borrow the same state from a
+ * shared pool instead.
+ *
+ * <p>Bytes that would favour the first characters of the alphabet are discarded, so every character is equally
+ * likely.
+ */
+@Component
+public class SecureRandomCodeGenerator implements CodeGenerator {
+
+  private final int length;
+  private final char[] alphabet;
+  private final int bufferSize;
+  private final int byteLimit;
+  private final Supplier<SecureRandom> randomFactory;
+  private final ThreadLocal<Entropy> threadEntropy;
+  private final ConcurrentLinkedQueue<Entropy> sharedEntropy = new ConcurrentLinkedQueue<>();
+
+  @Autowired
+  public SecureRandomCodeGenerator(CodeGeneratorProperties properties) {
+    this(properties.getLength(), properties.getAlphabet(), properties.getBufferSize(),
+        SecureRandomCodeGenerator::newSecureRandom);
+  }
+
+  /**
+   * Creates a generator.
+   *
+   * @param length        the number of characters in each code
+   * @param alphabet      the characters codes are made of; at least 2 and at most 256 distinct characters
+   * @param bufferSize    the number of random bytes drawn at a time
+   * @param randomFactory creates the generator for each thread
+   */
+  SecureRandomCodeGenerator(int length, String alphabet, int bufferSize, Supplier<SecureRandom> randomFactory) {
+    if (length < 1) {
+      throw new IllegalArgumentException("Code length must be positive");
+    }
+    if (alphabet == null || alphabet.length() < 2 || alphabet.length() > 256
+        || alphabet.chars().distinct().count() != alphabet.length()) {
+      throw new IllegalArgumentException("Code alphabet must have 2 to 256 distinct characters");
+    }
+    if (bufferSize < 1) {
+      throw new IllegalArgumentException("Code generator buffer size must be positive");
+    }
+    this.length = length;
+    this.alphabet = alphabet.toCharArray();
+    this.bufferSize = bufferSize;
+    this.byteLimit = 256 - 256 % alphabet.length();
+    this.randomFactory = randomFactory;
+    this.threadEntropy = ThreadLocal.withInitial(this::newEntropy);
+  }
+
+  @Override
+  public String generate() {
+    boolean virtual = Thread.currentThread().isVirtual();
+    Entropy entropy = virtual ? borrowEntropy() : threadEntropy.get();
+    try {
+      char[] code = new char[length];
+      for (int i = 0; i < length; i++) {
+        code[i] = alphabet[entropy.nextIndex()];
+      }
+      return new String(code);
+    } finally {
+      if (virtual) {
+        sharedEntropy.offer(entropy);
+      }
+    }
+  }
+
+  private Entropy borrowEntropy() {
+    Entropy entropy = sharedEntropy.poll();
+    return entropy != null ? entropy : newEntropy();
+  }
+
+  private Entropy newEntropy() {
+    return new Entropy(randomFactory.get(), new byte[bufferSize]);
+  }
+
+  private static SecureRandom newSecureRandom() {
+    try {
+      return SecureRandom.getInstance("DRBG");
+    } catch (NoSuchAlgorithmException e) {
+      return new SecureRandom();
+    }
+  }
+
+  /**
+   * A {@link SecureRandom} with a buffer of bytes drawn from it and not used yet.
+   */
+  private final class Entropy {
+
+    private final SecureRandom random;
+    private final byte[] buffer;
+    private int position;
+
+    Entropy(SecureRandom random, byte[] buffer) {
+      this.random = random;
+      this.buffer = buffer;
+      this.position = buffer.length;
+    }
+
+    /**
+     * Returns a uniformly distributed index into the alphabet.
+     */
+    int nextIndex() {
+      while (true) {
+        if (position == buffer.length) {
+          random.nextBytes(buffer);
+          position = 0;
+        }
+        int value = buffer[position] & 0xff;
+        // Clear used bytes so that issued codes cannot be read back from the buffer later
+        buffer[position++] = 0;
+        if (value < byteLimit) {
+          return value % alphabet.length;
+        }
+      }
+    }
+  }
+}
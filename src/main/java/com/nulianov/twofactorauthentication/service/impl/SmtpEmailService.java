@@ -0,0 +1,218 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import com.nulianov.twofactorauthentication.config.SmtpProperties;
+import com.nulianov.twofactorauthentication.exception.EmailSendingException;
+import com.nulianov.twofactorauthentication.service.EmailService;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/**
+ * Implementation of EmailService that delivers straight to an SMTP server.
+ *
+ * <p>Connections are kept open in a pool of up to {@code poolSize} and reused across messages, so the greeting,
+ * EHLO, STARTTLS and AUTH exchanges happen once per connection instead of once per message. A pooled connection is
+ * not probed before use; if it turns out to be dead, the message is sent again once on a fresh connection. A message
+ * whose recipient is refused does not cost the connection.
+ */
+@Service
+@Qualifier("emailDelivery")
+@Slf4j
+@ConditionalOnProperty(prefix = "email.delivery", name = "channel", havingValue = "smtp")
+public class SmtpEmailService implements EmailService, DisposableBean {
+
+  private final SmtpProperties properties;
+  private final Session session;
+  private final InternetAddress from;
+  private final String emailSubject;
+  private final String emailBodyTemplate;
+  private final Semaphore permits;
+  private final ConcurrentLinkedDeque<PooledTransport> idle = new ConcurrentLinkedDeque<>();
+  private final EmailSendMetrics sendMetrics;
+
+  @Autowired
+  public SmtpEmailService(
+      SmtpProperties properties,
+      @Value("${email.subject}") String emailSubject,
+      @Value("${email.body.template}") String emailBodyTemplate,
+      MeterRegistry meterRegistry
+  ) {
+    this.properties = properties;
+    this.session = Session.getInstance(sessionProperties(properties));
+    this.emailSubject = emailSubject;
+    this.emailBodyTemplate = emailBodyTemplate;
+    this.permits = new Semaphore(properties.getPoolSize());
+    this.sendMetrics = new EmailSendMetrics(meterRegistry);
+    try {
+      this.from = new InternetAddress(properties.getFrom());
+    } catch (MessagingException e) {
+      throw new IllegalArgumentException("Invalid email.smtp.from address: " + properties.getFrom(), e);
+    }
+
+    Gauge.builder("twofactor.email.smtp.connections.idle", idle, ConcurrentLinkedDeque::size)
+        .description("Open SMTP connections waiting in the pool")
+        .register(meterRegistry);
+  }
+
+  @Override
+  public void sendEmail(String email, String code) {
+    log.info("Attempting to send email to {}", email);
+    Timer.Sample sample = sendMetrics.start();
+    try {
+      MimeMessage message = createMessage(email, code);
+      send(message);
+      sendMetrics.recordSuccess(sample);
+      log.info("Email sent successfully to {}", email);
+    } catch (MessagingException ex) {
+      sendMetrics.recordFailure(sample, ex);
+      log.error("Failed to send email to {}: {}", email, ex.getMessage());
+      throw new EmailSendingException("Failed to send verification email.");
+    } catch (EmailSendingException ex) {
+      sendMetrics.recordFailure(sample, ex);
+      log.error("Email to {} was not sent: {}", email, ex.getMessage());
+      throw ex;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      sendMetrics.recordFailure(sample, ex);
+      throw new EmailSendingException("Interrupted while waiting for an SMTP connection.");
+    }
+  }
+
+  /**
+   * Returns the number of open connections currently waiting in the pool.
+   */
+  public int getIdleConnections() {
+    return idle.size();
+  }
+
+  @Override
+  public void destroy() {
+    PooledTransport pooled;
+    while ((pooled = idle.pollFirst()) != null) {
+      pooled.close();
+    }
+  }
+
+  private void send(MimeMessage message) throws MessagingException, InterruptedException {
+    if (!permits.tryAcquire(properties.getBorrowTimeout().toMillis(), TimeUnit.MILLISECONDS)) {
+      throw new EmailSendingException("No SMTP connection available.");
+    }
+    try {
+      PooledTransport pooled = idle.pollFirst();
+      if (pooled != null) {
+        try {
+          pooled.send(message);
+          release(pooled);
+          return;
+        } catch (SendFailedException ex) {
+          release(pooled);
+          throw ex;
+        } catch (MessagingException ex) {
+          log.debug("Pooled SMTP connection failed, retrying on a new one: {}", ex.getMessage());
+          pooled.close();
+        }
+      }
+
+      pooled = connect();
+      try {
+        pooled.send(message);
+      } catch (SendFailedException ex) {
+        release(pooled);
+        throw ex;
+      } catch (MessagingException ex) {
+        pooled.close();
+        throw ex;
+      }
+      release(pooled);
+    } finally {
+      permits.release();
+    }
+  }
+
+  private PooledTransport connect() throws MessagingException {
+    Transport transport = session.getTransport("smtp");
+    if (properties.getUsername() != null) {
+      transport.connect(properties.getHost(), properties.getPort(), properties.getUsername(), properties.getPassword());
+    } else {
+      transport.connect(properties.getHost(), properties.getPort(), null, null);
+    }
+    log.debug("Opened SMTP connection to {}:{}", properties.getHost(), properties.getPort());
+    return new PooledTransport(transport);
+  }
+
+  private void release(PooledTransport pooled) {
+    if (pooled.sent >= properties.getMaxMessagesPerConnection()) {
+      pooled.close();
+    } else {
+      idle.offerFirst(pooled);
+    }
+  }
+
+  private MimeMessage createMessage(String email, String code) throws MessagingException {
+    MimeMessage message = new MimeMessage(session);
+    message.setFrom(from);
+    message.setRecipient(Message.RecipientType.TO, new InternetAddress(email));
+    message.setSubject(emailSubject);
+    message.setText(emailBodyTemplate.replace("{code}", code));
+    message.saveChanges();
+    return message;
+  }
+
+  private static Properties sessionProperties(SmtpProperties properties) {
+    Properties sessionProperties = new Properties();
+    sessionProperties.put("mail.smtp.host", properties.getHost());
+    sessionProperties.put("mail.smtp.port", String.valueOf(properties.getPort()));
+    sessionProperties.put("mail.smtp.auth", String.valueOf(properties.getUsername() != null));
+    sessionProperties.put("mail.smtp.starttls.enable", String.valueOf(properties.isStartTls()));
+    sessionProperties.put("mail.smtp.starttls.required", String.valueOf(properties.isStartTls()));
+    sessionProperties.put("mail.smtp.connectiontimeout", String.valueOf(properties.getConnectionTimeout().toMillis()));
+    sessionProperties.put("mail.smtp.timeout", String.valueOf(properties.getTimeout().toMillis()));
+    sessionProperties.put("mail.smtp.writetimeout", String.valueOf(properties.getTimeout().toMillis()));
+    sessionProperties.put("mail.smtp.quitwait", "false");
+    return sessionProperties;
+  }
+
+  /**
+   * An open connection and the number of messages sent over it.
+   */
+  private static final class PooledTransport {
+
+    private final Transport transport;
+    private int sent;
+
+    PooledTransport(Transport transport) {
+      this.transport = transport;
+    }
+
+    void send(MimeMessage message) throws MessagingException {
+      transport.sendMessage(message, message.getAllRecipients());
+      sent++;
+    }
+
+    void close() {
+      try {
+        transport.close();
+      } catch (MessagingException ex) {
+        log.debug("Failed to close SMTP connection: {}", ex.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,270 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.nulianov.twofactorauthentication.config.ChallengeProperties;
+import com.nulianov.twofactorauthentication.config.ClusterProperties;
+import com.nulianov.twofactorauthentication.config.TwoFactorAuthProperties;
+import com.nulianov.twofactorauthentication.exception.RateLimitExceededException;
+import com.nulianov.twofactorauthentication.model.CodeIssue;
+import com.nulianov.twofactorauthentication.model.TotpEnrollment;
+import com.nulianov.twofactorauthentication.model.VerificationResult;
+import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import com.nulianov.twofactorauthentication.service.CodeGenerator;
+import com.nulianov.twofactorauthentication.service.EmailService;
+import com.nulianov.twofactorauthentication.service.TwoFactorAuthService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Service;
+
+/**
+ * Stateless challenge mode: codes are not stored, so instances share nothing but the signing key.
+ *
+ * <p>Initiate and resend return a {@link ChallengeSigner signed challenge} that carries the creation time and a MAC of
+ * the code, and verify checks the submitted code against the challenge alone. All that is kept is a
+ * {@link ChallengeTracker} of the challenges that have been verified, for attempt counting and to reject a challenge
+ * once it was used. The tracker is local to the instance: behind a load balancer a challenge can be guessed at up to
+ * {@code max-attempts} times on every instance, and a used challenge can be replayed on an instance that has not seen
+ * it until it expires. Resend is refused while the previous challenge presented with it, or the last code this
+ * instance issued for the address, is younger than the resend interval; the issue times are kept for one interval, up
+ * to {@code tracked-challenges} addresses. If more challenges are verified within one code validity period than the
+ * tracker holds, further ones are refused as rate limited until the next period.
+ *
+ * <p>Time-based one-time passwords keep their own store and are handled by {@link TwoFactorAuthServiceImpl}.
+ */
+@Service
+@Primary
+@Slf4j
+@ConditionalOnProperty(prefix = "two-factor.challenge", name = "enabled", havingValue = "true")
+public class StatelessTwoFactorAuthService implements TwoFactorAuthService {
+
+  private final TwoFactorAuthServiceImpl totpService;
+  private final EmailService emailService;
+  private final CodeGenerator codeGenerator;
+  private final ChallengeSigner signer;
+  private final ChallengeTracker tracker;
+  private final long validitySeconds;
+  private final long resendIntervalSeconds;
+  private final int maxAttempts;
+  private final LongSupplier epochSecondClock;
+  private final SecureRandom secureRandom = new SecureRandom();
+  private final Map<VerificationStatus, Counter> verificationCounters = new EnumMap<>(VerificationStatus.class);
+  private final SingleFlight<String, String> initiates = new SingleFlight<>();
+  private final SingleFlight<String, String> resends = new SingleFlight<>();
+  private final Cache<String, Long> lastIssued;
+
+  @Autowired
+  public StatelessTwoFactorAuthService(
+      TwoFactorAuthProperties properties,
+      ChallengeProperties challengeProperties,
+      ClusterProperties clusterProperties,
+      TwoFactorAuthServiceImpl totpService,
+      EmailService emailService,
+      CodeGenerator codeGenerator,
+      MeterRegistry meterRegistry
+  ) {
+    this(properties, challengeProperties, clusterProperties, totpService, emailService, codeGenerator, meterRegistry,
+        () -> Instant.now().getEpochSecond());
+  }
+
+  StatelessTwoFactorAuthService(
+      TwoFactorAuthProperties properties,
+      ChallengeProperties challengeProperties,
+      ClusterProperties clusterProperties,
+      TwoFactorAuthServiceImpl totpService,
+      EmailService emailService,
+      CodeGenerator codeGenerator,
+      MeterRegistry meterRegistry,
+      LongSupplier epochSecondClock
+  ) {
+    if (clusterProperties.isEnabled()) {
+      throw new IllegalStateException("Challenge mode and cluster mode cannot be enabled together");
+    }
+    if (properties.getMaxAttempts() < 1 || properties.getMaxAttempts() >= ChallengeTracker.TERMINATED) {
+      throw new IllegalArgumentException("Challenge mode needs max-attempts between 1 and "
+          + (ChallengeTracker.TERMINATED - 1));
+    }
+    this.totpService = totpService;
+    this.emailService = emailService;
+    this.codeGenerator = codeGenerator;
+    this.signer = new ChallengeSigner(keys(challengeProperties));
+    this.validitySeconds = properties.getCodeValidityDuration();
+    this.resendIntervalSeconds = properties.getResendInterval();
+    this.maxAttempts = properties.getMaxAttempts();
+    this.tracker = new ChallengeTracker(Math.max(1, validitySeconds), challengeProperties.getTrackedChallenges());
+    this.epochSecondClock = epochSecondClock;
+    this.lastIssued = Caffeine.newBuilder()
+        .expireAfterWrite(Duration.ofSeconds(resendIntervalSeconds))
+        .maximumSize(challengeProperties.getTrackedChallenges())
+        .build();
+    for (VerificationStatus status : VerificationStatus.values()) {
+      verificationCounters.put(status, Counter.builder("twofactor.verification")
+          .description("Verification attempts by outcome")
+          .tag("status", status.name())
+          .register(meterRegistry));
+    }
+    Gauge.builder("twofactor.challenge.tracked", tracker, ChallengeTracker::size)
+        .description("Verified challenges tracked for attempt counting and replay")
+        .register(meterRegistry);
+  }
+
+  @Override
+  public String initiateChallenge(String email) {
+    log.info("Initiating two-factor authentication for email: {}", email);
+    return initiates.execute(email, () -> {
+      String challenge = issueCode(email, epochSecondClock.getAsLong());
+      log.info("Sent verification email to {}", email);
+      return challenge;
+    });
+  }
+
+  @Override
+  public void initiateTwoFactorAuth(String email) {
+    initiateChallenge(email);
+  }
+
+  @Override
+  public VerificationResult verifyCode(String email, String code, String challenge) {
+    log.info("Verifying code for email: {}", email);
+    VerificationStatus status = verify(email, code, challenge);
+    log.debug("Verification result for email {}: {}", email, status);
+    verificationCounters.get(status).increment();
+    return VerificationResult.of(status);
+  }
+
+  /**
+   * Without a challenge there is nothing to verify the code against.
+   */
+  @Override
+  public VerificationResult verifyCode(String email, String code) {
+    return verifyCode(email, code, null);
+  }
+
+  @Override
+  public CodeIssue resendChallenge(String email, String challenge) {
+    log.info("Resend code requested for email: {}", email);
+    String issued = resends.execute(email, () -> {
+      long currentTime = epochSecondClock.getAsLong();
+      // Without a valid challenge, fall back to what this instance issued, so leaving it out does not skip the interval
+      Long previousTime = lastIssued.getIfPresent(email);
+      ChallengeSigner.Challenge previous = signer.open(email, challenge);
+      if (previous != null && (previousTime == null || previous.creationTime() > previousTime)) {
+        previousTime = previous.creationTime();
+      }
+      if (previousTime != null && currentTime - previousTime < resendIntervalSeconds) {
+        log.warn("Resend interval not elapsed for email: {}", email);
+        return null;
+      }
+      String next = issueCode(email, currentTime);
+      log.debug("Generated and sent new verification code to {}", email);
+      return next;
+    });
+    return issued != null ? new CodeIssue(true, issued) : CodeIssue.NOT_ISSUED;
+  }
+
+  @Override
+  public boolean resendCode(String email) {
+    return resendChallenge(email, null).issued();
+  }
+
+  @Override
+  public TotpEnrollment enrollTotp(String email) {
+    return totpService.enrollTotp(email);
+  }
+
+  @Override
+  public VerificationResult verifyTotp(String email, String code) {
+    return totpService.verifyTotp(email, code);
+  }
+
+  private VerificationStatus verify(String email, String code, String token) {
+    ChallengeSigner.Challenge challenge = signer.open(email, token);
+    if (challenge == null) {
+      log.debug("No valid challenge presented for email: {}", email);
+      return VerificationStatus.INVALID_CODE;
+    }
+    long age = epochSecondClock.getAsLong() - challenge.creationTime();
+    if (age > validitySeconds) {
+      return VerificationStatus.CODE_EXPIRED;
+    }
+    if (age < -validitySeconds) {
+      // Issued by an instance whose clock is far ahead; the tracker cannot file it safely
+      log.warn("Rejected challenge from the future for email: {}", email);
+      return VerificationStatus.INVALID_CODE;
+    }
+
+    boolean matches = signer.matches(challenge, code);
+    try {
+      return settle(email, challenge, matches);
+    } catch (ChallengeTracker.BucketFullException e) {
+      log.error("Refused verification for email {}: {}", email, e.getMessage());
+      throw new RateLimitExceededException("Too many codes are being verified, please request a new code later.",
+          Duration.ofSeconds(tracker.secondsUntilNextBucket(epochSecondClock.getAsLong())));
+    }
+  }
+
+  /**
+   * Records the outcome of a verification in the tracker.
+   */
+  private VerificationStatus settle(String email, ChallengeSigner.Challenge challenge, boolean matches) {
+    while (true) {
+      int attempts = tracker.state(challenge.creationTime(), challenge.nonce());
+      if (attempts == ChallengeTracker.TERMINATED) {
+        log.debug("Challenge already used for email: {}", email);
+        return VerificationStatus.INVALID_CODE;
+      }
+      if (matches) {
+        if (tracker.transition(challenge.creationTime(), challenge.nonce(), attempts, ChallengeTracker.TERMINATED)) {
+          return VerificationStatus.SUCCESS;
+        }
+      } else if (attempts + 1 >= maxAttempts) {
+        if (tracker.transition(challenge.creationTime(), challenge.nonce(), attempts, ChallengeTracker.TERMINATED)) {
+          log.warn("Maximum verification attempts exceeded for email: {}", email);
+          return VerificationStatus.MAX_ATTEMPTS_EXCEEDED;
+        }
+      } else if (tracker.transition(challenge.creationTime(), challenge.nonce(), attempts, attempts + 1)) {
+        return VerificationStatus.INVALID_CODE;
+      }
+      // A concurrent verification of the same challenge got there first; decide again on its outcome
+    }
+  }
+
+  private String issueCode(String email, long creationTime) {
+    String code = codeGenerator.generate();
+    log.debug("Generated verification code for email: {}", email);
+    String challenge = signer.sign(email, code, creationTime, ChallengeTracker.usableNonce(secureRandom.nextLong()));
+    emailService.sendEmail(email, code);
+    lastIssued.put(email, creationTime);
+    return challenge;
+  }
+
+  private static List<byte[]> keys(ChallengeProperties properties) {
+    List<byte[]> keys = new ArrayList<>();
+    if (properties.getSecret() == null || properties.getSecret().isEmpty()) {
+      log.warn("No challenge secret configured; generated a random one, so challenges only verify on this instance");
+      byte[] key = new byte[32];
+      new SecureRandom().nextBytes(key);
+      keys.add(key);
+    } else {
+      keys.add(Base64.getDecoder().decode(properties.getSecret()));
+    }
+    for (String previous : properties.getPreviousSecrets()) {
+      keys.add(Base64.getDecoder().decode(previous));
+    }
+    return keys;
+  }
+}
@@ -0,0 +1,142 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.nulianov.twofactorauthentication.config.RateLimitProperties;
+import com.nulianov.twofactorauthentication.config.RateLimitProperties.Limit;
+import com.nulianov.twofactorauthentication.exception.RateLimitExceededException;
+import com.nulianov.twofactorauthentication.service.RateLimitService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * RateLimitService with one token bucket per email address and one per client address.
+ *
+ * <p>Each bucket is a single {@link AtomicLong} holding the time at which it will be full again (the generic cell
+ * rate algorithm), updated with a compare-and-set, so no locks are taken on the request path. Buckets live in a
+ * size-bounded Caffeine cache and expire once they have been idle long enough to have refilled, which loses nothing.
+ */
+@Service
+@Slf4j
+public class TokenBucketRateLimitService implements RateLimitService {
+
+  private final boolean enabled;
+  private final Buckets emailBuckets;
+  private final Buckets clientBuckets;
+  private final Counter emailRejections;
+  private final Counter clientRejections;
+
+  @Autowired
+  public TokenBucketRateLimitService(RateLimitProperties properties, MeterRegistry meterRegistry) {
+    this(properties, meterRegistry, System::nanoTime);
+  }
+
+  TokenBucketRateLimitService(RateLimitProperties properties, MeterRegistry meterRegistry, LongSupplier nanoClock) {
+    this.enabled = properties.isEnabled();
+    this.emailBuckets = new Buckets(properties.getEmail(), properties.getMaximumKeys(), nanoClock);
+    this.clientBuckets = new Buckets(properties.getClient(), properties.getMaximumKeys(), nanoClock);
+    this.emailRejections = rejectionCounter(meterRegistry, "email");
+    this.clientRejections = rejectionCounter(meterRegistry, "client");
+  }
+
+  @Override
+  public void acquireClient(String clientAddress, int permits) {
+    if (!enabled || permits <= 0) {
+      return;
+    }
+
+    if (permits > clientBuckets.capacity) {
+      clientRejections.increment();
+      log.warn("Rate limit exceeded for client: {}, {} requests at once", clientAddress, permits);
+      throw new RateLimitExceededException(
+          "Too many requests at once, at most " + clientBuckets.capacity + " are allowed.", clientBuckets.refillPeriod);
+    }
+    long wait = clientBuckets.tryAcquire(clientAddress, permits);
+    if (wait > 0) {
+      clientRejections.increment();
+      log.warn("Rate limit exceeded for client: {}", clientAddress);
+      throw new RateLimitExceededException("Too many requests, please try again later.", Duration.ofNanos(wait));
+    }
+  }
+
+  @Override
+  public void acquireEmail(String email) {
+    if (!enabled) {
+      return;
+    }
+
+    long wait = emailBuckets.tryAcquire(email.trim().toLowerCase(Locale.ROOT), 1);
+    if (wait > 0) {
+      emailRejections.increment();
+      log.warn("Rate limit exceeded for email: {}", email);
+      throw new RateLimitExceededException("Too many requests, please try again later.", Duration.ofNanos(wait));
+    }
+  }
+
+  private static Counter rejectionCounter(MeterRegistry meterRegistry, String scope) {
+    return Counter.builder("twofactor.ratelimit.rejected")
+        .description("Requests rejected by the rate limiter")
+        .tag("scope", scope)
+        .register(meterRegistry);
+  }
+
+  /**
+   * Buckets sharing one limit. A bucket stores its theoretical arrival time: the clock reading at which it will hold
+   * every token again. A request is admitted while that time is at most {@code tolerance} ahead of now, and pushes it
+   * forward by one emission interval.
+   */
+  private static final class Buckets {
+
+    private final int capacity;
+    private final Duration refillPeriod;
+    private final long emissionInterval;
+    private final long tolerance;
+    private final LongSupplier nanoClock;
+    private final long origin;
+    private final Cache<String, AtomicLong> cells;
+    private final Function<String, AtomicLong> newCell = key -> new AtomicLong();
+
+    Buckets(Limit limit, long maximumKeys, LongSupplier nanoClock) {
+      long refillPeriod = limit.getRefillPeriod().toNanos();
+      this.capacity = limit.getCapacity();
+      this.refillPeriod = limit.getRefillPeriod();
+      this.emissionInterval = Math.max(1, refillPeriod / limit.getCapacity());
+      this.tolerance = emissionInterval * (limit.getCapacity() - 1);
+      this.nanoClock = nanoClock;
+      this.origin = nanoClock.getAsLong();
+      this.cells = Caffeine.newBuilder()
+          .maximumSize(maximumKeys)
+          .expireAfterAccess(Duration.ofNanos(refillPeriod))
+          .build();
+    }
+
+    /**
+     * Takes tokens from the key's bucket, all of them or none. At most {@code capacity} tokens can be taken at once.
+     *
+     * @return zero if the tokens were taken, otherwise the nanoseconds until they will be available
+     */
+    long tryAcquire(String key, int tokens) {
+      AtomicLong cell = cells.get(key, newCell);
+      long now = nanoClock.getAsLong() - origin;
+      while (true) {
+        long arrival = cell.get();
+        long start = Math.max(arrival, now);
+        long wait = start + emissionInterval * (tokens - 1) - tolerance - now;
+        if (wait > 0) {
+          return wait;
+        }
+        if (cell.compareAndSet(arrival, start + emissionInterval * tokens)) {
+          return 0;
+        }
+      }
+    }
+  }
+}
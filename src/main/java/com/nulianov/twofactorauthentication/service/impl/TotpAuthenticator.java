@@ -0,0 +1,248 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import com.nulianov.twofactorauthentication.config.TotpProperties;
+import com.nulianov.twofactorauthentication.model.TotpEnrollment;
+import com.nulianov.twofactorauthentication.model.TotpSecret;
+import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import com.nulianov.twofactorauthentication.repository.TotpSecretRepository;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.LongSupplier;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Time-based one-time passwords as defined by RFC 6238: provisions secrets and verifies codes against them.
+ *
+ * <p>A code is accepted for the current time step and for {@code allowed-drift} steps on either side. Each accepted
+ * code moves the user's last used step forward, and codes for that step or earlier ones are rejected, so a code cannot
+ * be replayed.
+ *
+ * <p>As with emailed codes, {@code max-attempts} wrong codes in a row lock the user out: every code is then refused
+ * with {@link VerificationStatus#MAX_ATTEMPTS_EXCEEDED} for the {@code lockout} period, and an accepted code clears the
+ * count. Malformed codes are refused without counting, since they could never match.
+ *
+ * <p>Codes are computed without allocating: every platform thread keeps its own {@link Mac} and scratch buffers, and
+ * the {@link Mac} is only re-keyed when it is used with a different secret. Virtual threads are not reused, so they
+ * borrow the same state from a shared pool instead.
+ */
+@Component
+@Slf4j
+public class TotpAuthenticator {
+
+  private static final int[] POWERS_OF_TEN = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000, 10_000_000, 100_000_000};
+  private static final char[] BASE32 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567".toCharArray();
+
+  private final TotpSecretRepository totpSecretRepository;
+  private final TotpProperties.Algorithm algorithm;
+  private final String issuer;
+  private final int digits;
+  private final long periodSeconds;
+  private final int allowedDrift;
+  private final int secretSize;
+  private final int maxAttempts;
+  private final long lockoutSeconds;
+  private final LongSupplier epochSecondClock;
+  private final SecureRandom secureRandom = new SecureRandom();
+  private final ThreadLocal<HmacState> threadState;
+  private final ConcurrentLinkedQueue<HmacState> sharedStates = new ConcurrentLinkedQueue<>();
+
+  @Autowired
+  public TotpAuthenticator(TotpProperties properties, TotpSecretRepository totpSecretRepository) {
+    this(properties, totpSecretRepository, () -> Instant.now().getEpochSecond());
+  }
+
+  TotpAuthenticator(
+      TotpProperties properties,
+      TotpSecretRepository totpSecretRepository,
+      LongSupplier epochSecondClock
+  ) {
+    if (properties.getDigits() < 6 || properties.getDigits() > 8) {
+      throw new IllegalArgumentException("TOTP codes must have 6 to 8 digits");
+    }
+    this.totpSecretRepository = totpSecretRepository;
+    this.algorithm = properties.getAlgorithm();
+    this.issuer = properties.getIssuer();
+    this.digits = properties.getDigits();
+    this.periodSeconds = properties.getPeriod().toSeconds();
+    this.allowedDrift = properties.getAllowedDrift();
+    this.secretSize = properties.getSecretSize();
+    this.maxAttempts = properties.getMaxAttempts();
+    this.lockoutSeconds = properties.getLockout().toSeconds();
+    this.epochSecondClock = epochSecondClock;
+    this.threadState = ThreadLocal.withInitial(() -> new HmacState(algorithm.getMacAlgorithm()));
+  }
+
+  /**
+   * Provisions a new secret for the user, replacing any earlier one. The caller must already have established that
+   * the request comes from the owner of the email address.
+   *
+   * @param email the user's email address
+   * @return the secret to load into the user's authenticator app
+   */
+  public TotpEnrollment enroll(String email) {
+    byte[] secret = new byte[secretSize];
+    secureRandom.nextBytes(secret);
+    totpSecretRepository.save(email, new TotpSecret(new SecretKeySpec(secret, algorithm.getMacAlgorithm())));
+
+    String encodedSecret = base32(secret);
+    String uri = "otpauth://totp/" + urlEncode(issuer + ":" + email)
+        + "?secret=" + encodedSecret
+        + "&issuer=" + urlEncode(issuer)
+        + "&algorithm=" + algorithm.name()
+        + "&digits=" + digits
+        + "&period=" + periodSeconds;
+    log.info("Enrolled TOTP for email: {}", email);
+    return new TotpEnrollment(encodedSecret, uri);
+  }
+
+  /**
+   * Checks a code against the user's secret and, if it matches, consumes its time step.
+   *
+   * @param email the user's email address
+   * @param code  the code shown by the user's authenticator app
+   * @return {@link VerificationStatus#SUCCESS}; {@link VerificationStatus#MAX_ATTEMPTS_EXCEEDED} if the user is locked
+   *     out, including by this attempt; or {@link VerificationStatus#INVALID_CODE} if the user is not enrolled, the
+   *     code does not match or it was already used
+   */
+  public VerificationStatus verify(String email, String code) {
+    int submitted = parseCode(code);
+    TotpSecret secret = totpSecretRepository.findByEmail(email);
+    if (submitted < 0 || secret == null) {
+      return VerificationStatus.INVALID_CODE;
+    }
+    long now = epochSecondClock.getAsLong();
+    if (secret.isLockedAt(now)) {
+      return VerificationStatus.MAX_ATTEMPTS_EXCEEDED;
+    }
+
+    long currentStep = Math.floorDiv(now, periodSeconds);
+    for (long step = currentStep - allowedDrift; step <= currentStep + allowedDrift; step++) {
+      if (generate(secret.key(), step) == submitted) {
+        if (totpSecretRepository.markUsed(email, step)) {
+          return VerificationStatus.SUCCESS;
+        }
+        log.warn("Rejected replayed TOTP code for email: {}", email);
+        return fail(email, now);
+      }
+    }
+    return fail(email, now);
+  }
+
+  private VerificationStatus fail(String email, long now) {
+    if (totpSecretRepository.recordFailure(email, maxAttempts, now, now + lockoutSeconds)) {
+      log.warn("Locked out TOTP verification for email {} after {} failed attempts", email, maxAttempts);
+      return VerificationStatus.MAX_ATTEMPTS_EXCEEDED;
+    }
+    return VerificationStatus.INVALID_CODE;
+  }
+
+  /**
+   * Computes the code for a time step (RFC 4226 dynamic truncation of the HMAC of the step counter).
+   */
+  int generate(SecretKeySpec key, long step) {
+    boolean virtual = Thread.currentThread().isVirtual();
+    HmacState state = virtual ? borrowState() : threadState.get();
+    try {
+      byte[] counter = state.counter;
+      for (int i = 7; i >= 0; i--) {
+        counter[i] = (byte) step;
+        step >>>= 8;
+      }
+      // doFinal leaves the Mac ready for another message under the same key, and init copies the key, so only
+      // re-key when the state was last used with a different secret
+      if (state.key != key) {
+        state.mac.init(key);
+        state.key = key;
+      }
+      state.mac.update(counter);
+      state.mac.doFinal(state.digest, 0);
+
+      byte[] digest = state.digest;
+      int offset = digest[digest.length - 1] & 0x0f;
+      int binary = (digest[offset] & 0x7f) << 24
+          | (digest[offset + 1] & 0xff) << 16
+          | (digest[offset + 2] & 0xff) << 8
+          | (digest[offset + 3] & 0xff);
+      return binary % POWERS_OF_TEN[digits];
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Could not compute TOTP code", e);
+    } finally {
+      if (virtual) {
+        sharedStates.offer(state);
+      }
+    }
+  }
+
+  private HmacState borrowState() {
+    HmacState state = sharedStates.poll();
+    return state != null ? state : new HmacState(algorithm.getMacAlgorithm());
+  }
+
+  /**
+   * Returns the numeric value of the code, or -1 if it is not exactly {@code digits} decimal digits.
+   */
+  private int parseCode(String code) {
+    if (code == null || code.length() != digits) {
+      return -1;
+    }
+    int value = 0;
+    for (int i = 0; i < code.length(); i++) {
+      char c = code.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  static String base32(byte[] bytes) {
+    StringBuilder encoded = new StringBuilder((bytes.length * 8 + 4) / 5);
+    int buffer = 0;
+    int bits = 0;
+    for (byte b : bytes) {
+      buffer = (buffer << 8) | (b & 0xff);
+      bits += 8;
+      while (bits >= 5) {
+        encoded.append(BASE32[(buffer >>> (bits - 5)) & 0x1f]);
+        bits -= 5;
+      }
+    }
+    if (bits > 0) {
+      encoded.append(BASE32[(buffer << (5 - bits)) & 0x1f]);
+    }
+    return encoded.toString();
+  }
+
+  private static String urlEncode(String value) {
+    return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
+  }
+
+  /**
+   * A {@link Mac} with the buffers needed to compute one code.
+   */
+  private static final class HmacState {
+
+    private final Mac mac;
+    private final byte[] counter = new byte[8];
+    private final byte[] digest;
+    private SecretKeySpec key;
+
+    HmacState(String macAlgorithm) {
+      try {
+        this.mac = Mac.getInstance(macAlgorithm);
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("HMAC algorithm not available: " + macAlgorithm, e);
+      }
+      this.digest = new byte[mac.getMacLength()];
+    }
+  }
+}
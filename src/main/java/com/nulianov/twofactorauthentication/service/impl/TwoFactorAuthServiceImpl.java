@@ -2,94 +2,117 @@ package com.nulianov.twofactorauthentication.service.impl;
 
 import com.nulianov.twofactorauthentication.config.TwoFactorAuthProperties;
 import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.model.TotpEnrollment;
+import com.nulianov.twofactorauthentication.model.VerificationOutcome;
 import com.nulianov.twofactorauthentication.model.VerificationResult;
 import com.nulianov.twofactorauthentication.model.VerificationStatus;
 import com.nulianov.twofactorauthentication.repository.CodeRepository;
+import com.nulianov.twofactorauthentication.service.CodeGenerator;
 import com.nulianov.twofactorauthentication.service.CodeVerificationService;
 import com.nulianov.twofactorauthentication.service.EmailService;
 import com.nulianov.twofactorauthentication.service.TwoFactorAuthService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import java.time.Instant;
-import java.util.Random;
-import lombok.RequiredArgsConstructor;
+import java.util.EnumMap;
+import java.util.Map;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
 /**
  * Default implementation of TwoFactorAuthService.
+ *
+ * <p>Concurrent initiate and resend calls for the same email address, such as double clicks and client retries, are
+ * collapsed into one code generation and one email; every caller shares its outcome.
  */
 @Service
 @Slf4j
-@RequiredArgsConstructor
 public class TwoFactorAuthServiceImpl implements TwoFactorAuthService {
 
   private final TwoFactorAuthProperties properties;
   private final EmailService emailService;
   private final CodeVerificationService codeVerificationService;
   private final CodeRepository codeRepository;
+  private final CodeGenerator codeGenerator;
+  private final TotpAuthenticator totpAuthenticator;
+  private final Map<VerificationStatus, Counter> verificationCounters = new EnumMap<>(VerificationStatus.class);
+  private final Map<VerificationStatus, Counter> totpVerificationCounters = new EnumMap<>(VerificationStatus.class);
+  private final SingleFlight<String, Boolean> codeIssues = new SingleFlight<>();
+
+  public TwoFactorAuthServiceImpl(
+      TwoFactorAuthProperties properties,
+      EmailService emailService,
+      CodeVerificationService codeVerificationService,
+      CodeRepository codeRepository,
+      CodeGenerator codeGenerator,
+      TotpAuthenticator totpAuthenticator,
+      MeterRegistry meterRegistry
+  ) {
+    this.properties = properties;
+    this.emailService = emailService;
+    this.codeVerificationService = codeVerificationService;
+    this.codeRepository = codeRepository;
+    this.codeGenerator = codeGenerator;
+    this.totpAuthenticator = totpAuthenticator;
+    for (VerificationStatus status : VerificationStatus.values()) {
+      verificationCounters.put(status, Counter.builder("twofactor.verification")
+          .description("Verification attempts by outcome")
+          .tag("status", status.name())
+          .register(meterRegistry));
+      totpVerificationCounters.put(status, Counter.builder("twofactor.totp.verification")
+          .description("TOTP verification attempts by outcome")
+          .tag("status", status.name())
+          .register(meterRegistry));
+    }
+  }
 
   @Override
   public void initiateTwoFactorAuth(String email) {
     log.info("Initiating two-factor authentication for email: {}", email);
-    String code = generateSixDigitCode();
-    log.debug("Generated verification code for email: {}", email);
-
-    CodeData codeData = new CodeData(code, Instant.now().getEpochSecond());
-
-    codeRepository.save(email, codeData);
-    emailService.sendEmail(email, code);
-    log.info("Sent verification email to {}", email);
+    codeIssues.execute(email, () -> {
+      issueCode(email, Instant.now().getEpochSecond());
+      log.info("Sent verification email to {}", email);
+      return true;
+    });
   }
 
   @Override
   public VerificationResult verifyCode(String email, String code) {
     log.info("Verifying code for email: {}", email);
-    CodeData codeData = codeRepository.findByEmail(email);
-
-    if (codeData == null) {
-      log.debug("No code data found for email: {}", email);
-      return new VerificationResult(VerificationStatus.INVALID_CODE);
-    }
-
-    VerificationResult result = codeVerificationService.verify(codeData, code);
+    VerificationResult result = codeRepository.verify(email, codeData -> applyVerification(email, codeData, code));
     log.debug("Verification result for email {}: {}", email, result.status());
-
-    switch (result.status()) {
-      case SUCCESS, CODE_EXPIRED, MAX_ATTEMPTS_EXCEEDED:
-        codeRepository.deleteByEmail(email);
-        break;
-
-      case INVALID_CODE:
-        CodeData updatedCodeData = codeData.incrementAttempts();
-
-        if (updatedCodeData.attempts() >= properties.getMaxAttempts()) {
-          log.warn("Maximum verification attempts exceeded for email: {}", email);
-          codeRepository.deleteByEmail(email);
-          result = new VerificationResult(VerificationStatus.MAX_ATTEMPTS_EXCEEDED);
-        } else {
-          codeRepository.save(email, updatedCodeData);
-        }
-        break;
-
-      default:
-        break;
-    }
-
+    verificationCounters.get(result.status()).increment();
     return result;
   }
 
   @Override
   public boolean resendCode(String email) {
     log.info("Resend code requested for email: {}", email);
+    return codeIssues.execute(email, () -> resendIfAllowed(email));
+  }
+
+  @Override
+  public TotpEnrollment enrollTotp(String email) {
+    log.info("Enrolling TOTP for email: {}", email);
+    return totpAuthenticator.enroll(email);
+  }
+
+  @Override
+  public VerificationResult verifyTotp(String email, String code) {
+    log.info("Verifying TOTP code for email: {}", email);
+    VerificationStatus status = totpAuthenticator.verify(email, code);
+    log.debug("TOTP verification result for email {}: {}", email, status);
+    totpVerificationCounters.get(status).increment();
+    return VerificationResult.of(status);
+  }
+
+  private boolean resendIfAllowed(String email) {
     CodeData codeData = codeRepository.findByEmail(email);
 
     long currentTime = Instant.now().getEpochSecond();
 
     if (codeData == null || currentTime - codeData.creationTime() >= properties.getResendInterval()) {
-      String newCode = generateSixDigitCode();
-      CodeData newCodeData = new CodeData(newCode, currentTime);
-
-      codeRepository.save(email, newCodeData);
-      emailService.sendEmail(email, newCode);
+      issueCode(email, currentTime);
       log.debug("Generated and sent new verification code to {}", email);
       return true;
     } else {
@@ -98,9 +121,36 @@ public class TwoFactorAuthServiceImpl implements TwoFactorAuthService {
     }
   }
 
-  private String generateSixDigitCode() {
-    Random random = new Random();
-    int code = 100000 + random.nextInt(900000);
-    return String.valueOf(code);
+  /**
+   * Decides the verification result and the code data that remains stored. Runs atomically inside the repository, so
+   * it must not call back into it.
+   */
+  private VerificationOutcome applyVerification(String email, CodeData codeData, String code) {
+    if (codeData == null) {
+      log.debug("No code data found for email: {}", email);
+      return VerificationOutcome.removed(VerificationResult.of(VerificationStatus.INVALID_CODE));
+    }
+
+    VerificationResult result = codeVerificationService.verify(codeData, code);
+
+    return switch (result.status()) {
+      case SUCCESS, CODE_EXPIRED, MAX_ATTEMPTS_EXCEEDED -> VerificationOutcome.removed(result);
+      case INVALID_CODE -> {
+        CodeData updatedCodeData = codeData.incrementAttempts();
+
+        if (updatedCodeData.attempts() >= properties.getMaxAttempts()) {
+          log.warn("Maximum verification attempts exceeded for email: {}", email);
+          yield VerificationOutcome.removed(VerificationResult.of(VerificationStatus.MAX_ATTEMPTS_EXCEEDED));
+        }
+        yield new VerificationOutcome(updatedCodeData, result);
+      }
+    };
+  }
+
+  private void issueCode(String email, long creationTime) {
+    String code = codeGenerator.generate();
+    log.debug("Generated verification code for email: {}", email);
+    codeRepository.save(email, new CodeData(code, creationTime));
+    emailService.sendEmail(email, code);
   }
 }
@@ -0,0 +1,84 @@
+package com.nulianov.twofactorauthentication.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.nulianov.twofactorauthentication.client.ClusterNodeClient;
+import com.nulianov.twofactorauthentication.config.ClusterProperties;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+class ClusterTokenFilterTest {
+
+  private static final String TOKEN = "cluster-secret";
+
+  @Test
+  void constructor_ShouldRefuseToStart_WhenTokenIsBlank() {
+    ClusterProperties properties = new ClusterProperties();
+    properties.setToken(" ");
+
+    assertThrows(IllegalStateException.class, () -> new ClusterTokenFilter(properties));
+  }
+
+  @Test
+  void doFilter_ShouldRefuseInternalRequest_WithoutValidToken() throws Exception {
+    assertEquals(403, filter(request("/internal/cluster/codes/release", null)).getStatus());
+    assertEquals(403, filter(request("/internal/cluster/totp/enroll", "wrong")).getStatus());
+    assertEquals(403, filter(request("/internal/cluster/verify", TOKEN + "x")).getStatus());
+  }
+
+  @Test
+  void doFilter_ShouldPassInternalRequest_WithValidToken() throws Exception {
+    MockFilterChain chain = new MockFilterChain();
+
+    MockHttpServletResponse response = filter(request("/internal/cluster/verify", TOKEN), chain);
+
+    assertEquals(200, response.getStatus());
+    assertNotNull(chain.getRequest());
+  }
+
+  @Test
+  void doFilter_ShouldMatchDecodedPath_NotRawUri() throws Exception {
+    MockHttpServletRequest request = request("/internal/cluster/codes/release", null);
+    request.setRequestURI("/internal;x=1/cluster/codes/release");
+    MockFilterChain chain = new MockFilterChain();
+
+    assertEquals(403, filter(request, chain).getStatus());
+    assertNull(chain.getRequest());
+  }
+
+  @Test
+  void doFilter_ShouldIgnorePublicRequests() throws Exception {
+    MockFilterChain chain = new MockFilterChain();
+
+    filter(request("/api/auth/2fa/verify", null), chain);
+
+    assertNotNull(chain.getRequest());
+  }
+
+  private static MockHttpServletRequest request(String path, String token) {
+    MockHttpServletRequest request = new MockHttpServletRequest("POST", path);
+    request.setServletPath(path);
+    if (token != null) {
+      request.addHeader(ClusterNodeClient.TOKEN_HEADER, token);
+    }
+    return request;
+  }
+
+  private static MockHttpServletResponse filter(MockHttpServletRequest request) throws Exception {
+    return filter(request, new MockFilterChain());
+  }
+
+  private static MockHttpServletResponse filter(MockHttpServletRequest request, MockFilterChain chain)
+      throws Exception {
+    ClusterProperties properties = new ClusterProperties();
+    properties.setToken(TOKEN);
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    new ClusterTokenFilter(properties).doFilter(request, response, chain);
+    return response;
+  }
+}
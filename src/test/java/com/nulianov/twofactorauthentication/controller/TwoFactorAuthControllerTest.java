@@ -1,35 +1,68 @@
 package com.nulianov.twofactorauthentication.controller;
 
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nulianov.twofactorauthentication.config.BatchConfig;
+import com.nulianov.twofactorauthentication.config.BatchProperties;
+import com.nulianov.twofactorauthentication.config.IdempotencyProperties;
 import com.nulianov.twofactorauthentication.exception.EmailSendingException;
+import com.nulianov.twofactorauthentication.exception.RateLimitExceededException;
+import com.nulianov.twofactorauthentication.model.CodeIssue;
+import com.nulianov.twofactorauthentication.model.TotpEnrollment;
 import com.nulianov.twofactorauthentication.model.TwoFactorAuthRequest;
 import com.nulianov.twofactorauthentication.model.VerificationResult;
 import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import com.nulianov.twofactorauthentication.service.RateLimitService;
 import com.nulianov.twofactorauthentication.service.TwoFactorAuthService;
+import com.nulianov.twofactorauthentication.service.impl.CaffeineIdempotencyService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.junit.jupiter.api.Test;
+import org.mockito.Answers;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 @WebMvcTest(TwoFactorAuthController.class)
+@Import({
+    BatchConfig.class,
+    BatchProperties.class,
+    CaffeineIdempotencyService.class,
+    IdempotencyProperties.class,
+    SimpleMeterRegistry.class
+})
 class TwoFactorAuthControllerTest {
 
   @Autowired
   private MockMvc mockMvc;
 
-  @MockBean
+  // The challenge methods are interface defaults that delegate to the stubbed ones
+  @MockBean(answer = Answers.CALLS_REAL_METHODS)
   private TwoFactorAuthService twoFactorAuthService;
 
+  @MockBean
+  private RateLimitService rateLimitService;
+
   @Autowired
   private ObjectMapper objectMapper;
 
@@ -47,6 +80,17 @@ class TwoFactorAuthControllerTest {
         .andExpect(jsonPath("$.message").value("A verification code has been sent to your email."));
   }
 
+  @Test
+  void initiateTwoFactorAuth_ShouldReturnChallenge_WhenServiceIssuesOne() throws Exception {
+    when(twoFactorAuthService.initiateChallenge(email)).thenReturn("signed-challenge");
+
+    mockMvc.perform(post("/api/auth/2fa/initiate")
+            .param("email", email))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.status").value("success"))
+        .andExpect(jsonPath("$.challenge").value("signed-challenge"));
+  }
+
   @Test
   void initiateTwoFactorAuth_ShouldHandleEmailSendingException() throws Exception {
     doThrow(new EmailSendingException("Failed to send email.")).when(twoFactorAuthService).initiateTwoFactorAuth(email);
@@ -59,6 +103,45 @@ class TwoFactorAuthControllerTest {
         .andExpect(jsonPath("$.message").value("Failed to send email."));
   }
 
+  @Test
+  void initiateTwoFactorAuth_ShouldReturnTooManyRequests_WhenRateLimitExceeded() throws Exception {
+    doThrow(new RateLimitExceededException("Too many requests, please try again later.", Duration.ofMillis(1500)))
+        .when(rateLimitService).acquire(eq(email), anyString());
+
+    mockMvc.perform(post("/api/auth/2fa/initiate")
+            .param("email", email))
+        .andExpect(status().isTooManyRequests())
+        .andExpect(header().string("Retry-After", "2"))
+        .andExpect(jsonPath("$.status").value("error"))
+        .andExpect(jsonPath("$.errorCode").value("RATE_LIMIT_EXCEEDED"));
+
+    verify(twoFactorAuthService, never()).initiateTwoFactorAuth(email);
+  }
+
+  @Test
+  void initiateTwoFactorAuth_ShouldReplayResponse_WhenIdempotencyKeyIsRepeated() throws Exception {
+    for (int i = 0; i < 2; i++) {
+      mockMvc.perform(post("/api/auth/2fa/initiate")
+              .param("email", email)
+              .header("Idempotency-Key", "initiate-once"))
+          .andExpect(status().isOk())
+          .andExpect(jsonPath("$.message").value("A verification code has been sent to your email."));
+    }
+
+    verify(twoFactorAuthService, times(1)).initiateTwoFactorAuth(email);
+  }
+
+  @Test
+  void initiateTwoFactorAuth_ShouldReturnBadRequest_WhenIdempotencyKeyIsTooLong() throws Exception {
+    mockMvc.perform(post("/api/auth/2fa/initiate")
+            .param("email", email)
+            .header("Idempotency-Key", "k".repeat(256)))
+        .andExpect(status().isBadRequest())
+        .andExpect(jsonPath("$.errorCode").value("INVALID_IDEMPOTENCY_KEY"));
+
+    verify(twoFactorAuthService, never()).initiateTwoFactorAuth(email);
+  }
+
   @Test
   void verifyCode_ShouldReturnOk_WhenVerificationIsSuccessful() throws Exception {
     when(twoFactorAuthService.verifyCode(eq(email), eq(code)))
@@ -90,6 +173,20 @@ class TwoFactorAuthControllerTest {
         .andExpect(jsonPath("$.message").value("Invalid verification code."));
   }
 
+  @Test
+  void verifyCode_ShouldPassChallengeToService() throws Exception {
+    when(twoFactorAuthService.verifyCode(email, code, "signed-challenge"))
+        .thenReturn(new VerificationResult(VerificationStatus.SUCCESS));
+
+    TwoFactorAuthRequest request = new TwoFactorAuthRequest(email, code, "signed-challenge");
+
+    mockMvc.perform(post("/api/auth/2fa/verify")
+            .contentType(MediaType.APPLICATION_JSON)
+            .content(objectMapper.writeValueAsString(request)))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.status").value("success"));
+  }
+
   @Test
   void resendCode_ShouldReturnOk_WhenCodeResentSuccessfully() throws Exception {
     when(twoFactorAuthService.resendCode(email)).thenReturn(true);
@@ -113,6 +210,18 @@ class TwoFactorAuthControllerTest {
         .andExpect(jsonPath("$.message").value("You cannot request a new code at the moment."));
   }
 
+  @Test
+  void resendCode_ShouldReturnNewChallenge_WhenPreviousChallengeIsGiven() throws Exception {
+    when(twoFactorAuthService.resendChallenge(email, "old-challenge"))
+        .thenReturn(new CodeIssue(true, "new-challenge"));
+
+    mockMvc.perform(post("/api/auth/2fa/resend")
+            .param("email", email)
+            .param("challenge", "old-challenge"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.challenge").value("new-challenge"));
+  }
+
   @Test
   void resendCode_ShouldHandleEmailSendingException() throws Exception {
     doThrow(new EmailSendingException("Failed to send email.")).when(twoFactorAuthService).resendCode(email);
@@ -124,4 +233,173 @@ class TwoFactorAuthControllerTest {
         .andExpect(jsonPath("$.errorCode").value("EMAIL_SENDING_FAILED"))
         .andExpect(jsonPath("$.message").value("Failed to send email."));
   }
-}
\ No newline at end of file
+
+  @Test
+  void enrollTotp_ShouldReturnSecret_WhenEmailCodeIsValid() throws Exception {
+    TwoFactorAuthRequest request = new TwoFactorAuthRequest(email, code);
+    when(twoFactorAuthService.verifyCode(email, code)).thenReturn(new VerificationResult(VerificationStatus.SUCCESS));
+    when(twoFactorAuthService.enrollTotp(email)).thenReturn(new TotpEnrollment("SECRET", "otpauth://totp/x"));
+
+    mockMvc.perform(post("/api/auth/2fa/totp/enroll")
+            .contentType(MediaType.APPLICATION_JSON)
+            .content(objectMapper.writeValueAsString(request)))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.secret").value("SECRET"))
+        .andExpect(jsonPath("$.uri").value("otpauth://totp/x"));
+  }
+
+  @Test
+  void enrollTotp_ShouldNotEnroll_WhenEmailCodeIsInvalid() throws Exception {
+    TwoFactorAuthRequest request = new TwoFactorAuthRequest(email, code);
+    when(twoFactorAuthService.verifyCode(email, code))
+        .thenReturn(new VerificationResult(VerificationStatus.INVALID_CODE));
+
+    mockMvc.perform(post("/api/auth/2fa/totp/enroll")
+            .contentType(MediaType.APPLICATION_JSON)
+            .content(objectMapper.writeValueAsString(request)))
+        .andExpect(status().isBadRequest())
+        .andExpect(jsonPath("$.errorCode").value("INVALID_CODE"));
+
+    verify(twoFactorAuthService, never()).enrollTotp(anyString());
+  }
+
+  @Test
+  void verifyTotp_ShouldReturnOk_WhenCodeIsValid() throws Exception {
+    TwoFactorAuthRequest request = new TwoFactorAuthRequest(email, code);
+    when(twoFactorAuthService.verifyTotp(email, code)).thenReturn(new VerificationResult(VerificationStatus.SUCCESS));
+
+    mockMvc.perform(post("/api/auth/2fa/totp/verify")
+            .contentType(MediaType.APPLICATION_JSON)
+            .content(objectMapper.writeValueAsString(request)))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.status").value("success"));
+  }
+
+  @Test
+  void initiateTwoFactorAuthBatch_ShouldStreamResultPerEmailInOrder() throws Exception {
+    doThrow(new EmailSendingException("Failed to send email."))
+        .when(twoFactorAuthService).initiateTwoFactorAuth("second@example.com");
+
+    MvcResult result = mockMvc.perform(post("/api/auth/2fa/initiate/batch")
+            .contentType(MediaType.APPLICATION_JSON)
+            .content(objectMapper.writeValueAsString(List.of(email, "second@example.com", "third@example.com"))))
+        .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.length()").value(3))
+        .andExpect(jsonPath("$[0].status").value("success"))
+        .andExpect(jsonPath("$[1].status").value("error"))
+        .andExpect(jsonPath("$[1].errorCode").value("EMAIL_SENDING_FAILED"))
+        .andExpect(jsonPath("$[2].status").value("success"));
+  }
+
+  @Test
+  void verifyCodeBatch_ShouldStreamResultPerRequestInOrder() throws Exception {
+    when(twoFactorAuthService.verifyCode(email, code))
+        .thenReturn(new VerificationResult(VerificationStatus.SUCCESS));
+    when(twoFactorAuthService.verifyCode("second@example.com", code))
+        .thenReturn(new VerificationResult(VerificationStatus.CODE_EXPIRED));
+    doThrow(new RateLimitExceededException("Too many requests, please try again later.", Duration.ofSeconds(1)))
+        .when(rateLimitService).acquireEmail("third@example.com");
+
+    List<TwoFactorAuthRequest> requests = List.of(
+        new TwoFactorAuthRequest(email, code),
+        new TwoFactorAuthRequest("second@example.com", code),
+        new TwoFactorAuthRequest("third@example.com", code));
+    MvcResult result = mockMvc.perform(post("/api/auth/2fa/verify/batch")
+            .contentType(MediaType.APPLICATION_JSON)
+            .content(objectMapper.writeValueAsString(requests)))
+        .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$[0].message").value("Two-factor authentication successful."))
+        .andExpect(jsonPath("$[1].errorCode").value("CODE_EXPIRED"))
+        .andExpect(jsonPath("$[2].errorCode").value("RATE_LIMIT_EXCEEDED"));
+  }
+
+  @Test
+  void initiateTwoFactorAuthBatch_ShouldReturnPayloadTooLarge_WhenBatchExceedsMaxSize() throws Exception {
+    List<String> emails = IntStream.range(0, 101).mapToObj(i -> "user" + i + "@example.com").toList();
+
+    mockMvc.perform(post("/api/auth/2fa/initiate/batch")
+            .contentType(MediaType.APPLICATION_JSON)
+            .content(objectMapper.writeValueAsString(emails)))
+        .andExpect(status().isPayloadTooLarge())
+        .andExpect(jsonPath("$.errorCode").value("BATCH_TOO_LARGE"));
+
+    verify(twoFactorAuthService, never()).initiateTwoFactorAuth(anyString());
+  }
+
+  @Test
+  void initiateTwoFactorAuthBatch_ShouldRefuseBeforeReadingPastMaxSize() throws Exception {
+    String emails = IntStream.range(0, 100)
+        .mapToObj(i -> "\"user" + i + "@example.com\"")
+        .collect(Collectors.joining(",", "[", ",\"extra@example.com\", not json at all"));
+
+    mockMvc.perform(post("/api/auth/2fa/initiate/batch")
+            .contentType(MediaType.APPLICATION_JSON)
+            .content(emails))
+        .andExpect(status().isPayloadTooLarge())
+        .andExpect(jsonPath("$.errorCode").value("BATCH_TOO_LARGE"));
+  }
+
+  @Test
+  void initiateTwoFactorAuthBatch_ShouldReturnBadRequest_WhenBatchIsMalformed() throws Exception {
+    mockMvc.perform(post("/api/auth/2fa/initiate/batch")
+            .contentType(MediaType.APPLICATION_JSON)
+            .content("{\"email\":\"test@example.com\"}"))
+        .andExpect(status().isBadRequest())
+        .andExpect(jsonPath("$.errorCode").value("MALFORMED_BATCH"))
+        .andExpect(jsonPath("$.message").value("A batch must be a JSON array."));
+
+    mockMvc.perform(post("/api/auth/2fa/initiate/batch")
+            .contentType(MediaType.APPLICATION_JSON)
+            .content("[\"test@example.com\""))
+        .andExpect(status().isBadRequest())
+        .andExpect(jsonPath("$.errorCode").value("MALFORMED_BATCH"));
+
+    verify(twoFactorAuthService, never()).initiateTwoFactorAuth(anyString());
+  }
+
+  @Test
+  void verifyCode_ShouldReturnBadRequest_WhenBodyIsNotJson() throws Exception {
+    mockMvc.perform(post("/api/auth/2fa/verify")
+            .contentType(MediaType.APPLICATION_JSON)
+            .content("not json"))
+        .andExpect(status().isBadRequest())
+        .andExpect(jsonPath("$.errorCode").value("MALFORMED_REQUEST"));
+  }
+
+  @Test
+  void initiateTwoFactorAuthBatch_ShouldTakeOneClientPermitPerItem() throws Exception {
+    List<String> emails = List.of(email, "second@example.com", "third@example.com");
+
+    MvcResult result = mockMvc.perform(post("/api/auth/2fa/initiate/batch")
+            .contentType(MediaType.APPLICATION_JSON)
+            .content(objectMapper.writeValueAsString(emails)))
+        .andReturn();
+    mockMvc.perform(asyncDispatch(result))
+        .andExpect(status().isOk());
+
+    verify(rateLimitService).acquireClient(anyString(), eq(3));
+  }
+
+  @Test
+  void verifyCodeBatch_ShouldReturnTooManyRequests_WhenClientLimitDoesNotCoverBatch() throws Exception {
+    doThrow(new RateLimitExceededException("Too many requests, please try again later.", Duration.ofSeconds(1)))
+        .when(rateLimitService).acquireClient(anyString(), eq(2));
+    List<TwoFactorAuthRequest> requests = List.of(
+        new TwoFactorAuthRequest(email, code),
+        new TwoFactorAuthRequest("second@example.com", code));
+
+    mockMvc.perform(post("/api/auth/2fa/verify/batch")
+            .contentType(MediaType.APPLICATION_JSON)
+            .content(objectMapper.writeValueAsString(requests)))
+        .andExpect(status().isTooManyRequests())
+        .andExpect(jsonPath("$.errorCode").value("RATE_LIMIT_EXCEEDED"));
+
+    verify(twoFactorAuthService, never()).verifyCode(anyString(), anyString());
+  }
+}
@@ -0,0 +1,56 @@
+package com.nulianov.twofactorauthentication.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nulianov.twofactorauthentication.model.ApiResponse;
+import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+
+class VerificationResponsesTest {
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  private final VerificationResponses verificationResponses = new VerificationResponses(objectMapper);
+
+  @Test
+  void response_ShouldHoldSerializedSuccessBody() throws Exception {
+    ResponseEntity<byte[]> response = verificationResponses.response(VerificationStatus.SUCCESS);
+
+    assertEquals(HttpStatus.OK, response.getStatusCode());
+    assertEquals(MediaType.APPLICATION_JSON, response.getHeaders().getContentType());
+    assertArrayEquals(
+        objectMapper.writeValueAsBytes(new ApiResponse("Two-factor authentication successful.")),
+        response.getBody());
+  }
+
+  @Test
+  void response_ShouldHoldSerializedErrorBodies() throws Exception {
+    assertEquals(HttpStatus.GONE, verificationResponses.response(VerificationStatus.CODE_EXPIRED).getStatusCode());
+    assertEquals(HttpStatus.TOO_MANY_REQUESTS,
+        verificationResponses.response(VerificationStatus.MAX_ATTEMPTS_EXCEEDED).getStatusCode());
+    assertEquals(HttpStatus.BAD_REQUEST,
+        verificationResponses.response(VerificationStatus.INVALID_CODE).getStatusCode());
+
+    for (VerificationStatus status : new VerificationStatus[] {
+        VerificationStatus.CODE_EXPIRED, VerificationStatus.MAX_ATTEMPTS_EXCEEDED, VerificationStatus.INVALID_CODE}) {
+      assertArrayEquals(
+          objectMapper.writeValueAsBytes(new ApiResponse(status.name(), status.getErrorMessage())),
+          verificationResponses.response(status).getBody());
+      assertEquals(new ApiResponse(status.name(), status.getErrorMessage()), verificationResponses.body(status));
+    }
+  }
+
+  @Test
+  void response_ShouldReturnSameInstance_ForEveryRequest() {
+    for (VerificationStatus status : VerificationStatus.values()) {
+      assertSame(verificationResponses.response(status), verificationResponses.response(status));
+      assertSame(verificationResponses.body(status), verificationResponses.body(status));
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package com.nulianov.twofactorauthentication.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.nulianov.twofactorauthentication.TwoFactorAuthenticationApplication;
+import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import com.nulianov.twofactorauthentication.repository.CodeRepository;
+import com.nulianov.twofactorauthentication.service.TwoFactorAuthService;
+import com.nulianov.twofactorauthentication.service.impl.StatelessTwoFactorAuthService;
+import com.nulianov.twofactorauthentication.support.StubEmailServer;
+import java.time.Duration;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+@SpringBootTest(
+    classes = TwoFactorAuthenticationApplication.class,
+    webEnvironment = SpringBootTest.WebEnvironment.NONE,
+    properties = {
+        "two-factor.challenge.enabled=true",
+        "two-factor.challenge.secret=MDEyMzQ1Njc4OWFiY2RlZjAxMjM0NTY3ODlhYmNkZWY=",
+        "two-factor.code-validity-duration=60",
+        "email.dispatch.mode=sync"
+    })
+public class ChallengeModeIntegrationTest {
+
+  private static final StubEmailServer emailServer = StubEmailServer.start(Duration.ZERO);
+
+  @Autowired
+  private TwoFactorAuthService twoFactorAuthService;
+
+  @Autowired
+  private CodeRepository codeRepository;
+
+  @DynamicPropertySource
+  static void serverProperties(DynamicPropertyRegistry registry) {
+    registry.add("email.service.url", emailServer::baseUrl);
+  }
+
+  @AfterAll
+  static void stopServer() {
+    emailServer.close();
+  }
+
+  @Test
+  void verifyCode_ShouldAcceptCodeAgainstChallenge_WithoutStoringIt() {
+    String email = "challenge@example.com";
+    String challenge = twoFactorAuthService.initiateChallenge(email);
+
+    String body = emailServer.lastBody(email);
+    String code = body.substring(body.lastIndexOf(' ') + 1);
+
+    assertEquals(StatelessTwoFactorAuthService.class, twoFactorAuthService.getClass());
+    assertNotNull(challenge);
+    assertNull(codeRepository.findByEmail(email));
+    assertEquals(VerificationStatus.SUCCESS, twoFactorAuthService.verifyCode(email, code, challenge).status());
+    assertEquals(VerificationStatus.INVALID_CODE, twoFactorAuthService.verifyCode(email, code, challenge).status());
+  }
+}
@@ -0,0 +1,184 @@
+package com.nulianov.twofactorauthentication.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.nulianov.twofactorauthentication.TwoFactorAuthenticationApplication;
+import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.repository.CodeRepository;
+import com.nulianov.twofactorauthentication.service.impl.ClusterMembership;
+import com.nulianov.twofactorauthentication.support.StubEmailServer;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.cloud.context.environment.EnvironmentChangeEvent;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+
+/**
+ * Three instances in one JVM on loopback ports, sharing one stub email service. {@code node-1} leaves the cluster and
+ * hands its codes off to {@code node-2} and {@code node-3} as it shuts down, then restarts from its persisted store
+ * and rejoins.
+ */
+public class ClusterHandoffIntegrationTest {
+
+  private static final String TOKEN = "cluster-secret";
+  private static final int NODES = 3;
+
+  private static final StubEmailServer emailServer = StubEmailServer.start(Duration.ZERO);
+  private static final HttpClient httpClient = HttpClient.newHttpClient();
+  private static final List<ConfigurableApplicationContext> contexts = new ArrayList<>();
+  private static final int[] ports = new int[NODES];
+
+  @TempDir
+  static Path dataDirectory;
+
+  @BeforeAll
+  static void startNodes() throws IOException {
+    for (int i = 0; i < NODES; i++) {
+      try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+        ports[i] = socket.getLocalPort();
+      }
+    }
+    for (int i = 0; i < NODES; i++) {
+      contexts.add(start(i));
+    }
+  }
+
+  private static ConfigurableApplicationContext start(int node) {
+    Map<String, Object> properties = new HashMap<>(membership(0));
+    properties.put("server.port", ports[node]);
+    properties.put("server.address", "127.0.0.1");
+    properties.put("two-factor.cluster.enabled", true);
+    properties.put("two-factor.cluster.self", "node-" + (node + 1));
+    properties.put("two-factor.cluster.token", TOKEN);
+    properties.put("two-factor.cluster.handoff.enabled", node == 0);
+    properties.put("two-factor.store.caffeine.persistence.enabled", node == 0);
+    properties.put("two-factor.store.caffeine.persistence.path", dataDirectory.resolve("node-" + (node + 1)));
+    properties.put("two-factor.code-validity-duration", 60);
+    properties.put("two-factor.rate-limit.enabled", false);
+    properties.put("email.service.url", emailServer.baseUrl());
+    properties.put("email.dispatch.mode", "sync");
+    properties.put("email.resilience.enabled", false);
+    String[] args = properties.entrySet().stream()
+        .map(property -> "--" + property.getKey() + "=" + property.getValue())
+        .toArray(String[]::new);
+    return new SpringApplicationBuilder(TwoFactorAuthenticationApplication.class).run(args);
+  }
+
+  @AfterAll
+  static void stopNodes() {
+    contexts.forEach(ConfigurableApplicationContext::close);
+    emailServer.close();
+  }
+
+  @Test
+  void verify_ShouldSucceedOnceThroughRemainingNodes_AfterOwnerHandedOffItsCodesAndRejoined() throws Exception {
+    ClusterMembership membership = contexts.get(0).getBean(ClusterMembership.class);
+    Map<String, String> codes = new HashMap<>();
+    for (int i = 0; codes.size() < 10; i++) {
+      String email = "leaving" + i + "@example.com";
+      if (membership.owner(email).equals("node-1")) {
+        assertEquals(200, post(1 + i % 2, "/api/auth/2fa/initiate?email=" + email, null).statusCode());
+        String code = code(email);
+        codes.put(email, code);
+        assertEquals(400, verify(0, email, code.equals("000000") ? "111111" : "000000").statusCode());
+      }
+    }
+
+    // Remove node-1 from the membership of the others, then stop it
+    changeMembership(membership(1));
+    contexts.get(0).close();
+
+    ClusterMembership remainingMembership = contexts.get(1).getBean(ClusterMembership.class);
+    Set<String> newOwners = new HashSet<>();
+    int node = 1;
+    for (Map.Entry<String, String> entry : codes.entrySet()) {
+      String email = entry.getKey();
+      String owner = remainingMembership.owner(email);
+      newOwners.add(owner);
+      CodeData codeData = contexts.get(owner.equals("node-2") ? 1 : 2).getBean(CodeRepository.class)
+          .findByEmail(email);
+      assertNotNull(codeData, "Code for " + email + " was not handed off to " + owner);
+      assertEquals(1, codeData.attempts());
+
+      // Alternate the entry node, so some of these reach the new owner only by being forwarded
+      HttpResponse<String> response = verify(node, email, entry.getValue());
+      assertEquals(200, response.statusCode(), email + ": " + response.body());
+      node = 3 - node;
+    }
+    assertEquals(Set.of("node-2", "node-3"), newOwners);
+
+    // node-1 restarts from its persisted store and rejoins; the codes it handed off and that were used since must not
+    // come back with it
+    contexts.set(0, start(0));
+    changeMembership(membership(0));
+    CodeRepository restarted = contexts.get(0).getBean(CodeRepository.class);
+    for (Map.Entry<String, String> entry : codes.entrySet()) {
+      assertNull(restarted.findByEmail(entry.getKey()), entry.getKey() + " came back with the restarted node");
+      HttpResponse<String> response = verify(1, entry.getKey(), entry.getValue());
+      assertEquals(400, response.statusCode(), entry.getKey() + ": " + response.body());
+    }
+  }
+
+  /**
+   * Replaces the membership of the nodes other than node-1.
+   */
+  private static void changeMembership(Map<String, Object> membership) {
+    for (ConfigurableApplicationContext context : contexts.subList(1, NODES)) {
+      context.getEnvironment().getPropertySources().remove("cluster-membership");
+      context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("cluster-membership", membership));
+      context.publishEvent(new EnvironmentChangeEvent(context, Set.copyOf(membership.keySet())));
+    }
+  }
+
+  /**
+   * Returns the membership properties listing the nodes from {@code first} on.
+   */
+  private static Map<String, Object> membership(int first) {
+    Map<String, Object> properties = new HashMap<>();
+    for (int i = first; i < NODES; i++) {
+      properties.put("two-factor.cluster.nodes[" + (i - first) + "].id", "node-" + (i + 1));
+      properties.put("two-factor.cluster.nodes[" + (i - first) + "].url", "http://127.0.0.1:" + ports[i]);
+    }
+    return properties;
+  }
+
+  private static String code(String email) {
+    String body = emailServer.lastBody(email);
+    assertNotNull(body, "No email delivered to " + email);
+    return body.substring(body.lastIndexOf(' ') + 1);
+  }
+
+  private static HttpResponse<String> verify(int node, String email, String code) throws Exception {
+    return post(node, "/api/auth/2fa/verify", "{\"email\":\"" + email + "\",\"code\":\"" + code + "\"}");
+  }
+
+  private static HttpResponse<String> post(int node, String path, String json) throws Exception {
+    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + ports[node] + path));
+    if (json != null) {
+      request.header("Content-Type", "application/json").POST(HttpRequest.BodyPublishers.ofString(json));
+    } else {
+      request.POST(HttpRequest.BodyPublishers.noBody());
+    }
+    return httpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+  }
+}
@@ -0,0 +1,190 @@
+package com.nulianov.twofactorauthentication.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.nulianov.twofactorauthentication.TwoFactorAuthenticationApplication;
+import com.nulianov.twofactorauthentication.client.ClusterNodeClient;
+import com.nulianov.twofactorauthentication.service.impl.ClusterMembership;
+import com.nulianov.twofactorauthentication.support.StubEmailServer;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.cloud.context.environment.EnvironmentChangeEvent;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+
+/**
+ * Three instances in one JVM on loopback ports, sharing one stub email service, with {@code node-1} and
+ * {@code node-2} in the ring at first and {@code node-3} added later.
+ */
+public class ClusterIntegrationTest {
+
+  private static final String TOKEN = "cluster-secret";
+  private static final int NODES = 3;
+
+  private static final StubEmailServer emailServer = StubEmailServer.start(Duration.ZERO);
+  private static final HttpClient httpClient = HttpClient.newHttpClient();
+  private static final List<ConfigurableApplicationContext> contexts = new ArrayList<>();
+  private static final int[] ports = new int[NODES];
+
+  @BeforeAll
+  static void startNodes() throws IOException {
+    for (int i = 0; i < NODES; i++) {
+      try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+        ports[i] = socket.getLocalPort();
+      }
+    }
+    for (int i = 0; i < NODES; i++) {
+      Map<String, Object> properties = new HashMap<>(membership(2));
+      properties.put("server.port", ports[i]);
+      properties.put("server.address", "127.0.0.1");
+      properties.put("two-factor.cluster.enabled", true);
+      properties.put("two-factor.cluster.self", "node-" + (i + 1));
+      properties.put("two-factor.cluster.token", TOKEN);
+      properties.put("two-factor.code-validity-duration", 60);
+      properties.put("two-factor.rate-limit.enabled", false);
+      properties.put("email.service.url", emailServer.baseUrl());
+      properties.put("email.dispatch.mode", "sync");
+      properties.put("email.resilience.enabled", false);
+      // Passed as arguments, since default properties would lose to application.yml
+      String[] args = properties.entrySet().stream()
+          .map(property -> "--" + property.getKey() + "=" + property.getValue())
+          .toArray(String[]::new);
+      contexts.add(new SpringApplicationBuilder(TwoFactorAuthenticationApplication.class).run(args));
+    }
+  }
+
+  @AfterAll
+  static void stopNodes() {
+    contexts.forEach(ConfigurableApplicationContext::close);
+    emailServer.close();
+  }
+
+  @Test
+  void verify_ShouldSucceedOnEveryNode_WhenCodeWasIssuedThroughAnotherNode() throws Exception {
+    for (int i = 0; i < 6; i++) {
+      String email = "spread" + i + "@example.com";
+      assertEquals(200, post(i % 2, "/api/auth/2fa/initiate?email=" + email, null).statusCode());
+
+      // Verify through the other member; half of these reach the owner only by being forwarded
+      HttpResponse<String> response = verify((i + 1) % 2, email, code(email));
+      assertEquals(200, response.statusCode(), response.body());
+    }
+    assertTrue(forwarded(0) + forwarded(1) > 0);
+  }
+
+  @Test
+  void resend_ShouldApplyIntervalOfOwner_WhenRequestedThroughAnotherNode() throws Exception {
+    String email = "resend@example.com";
+    assertEquals(200, post(0, "/api/auth/2fa/initiate?email=" + email, null).statusCode());
+
+    assertEquals(400, post(0, "/api/auth/2fa/resend?email=" + email, null).statusCode());
+    assertEquals(400, post(1, "/api/auth/2fa/resend?email=" + email, null).statusCode());
+  }
+
+  @Test
+  void internalEndpoints_ShouldRefuseRequests_WithoutClusterToken() throws Exception {
+    HttpResponse<String> response = post(0, "/internal/cluster/verify",
+        "{\"email\":\"test@example.com\",\"code\":\"123456\"}");
+
+    assertEquals(403, response.statusCode());
+  }
+
+  @Test
+  void refreshMembership_ShouldReloadConfiguration_OnlyWithClusterToken() throws Exception {
+    assertEquals(403, post(0, "/internal/cluster/membership/refresh", null).statusCode());
+
+    HttpResponse<String> response = httpClient.send(HttpRequest.newBuilder(
+            URI.create("http://127.0.0.1:" + ports[0] + "/internal/cluster/membership/refresh"))
+        .header(ClusterNodeClient.TOKEN_HEADER, TOKEN)
+        .POST(HttpRequest.BodyPublishers.noBody())
+        .build(), HttpResponse.BodyHandlers.ofString());
+    assertEquals(200, response.statusCode(), response.body());
+  }
+
+  @Test
+  void verify_ShouldFindCodesIssuedBeforeMembershipChange() throws Exception {
+    List<String> emails = new ArrayList<>();
+    Map<String, String> codes = new HashMap<>();
+    for (int i = 0; i < 20; i++) {
+      String email = "rebalance" + i + "@example.com";
+      emails.add(email);
+      assertEquals(200, post(i % 2, "/api/auth/2fa/initiate?email=" + email, null).statusCode());
+      codes.put(email, code(email));
+    }
+
+    addThirdNode();
+
+    ClusterMembership membership = contexts.get(2).getBean(ClusterMembership.class);
+    long movedToThirdNode = emails.stream().filter(email -> membership.owner(email).equals("node-3")).count();
+    assertTrue(movedToThirdNode > 0, "Expected some addresses to move to the new node");
+
+    for (int i = 0; i < emails.size(); i++) {
+      String email = emails.get(i);
+      HttpResponse<String> response = verify(i % NODES, email, codes.get(email));
+      assertEquals(200, response.statusCode(), email + ": " + response.body());
+    }
+    double handoffs = contexts.get(2).getBean(MeterRegistry.class).counter("twofactor.cluster.handoffs").count();
+    assertEquals(movedToThirdNode, (long) handoffs);
+  }
+
+  private static void addThirdNode() {
+    Map<String, Object> nodes = membership(3);
+    for (ConfigurableApplicationContext context : contexts) {
+      context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("cluster-membership", nodes));
+      context.publishEvent(new EnvironmentChangeEvent(context, Set.copyOf(nodes.keySet())));
+    }
+  }
+
+  private static Map<String, Object> membership(int members) {
+    Map<String, Object> properties = new HashMap<>();
+    for (int i = 0; i < members; i++) {
+      properties.put("two-factor.cluster.nodes[" + i + "].id", "node-" + (i + 1));
+      properties.put("two-factor.cluster.nodes[" + i + "].url", "http://127.0.0.1:" + ports[i]);
+    }
+    return properties;
+  }
+
+  private static String code(String email) {
+    String body = emailServer.lastBody(email);
+    assertNotNull(body, "No email delivered to " + email);
+    return body.substring(body.lastIndexOf(' ') + 1);
+  }
+
+  private static double forwarded(int node) {
+    return contexts.get(node).getBean(MeterRegistry.class).find("twofactor.cluster.forwarded").counters().stream()
+        .mapToDouble(counter -> counter.count())
+        .sum();
+  }
+
+  private static HttpResponse<String> verify(int node, String email, String code) throws Exception {
+    return post(node, "/api/auth/2fa/verify", "{\"email\":\"" + email + "\",\"code\":\"" + code + "\"}");
+  }
+
+  private static HttpResponse<String> post(int node, String path, String json) throws Exception {
+    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + ports[node] + path));
+    if (json != null) {
+      request.header("Content-Type", "application/json").POST(HttpRequest.BodyPublishers.ofString(json));
+    } else {
+      request.POST(HttpRequest.BodyPublishers.noBody());
+    }
+    return httpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+  }
+}
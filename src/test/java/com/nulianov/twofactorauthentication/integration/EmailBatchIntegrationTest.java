@@ -0,0 +1,75 @@
+package com.nulianov.twofactorauthentication.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.nulianov.twofactorauthentication.TwoFactorAuthenticationApplication;
+import com.nulianov.twofactorauthentication.exception.EmailSendingException;
+import com.nulianov.twofactorauthentication.service.impl.ExternalEmailService;
+import com.nulianov.twofactorauthentication.support.StubEmailServer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+@SpringBootTest(
+    classes = TwoFactorAuthenticationApplication.class,
+    webEnvironment = SpringBootTest.WebEnvironment.NONE,
+    properties = {"email.batch.enabled=true", "email.batch.max-size=50", "email.batch.linger=50ms"})
+public class EmailBatchIntegrationTest {
+
+  private static final StubEmailServer emailServer = StubEmailServer.start(Duration.ofMillis(20));
+
+  @Autowired
+  private ExternalEmailService externalEmailService;
+
+  @DynamicPropertySource
+  static void emailServiceProperties(DynamicPropertyRegistry registry) {
+    registry.add("email.service.url", emailServer::baseUrl);
+  }
+
+  @AfterAll
+  static void stopEmailServer() {
+    emailServer.close();
+  }
+
+  @Test
+  void sendEmail_ShouldSubmitConcurrentEmailsInBatches() throws Exception {
+    int requestsBefore = emailServer.requestCount();
+    int messagesBefore = emailServer.messageCount();
+
+    try (ExecutorService callers = Executors.newVirtualThreadPerTaskExecutor()) {
+      List<Future<?>> sends = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        String email = "user" + i + "@example.com";
+        sends.add(callers.submit(() -> externalEmailService.sendEmail(email, "123456")));
+      }
+      for (Future<?> send : sends) {
+        send.get();
+      }
+    }
+
+    assertEquals(messagesBefore + 100, emailServer.messageCount());
+    assertTrue(emailServer.requestCount() - requestsBefore < 100);
+  }
+
+  @Test
+  void sendEmail_ShouldThrowEmailSendingException_WhenItemIsRejected() {
+    emailServer.reject("blocked@example.com");
+
+    EmailSendingException exception = assertThrows(
+        EmailSendingException.class,
+        () -> externalEmailService.sendEmail("blocked@example.com", "123456")
+    );
+    assertEquals("Email service rejected the message: Recipient rejected", exception.getMessage());
+  }
+}
@@ -0,0 +1,70 @@
+package com.nulianov.twofactorauthentication.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.nulianov.twofactorauthentication.TwoFactorAuthenticationApplication;
+import com.nulianov.twofactorauthentication.service.EmailService;
+import com.nulianov.twofactorauthentication.service.TwoFactorAuthService;
+import com.nulianov.twofactorauthentication.service.impl.OutboxEmailService;
+import com.nulianov.twofactorauthentication.support.StubEmailServer;
+import java.nio.file.Path;
+import java.time.Duration;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+@SpringBootTest(
+    classes = TwoFactorAuthenticationApplication.class,
+    webEnvironment = SpringBootTest.WebEnvironment.NONE,
+    properties = {
+        "email.dispatch.mode=outbox",
+        "email.dispatch.outbox.initial-backoff=20ms",
+        "email.dispatch.outbox.max-backoff=50ms",
+        "email.resilience.enabled=false",
+        "two-factor.code-validity-duration=60"
+    })
+public class EmailOutboxIntegrationTest {
+
+  private static final StubEmailServer emailServer = StubEmailServer.start(Duration.ZERO);
+
+  @TempDir
+  static Path outboxDirectory;
+
+  @Autowired
+  private TwoFactorAuthService twoFactorAuthService;
+
+  @Autowired
+  private EmailService emailService;
+
+  @DynamicPropertySource
+  static void emailServiceProperties(DynamicPropertyRegistry registry) {
+    registry.add("email.service.url", emailServer::baseUrl);
+    registry.add("email.dispatch.outbox.path", outboxDirectory::toString);
+  }
+
+  @AfterAll
+  static void stopEmailServer() {
+    emailServer.close();
+  }
+
+  @Test
+  void initiateTwoFactorAuth_ShouldSucceedAndDeliverLater_WhenEmailServiceFails() throws InterruptedException {
+    assertInstanceOf(OutboxEmailService.class, emailService);
+    emailServer.fail(503, 3);
+
+    twoFactorAuthService.initiateTwoFactorAuth("test@example.com");
+
+    long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+    while (emailServer.messageCount() == 0 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, emailServer.messageCount());
+    assertTrue(emailServer.requestCount() >= 4);
+  }
+}
@@ -0,0 +1,98 @@
+package com.nulianov.twofactorauthentication.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.nulianov.twofactorauthentication.TwoFactorAuthenticationApplication;
+import com.nulianov.twofactorauthentication.exception.EmailSendingException;
+import com.nulianov.twofactorauthentication.service.impl.EmailServiceGuard;
+import com.nulianov.twofactorauthentication.service.impl.ExternalEmailService;
+import com.nulianov.twofactorauthentication.support.StubEmailServer;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import java.time.Duration;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+@SpringBootTest(
+    classes = TwoFactorAuthenticationApplication.class,
+    webEnvironment = SpringBootTest.WebEnvironment.NONE,
+    properties = {
+        "email.resilience.retry.initial-backoff=10ms",
+        "email.resilience.circuit-breaker.sliding-window-size=4",
+        "email.resilience.circuit-breaker.minimum-number-of-calls=4",
+        "email.resilience.circuit-breaker.slow-call-duration=200ms",
+        "spring.cloud.openfeign.client.config.emailServiceClient.read-timeout=1000"
+    })
+public class EmailResilienceIntegrationTest {
+
+  private static final StubEmailServer emailServer = StubEmailServer.start(Duration.ZERO);
+
+  @Autowired
+  private ExternalEmailService externalEmailService;
+
+  @Autowired
+  private EmailServiceGuard emailServiceGuard;
+
+  @DynamicPropertySource
+  static void emailServiceProperties(DynamicPropertyRegistry registry) {
+    registry.add("email.service.url", emailServer::baseUrl);
+  }
+
+  @AfterEach
+  void healEmailServer() {
+    emailServer.heal();
+  }
+
+  @AfterAll
+  static void stopEmailServer() {
+    emailServer.close();
+  }
+
+  @Test
+  void sendEmail_ShouldRetryTransientServerErrors() {
+    emailServer.fail(503, 2);
+
+    externalEmailService.sendEmail("test@example.com", "123456");
+
+    assertEquals(CircuitBreaker.State.CLOSED, emailServiceGuard.getCircuitBreakerState());
+  }
+
+  @Test
+  @DirtiesContext
+  void sendEmail_ShouldFailFast_OnceCircuitOpens() {
+    emailServer.fail(503, Integer.MAX_VALUE);
+    for (int i = 0; i < 2; i++) {
+      assertThrows(EmailSendingException.class, () -> externalEmailService.sendEmail("test@example.com", "123456"));
+    }
+    assertEquals(CircuitBreaker.State.OPEN, emailServiceGuard.getCircuitBreakerState());
+
+    int requestsBefore = emailServer.requestCount();
+    EmailSendingException exception = assertThrows(EmailSendingException.class,
+        () -> externalEmailService.sendEmail("test@example.com", "123456"));
+
+    assertEquals("Email service is temporarily unavailable.", exception.getMessage());
+    assertEquals(requestsBefore, emailServer.requestCount());
+  }
+
+  @Test
+  @DirtiesContext
+  void sendEmail_ShouldOpenCircuit_WhenEmailServiceIsSlow() {
+    emailServer.slowDown(Duration.ofMillis(300));
+    for (int i = 0; i < 4; i++) {
+      externalEmailService.sendEmail("test@example.com", "123456");
+    }
+
+    long start = System.nanoTime();
+    assertThrows(EmailSendingException.class, () -> externalEmailService.sendEmail("test@example.com", "123456"));
+
+    assertEquals(CircuitBreaker.State.OPEN, emailServiceGuard.getCircuitBreakerState());
+    assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() < 300);
+  }
+}
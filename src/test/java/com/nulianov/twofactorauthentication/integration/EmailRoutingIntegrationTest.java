@@ -0,0 +1,101 @@
+package com.nulianov.twofactorauthentication.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.nulianov.twofactorauthentication.TwoFactorAuthenticationApplication;
+import com.nulianov.twofactorauthentication.service.impl.ExternalEmailService;
+import com.nulianov.twofactorauthentication.support.StubEmailServer;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+@SpringBootTest(
+    classes = TwoFactorAuthenticationApplication.class,
+    webEnvironment = SpringBootTest.WebEnvironment.NONE,
+    properties = {
+        // The JDK HttpClient gives up on an interrupted request, so the slow request that loses a hedge returns early
+        "spring.cloud.openfeign.httpclient.hc5.enabled=false",
+        "spring.cloud.openfeign.http2client.enabled=true",
+        "email.service.hedging.enabled=true",
+        "email.service.hedging.min-delay=20ms",
+        "email.service.hedging.max-delay=50ms"
+    })
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class EmailRoutingIntegrationTest {
+
+  private static final StubEmailServer slowProvider = StubEmailServer.start(Duration.ofMillis(150));
+  private static final StubEmailServer fastProvider = StubEmailServer.start(Duration.ZERO);
+
+  @Autowired
+  private ExternalEmailService externalEmailService;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  @DynamicPropertySource
+  static void emailServiceProperties(DynamicPropertyRegistry registry) {
+    registry.add("email.service.providers[0]", slowProvider::baseUrl);
+    registry.add("email.service.providers[1]", fastProvider::baseUrl);
+  }
+
+  @AfterEach
+  void healProviders() {
+    slowProvider.heal();
+    fastProvider.heal();
+  }
+
+  @AfterAll
+  static void stopProviders() {
+    slowProvider.close();
+    fastProvider.close();
+  }
+
+  @Test
+  void sendEmail_ShouldPreferFasterProvider() {
+    int slowBefore = slowProvider.requestCount();
+    int fastBefore = fastProvider.requestCount();
+
+    for (int i = 0; i < 20; i++) {
+      externalEmailService.sendEmail("user" + i + "@example.com", "123456");
+    }
+
+    assertTrue(slowProvider.requestCount() - slowBefore <= 2);
+    assertTrue(fastProvider.requestCount() - fastBefore >= 18);
+  }
+
+  @Test
+  void sendEmail_ShouldFailOver_WhenProviderFails() {
+    fastProvider.fail(503, Integer.MAX_VALUE);
+    int slowBefore = slowProvider.messageCount();
+
+    for (int i = 0; i < 5; i++) {
+      externalEmailService.sendEmail("user" + i + "@example.com", "123456");
+    }
+
+    assertEquals(slowBefore + 5, slowProvider.messageCount());
+  }
+
+  @Test
+  void sendEmail_ShouldHedgeToSecondProvider_WhenFirstIsSlow() {
+    // Enough sends for the fast provider to have a latency percentile to hedge on
+    for (int i = 0; i < 40; i++) {
+      externalEmailService.sendEmail("user" + i + "@example.com", "123456");
+    }
+    fastProvider.slowDown(Duration.ofMillis(1000));
+    double hedgesBefore = meterRegistry.counter("twofactor.email.hedges").count();
+
+    long start = System.nanoTime();
+    externalEmailService.sendEmail("hedged@example.com", "123456");
+
+    assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() < 1000);
+    assertEquals(hedgesBefore + 1, meterRegistry.counter("twofactor.email.hedges").count());
+  }
+}
@@ -0,0 +1,56 @@
+package com.nulianov.twofactorauthentication.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+import com.nulianov.twofactorauthentication.TwoFactorAuthenticationApplication;
+import com.nulianov.twofactorauthentication.client.EmailServiceClient;
+import com.nulianov.twofactorauthentication.model.EmailServiceRequest;
+import com.nulianov.twofactorauthentication.support.StubEmailServer;
+import feign.Client;
+import feign.hc5.ApacheHttp5Client;
+import java.time.Duration;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+@SpringBootTest(classes = TwoFactorAuthenticationApplication.class, webEnvironment = SpringBootTest.WebEnvironment.NONE)
+public class EmailTransportIntegrationTest {
+
+  private static final StubEmailServer emailServer = StubEmailServer.start(Duration.ZERO);
+
+  @Autowired
+  private Client feignClient;
+
+  @Autowired
+  private EmailServiceClient emailServiceClient;
+
+  @DynamicPropertySource
+  static void emailServiceProperties(DynamicPropertyRegistry registry) {
+    registry.add("email.service.url", emailServer::baseUrl);
+  }
+
+  @AfterAll
+  static void stopEmailServer() {
+    emailServer.close();
+  }
+
+  @Test
+  void feignClient_ShouldUsePooledHttpClient() {
+    assertInstanceOf(ApacheHttp5Client.class, feignClient);
+  }
+
+  @Test
+  void sendEmail_ShouldReachEmailServiceOverPooledTransport() {
+    long before = emailServer.requestCount();
+    EmailServiceRequest request = new EmailServiceRequest("test@example.com", "Your code", "Your code is 123456");
+
+    emailServiceClient.sendEmail(request);
+    emailServiceClient.sendEmail(request);
+
+    assertEquals(before + 2, emailServer.requestCount());
+  }
+}
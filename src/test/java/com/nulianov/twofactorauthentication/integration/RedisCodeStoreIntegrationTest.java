@@ -0,0 +1,80 @@
+package com.nulianov.twofactorauthentication.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.nulianov.twofactorauthentication.TwoFactorAuthenticationApplication;
+import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import com.nulianov.twofactorauthentication.repository.CodeRepository;
+import com.nulianov.twofactorauthentication.repository.impl.RedisCodeRepository;
+import com.nulianov.twofactorauthentication.service.TwoFactorAuthService;
+import com.nulianov.twofactorauthentication.support.StubEmailServer;
+import com.nulianov.twofactorauthentication.support.StubRedisServer;
+import java.time.Duration;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+@SpringBootTest(
+    classes = TwoFactorAuthenticationApplication.class,
+    webEnvironment = SpringBootTest.WebEnvironment.NONE,
+    properties = {
+        "two-factor.store.type=redis",
+        "two-factor.code-validity-duration=60",
+        "email.dispatch.mode=sync"
+    })
+public class RedisCodeStoreIntegrationTest {
+
+  private static final StubEmailServer emailServer = StubEmailServer.start(Duration.ZERO);
+  private static final StubRedisServer redisServer = StubRedisServer.start();
+
+  @Autowired
+  private TwoFactorAuthService twoFactorAuthService;
+
+  @Autowired
+  private CodeRepository codeRepository;
+
+  @DynamicPropertySource
+  static void serverProperties(DynamicPropertyRegistry registry) {
+    registry.add("email.service.url", emailServer::baseUrl);
+    registry.add("two-factor.store.redis.host", () -> "127.0.0.1");
+    registry.add("two-factor.store.redis.port", redisServer::port);
+  }
+
+  @AfterAll
+  static void stopServers() {
+    emailServer.close();
+    redisServer.close();
+  }
+
+  @Test
+  void verifyCode_ShouldAcceptCodeKeptInRemoteStore() {
+    String email = "redis@example.com";
+    twoFactorAuthService.initiateTwoFactorAuth(email);
+    assertNotNull(redisServer.get("2fa:code:" + email));
+
+    String body = emailServer.lastBody(email);
+    String code = body.substring(body.lastIndexOf(' ') + 1);
+
+    assertEquals(RedisCodeRepository.class, codeRepository.getClass());
+    assertEquals(VerificationStatus.SUCCESS, twoFactorAuthService.verifyCode(email, code).status());
+    assertNull(redisServer.get("2fa:code:" + email));
+  }
+
+  @Test
+  void verifyCode_ShouldNotContactStore_WhenNoCodeIsPending() throws InterruptedException {
+    RedisCodeRepository redisCodeRepository = (RedisCodeRepository) codeRepository;
+    for (int i = 0; i < 500 && !redisCodeRepository.isSynchronized(); i++) {
+      Thread.sleep(10);
+    }
+    int commands = redisServer.dataCommandCount();
+
+    assertEquals(VerificationStatus.INVALID_CODE,
+        twoFactorAuthService.verifyCode("nobody@example.com", "123456").status());
+    assertEquals(commands, redisServer.dataCommandCount());
+  }
+}
@@ -0,0 +1,55 @@
+package com.nulianov.twofactorauthentication.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import com.nulianov.twofactorauthentication.TwoFactorAuthenticationApplication;
+import com.nulianov.twofactorauthentication.service.EmailService;
+import com.nulianov.twofactorauthentication.service.TwoFactorAuthService;
+import com.nulianov.twofactorauthentication.service.impl.SmtpEmailService;
+import jakarta.mail.internet.MimeMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+@SpringBootTest(
+    classes = TwoFactorAuthenticationApplication.class,
+    webEnvironment = SpringBootTest.WebEnvironment.NONE,
+    properties = {"email.delivery.channel=smtp", "email.smtp.host=127.0.0.1"})
+public class SmtpDeliveryIntegrationTest {
+
+  @RegisterExtension
+  static GreenMailExtension greenMail = new GreenMailExtension(ServerSetupTest.SMTP.dynamicPort())
+      .withPerMethodLifecycle(false);
+
+  @Autowired
+  private TwoFactorAuthService twoFactorAuthService;
+
+  @Autowired
+  @Qualifier("emailDelivery")
+  private EmailService emailDelivery;
+
+  @DynamicPropertySource
+  static void smtpProperties(DynamicPropertyRegistry registry) {
+    registry.add("email.smtp.port", () -> greenMail.getSmtp().getPort());
+  }
+
+  @Test
+  void initiateTwoFactorAuth_ShouldDeliverCodeOverSmtp() throws Exception {
+    assertInstanceOf(SmtpEmailService.class, emailDelivery);
+
+    twoFactorAuthService.initiateTwoFactorAuth("test@example.com");
+
+    assertTrue(greenMail.waitForIncomingEmail(5000, 1));
+    MimeMessage message = greenMail.getReceivedMessages()[0];
+    assertEquals("test@example.com", message.getAllRecipients()[0].toString());
+    assertEquals("Your verification code", message.getSubject());
+  }
+}
@@ -0,0 +1,149 @@
+package com.nulianov.twofactorauthentication.journal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JournalTest {
+
+  private static final int SEGMENT_SIZE = 256;
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void replay_ShouldReturnAppendedRecordsInOrder_AfterReopen() {
+    try (Journal journal = Journal.open(directory, SEGMENT_SIZE)) {
+      journal.append(record("first"));
+      journal.append(record("second"));
+    }
+
+    try (Journal journal = Journal.open(directory, SEGMENT_SIZE)) {
+      journal.append(record("third"));
+      assertEquals(List.of("first", "second", "third"), replay(journal));
+    }
+  }
+
+  @Test
+  void append_ShouldRollToNewSegment_WhenActiveSegmentIsFull() {
+    try (Journal journal = Journal.open(directory, SEGMENT_SIZE)) {
+      for (int i = 0; i < 20; i++) {
+        journal.append(record("record-" + i + "-padded-to-thirty-bytes"));
+      }
+
+      assertEquals(0, journal.firstSegment());
+      assertEquals(3, journal.activeSegment());
+      assertEquals(20, replay(journal).size());
+      assertEquals("record-0-padded-to-thirty-bytes", replay(journal).getFirst());
+    }
+  }
+
+  @Test
+  void deleteSegmentsBefore_ShouldKeepActiveSegment() throws IOException {
+    try (Journal journal = Journal.open(directory, SEGMENT_SIZE)) {
+      for (int i = 0; i < 20; i++) {
+        journal.append(record("record-" + i + "-padded-to-thirty-bytes"));
+      }
+
+      assertEquals(3, journal.deleteSegmentsBefore(Long.MAX_VALUE));
+
+      assertEquals(3, journal.firstSegment());
+      assertEquals("record-19-padded-to-thirty-bytes", replay(journal).getLast());
+    }
+    try (Stream<Path> files = Files.list(directory)) {
+      assertEquals(1, files.filter(JournalTest::isSegment).count());
+    }
+  }
+
+  @Test
+  void open_ShouldDiscardTornRecordAtTail() throws IOException {
+    try (Journal journal = Journal.open(directory, SEGMENT_SIZE)) {
+      journal.append(record("intact"));
+      journal.append(record("torn"));
+    }
+    Path segment;
+    try (Stream<Path> files = Files.list(directory)) {
+      segment = files.filter(JournalTest::isSegment).findFirst().orElseThrow();
+    }
+    // Corrupt the last byte of the second record's payload
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[] {'X'}), 16 + 8 + 6 + 8 + 3);
+    }
+
+    try (Journal journal = Journal.open(directory, SEGMENT_SIZE)) {
+      assertEquals(List.of("intact"), replay(journal));
+      journal.append(record("appended"));
+      assertEquals(List.of("intact", "appended"), replay(journal));
+    }
+  }
+
+  @Test
+  void open_ShouldRejectDirectoryInUse() {
+    try (Journal journal = Journal.open(directory, SEGMENT_SIZE)) {
+      journal.append(record("first"));
+
+      assertThrows(IllegalStateException.class, () -> Journal.open(directory, SEGMENT_SIZE));
+      assertEquals(List.of("first"), replay(journal));
+    }
+
+    try (Journal journal = Journal.open(directory, SEGMENT_SIZE)) {
+      assertEquals(List.of("first"), replay(journal));
+    }
+  }
+
+  @Test
+  void open_ShouldCreateFilesReadableByOwnerOnly() throws IOException {
+    assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+    Path nested = directory.resolve("journal");
+    try (Journal journal = Journal.open(nested, SEGMENT_SIZE)) {
+      journal.append(record("secret"));
+    }
+
+    assertEquals(PosixFilePermissions.fromString("rwx------"), Files.getPosixFilePermissions(nested));
+    try (Stream<Path> files = Files.list(nested)) {
+      for (Path file : files.toList()) {
+        assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(file));
+      }
+    }
+  }
+
+  @Test
+  void append_ShouldRejectRecordLargerThanSegment() {
+    try (Journal journal = Journal.open(directory, SEGMENT_SIZE)) {
+      assertThrows(IllegalArgumentException.class, () -> journal.append(ByteBuffer.allocate(SEGMENT_SIZE)));
+    }
+  }
+
+  private static boolean isSegment(Path path) {
+    return path.getFileName().toString().endsWith(".log");
+  }
+
+  private static ByteBuffer record(String value) {
+    return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static List<String> replay(Journal journal) {
+    List<String> records = new ArrayList<>();
+    journal.replay((record, segment) -> {
+      byte[] bytes = new byte[record.remaining()];
+      record.get(bytes);
+      records.add(new String(bytes, StandardCharsets.UTF_8));
+    });
+    return records;
+  }
+}
@@ -0,0 +1,125 @@
+package com.nulianov.twofactorauthentication.redis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.nulianov.twofactorauthentication.support.StubRedisServer;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class RespClientTest {
+
+  private StubRedisServer server;
+
+  private RespClient client;
+
+  @BeforeEach
+  void setUp() {
+    server = StubRedisServer.start();
+    client = new RespClient(this::connect, Duration.ofSeconds(5));
+  }
+
+  @AfterEach
+  void tearDown() {
+    client.close();
+    server.close();
+  }
+
+  @Test
+  void execute_ShouldReturnRepliesInCommandOrder() {
+    List<Object> replies = client.execute(List.of(
+        new String[] {"SET", "key", "value"},
+        new String[] {"GET", "key"},
+        new String[] {"GET", "missing"},
+        new String[] {"DEL", "key"}));
+
+    assertEquals("OK", replies.get(0));
+    assertEquals("value", replies.get(1));
+    assertNull(replies.get(2));
+    assertEquals(1L, replies.get(3));
+  }
+
+  @Test
+  void call_ShouldMatchRepliesToCallers_WhenPipelinedConcurrently() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(16);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < 16; t++) {
+      int thread = t;
+      futures.add(executor.submit(() -> {
+        for (int i = 0; i < 200; i++) {
+          String key = "key-" + thread + "-" + i;
+          client.call("SET", key, key);
+          assertEquals(key, client.call("GET", key));
+        }
+      }));
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+    for (Future<?> future : futures) {
+      future.get();
+    }
+  }
+
+  @Test
+  void call_ShouldThrowErrorReply_AndKeepConnectionUsable() {
+    assertThrows(RespException.class, () -> client.call("NOSUCHCOMMAND"));
+
+    assertEquals("PONG", client.call("PING"));
+  }
+
+  @Test
+  void call_ShouldReconnect_AfterConnectionIsLost() {
+    client.call("SET", "key", "value");
+
+    server.dropConnections();
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    Object reply = null;
+    while (reply == null && System.nanoTime() < deadline) {
+      try {
+        reply = client.call("GET", "key");
+      } catch (RuntimeException e) {
+        // The first call after the drop may still use the broken connection
+      }
+    }
+    assertEquals("value", reply);
+  }
+
+  @Test
+  void call_ShouldSendReadAgainOnNewConnection_WhenConnectionIsLost() {
+    client.call("SET", "key", "value");
+
+    server.dropConnections();
+
+    assertEquals("value", client.call("GET", "key"));
+  }
+
+  @Test
+  void call_ShouldDropConnectionAndReconnect_WhenReplyMissesDeadline() {
+    client.close();
+    client = new RespClient(this::connect, Duration.ofMillis(200));
+    client.call("SET", "key", "value");
+
+    server.setStalled(true);
+    assertThrows(UncheckedIOException.class, () -> client.call("GET", "key"));
+    server.setStalled(false);
+
+    // Without dropping the stalled connection, this reply would go to the command that timed out
+    assertEquals("value", client.call("GET", "key"));
+  }
+
+  private RespConnection connect() {
+    return RespConnection.open("127.0.0.1", server.port(), Duration.ofSeconds(1), Duration.ZERO, "", 0);
+  }
+}
@@ -0,0 +1,88 @@
+package com.nulianov.twofactorauthentication.redis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.nulianov.twofactorauthentication.support.StubRedisServer;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class RespSubscriberTest {
+
+  private static final String CHANNEL = "changes";
+
+  private StubRedisServer server;
+
+  private RespClient publisher;
+
+  private RespSubscriber subscriber;
+
+  private final List<String> messages = new CopyOnWriteArrayList<>();
+
+  private final AtomicInteger subscriptions = new AtomicInteger();
+
+  @BeforeEach
+  void setUp() {
+    server = StubRedisServer.start();
+    publisher = new RespClient(this::connect, Duration.ofSeconds(5));
+    subscriber = new RespSubscriber(this::connect, CHANNEL, messages::add, subscriptions::incrementAndGet,
+        Duration.ofMillis(50), Duration.ofMillis(100));
+    awaitCondition(subscriber::isSubscribed);
+  }
+
+  @AfterEach
+  void tearDown() {
+    subscriber.close();
+    publisher.close();
+    server.close();
+  }
+
+  @Test
+  void subscriber_ShouldDeliverMessages_AndStaySubscribedWhileIdle() throws InterruptedException {
+    publisher.call("PUBLISH", CHANNEL, "first");
+    awaitCondition(() -> messages.contains("first"));
+
+    // Several keepalive intervals without messages; the pings are answered
+    Thread.sleep(500);
+
+    assertTrue(subscriber.isSubscribed());
+    assertEquals(1, subscriptions.get());
+  }
+
+  @Test
+  void subscriber_ShouldResubscribe_WhenServerStopsAnswering() {
+    server.setStalled(true);
+    awaitCondition(() -> !subscriber.isSubscribed());
+
+    server.setStalled(false);
+    awaitCondition(subscriber::isSubscribed);
+
+    assertEquals(2, subscriptions.get());
+    publisher.call("PUBLISH", CHANNEL, "after");
+    awaitCondition(() -> messages.contains("after"));
+  }
+
+  private RespConnection connect() {
+    return RespConnection.open("127.0.0.1", server.port(), Duration.ofSeconds(1), Duration.ofMillis(500), "", 0);
+  }
+
+  private static void awaitCondition(BooleanSupplier condition) {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.getAsBoolean()) {
+      assertTrue(System.nanoTime() < deadline, "Condition not met within 5 seconds");
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new AssertionError(e);
+      }
+    }
+  }
+}
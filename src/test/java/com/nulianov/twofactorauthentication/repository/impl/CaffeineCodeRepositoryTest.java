@@ -1,19 +1,46 @@
 package com.nulianov.twofactorauthentication.repository.impl;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.nulianov.twofactorauthentication.config.CodeDataExpiry;
+import com.nulianov.twofactorauthentication.config.CodeStoreProperties;
+import com.nulianov.twofactorauthentication.config.TwoFactorAuthProperties;
 import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.model.VerificationOutcome;
+import com.nulianov.twofactorauthentication.model.VerificationResult;
+import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
 
 class CaffeineCodeRepositoryTest {
 
+  @TempDir
+  private Path directory;
+
   private CaffeineCodeRepository codeRepository;
 
   private final String email = "test@example.com";
@@ -38,6 +65,21 @@ class CaffeineCodeRepositoryTest {
     assertEquals(codeData.code(), retrievedCodeData.code());
   }
 
+  @Test
+  void saveIfAbsent_ShouldKeepPendingCode() {
+    long now = Instant.now().getEpochSecond();
+    CaffeineCodeRepository repository = persistent();
+    CodeData pending = new CodeData("123456", now, 1);
+
+    assertTrue(repository.saveIfAbsent(email, pending));
+    assertFalse(repository.saveIfAbsent(email, new CodeData("654321", now)));
+    repository.destroy();
+
+    CaffeineCodeRepository restarted = persistent();
+    assertEquals(pending, restarted.findByEmail(email));
+    restarted.destroy();
+  }
+
   @Test
   void deleteByEmail_ShouldRemoveCodeData() {
     CodeData codeData = new CodeData("123456", Instant.now().getEpochSecond());
@@ -59,4 +101,192 @@ class CaffeineCodeRepositoryTest {
 
     assertNull(retrievedCodeData);
   }
-}
\ No newline at end of file
+
+  @Test
+  void verify_ShouldStoreOrRemoveCodeDataReturnedByStep() {
+    CodeData codeData = new CodeData("123456", Instant.now().getEpochSecond());
+    CaffeineCodeRepository repository = new CaffeineCodeRepository(Caffeine.newBuilder().build());
+    repository.save(email, codeData);
+
+    VerificationResult invalid = repository.verify(email, current -> new VerificationOutcome(
+        current.incrementAttempts(), new VerificationResult(VerificationStatus.INVALID_CODE)));
+    VerificationResult success = repository.verify(email, current -> new VerificationOutcome(
+        null, new VerificationResult(VerificationStatus.SUCCESS)));
+
+    assertEquals(VerificationStatus.INVALID_CODE, invalid.status());
+    assertEquals(VerificationStatus.SUCCESS, success.status());
+    assertNull(repository.findByEmail(email));
+  }
+
+  @Test
+  void verify_ShouldHandleMissingCodeData() {
+    CodeData created = new CodeData("123456", Instant.now().getEpochSecond());
+    CaffeineCodeRepository repository = new CaffeineCodeRepository(Caffeine.newBuilder().build());
+
+    VerificationResult missing = repository.verify(email, current -> new VerificationOutcome(
+        null, new VerificationResult(VerificationStatus.INVALID_CODE)));
+    assertEquals(VerificationStatus.INVALID_CODE, missing.status());
+    assertNull(repository.findByEmail(email));
+
+    repository.verify(email, current -> new VerificationOutcome(
+        current == null ? created : current.incrementAttempts(), new VerificationResult(VerificationStatus.SUCCESS)));
+    assertEquals(created, repository.findByEmail(email));
+  }
+
+  @Test
+  void verify_ShouldCountConcurrentAttemptsExactly() throws InterruptedException {
+    int threads = 8;
+    int attemptsPerThread = 1_000;
+    CaffeineCodeRepository repository = new CaffeineCodeRepository(Caffeine.newBuilder().build());
+    repository.save(email, new CodeData("123456", Instant.now().getEpochSecond()));
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    for (int i = 0; i < threads; i++) {
+      executor.execute(() -> {
+        for (int j = 0; j < attemptsPerThread; j++) {
+          repository.verify(email, current -> new VerificationOutcome(
+              current.incrementAttempts(), new VerificationResult(VerificationStatus.INVALID_CODE)));
+        }
+      });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+    assertEquals(threads * attemptsPerThread, repository.findByEmail(email).attempts());
+  }
+
+  @Test
+  void verify_ShouldNotExtendExpiryAnchoredToCreationTime() {
+    Cache<String, CodeData> codeCache = Caffeine.newBuilder()
+        .expireAfter(new CodeDataExpiry(2))
+        .build();
+    CaffeineCodeRepository repository = new CaffeineCodeRepository(codeCache);
+    repository.save(email, new CodeData("123456", Instant.now().getEpochSecond() - 2));
+
+    repository.verify(email, current -> new VerificationOutcome(
+        current.incrementAttempts(), new VerificationResult(VerificationStatus.INVALID_CODE)));
+
+    Duration expiresAfter = codeCache.policy().expireVariably().orElseThrow().getExpiresAfter(email).orElseThrow();
+    assertTrue(expiresAfter.compareTo(Duration.ofSeconds(1)) <= 0);
+  }
+
+  @Test
+  void save_ShouldNotKeepCodeDataPastItsValidity() {
+    CaffeineCodeRepository repository = new CaffeineCodeRepository(Caffeine.newBuilder()
+        .expireAfter(new CodeDataExpiry(2))
+        .build());
+
+    repository.save(email, new CodeData("123456", Instant.now().getEpochSecond() - 3));
+
+    assertNull(repository.findByEmail(email));
+  }
+
+  @Test
+  void stats_ShouldCountEvictions() {
+    Cache<String, CodeData> codeCache = Caffeine.newBuilder()
+        .maximumSize(1)
+        .executor(Runnable::run)
+        .recordStats()
+        .build();
+    CaffeineCodeRepository repository = new CaffeineCodeRepository(codeCache);
+
+    repository.save(email, new CodeData("123456", Instant.now().getEpochSecond()));
+    repository.save("other@example.com", new CodeData("123456", Instant.now().getEpochSecond()));
+    codeCache.cleanUp();
+
+    assertEquals(1, repository.stats().evictionCount());
+  }
+
+  @Test
+  void persistence_ShouldRestorePendingCodesAfterRestart() {
+    CodeData kept = new CodeData("123456", Instant.now().getEpochSecond());
+    CaffeineCodeRepository repository = persistent();
+    repository.save(email, kept);
+    repository.save("deleted@example.com", kept);
+    repository.save("verified@example.com", kept);
+    repository.deleteByEmail("deleted@example.com");
+    repository.verify("verified@example.com", current -> new VerificationOutcome(
+        null, new VerificationResult(VerificationStatus.SUCCESS)));
+    repository.verify("missing@example.com", current -> new VerificationOutcome(
+        null, new VerificationResult(VerificationStatus.INVALID_CODE)));
+    repository.destroy();
+
+    CaffeineCodeRepository restarted = persistent();
+
+    assertEquals(kept, restarted.findByEmail(email));
+    assertNull(restarted.findByEmail("deleted@example.com"));
+    assertNull(restarted.findByEmail("verified@example.com"));
+    assertEquals(1, restarted.size());
+    restarted.destroy();
+  }
+
+  @Test
+  void persistence_ShouldRestoreAttemptsAfterSnapshot() {
+    CaffeineCodeRepository repository = persistent();
+    long now = Instant.now().getEpochSecond();
+    for (int i = 0; i < 500; i++) {
+      repository.save("user" + i + "@example.com", new CodeData("123456", now));
+    }
+    repository.snapshot();
+    repository.verify(email, current -> new VerificationOutcome(
+        new CodeData("654321", now, 1), new VerificationResult(VerificationStatus.INVALID_CODE)));
+    repository.deleteByEmail("user0@example.com");
+    repository.destroy();
+
+    CaffeineCodeRepository restarted = persistent();
+
+    assertEquals(new CodeData("654321", now, 1), restarted.findByEmail(email));
+    assertNull(restarted.findByEmail("user0@example.com"));
+    assertEquals(500, restarted.size());
+    restarted.destroy();
+  }
+
+  @Test
+  void save_ShouldFail_WhenJournalCannotBeWrittenToDisk() {
+    CaffeineCodeRepository repository = new CaffeineCodeRepository(Caffeine.newBuilder().build(), failingJournal(),
+        false);
+    CodeData codeData = new CodeData("123456", Instant.now().getEpochSecond());
+
+    assertThrows(UncheckedIOException.class, () -> repository.save(email, codeData));
+
+    assertEquals(1, repository.getSyncFailures());
+  }
+
+  @Test
+  void save_ShouldKeepChange_WhenJournalCannotBeWrittenToDiskAndFailuresAreTolerated() {
+    CodeJournal journal = failingJournal();
+    CaffeineCodeRepository repository = new CaffeineCodeRepository(Caffeine.newBuilder().build(), journal, true);
+    CodeData codeData = new CodeData("123456", Instant.now().getEpochSecond());
+
+    repository.save(email, codeData);
+    assertEquals(codeData, repository.findByEmail(email));
+    repository.deleteByEmail(email);
+
+    assertNull(repository.findByEmail(email));
+    verify(journal).awaitDurable(1L);
+    verify(journal).awaitDurable(2L);
+    assertEquals(2, repository.getSyncFailures());
+  }
+
+  private CodeJournal failingJournal() {
+    CodeJournal journal = mock(CodeJournal.class);
+    when(journal.appendSave(anyString(), any())).thenReturn(1L);
+    when(journal.appendDelete(anyString())).thenReturn(2L);
+    doThrow(new UncheckedIOException(new IOException("Could not write the code journal to disk")))
+        .when(journal).awaitDurable(anyLong());
+    return journal;
+  }
+
+  private CaffeineCodeRepository persistent() {
+    TwoFactorAuthProperties properties = new TwoFactorAuthProperties();
+    properties.setCodeValidityDuration(300);
+    CodeStoreProperties storeProperties = new CodeStoreProperties();
+    CodeStoreProperties.CaffeineStore.Persistence persistence = storeProperties.getCaffeine().getPersistence();
+    persistence.setEnabled(true);
+    persistence.setPath(directory.toString());
+    persistence.setSegmentSize(DataSize.ofKilobytes(4));
+    return new CaffeineCodeRepository(Caffeine.newBuilder()
+        .expireAfter(new CodeDataExpiry(properties.getCodeValidityDuration()))
+        .build(), properties, storeProperties);
+  }
+}
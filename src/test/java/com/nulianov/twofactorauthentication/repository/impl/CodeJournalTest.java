@@ -0,0 +1,154 @@
+package com.nulianov.twofactorauthentication.repository.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.nulianov.twofactorauthentication.model.CodeData;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CodeJournalTest {
+
+  private static final int SEGMENT_SIZE = 4096;
+
+  @TempDir
+  private Path directory;
+
+  private final long validityDuration = 300L;
+
+  @Test
+  void restore_ShouldReplaySavesAndDeletesInOrder() {
+    long now = Instant.now().getEpochSecond();
+    try (CodeJournal journal = open(true)) {
+      journal.awaitDurable(journal.appendSave("a@example.com", new CodeData("111111", now)));
+      journal.awaitDurable(journal.appendSave("b@example.com", new CodeData("222222", now)));
+      journal.awaitDurable(journal.appendSave("a@example.com", new CodeData("111111", now, 2)));
+      journal.awaitDurable(journal.appendDelete("b@example.com"));
+    }
+
+    Map<String, CodeData> restored = restore();
+
+    assertEquals(Map.of("a@example.com", new CodeData("111111", now, 2)), restored);
+  }
+
+  @Test
+  void restore_ShouldSkipExpiredCodes() {
+    long now = Instant.now().getEpochSecond();
+    try (CodeJournal journal = open(false)) {
+      journal.appendSave("a@example.com", new CodeData("111111", now - validityDuration - 1));
+      journal.appendSave("b@example.com", new CodeData("222222", now));
+    }
+
+    Map<String, CodeData> restored = restore();
+
+    assertEquals(Map.of("b@example.com", new CodeData("222222", now)), restored);
+  }
+
+  @Test
+  void snapshot_ShouldReplaceOlderSegments() throws IOException {
+    long now = Instant.now().getEpochSecond();
+    Map<String, CodeData> live = new HashMap<>();
+    try (CodeJournal journal = open(true)) {
+      for (int i = 0; i < 500; i++) {
+        String email = "user" + i + "@example.com";
+        CodeData codeData = new CodeData(String.format("%06d", i), now);
+        journal.appendSave(email, codeData);
+        live.put(email, codeData);
+      }
+      long segmentsBefore = segmentCount();
+
+      assertTrue(journal.snapshot(live));
+      assertTrue(segmentCount() < segmentsBefore);
+
+      journal.appendDelete("user0@example.com");
+      live.remove("user0@example.com");
+    }
+
+    assertEquals(live, restore());
+  }
+
+  @Test
+  void snapshot_ShouldSkipWhenJournalFitsInActiveSegment() {
+    try (CodeJournal journal = open(true)) {
+      journal.appendSave("a@example.com", new CodeData("111111", Instant.now().getEpochSecond()));
+
+      assertFalse(journal.snapshot(Map.of()));
+    }
+  }
+
+  @Test
+  void restore_ShouldReplayWholeJournalWhenSnapshotIsCorrupt() throws IOException {
+    long now = Instant.now().getEpochSecond();
+    Map<String, CodeData> live = new HashMap<>();
+    try (CodeJournal journal = open(true)) {
+      for (int i = 0; i < 500; i++) {
+        journal.appendSave("user" + i + "@example.com", new CodeData("123456", now));
+      }
+      live.put("user0@example.com", new CodeData("123456", now));
+      assertTrue(journal.snapshot(live));
+      journal.appendSave("late@example.com", new CodeData("654321", now));
+    }
+    try (var channel = Files.newByteChannel(directory.resolve("codes.snapshot"), StandardOpenOption.WRITE)) {
+      channel.position(30).write(ByteBuffer.wrap(new byte[] {0x55}));
+    }
+
+    Map<String, CodeData> restored = restore();
+
+    assertEquals(new CodeData("654321", now), restored.get("late@example.com"));
+  }
+
+  @Test
+  void awaitDurable_ShouldReturnForEveryConcurrentWriter() throws InterruptedException {
+    int threads = 8;
+    int savesPerThread = 200;
+    long now = Instant.now().getEpochSecond();
+    try (CodeJournal journal = open(true)) {
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      for (int i = 0; i < threads; i++) {
+        int thread = i;
+        executor.execute(() -> {
+          for (int j = 0; j < savesPerThread; j++) {
+            journal.awaitDurable(journal.appendSave("user" + thread + "-" + j + "@example.com",
+                new CodeData("123456", now)));
+          }
+        });
+      }
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+    }
+
+    assertEquals(threads * savesPerThread, restore().size());
+  }
+
+  private CodeJournal open(boolean groupCommit) {
+    return new CodeJournal(directory, SEGMENT_SIZE, validityDuration, groupCommit, Duration.ofMillis(10));
+  }
+
+  private Map<String, CodeData> restore() {
+    Map<String, CodeData> restored = new HashMap<>();
+    try (CodeJournal journal = open(true)) {
+      journal.restore(restored::put, restored::remove);
+    }
+    return restored;
+  }
+
+  private long segmentCount() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(path -> path.getFileName().toString().endsWith(".log")).count();
+    }
+  }
+}
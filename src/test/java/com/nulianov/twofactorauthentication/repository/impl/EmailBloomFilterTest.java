@@ -0,0 +1,56 @@
+package com.nulianov.twofactorauthentication.repository.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class EmailBloomFilterTest {
+
+  @Test
+  void mightContain_ShouldFindEveryAddedEmail() {
+    EmailBloomFilter filter = new EmailBloomFilter(10_000, 0.01);
+
+    for (int i = 0; i < 10_000; i++) {
+      filter.add(EmailKey.of("user" + i + "@example.com"));
+    }
+
+    for (int i = 0; i < 10_000; i++) {
+      assertTrue(filter.mightContain(EmailKey.of("user" + i + "@example.com")));
+    }
+  }
+
+  @Test
+  void mightContain_ShouldStayNearFalsePositiveRate_WhenFilledToExpectedSize() {
+    EmailBloomFilter filter = new EmailBloomFilter(10_000, 0.01);
+    for (int i = 0; i < 10_000; i++) {
+      filter.add(EmailKey.of("user" + i + "@example.com"));
+    }
+
+    int falsePositives = 0;
+    for (int i = 0; i < 100_000; i++) {
+      if (filter.mightContain(EmailKey.of("other" + i + "@example.com"))) {
+        falsePositives++;
+      }
+    }
+
+    assertTrue(falsePositives < 2_000, "False positives: " + falsePositives);
+  }
+
+  @Test
+  void constructor_ShouldSizeFilterForExpectedInsertions() {
+    EmailBloomFilter filter = new EmailBloomFilter(1_000_000, 0.01);
+
+    assertEquals(7, filter.hashCount());
+    assertTrue(filter.bitCount() >= 9_585_059L);
+    assertFalse(filter.mightContain(EmailKey.of("test@example.com")));
+  }
+
+  @Test
+  void constructor_ShouldRejectInvalidSettings() {
+    assertThrows(IllegalArgumentException.class, () -> new EmailBloomFilter(0, 0.01));
+    assertThrows(IllegalArgumentException.class, () -> new EmailBloomFilter(1_000, 1));
+  }
+}
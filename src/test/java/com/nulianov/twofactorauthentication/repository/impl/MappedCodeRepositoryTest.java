@@ -0,0 +1,209 @@
+package com.nulianov.twofactorauthentication.repository.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.model.VerificationOutcome;
+import com.nulianov.twofactorauthentication.model.VerificationResult;
+import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MappedCodeRepositoryTest {
+
+  @TempDir
+  private Path directory;
+
+  private Path file;
+
+  private MappedCodeRepository codeRepository;
+
+  private final String email = "test@example.com";
+  private final long validityDuration = 300L;
+
+  @BeforeEach
+  void setUp() {
+    file = directory.resolve("codes.db");
+    codeRepository = open();
+  }
+
+  @AfterEach
+  void tearDown() {
+    codeRepository.destroy();
+  }
+
+  @Test
+  void saveAndFindByEmail_ShouldRoundTripCodeData() {
+    CodeData codeData = new CodeData("012345", Instant.now().getEpochSecond(), 1);
+
+    codeRepository.save(email, codeData);
+
+    assertEquals(codeData, codeRepository.findByEmail(email));
+  }
+
+  @Test
+  void saveIfAbsent_ShouldKeepPendingCode() {
+    long now = Instant.now().getEpochSecond();
+    CodeData pending = new CodeData("123456", now, 1);
+
+    assertTrue(codeRepository.saveIfAbsent(email, pending));
+    assertFalse(codeRepository.saveIfAbsent(email, new CodeData("654321", now)));
+
+    assertEquals(pending, codeRepository.findByEmail(email));
+  }
+
+  @Test
+  void deleteByEmail_ShouldRemoveCodeData() {
+    codeRepository.save(email, new CodeData("123456", Instant.now().getEpochSecond()));
+
+    codeRepository.deleteByEmail(email);
+
+    assertNull(codeRepository.findByEmail(email));
+  }
+
+  @Test
+  void open_ShouldRestoreOutstandingCodesAfterRestart() {
+    CodeData codeData = new CodeData("123456", Instant.now().getEpochSecond(), 2);
+    codeRepository.save(email, codeData);
+    codeRepository.destroy();
+
+    codeRepository = open();
+
+    assertEquals(codeData, codeRepository.findByEmail(email));
+  }
+
+  @Test
+  void open_ShouldRejectFileWithDifferentLayout() {
+    codeRepository.destroy();
+
+    assertThrows(IllegalStateException.class, () -> new MappedCodeRepository(file, validityDuration, 4096, 8, null));
+  }
+
+  @Test
+  void sweep_ShouldReclaimExpiredSlots() {
+    long now = Instant.now().getEpochSecond();
+    codeRepository.save(email, new CodeData("123456", now - validityDuration - 1));
+    codeRepository.save("other@example.com", new CodeData("123456", now));
+
+    codeRepository.sweep();
+
+    assertEquals(1, codeRepository.size());
+  }
+
+  @Test
+  void save_ShouldReclaimExpiredSlotsWhenSegmentIsFull() {
+    long expired = Instant.now().minusSeconds(validityDuration + 1).getEpochSecond();
+    for (int i = 0; i < 1_000; i++) {
+      codeRepository.save("user" + i + "@example.com", new CodeData("123456", expired));
+    }
+
+    codeRepository.save(email, new CodeData("123456", Instant.now().getEpochSecond()));
+
+    assertEquals("123456", codeRepository.findByEmail(email).code());
+  }
+
+  @Test
+  void save_ShouldEvictOldestCodesWhenSegmentIsFullOfLiveCodes() {
+    long start = Instant.now().getEpochSecond() - validityDuration / 2;
+
+    for (int i = 0; i < 1_000; i++) {
+      codeRepository.save("user" + i + "@example.com", new CodeData("123456", start + i / 10));
+    }
+
+    assertNull(codeRepository.findByEmail("user0@example.com"));
+    assertEquals("123456", codeRepository.findByEmail("user999@example.com").code());
+    assertTrue(codeRepository.size() < 256);
+  }
+
+  @Test
+  void open_ShouldRejectFileInUse() {
+    assertThrows(IllegalStateException.class, this::open);
+  }
+
+  @Test
+  void open_ShouldDropTornSlots() throws IOException {
+    codeRepository.save(email, new CodeData("123456", Instant.now().getEpochSecond()));
+    codeRepository.save("other@example.com", new CodeData("654321", Instant.now().getEpochSecond()));
+    codeRepository.destroy();
+    // Change the value of the first occupied slot, as if the machine crashed before its checksum was written
+    byte[] bytes = Files.readAllBytes(file);
+    ByteBuffer table = ByteBuffer.wrap(bytes);
+    int slot = 64;
+    while (table.getLong(slot) == 0 && table.getLong(slot + 8) == 0) {
+      slot += 32;
+    }
+    table.putLong(slot + 16, table.getLong(slot + 16) ^ 1);
+    Files.write(file, bytes);
+
+    codeRepository = open();
+
+    assertEquals(1, codeRepository.size());
+  }
+
+  @Test
+  void open_ShouldDropEveryTornSlotOfAProbeRun() throws IOException {
+    long now = Instant.now().getEpochSecond();
+    for (int i = 0; i < 160; i++) {
+      codeRepository.save("user" + i + "@example.com", new CodeData("123456", now));
+    }
+    long saved = codeRepository.size();
+    codeRepository.destroy();
+    // Tear two adjacent slots of one segment, so the second would be shifted into the first when it is removed
+    byte[] bytes = Files.readAllBytes(file);
+    ByteBuffer table = ByteBuffer.wrap(bytes);
+    int slot = 0;
+    while (slot % 64 == 63 || isEmpty(table, slot) || isEmpty(table, slot + 1)) {
+      slot++;
+    }
+    table.putLong(64 + slot * 32 + 16, table.getLong(64 + slot * 32 + 16) ^ 1);
+    table.putLong(64 + (slot + 1) * 32 + 16, table.getLong(64 + (slot + 1) * 32 + 16) ^ 1);
+    Files.write(file, bytes);
+
+    codeRepository = open();
+
+    long found = IntStream.range(0, 160)
+        .filter(i -> codeRepository.findByEmail("user" + i + "@example.com") != null)
+        .count();
+    assertEquals(saved - 2, codeRepository.size());
+    assertEquals(saved - 2, found);
+  }
+
+  @Test
+  void verify_ShouldCountConcurrentAttemptsExactly() throws InterruptedException {
+    int threads = 8;
+    codeRepository.save(email, new CodeData("123456", Instant.now().getEpochSecond()));
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    for (int i = 0; i < threads; i++) {
+      executor.execute(() -> codeRepository.verify(email, current -> new VerificationOutcome(
+          current.incrementAttempts(), new VerificationResult(VerificationStatus.INVALID_CODE))));
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+    assertEquals(threads, codeRepository.findByEmail(email).attempts());
+  }
+
+  private static boolean isEmpty(ByteBuffer table, int slot) {
+    return table.getLong(64 + slot * 32) == 0 && table.getLong(64 + slot * 32 + 8) == 0;
+  }
+
+  private MappedCodeRepository open() {
+    return new MappedCodeRepository(file, validityDuration, 256, 4, null);
+  }
+}
@@ -0,0 +1,170 @@
+package com.nulianov.twofactorauthentication.repository.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.nulianov.twofactorauthentication.config.CodeGeneratorProperties;
+import com.nulianov.twofactorauthentication.config.CodeStoreProperties;
+import com.nulianov.twofactorauthentication.config.TwoFactorAuthProperties;
+import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.model.VerificationOutcome;
+import com.nulianov.twofactorauthentication.model.VerificationResult;
+import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import java.time.Instant;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class PackedCodeRepositoryTest {
+
+  private PackedCodeRepository codeRepository;
+
+  private final String email = "test@example.com";
+  private final long validityDuration = 300L;
+
+  @BeforeEach
+  void setUp() {
+    codeRepository = new PackedCodeRepository(validityDuration, 16, 4);
+  }
+
+  @Test
+  void saveAndFindByEmail_ShouldRoundTripCodeData() {
+    CodeData codeData = new CodeData("012345", Instant.now().getEpochSecond(), 2);
+
+    codeRepository.save(email, codeData);
+
+    assertEquals(codeData, codeRepository.findByEmail(email));
+  }
+
+  @Test
+  void saveIfAbsent_ShouldKeepPendingCode() {
+    long now = Instant.now().getEpochSecond();
+    CodeData pending = new CodeData("123456", now, 1);
+
+    assertTrue(codeRepository.saveIfAbsent(email, pending));
+    assertFalse(codeRepository.saveIfAbsent(email, new CodeData("654321", now)));
+
+    assertEquals(pending, codeRepository.findByEmail(email));
+  }
+
+  @Test
+  void findByEmail_ShouldMatchEmailExactly_LikeCaffeineStore() {
+    CodeData codeData = new CodeData("123456", Instant.now().getEpochSecond());
+
+    codeRepository.save(email, codeData);
+
+    assertEquals(codeData, codeRepository.findByEmail(email));
+    assertNull(codeRepository.findByEmail(" Test@Example.COM "));
+  }
+
+  @Test
+  void constructor_ShouldRejectCodesThatCannotBePacked() {
+    TwoFactorAuthProperties properties = new TwoFactorAuthProperties();
+    CodeGeneratorProperties codeProperties = new CodeGeneratorProperties();
+    codeProperties.setAlphabet("ABCDEFGHJK");
+
+    assertThrows(IllegalArgumentException.class,
+        () -> new PackedCodeRepository(properties, new CodeStoreProperties(), codeProperties));
+
+    codeProperties.setAlphabet("0123456789");
+    codeProperties.setLength(9);
+
+    assertThrows(IllegalArgumentException.class,
+        () -> new PackedCodeRepository(properties, new CodeStoreProperties(), codeProperties));
+  }
+
+  @Test
+  void save_ShouldRejectNonNumericCode() {
+    CodeData codeData = new CodeData("12AB56", Instant.now().getEpochSecond());
+
+    assertThrows(IllegalArgumentException.class, () -> codeRepository.save(email, codeData));
+  }
+
+  @Test
+  void deleteByEmail_ShouldRemoveCodeData() {
+    codeRepository.save(email, new CodeData("123456", Instant.now().getEpochSecond()));
+
+    codeRepository.deleteByEmail(email);
+
+    assertNull(codeRepository.findByEmail(email));
+  }
+
+  @Test
+  void findByEmail_ShouldIgnoreExpiredCodeData() {
+    long creationTime = Instant.now().minusSeconds(validityDuration + 1).getEpochSecond();
+    codeRepository.save(email, new CodeData("123456", creationTime));
+
+    assertNull(codeRepository.findByEmail(email));
+    assertEquals(0, codeRepository.size());
+  }
+
+  @Test
+  void save_ShouldKeepEntriesReachableAcrossResizesAndDeletes() {
+    long creationTime = Instant.now().getEpochSecond();
+    int entries = 10_000;
+    for (int i = 0; i < entries; i++) {
+      codeRepository.save("user" + i + "@example.com", new CodeData(String.valueOf(100000 + i), creationTime));
+    }
+    for (int i = 0; i < entries; i += 2) {
+      codeRepository.deleteByEmail("user" + i + "@example.com");
+    }
+
+    assertEquals(entries / 2, codeRepository.size());
+    for (int i = 0; i < entries; i++) {
+      CodeData codeData = codeRepository.findByEmail("user" + i + "@example.com");
+      if (i % 2 == 0) {
+        assertNull(codeData);
+      } else {
+        assertEquals(String.valueOf(100000 + i), codeData.code());
+      }
+    }
+  }
+
+  @Test
+  void verify_ShouldCountConcurrentAttemptsExactly() throws InterruptedException {
+    int threads = 8;
+    codeRepository.save(email, new CodeData("123456", Instant.now().getEpochSecond()));
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    for (int i = 0; i < threads; i++) {
+      executor.execute(() -> codeRepository.verify(email, current -> new VerificationOutcome(
+          current.incrementAttempts(), new VerificationResult(VerificationStatus.INVALID_CODE))));
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+    assertEquals(threads, codeRepository.findByEmail(email).attempts());
+  }
+
+  @Test
+  void verify_ShouldRemoveCodeDataWhenStepReturnsNone() {
+    codeRepository.save(email, new CodeData("123456", Instant.now().getEpochSecond()));
+
+    VerificationResult result = codeRepository.verify(email, current -> new VerificationOutcome(
+        null, new VerificationResult(VerificationStatus.SUCCESS)));
+
+    assertEquals(VerificationStatus.SUCCESS, result.status());
+    assertNull(codeRepository.findByEmail(email));
+  }
+
+  @Test
+  void tableBytes_ShouldStayWithinPackedSlotSizeAtLowestLoad() {
+    int entries = 200_000;
+    PackedCodeRepository repository = new PackedCodeRepository(validityDuration, 1024, 16);
+    long creationTime = Instant.now().getEpochSecond();
+
+    for (int i = 0; i < entries; i++) {
+      repository.save("user" + i + "@example.com", new CodeData(String.valueOf(100000 + i % 900000), creationTime));
+    }
+
+    // Tables are resized at a load of 0.75 and at least double, so they are never less than 0.375 full
+    assertEquals(entries, repository.size());
+    assertTrue(repository.tableBytes() <= entries * PackedCodeRepository.SLOT_BYTES / 0.375,
+        "Packed tables take " + repository.tableBytes() + " bytes for " + entries + " entries");
+  }
+}
@@ -0,0 +1,194 @@
+package com.nulianov.twofactorauthentication.repository.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.nulianov.twofactorauthentication.config.CodeStoreProperties;
+import com.nulianov.twofactorauthentication.config.TwoFactorAuthProperties;
+import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.model.VerificationOutcome;
+import com.nulianov.twofactorauthentication.model.VerificationResult;
+import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import com.nulianov.twofactorauthentication.support.StubRedisServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class RedisCodeRepositoryTest {
+
+  private StubRedisServer server;
+
+  private RedisCodeRepository codeRepository;
+  private RedisCodeRepository otherInstance;
+
+  private final String email = "test@example.com";
+  private final int validityDuration = 300;
+
+  @BeforeEach
+  void setUp() {
+    server = StubRedisServer.start();
+    codeRepository = open();
+    otherInstance = open();
+    awaitCondition(() -> codeRepository.isSynchronized() && otherInstance.isSynchronized());
+  }
+
+  @AfterEach
+  void tearDown() {
+    codeRepository.destroy();
+    otherInstance.destroy();
+    server.close();
+  }
+
+  @Test
+  void saveAndFindByEmail_ShouldRoundTripCodeDataUnderExactEmail() {
+    CodeData codeData = new CodeData("01:23", Instant.now().getEpochSecond(), 2);
+
+    codeRepository.save(email, codeData);
+
+    assertEquals(codeData, codeRepository.findByEmail(email));
+    assertNull(codeRepository.findByEmail(" Test@Example.com"));
+    assertEquals(RedisCodeRepository.encode(codeData), server.get("2fa:code:" + email));
+  }
+
+  @Test
+  void saveIfAbsent_ShouldKeepPendingCode() {
+    long now = Instant.now().getEpochSecond();
+    CodeData pending = new CodeData("123456", now, 1);
+
+    assertTrue(codeRepository.saveIfAbsent(email, pending));
+    assertFalse(codeRepository.saveIfAbsent(email, new CodeData("654321", now)));
+    assertFalse(codeRepository.saveIfAbsent("expired@example.com", new CodeData("123456", now - validityDuration - 1)));
+
+    assertEquals(pending, codeRepository.findByEmail(email));
+    assertNull(server.get("2fa:code:expired@example.com"));
+  }
+
+  @Test
+  void save_ShouldNotStoreExpiredCode() {
+    codeRepository.save(email, new CodeData("123456", Instant.now().getEpochSecond() - validityDuration - 1));
+
+    assertNull(server.get("2fa:code:" + email));
+    assertNull(codeRepository.findByEmail(email));
+  }
+
+  @Test
+  void verifyAndFindByEmail_ShouldNotContactStore_WhenNoCodeIsPending() {
+    int commands = server.dataCommandCount();
+
+    for (int i = 0; i < 100; i++) {
+      VerificationResult result = codeRepository.verify("user" + i + "@example.com",
+          current -> VerificationOutcome.removed(new VerificationResult(VerificationStatus.INVALID_CODE)));
+      assertEquals(VerificationStatus.INVALID_CODE, result.status());
+      assertNull(codeRepository.findByEmail("user" + i + "@example.com"));
+    }
+
+    assertEquals(commands, server.dataCommandCount());
+  }
+
+  @Test
+  void findByEmail_ShouldServeRepeatedReadsFromNearCache() {
+    // Saved elsewhere, so the change message has been handled once the code is visible here and cannot race the reads
+    otherInstance.save(email, new CodeData("123456", Instant.now().getEpochSecond()));
+    awaitCondition(() -> codeRepository.findByEmail(email) != null);
+    int reads = server.commandCount("GET");
+
+    codeRepository.findByEmail(email);
+    codeRepository.findByEmail(email);
+    codeRepository.findByEmail(email);
+
+    // At most the first read goes to the store, if the code was not cached while waiting for it
+    assertTrue(server.commandCount("GET") - reads <= 1);
+  }
+
+  @Test
+  void findByEmail_ShouldSeeChangesMadeOnAnotherInstance() {
+    long now = Instant.now().getEpochSecond();
+    codeRepository.save(email, new CodeData("123456", now));
+    awaitCondition(() -> otherInstance.findByEmail(email) != null);
+
+    codeRepository.verify(email, current -> new VerificationOutcome(
+        current.incrementAttempts(), new VerificationResult(VerificationStatus.INVALID_CODE)));
+    awaitCondition(() -> otherInstance.findByEmail(email).attempts() == 1);
+
+    codeRepository.deleteByEmail(email);
+    awaitCondition(() -> otherInstance.findByEmail(email) == null);
+  }
+
+  @Test
+  void verify_ShouldCountConcurrentAttemptsExactly_AcrossInstances() throws InterruptedException {
+    int threads = 8;
+    codeRepository.save(email, new CodeData("123456", Instant.now().getEpochSecond()));
+    awaitCondition(() -> otherInstance.findByEmail(email) != null);
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    for (int i = 0; i < threads; i++) {
+      RedisCodeRepository instance = i % 2 == 0 ? codeRepository : otherInstance;
+      executor.execute(() -> instance.verify(email, current -> new VerificationOutcome(
+          current.incrementAttempts(), new VerificationResult(VerificationStatus.INVALID_CODE))));
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+    assertEquals(threads, RedisCodeRepository.decode(server.get("2fa:code:" + email)).attempts());
+  }
+
+  @Test
+  void isSynchronized_ShouldRebuildFilterFromStore_AfterReconnecting() {
+    CodeData codeData = new CodeData("123456", Instant.now().getEpochSecond());
+    server.set("2fa:code:" + email, RedisCodeRepository.encode(codeData));
+    assertNull(codeRepository.findByEmail(email));
+
+    server.dropConnections();
+
+    // The near cache is dropped and the filter rebuilt once the subscription is back
+    awaitCondition(() -> codeData.equals(codeRepository.findByEmail(email)));
+    awaitCondition(() -> server.subscriberCount("2fa:code:changes") == 2 && codeRepository.isSynchronized());
+  }
+
+  @Test
+  void isSynchronized_ShouldRebuildFilterFromStore_AfterSubscriptionStopsAnswering() {
+    server.setStalled(true);
+    awaitCondition(() -> !codeRepository.isSynchronized());
+
+    CodeData codeData = new CodeData("123456", Instant.now().getEpochSecond());
+    server.set("2fa:code:" + email, RedisCodeRepository.encode(codeData));
+    server.setStalled(false);
+
+    awaitCondition(codeRepository::isSynchronized);
+    assertEquals(codeData, codeRepository.findByEmail(email));
+  }
+
+  private RedisCodeRepository open() {
+    TwoFactorAuthProperties properties = new TwoFactorAuthProperties();
+    properties.setCodeValidityDuration(validityDuration);
+    CodeStoreProperties storeProperties = new CodeStoreProperties();
+    storeProperties.getRedis().setHost("127.0.0.1");
+    storeProperties.getRedis().setPort(server.port());
+    storeProperties.getRedis().setReconnectDelay(Duration.ofMillis(50));
+    storeProperties.getRedis().setKeepaliveInterval(Duration.ofMillis(100));
+    storeProperties.getRedis().getBloom().setExpectedCodes(10_000);
+    return new RedisCodeRepository(properties, storeProperties, new SimpleMeterRegistry());
+  }
+
+  private static void awaitCondition(BooleanSupplier condition) {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.getAsBoolean()) {
+      assertTrue(System.nanoTime() < deadline, "Condition not met within 5 seconds");
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new AssertionError(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.nulianov.twofactorauthentication.config.IdempotencyProperties;
+import com.nulianov.twofactorauthentication.exception.InvalidIdempotencyKeyException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class CaffeineIdempotencyServiceTest {
+
+  private IdempotencyProperties properties;
+
+  private SimpleMeterRegistry meterRegistry;
+
+  private CaffeineIdempotencyService idempotencyService;
+
+  private final AtomicInteger calls = new AtomicInteger();
+
+  @BeforeEach
+  void setUp() {
+    properties = new IdempotencyProperties();
+    meterRegistry = new SimpleMeterRegistry();
+    idempotencyService = new CaffeineIdempotencyService(properties, meterRegistry);
+  }
+
+  @Test
+  void execute_ShouldReplayResult_WhenKeyIsRepeated() {
+    assertEquals(1, idempotencyService.execute("initiate", "key", calls::incrementAndGet));
+    assertEquals(1, idempotencyService.execute("initiate", "key", calls::incrementAndGet));
+
+    assertEquals(1, calls.get());
+    assertEquals(1, meterRegistry.counter("twofactor.idempotency.replayed").count());
+  }
+
+  @Test
+  void execute_ShouldRunAgain_WhenScopeOrKeyDiffers() {
+    idempotencyService.execute("initiate", "key", calls::incrementAndGet);
+    idempotencyService.execute("resend", "key", calls::incrementAndGet);
+    idempotencyService.execute("initiate", "other", calls::incrementAndGet);
+
+    assertEquals(3, calls.get());
+  }
+
+  @Test
+  void execute_ShouldRunEveryTime_WhenKeyIsAbsent() {
+    idempotencyService.execute("initiate", null, calls::incrementAndGet);
+    idempotencyService.execute("initiate", null, calls::incrementAndGet);
+
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  void execute_ShouldNotRetainFailures() {
+    assertThrows(IllegalStateException.class, () -> idempotencyService.execute("initiate", "key", () -> {
+      throw new IllegalStateException("failed");
+    }));
+
+    assertEquals(1, idempotencyService.execute("initiate", "key", calls::incrementAndGet));
+  }
+
+  @Test
+  void execute_ShouldRejectKey_WhenTooLong() {
+    String key = "k".repeat(properties.getMaxKeyLength() + 1);
+
+    assertThrows(InvalidIdempotencyKeyException.class,
+        () -> idempotencyService.execute("initiate", key, calls::incrementAndGet));
+    assertEquals(0, calls.get());
+  }
+}
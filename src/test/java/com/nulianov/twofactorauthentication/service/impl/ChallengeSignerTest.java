@@ -0,0 +1,80 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.Test;
+
+class ChallengeSignerTest {
+
+  private static final byte[] KEY = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] OLD_KEY = "fedcba9876543210fedcba9876543210".getBytes(StandardCharsets.US_ASCII);
+
+  private final String email = "test@example.com";
+
+  @Test
+  void open_ShouldReturnSignedFields_WhenChallengeWasIssuedForEmail() {
+    ChallengeSigner signer = new ChallengeSigner(List.of(KEY));
+    String token = signer.sign(email, "123456", 1_700_000_000L, 0x1122_3344_5566_7700L);
+
+    ChallengeSigner.Challenge challenge = signer.open(email, token);
+
+    assertNotNull(challenge);
+    assertEquals(1_700_000_000L, challenge.creationTime());
+    assertEquals(0x1122_3344_5566_7700L, challenge.nonce());
+    assertTrue(signer.matches(challenge, "123456"));
+    assertFalse(signer.matches(challenge, "123457"));
+    assertFalse(signer.matches(challenge, null));
+  }
+
+  @Test
+  void open_ShouldReturnNull_WhenChallengeIsForAnotherEmailOrTampered() {
+    ChallengeSigner signer = new ChallengeSigner(List.of(KEY));
+    String token = signer.sign(email, "123456", 1_700_000_000L, 0x100L);
+    byte[] tampered = Base64.getUrlDecoder().decode(token);
+    tampered[8] ^= 1;
+
+    assertNull(signer.open("other@example.com", token));
+    assertNull(signer.open(email, Base64.getUrlEncoder().withoutPadding().encodeToString(tampered)));
+    assertNull(signer.open(email, token.substring(1)));
+    assertNull(signer.open(email, "!" + token.substring(1)));
+    assertNull(signer.open(email, null));
+  }
+
+  @Test
+  void open_ShouldAcceptChallengesSignedWithPreviousKey() {
+    String token = new ChallengeSigner(List.of(OLD_KEY)).sign(email, "123456", 1_700_000_000L, 0x100L);
+    ChallengeSigner rotated = new ChallengeSigner(List.of(KEY, OLD_KEY));
+
+    ChallengeSigner.Challenge challenge = rotated.open(email, token);
+
+    assertNotNull(challenge);
+    assertTrue(rotated.matches(challenge, "123456"));
+    assertNull(new ChallengeSigner(List.of(KEY)).open(email, token));
+  }
+
+  @Test
+  void sign_ShouldProduceSameChallenge_OnVirtualThreads() throws Exception {
+    ChallengeSigner signer = new ChallengeSigner(List.of(KEY));
+    String expected = signer.sign(email, "123456", 1_700_000_000L, 0x100L);
+
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      assertEquals(expected, executor.submit(() -> signer.sign(email, "123456", 1_700_000_000L, 0x100L)).get());
+    }
+  }
+
+  @Test
+  void constructor_ShouldRejectShortKeys() {
+    assertThrows(IllegalArgumentException.class, () -> new ChallengeSigner(List.of(new byte[8])));
+    assertThrows(IllegalArgumentException.class, () -> new ChallengeSigner(List.of()));
+  }
+}
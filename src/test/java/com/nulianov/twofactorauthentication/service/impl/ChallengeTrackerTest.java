@@ -0,0 +1,103 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class ChallengeTrackerTest {
+
+  private static final long NONCE = 0x1234_5678_9abc_de00L;
+
+  @Test
+  void state_ShouldBeZero_WhenChallengeWasNeverVerified() {
+    ChallengeTracker tracker = new ChallengeTracker(300, 16);
+
+    assertEquals(0, tracker.state(1_000, NONCE));
+    assertEquals(0, tracker.size());
+  }
+
+  @Test
+  void transition_ShouldOnlySucceedFromExpectedState() {
+    ChallengeTracker tracker = new ChallengeTracker(300, 16);
+
+    assertTrue(tracker.transition(1_000, NONCE, 0, 1));
+    assertFalse(tracker.transition(1_000, NONCE, 0, 1));
+    assertTrue(tracker.transition(1_000, NONCE, 1, ChallengeTracker.TERMINATED));
+
+    assertEquals(ChallengeTracker.TERMINATED, tracker.state(1_000, NONCE));
+    assertEquals(1, tracker.size());
+  }
+
+  @Test
+  void transition_ShouldKeepChallengesWithDifferentNoncesApart() {
+    ChallengeTracker tracker = new ChallengeTracker(300, 1024);
+
+    for (int i = 1; i <= 500; i++) {
+      assertTrue(tracker.transition(1_000, (long) i << 8, 0, i % 200));
+    }
+    for (int i = 1; i <= 500; i++) {
+      assertEquals(i % 200, tracker.state(1_000, (long) i << 8));
+    }
+  }
+
+  @Test
+  void state_ShouldForgetChallenges_WhenTheirBucketIsReused() {
+    ChallengeTracker tracker = new ChallengeTracker(300, 16);
+    tracker.transition(1_000, NONCE, 0, ChallengeTracker.TERMINATED);
+
+    // Four buckets later the same slot holds a new period
+    assertEquals(0, tracker.state(1_000 + 4 * 300, NONCE));
+    assertThrows(IllegalArgumentException.class, () -> tracker.state(1_000, NONCE));
+  }
+
+  @Test
+  void transition_ShouldThrow_WhenBucketIsFull() {
+    ChallengeTracker tracker = new ChallengeTracker(300, 4);
+    for (int i = 1; i <= 4; i++) {
+      tracker.transition(1_000, (long) i << 8, 0, 1);
+    }
+
+    assertThrows(ChallengeTracker.BucketFullException.class, () -> tracker.transition(1_000, 5L << 8, 0, 1));
+    // Another period has room of its own
+    assertTrue(tracker.transition(1_300, 5L << 8, 0, 1));
+  }
+
+  @Test
+  void transition_ShouldLetOneConcurrentCallerWin() throws Exception {
+    ChallengeTracker tracker = new ChallengeTracker(300, 16);
+    AtomicInteger winners = new AtomicInteger();
+    List<Future<?>> futures = new ArrayList<>();
+
+    try (ExecutorService executor = Executors.newFixedThreadPool(8)) {
+      for (int i = 0; i < 8; i++) {
+        futures.add(executor.submit(() -> {
+          if (tracker.transition(1_000, NONCE, 0, ChallengeTracker.TERMINATED)) {
+            winners.incrementAndGet();
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    }
+
+    assertEquals(1, winners.get());
+  }
+
+  @Test
+  void usableNonce_ShouldNeverLookLikeAnEmptySlot() {
+    assertNotEquals(0, ChallengeTracker.usableNonce(0) & ~0xffL);
+    assertNotEquals(0, ChallengeTracker.usableNonce(0x7f) & ~0xffL);
+    assertEquals(NONCE, ChallengeTracker.usableNonce(NONCE));
+  }
+}
@@ -0,0 +1,144 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.nulianov.twofactorauthentication.config.ClusterProperties;
+import java.net.URI;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.springframework.cloud.context.environment.EnvironmentChangeEvent;
+import org.springframework.mock.env.MockEnvironment;
+
+class ClusterMembershipTest {
+
+  private final AtomicLong clock = new AtomicLong();
+
+  private final MockEnvironment environment = new MockEnvironment();
+
+  @Test
+  void owner_ShouldUseConfiguredNodes() {
+    ClusterMembership membership = membership("a", "b");
+
+    for (int i = 0; i < 100; i++) {
+      assertTrue(Set.of("a", "b").contains(membership.owner("user" + i + "@example.com")));
+    }
+    assertTrue(membership.isSelf("a"));
+    assertEquals(URI.create("http://b.internal:8080"), membership.url("b"));
+  }
+
+  @Test
+  void previousOwner_ShouldBeAvailableForHandoffWindow_AfterMembershipChange() {
+    ClusterMembership membership = membership("a", "b");
+    String email = emailMovingTo("c", List.of("a", "b"), List.of("a", "b", "c"));
+    String oldOwner = membership.owner(email);
+    assertNull(membership.previousOwner(email));
+
+    membership.update(nodes("a", "b", "c"));
+
+    assertEquals("c", membership.owner(email));
+    assertEquals(oldOwner, membership.previousOwner(email));
+
+    clock.addAndGet(Duration.ofSeconds(61).toNanos());
+    assertNull(membership.previousOwner(email));
+  }
+
+  @Test
+  void url_ShouldStillResolveNodeThatLeft_DuringHandoffWindow() {
+    ClusterMembership membership = membership("a", "b", "c");
+
+    membership.update(nodes("a", "b"));
+
+    assertEquals(URI.create("http://c.internal:8080"), membership.url("c"));
+  }
+
+  @Test
+  void update_ShouldKeepPreviousRing_WhenNodesAreUnchanged() {
+    ClusterMembership membership = membership("a", "b");
+    String email = emailMovingTo("c", List.of("a", "b"), List.of("a", "b", "c"));
+    membership.update(nodes("a", "b", "c"));
+
+    membership.update(nodes("c", "b", "a"));
+
+    assertNotNull(membership.previousOwner(email));
+  }
+
+  @Test
+  void onEnvironmentChange_ShouldReloadNodes() {
+    ClusterMembership membership = membership("a", "b");
+    String email = emailMovingTo("c", List.of("a", "b"), List.of("a", "b", "c"));
+    for (String node : List.of("a", "b", "c")) {
+      int index = node.charAt(0) - 'a';
+      environment.setProperty("two-factor.cluster.nodes[" + index + "].id", node);
+      environment.setProperty("two-factor.cluster.nodes[" + index + "].url", "http://" + node + ".internal:8080");
+    }
+
+    membership.onEnvironmentChange(new EnvironmentChangeEvent(Set.of("two-factor.cluster.nodes[2].id")));
+
+    assertEquals("c", membership.owner(email));
+  }
+
+  @Test
+  void ringWithoutSelf_ShouldAssignEveryAddressAsTheRemainingNodesWill() {
+    ClusterMembership membership = membership("a", "b", "c");
+    ConsistentHashRing remaining = new ConsistentHashRing(List.of("c", "b"), 128);
+
+    ConsistentHashRing successors = membership.ringWithoutSelf();
+
+    for (int i = 0; i < 1_000; i++) {
+      String email = "user" + i + "@example.com";
+      assertEquals(remaining.owner(email), successors.owner(email));
+    }
+    assertNull(membership("a").ringWithoutSelf());
+  }
+
+  @Test
+  void constructor_ShouldRejectInvalidMembership() {
+    ClusterProperties properties = properties("a", "a");
+    assertThrows(IllegalArgumentException.class,
+        () -> new ClusterMembership(properties, Duration.ofMinutes(1), environment, clock::get));
+
+    ClusterProperties withoutSelf = properties("a");
+    withoutSelf.setSelf(null);
+    assertThrows(IllegalArgumentException.class,
+        () -> new ClusterMembership(withoutSelf, Duration.ofMinutes(1), environment, clock::get));
+  }
+
+  private ClusterMembership membership(String... nodes) {
+    return new ClusterMembership(properties(nodes), Duration.ofSeconds(60), environment, clock::get);
+  }
+
+  private static ClusterProperties properties(String... nodes) {
+    ClusterProperties properties = new ClusterProperties();
+    properties.setSelf(nodes[0]);
+    properties.setNodes(nodes(nodes));
+    return properties;
+  }
+
+  private static List<ClusterProperties.Node> nodes(String... ids) {
+    return Arrays.stream(ids).map(id -> {
+      ClusterProperties.Node node = new ClusterProperties.Node();
+      node.setId(id);
+      node.setUrl("http://" + id + ".internal:8080");
+      return node;
+    }).toList();
+  }
+
+  private static String emailMovingTo(String node, List<String> before, List<String> after) {
+    ConsistentHashRing oldRing = new ConsistentHashRing(before, 128);
+    ConsistentHashRing newRing = new ConsistentHashRing(after, 128);
+    for (int i = 0; ; i++) {
+      String email = "user" + i + "@example.com";
+      if (newRing.owner(email).equals(node) && !oldRing.owner(email).equals(node)) {
+        return email;
+      }
+    }
+  }
+}
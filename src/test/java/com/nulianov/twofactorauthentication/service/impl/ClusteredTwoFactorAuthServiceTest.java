@@ -0,0 +1,121 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nulianov.twofactorauthentication.client.ClusterNodeClient;
+import com.nulianov.twofactorauthentication.config.ClusterProperties;
+import com.nulianov.twofactorauthentication.exception.ClusterNodeUnavailableException;
+import com.nulianov.twofactorauthentication.exception.EmailSendingException;
+import com.nulianov.twofactorauthentication.model.TwoFactorAuthRequest;
+import com.nulianov.twofactorauthentication.model.VerificationResult;
+import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import feign.FeignException;
+import feign.Request;
+import feign.RequestTemplate;
+import feign.Response;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ClusteredTwoFactorAuthServiceTest {
+
+  private static final URI REMOTE = URI.create("http://remote:8080");
+
+  private OwnerTwoFactorAuthService ownerService;
+
+  private ClusterMembership clusterMembership;
+
+  private ClusterNodeClient clusterNodeClient;
+
+  private SimpleMeterRegistry meterRegistry;
+
+  private ClusteredTwoFactorAuthService service;
+
+  private final String email = "test@example.com";
+
+  @BeforeEach
+  void setUp() {
+    ownerService = mock(OwnerTwoFactorAuthService.class);
+    clusterMembership = mock(ClusterMembership.class);
+    clusterNodeClient = mock(ClusterNodeClient.class);
+    meterRegistry = new SimpleMeterRegistry();
+    ClusterProperties properties = new ClusterProperties();
+    properties.setToken("secret");
+    service = new ClusteredTwoFactorAuthService(
+        ownerService, clusterMembership, clusterNodeClient, new ObjectMapper(), properties, meterRegistry);
+
+    when(clusterMembership.url("remote")).thenReturn(REMOTE);
+  }
+
+  @Test
+  void verifyCode_ShouldHandleLocally_WhenThisNodeOwnsEmail() {
+    givenOwner("local", true);
+    when(ownerService.verifyCode(email, "123456")).thenReturn(VerificationResult.of(VerificationStatus.SUCCESS));
+
+    assertEquals(VerificationStatus.SUCCESS, service.verifyCode(email, "123456").status());
+    verify(clusterNodeClient, never()).verifyCode(any(), any(), any());
+  }
+
+  @Test
+  void verifyCode_ShouldForwardToOwner_WhenAnotherNodeOwnsEmail() {
+    givenOwner("remote", false);
+    when(clusterNodeClient.verifyCode(REMOTE, "secret", new TwoFactorAuthRequest(email, "123456")))
+        .thenReturn(VerificationStatus.INVALID_CODE);
+
+    VerificationResult result = service.verifyCode(email, "123456");
+
+    assertSame(VerificationResult.of(VerificationStatus.INVALID_CODE), result);
+    verify(ownerService, never()).verifyCode(any(), any());
+    assertEquals(1, meterRegistry.counter("twofactor.cluster.forwarded", "operation", "verify").count());
+  }
+
+  @Test
+  void initiateTwoFactorAuth_ShouldReportEmailSendingFailure_WhenOwnerCouldNotSendEmail() {
+    givenOwner("remote", false);
+    FeignException failure = feignException(503,
+        "{\"status\":\"error\",\"message\":\"Failed to send email.\",\"errorCode\":\"EMAIL_SENDING_FAILED\"}");
+    doThrow(failure).when(clusterNodeClient)
+        .initiateTwoFactorAuth(eq(REMOTE), eq("secret"), any());
+
+    EmailSendingException ex = assertThrows(EmailSendingException.class, () -> service.initiateTwoFactorAuth(email));
+    assertEquals("Failed to send email.", ex.getMessage());
+  }
+
+  @Test
+  void resendCode_ShouldThrowClusterNodeUnavailable_WhenOwnerFails() {
+    givenOwner("remote", false);
+    when(clusterNodeClient.resendCode(eq(REMOTE), eq("secret"), any()))
+        .thenThrow(feignException(500, "{\"errorCode\":\"INTERNAL_SERVER_ERROR\"}"));
+
+    assertThrows(ClusterNodeUnavailableException.class, () -> service.resendCode(email));
+  }
+
+  private void givenOwner(String node, boolean self) {
+    when(clusterMembership.owner(email)).thenReturn(node);
+    when(clusterMembership.isSelf(node)).thenReturn(self);
+  }
+
+  private static FeignException feignException(int status, String body) {
+    Request request = Request.create(Request.HttpMethod.POST, REMOTE.toString(), Map.of(), null,
+        StandardCharsets.UTF_8, new RequestTemplate());
+    return FeignException.errorStatus("ClusterNodeClient#call", Response.builder()
+        .status(status)
+        .request(request)
+        .headers(Map.of())
+        .body(body, StandardCharsets.UTF_8)
+        .build());
+  }
+}
@@ -0,0 +1,168 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.nulianov.twofactorauthentication.config.ClusterProperties;
+import com.nulianov.twofactorauthentication.config.TwoFactorAuthProperties;
+import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.repository.CodeRepository;
+import com.nulianov.twofactorauthentication.repository.impl.CaffeineCodeRepository;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class CodeHandoffServiceTest {
+
+  private static final int VALIDITY = 300;
+  private static final List<String> REMAINING = List.of("node-2", "node-3");
+
+  private final Map<String, Map<String, CodeData>> received = new ConcurrentHashMap<>();
+  private final List<HttpServer> nodes = new ArrayList<>();
+  private final ConsistentHashRing ring = new ConsistentHashRing(REMAINING, 128);
+
+  private ClusterMembership clusterMembership;
+
+  private CaffeineCodeRepository codeRepository;
+
+  private CodeHandoffService handoffService;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    clusterMembership = mock(ClusterMembership.class);
+    when(clusterMembership.ringWithoutSelf()).thenReturn(ring);
+    for (String node : REMAINING) {
+      when(clusterMembership.url(node)).thenReturn(startNode(node));
+    }
+    codeRepository = new CaffeineCodeRepository(Caffeine.newBuilder().build());
+    handoffService = handoffService(codeRepository, "secret");
+  }
+
+  @AfterEach
+  void tearDown() {
+    nodes.forEach(node -> node.stop(0));
+  }
+
+  @Test
+  void handOff_ShouldSendNothing_WhenClusterTokenIsBlank() {
+    CodeRepository codeRepository = mock(CodeRepository.class);
+    ClusterMembership clusterMembership = mock(ClusterMembership.class);
+    ClusterProperties properties = new ClusterProperties();
+    properties.setToken(" ");
+    CodeHandoffService handoffService = new CodeHandoffService(codeRepository, clusterMembership, properties,
+        new TwoFactorAuthProperties(), new SimpleMeterRegistry());
+
+    assertEquals(0, handoffService.handOff());
+    verifyNoInteractions(codeRepository, clusterMembership);
+  }
+
+  @Test
+  void handOff_ShouldSendNothing_WhenStoreCannotListItsCodes() {
+    CodeRepository unlisted = mock(CodeRepository.class);
+
+    assertEquals(0, handoffService(unlisted, "secret").handOff());
+
+    verifyNoInteractions(unlisted);
+    assertEquals(Map.of(), received);
+  }
+
+  @Test
+  void handOff_ShouldSendEachCodeToItsOwnerAmongRemainingNodes() {
+    long now = Instant.now().getEpochSecond();
+    for (int i = 0; i < 50; i++) {
+      codeRepository.save("user" + i + "@example.com", new CodeData(String.format("%06d", i), now, i % 3));
+    }
+
+    assertEquals(50, handoffService.handOff());
+
+    for (int i = 0; i < 50; i++) {
+      String email = "user" + i + "@example.com";
+      String owner = ring.owner(email);
+      assertEquals(new CodeData(String.format("%06d", i), now, i % 3), received.get(owner).get(email));
+      for (String node : REMAINING) {
+        if (!node.equals(owner)) {
+          assertFalse(received.getOrDefault(node, Map.of()).containsKey(email), email + " was also sent to " + node);
+        }
+      }
+    }
+    assertEquals(REMAINING.size(), received.size());
+    assertEquals(0, codeRepository.size());
+  }
+
+  @Test
+  void handOff_ShouldKeepCodesOfNodeThatFailed() {
+    nodes.get(1).stop(0);
+    long now = Instant.now().getEpochSecond();
+    for (int i = 0; i < 50; i++) {
+      codeRepository.save("user" + i + "@example.com", new CodeData(String.format("%06d", i), now));
+    }
+
+    long accepted = handoffService.handOff();
+
+    for (int i = 0; i < 50; i++) {
+      String email = "user" + i + "@example.com";
+      boolean failed = ring.owner(email).equals(REMAINING.get(1));
+      assertEquals(failed, codeRepository.findByEmail(email) != null, email);
+    }
+    assertEquals(50 - codeRepository.size(), accepted);
+  }
+
+  @Test
+  void handOff_ShouldLeaveOutExpiredCodes() {
+    long now = Instant.now().getEpochSecond();
+    CodeData pending = new CodeData("123456", now);
+    codeRepository.save("pending@example.com", pending);
+    codeRepository.save("expired@example.com", new CodeData("654321", now - VALIDITY - 1));
+
+    assertEquals(1, handoffService.handOff());
+
+    Map<String, CodeData> all = new ConcurrentHashMap<>();
+    received.values().forEach(all::putAll);
+    assertEquals(Map.of("pending@example.com", pending), all);
+  }
+
+  private CodeHandoffService handoffService(CodeRepository codeRepository, String token) {
+    ClusterProperties properties = new ClusterProperties();
+    properties.setToken(token);
+    TwoFactorAuthProperties twoFactorAuthProperties = new TwoFactorAuthProperties();
+    twoFactorAuthProperties.setCodeValidityDuration(VALIDITY);
+    return new CodeHandoffService(codeRepository, clusterMembership, properties, twoFactorAuthProperties,
+        new SimpleMeterRegistry());
+  }
+
+  /**
+   * Starts a stub node that takes over every code streamed to it, and returns its base URL.
+   */
+  private URI startNode(String node) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/internal/cluster/codes/handoff", exchange -> {
+      Map<String, CodeData> codes = received.computeIfAbsent(node, key -> new ConcurrentHashMap<>());
+      byte[] body = Long.toString(CodeTransfer.decode(exchange.getRequestBody(), codes::put))
+          .getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    server.start();
+    nodes.add(server);
+    return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+  }
+}
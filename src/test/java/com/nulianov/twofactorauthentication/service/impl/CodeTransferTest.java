@@ -0,0 +1,96 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.nulianov.twofactorauthentication.model.CodeData;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class CodeTransferTest {
+
+  @Test
+  void decode_ShouldRestoreCreationTimesAndAttempts() throws IOException {
+    Map<String, CodeData> codes = codes(1_000);
+    codes.put("jöhn@exämple.com", new CodeData("ABC123", 1_700_000_000L, 2));
+
+    Map<String, CodeData> received = new LinkedHashMap<>();
+    long read = CodeTransfer.decode(CodeTransfer.encode(codes.entrySet().iterator(), 256, creationTime -> false),
+        received::put);
+
+    assertEquals(codes.size(), read);
+    assertEquals(codes, received);
+  }
+
+  @Test
+  void encode_ShouldLeaveOutSkippedCodes() throws IOException {
+    Map<String, CodeData> codes = new LinkedHashMap<>();
+    codes.put("old@example.com", new CodeData("111111", 100L, 1));
+    codes.put("new@example.com", new CodeData("222222", 200L, 0));
+
+    Map<String, CodeData> received = new LinkedHashMap<>();
+    CodeTransfer.Encoder encoder = CodeTransfer.encode(codes.entrySet().iterator(), 256,
+        creationTime -> creationTime < 150);
+    CodeTransfer.decode(encoder, received::put);
+
+    assertEquals(Map.of("new@example.com", new CodeData("222222", 200L, 0)), received);
+    assertEquals(1, encoder.written());
+  }
+
+  @Test
+  void encode_ShouldReadCodesOnlyAsTheStreamIsRead() throws IOException {
+    int[] taken = new int[1];
+    Iterator<Map.Entry<String, CodeData>> source = codes(10_000).entrySet().iterator();
+    Iterator<Map.Entry<String, CodeData>> counting = new Iterator<>() {
+      @Override
+      public boolean hasNext() {
+        return source.hasNext();
+      }
+
+      @Override
+      public Map.Entry<String, CodeData> next() {
+        taken[0]++;
+        return source.next();
+      }
+    };
+    InputStream encoder = CodeTransfer.encode(counting, 1024, creationTime -> false);
+
+    encoder.readNBytes(2048);
+
+    assertTrue(taken[0] > 0 && taken[0] < 200, "Encoded " + taken[0] + " codes for 2 KB");
+  }
+
+  @Test
+  void decode_ShouldFail_WhenTransferIsCutShort() throws IOException {
+    byte[] transfer = CodeTransfer.encode(codes(100).entrySet().iterator(), 256, creationTime -> false).readAllBytes();
+    byte[] truncated = Arrays.copyOf(transfer, transfer.length - 4);
+    Map<String, CodeData> received = new LinkedHashMap<>();
+
+    assertThrows(EOFException.class, () -> CodeTransfer.decode(new ByteArrayInputStream(truncated), received::put));
+    assertEquals(100, received.size());
+  }
+
+  @Test
+  void decode_ShouldRejectOtherFormats() {
+    InputStream other = new ByteArrayInputStream("{\"email\":\"test@example.com\"}".getBytes());
+
+    assertThrows(IOException.class, () -> CodeTransfer.decode(other, (email, codeData) -> {
+    }));
+  }
+
+  private static Map<String, CodeData> codes(int count) {
+    Map<String, CodeData> codes = new LinkedHashMap<>();
+    for (int i = 0; i < count; i++) {
+      codes.put("user" + i + "@example.com", new CodeData(String.format("%06d", i), 1_700_000_000L + i, i % 3));
+    }
+    return codes;
+  }
+}
@@ -0,0 +1,72 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class ConsistentHashRingTest {
+
+  private static final int EMAILS = 30_000;
+
+  @Test
+  void owner_ShouldBeSameOnEveryInstance_RegardlessOfNodeOrder() {
+    ConsistentHashRing ring = new ConsistentHashRing(List.of("a", "b", "c"), 128);
+    ConsistentHashRing reordered = new ConsistentHashRing(List.of("c", "a", "b"), 128);
+
+    for (int i = 0; i < 1000; i++) {
+      String email = "user" + i + "@example.com";
+      assertEquals(ring.owner(email), reordered.owner(email));
+    }
+  }
+
+  @Test
+  void owner_ShouldIgnoreCaseAndSurroundingWhitespace() {
+    ConsistentHashRing ring = new ConsistentHashRing(List.of("a", "b", "c"), 128);
+
+    for (int i = 0; i < 100; i++) {
+      assertEquals(ring.owner("user" + i + "@example.com"), ring.owner(" User" + i + "@Example.COM "));
+    }
+  }
+
+  @Test
+  void owner_ShouldSpreadEmailsEvenly() {
+    ConsistentHashRing ring = new ConsistentHashRing(List.of("a", "b", "c"), 128);
+    Map<String, Integer> counts = new HashMap<>();
+
+    for (int i = 0; i < EMAILS; i++) {
+      counts.merge(ring.owner("user" + i + "@example.com"), 1, Integer::sum);
+    }
+
+    for (int count : counts.values()) {
+      assertTrue(Math.abs(count - EMAILS / 3) < EMAILS / 3 * 0.2, "Node owns " + count + " of " + EMAILS);
+    }
+  }
+
+  @Test
+  void owner_ShouldOnlyMoveEmailsToNewNode_WhenNodeIsAdded() {
+    ConsistentHashRing before = new ConsistentHashRing(List.of("a", "b", "c"), 128);
+    ConsistentHashRing after = new ConsistentHashRing(List.of("a", "b", "c", "d"), 128);
+    int moved = 0;
+
+    for (int i = 0; i < EMAILS; i++) {
+      String email = "user" + i + "@example.com";
+      if (!before.owner(email).equals(after.owner(email))) {
+        assertEquals("d", after.owner(email));
+        moved++;
+      }
+    }
+
+    assertTrue(Math.abs(moved - EMAILS / 4) < EMAILS / 4 * 0.2, moved + " of " + EMAILS + " emails moved");
+  }
+
+  @Test
+  void constructor_ShouldRejectEmptyRing() {
+    assertThrows(IllegalArgumentException.class, () -> new ConsistentHashRing(List.of(), 128));
+    assertThrows(IllegalArgumentException.class, () -> new ConsistentHashRing(List.of("a"), 0));
+  }
+}
@@ -0,0 +1,129 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.nulianov.twofactorauthentication.exception.EmailSendingException;
+import com.nulianov.twofactorauthentication.model.EmailServiceRequest;
+import com.nulianov.twofactorauthentication.model.EmailServiceResult;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class EmailBatcherTest {
+
+  private final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+  private final ExecutorService callers = Executors.newVirtualThreadPerTaskExecutor();
+
+  private EmailBatcher emailBatcher;
+
+  @AfterEach
+  void tearDown() {
+    callers.close();
+    emailBatcher.close();
+  }
+
+  @Test
+  void send_ShouldGroupConcurrentRequestsUpToMaxSize() throws Exception {
+    emailBatcher = newBatcher(this::acceptAll, 10, Duration.ofMillis(200));
+
+    List<Future<Throwable>> results = sendConcurrently(25);
+
+    for (Future<Throwable> result : results) {
+      assertNull(result.get());
+    }
+    assertEquals(25, batchSizes.stream().mapToInt(Integer::intValue).sum());
+    assertTrue(batchSizes.stream().allMatch(size -> size <= 10));
+    assertTrue(batchSizes.size() < 25);
+  }
+
+  @Test
+  void send_ShouldFlushAfterLinger_WhenBatchIsNotFull() {
+    emailBatcher = newBatcher(this::acceptAll, 100, Duration.ofMillis(20));
+
+    emailBatcher.send(request("user@example.com"));
+
+    assertEquals(List.of(1), batchSizes);
+  }
+
+  @Test
+  void send_ShouldFailOnlyRejectedItems() throws Exception {
+    String rejected = "user3@example.com";
+    emailBatcher = newBatcher(requests -> requests.stream()
+        .map(request -> request.to().equals(rejected)
+            ? new EmailServiceResult(false, "Mailbox unavailable")
+            : new EmailServiceResult(true, null))
+        .toList(), 10, Duration.ofMillis(200));
+
+    List<Future<Throwable>> results = sendConcurrently(10);
+
+    for (int i = 0; i < results.size(); i++) {
+      Throwable failure = results.get(i).get();
+      if (i == 3) {
+        assertInstanceOf(EmailSendingException.class, failure);
+        assertEquals("Email service rejected the message: Mailbox unavailable", failure.getMessage());
+      } else {
+        assertNull(failure);
+      }
+    }
+  }
+
+  @Test
+  void send_ShouldFailEveryItem_WhenSubmissionFails() throws Exception {
+    IllegalStateException submissionFailure = new IllegalStateException("Connection refused");
+    emailBatcher = newBatcher(requests -> {
+      throw submissionFailure;
+    }, 10, Duration.ofMillis(50));
+
+    for (Future<Throwable> result : sendConcurrently(5)) {
+      assertEquals(submissionFailure, result.get());
+    }
+  }
+
+  @Test
+  void send_ShouldFailEveryItem_WhenResponseIsIncomplete() throws Exception {
+    emailBatcher = newBatcher(requests -> List.of(new EmailServiceResult(true, null)), 10, Duration.ofMillis(200));
+
+    for (Future<Throwable> result : sendConcurrently(3)) {
+      assertInstanceOf(EmailSendingException.class, result.get());
+    }
+  }
+
+  private EmailBatcher newBatcher(
+      Function<List<EmailServiceRequest>, List<EmailServiceResult>> submitter, int maxSize, Duration linger) {
+    return new EmailBatcher(submitter, batchSizes::add, maxSize, linger, 2);
+  }
+
+  private List<EmailServiceResult> acceptAll(List<EmailServiceRequest> requests) {
+    return requests.stream().map(request -> new EmailServiceResult(true, null)).toList();
+  }
+
+  private List<Future<Throwable>> sendConcurrently(int count) {
+    List<Future<Throwable>> results = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      EmailServiceRequest request = request("user" + i + "@example.com");
+      results.add(callers.submit(() -> {
+        try {
+          emailBatcher.send(request);
+          return null;
+        } catch (RuntimeException ex) {
+          return ex;
+        }
+      }));
+    }
+    return results;
+  }
+
+  private EmailServiceRequest request(String to) {
+    return new EmailServiceRequest(to, "Your code", "Your code is 123456");
+  }
+}
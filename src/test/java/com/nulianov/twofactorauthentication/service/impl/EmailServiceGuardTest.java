@@ -0,0 +1,172 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.nulianov.twofactorauthentication.config.EmailResilienceProperties;
+import feign.FeignException;
+import feign.Request;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class EmailServiceGuardTest {
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final AtomicInteger calls = new AtomicInteger();
+
+  private EmailResilienceProperties properties;
+
+  @BeforeEach
+  void setUp() {
+    properties = new EmailResilienceProperties();
+    properties.getRetry().setInitialBackoff(Duration.ofMillis(1));
+    properties.getCircuitBreaker().setSlidingWindowSize(4);
+    properties.getCircuitBreaker().setMinimumNumberOfCalls(4);
+  }
+
+  @Test
+  void execute_ShouldRetryServerFailures() {
+    EmailServiceGuard guard = new EmailServiceGuard(properties, meterRegistry);
+
+    String result = guard.execute(() -> {
+      if (calls.incrementAndGet() < 3) {
+        throw serviceUnavailable();
+      }
+      return "sent";
+    });
+
+    assertEquals("sent", result);
+    assertEquals(3, calls.get());
+  }
+
+  @Test
+  void execute_ShouldNotRetryClientErrors() {
+    EmailServiceGuard guard = new EmailServiceGuard(properties, meterRegistry);
+
+    assertThrows(FeignException.BadRequest.class, () -> guard.execute(() -> {
+      calls.incrementAndGet();
+      throw new FeignException.BadRequest("Bad Request", request(), null, null);
+    }));
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  void execute_ShouldStopRetrying_WhenBudgetIsSpent() {
+    properties.getRetry().setBudgetRatio(0);
+    properties.getRetry().setBudgetReserve(1);
+    EmailServiceGuard guard = new EmailServiceGuard(properties, meterRegistry);
+
+    assertThrows(FeignException.ServiceUnavailable.class, () -> guard.execute(this::failingCall));
+    assertEquals(2, calls.get());
+
+    calls.set(0);
+    assertThrows(FeignException.ServiceUnavailable.class, () -> guard.execute(this::failingCall));
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  void execute_ShouldWithdrawFromBudgetOnlyForAttemptsThatAreMade() {
+    properties.getRetry().setMaxAttempts(3);
+    properties.getRetry().setBudgetRatio(0);
+    properties.getRetry().setBudgetReserve(5);
+    EmailServiceGuard guard = new EmailServiceGuard(properties, meterRegistry);
+
+    assertThrows(FeignException.ServiceUnavailable.class, () -> guard.execute(this::failingCall));
+
+    assertEquals(3, calls.get());
+    // Two retries were made after the first attempt; the failure of the last attempt is not retried
+    assertEquals(3, meterRegistry.get("twofactor.email.retry.budget").gauge().value());
+  }
+
+  @Test
+  void execute_ShouldFailFast_WhenCircuitIsOpen() {
+    properties.getRetry().setMaxAttempts(1);
+    EmailServiceGuard guard = new EmailServiceGuard(properties, meterRegistry);
+    for (int i = 0; i < 4; i++) {
+      assertThrows(FeignException.ServiceUnavailable.class, () -> guard.execute(this::failingCall));
+    }
+
+    calls.set(0);
+    assertThrows(CallNotPermittedException.class, () -> guard.execute(this::failingCall));
+
+    assertEquals(0, calls.get());
+    assertEquals(CircuitBreaker.State.OPEN, guard.getCircuitBreakerState());
+    assertEquals(1, meterRegistry.get("resilience4j.circuitbreaker.state")
+        .tag("name", "emailService").tag("state", "open").gauge().value());
+  }
+
+  @Test
+  void execute_ShouldRejectCalls_WhenBulkheadIsFull() throws InterruptedException {
+    properties.getBulkhead().setMaxConcurrentCalls(1);
+    EmailServiceGuard guard = new EmailServiceGuard(properties, meterRegistry);
+    CountDownLatch inFlight = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    Thread holder = Thread.ofVirtual().start(() -> guard.execute(() -> {
+      inFlight.countDown();
+      awaitQuietly(release);
+    }));
+    assertTrue(inFlight.await(5, TimeUnit.SECONDS));
+
+    assertThrows(BulkheadFullException.class, () -> guard.execute(() -> "sent"));
+
+    release.countDown();
+    holder.join();
+    assertEquals("sent", guard.execute(() -> "sent"));
+  }
+
+  @Test
+  void tryAcquirePermission_ShouldShareBulkheadWithCalls() {
+    properties.getBulkhead().setMaxConcurrentCalls(1);
+    EmailServiceGuard guard = new EmailServiceGuard(properties, meterRegistry);
+
+    assertTrue(guard.tryAcquirePermission());
+    assertFalse(guard.tryAcquirePermission());
+    assertThrows(BulkheadFullException.class, () -> guard.execute(() -> "sent"));
+
+    guard.releasePermission();
+    assertEquals("sent", guard.execute(() -> "sent"));
+  }
+
+  @Test
+  void execute_ShouldCallThrough_WhenDisabled() {
+    EmailServiceGuard guard = EmailServiceGuard.disabled();
+
+    assertThrows(FeignException.ServiceUnavailable.class, () -> guard.execute(this::failingCall));
+    assertEquals(1, calls.get());
+  }
+
+  private String failingCall() {
+    calls.incrementAndGet();
+    throw serviceUnavailable();
+  }
+
+  private FeignException serviceUnavailable() {
+    return new FeignException.ServiceUnavailable("Service Unavailable", request(), null, null);
+  }
+
+  private Request request() {
+    return Request.create(Request.HttpMethod.POST, "http://localhost/api/email/send", Map.of(), null,
+        StandardCharsets.UTF_8, null);
+  }
+
+  private void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -9,9 +9,13 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import com.nulianov.twofactorauthentication.client.EmailServiceClient;
+import com.nulianov.twofactorauthentication.config.EmailServiceProperties;
 import com.nulianov.twofactorauthentication.exception.EmailSendingException;
 import com.nulianov.twofactorauthentication.model.EmailServiceRequest;
 import feign.FeignException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.net.URI;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -21,6 +25,12 @@ class ExternalEmailServiceTest {
 
   private ExternalEmailService externalEmailService;
 
+  private SimpleMeterRegistry meterRegistry;
+
+  private EmailProviderRouter emailProviderRouter;
+
+  private final URI provider = URI.create("http://email.test/api/email");
+
   private final String emailSubject = "Your verification code";
   private final String emailBodyTemplate = "Your code is: {code}";
 
@@ -30,7 +40,17 @@ class ExternalEmailServiceTest {
   @BeforeEach
   void setUp() {
     emailServiceClient = mock(EmailServiceClient.class);
-    externalEmailService = new ExternalEmailService(emailServiceClient, emailSubject, emailBodyTemplate);
+    meterRegistry = new SimpleMeterRegistry();
+    EmailServiceProperties properties = new EmailServiceProperties();
+    properties.setUrl(provider.toString());
+    emailProviderRouter = new EmailProviderRouter(properties, meterRegistry, EmailServiceGuard.disabled(), false);
+    externalEmailService = new ExternalEmailService(
+        emailServiceClient, emailSubject, emailBodyTemplate, meterRegistry, emailProviderRouter);
+  }
+
+  @AfterEach
+  void tearDown() {
+    emailProviderRouter.destroy();
   }
 
   @Test
@@ -40,23 +60,26 @@ class ExternalEmailServiceTest {
     externalEmailService.sendEmail(email, code);
 
     EmailServiceRequest expectedRequest = new EmailServiceRequest(email, emailSubject, expectedBody);
-    verify(emailServiceClient, times(1)).sendEmail(expectedRequest);
+    verify(emailServiceClient, times(1)).sendEmail(provider, expectedRequest);
+    assertEquals(1, meterRegistry.timer("twofactor.email.send", "outcome", "success").count());
   }
 
   @Test
   void sendEmail_ShouldHandleFeignExceptionAndThrowEmailSendingException() {
-    doThrow(FeignException.class).when(emailServiceClient).sendEmail(any(EmailServiceRequest.class));
+    doThrow(FeignException.class).when(emailServiceClient).sendEmail(any(URI.class), any(EmailServiceRequest.class));
 
     EmailSendingException exception = assertThrows(
         EmailSendingException.class,
         () -> externalEmailService.sendEmail(email, code)
     );
     assertEquals("Failed to send verification email.", exception.getMessage());
+    assertEquals(1, meterRegistry.timer("twofactor.email.send", "outcome", "failure").count());
+    assertEquals(1, meterRegistry.get("twofactor.email.send.errors").counter().count());
   }
 
   @Test
   void sendEmail_ShouldHandleGenericExceptionAndThrowEmailSendingException() {
-    doThrow(RuntimeException.class).when(emailServiceClient).sendEmail(any(EmailServiceRequest.class));
+    doThrow(RuntimeException.class).when(emailServiceClient).sendEmail(any(URI.class), any(EmailServiceRequest.class));
 
     EmailSendingException exception = assertThrows(
         EmailSendingException.class,
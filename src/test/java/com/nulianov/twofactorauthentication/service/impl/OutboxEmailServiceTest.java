@@ -0,0 +1,228 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.nulianov.twofactorauthentication.config.EmailDispatchProperties;
+import com.nulianov.twofactorauthentication.exception.EmailSendingException;
+import com.nulianov.twofactorauthentication.service.EmailService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+class OutboxEmailServiceTest {
+
+  @TempDir
+  Path directory;
+
+  private EmailService delegate;
+
+  private EmailDispatchProperties properties;
+
+  private SimpleMeterRegistry meterRegistry;
+
+  private OutboxEmailService outboxEmailService;
+
+  private final String email = "test@example.com";
+  private final String code = "123456";
+
+  @BeforeEach
+  void setUp() {
+    delegate = mock(EmailService.class);
+    meterRegistry = new SimpleMeterRegistry();
+    properties = new EmailDispatchProperties();
+    properties.setWorkerThreads(1);
+    properties.setShutdownTimeout(Duration.ofSeconds(1));
+    properties.getOutbox().setPath(directory.toString());
+    properties.getOutbox().setSegmentSize(DataSize.ofKilobytes(1));
+    properties.getOutbox().setCompactInterval(Duration.ofHours(1));
+    properties.getOutbox().setInitialBackoff(Duration.ofMillis(10));
+    properties.getOutbox().setMaxBackoff(Duration.ofMillis(20));
+    properties.getOutbox().setMaxAttempts(3);
+  }
+
+  @AfterEach
+  void tearDown() throws InterruptedException {
+    if (outboxEmailService != null) {
+      outboxEmailService.destroy();
+    }
+  }
+
+  @Test
+  void sendEmail_ShouldDeliverThroughDelegate() {
+    outboxEmailService = newService();
+
+    outboxEmailService.sendEmail(email, code);
+
+    verify(delegate, timeout(1000)).sendEmail(email, code);
+  }
+
+  @Test
+  void sendEmail_ShouldReturn_WhenDelegateFails() {
+    doThrow(new EmailSendingException("down")).when(delegate).sendEmail(email, code);
+    outboxEmailService = newService();
+
+    outboxEmailService.sendEmail(email, code);
+
+    verify(delegate, timeout(1000).times(3)).sendEmail(email, code);
+  }
+
+  @Test
+  void sendEmail_ShouldRetryUntilDelivered() {
+    doThrow(new EmailSendingException("down"))
+        .doNothing()
+        .when(delegate).sendEmail(email, code);
+    outboxEmailService = newService();
+
+    outboxEmailService.sendEmail(email, code);
+
+    verify(delegate, timeout(1000).times(2)).sendEmail(email, code);
+    verify(delegate, after(200).times(2)).sendEmail(email, code);
+    assertEquals(0, outboxEmailService.getPendingCount());
+  }
+
+  @Test
+  void sendEmail_ShouldGiveUp_AfterMaxAttempts() {
+    doThrow(new EmailSendingException("down")).when(delegate).sendEmail(email, code);
+    outboxEmailService = newService();
+
+    outboxEmailService.sendEmail(email, code);
+
+    verify(delegate, after(500).times(3)).sendEmail(email, code);
+    assertEquals(0, outboxEmailService.getPendingCount());
+    assertEquals(1, meterRegistry.counter("twofactor.email.outbox.dropped", "reason", "attempts").count());
+  }
+
+  @Test
+  void sendEmail_ShouldDropMessage_WhenCodeHasExpired() {
+    outboxEmailService = new OutboxEmailService(delegate, properties, Duration.ZERO, meterRegistry);
+
+    outboxEmailService.sendEmail(email, code);
+
+    verify(delegate, after(300).never()).sendEmail(email, code);
+    assertEquals(1, meterRegistry.counter("twofactor.email.outbox.dropped", "reason", "expired").count());
+  }
+
+  @Test
+  void sendEmail_ShouldSendOnlyNewestCode_WhenSupersededBeforeDelivery() {
+    CountDownLatch release = new CountDownLatch(1);
+    doAnswer(invocation -> {
+      release.await();
+      return null;
+    }).when(delegate).sendEmail("blocker@example.com", code);
+    outboxEmailService = newService();
+    outboxEmailService.sendEmail("blocker@example.com", code);
+    verify(delegate, timeout(1000)).sendEmail("blocker@example.com", code);
+
+    outboxEmailService.sendEmail(email, "111111");
+    outboxEmailService.sendEmail(email, code);
+    release.countDown();
+
+    verify(delegate, timeout(1000)).sendEmail(email, code);
+    verify(delegate, never()).sendEmail(email, "111111");
+  }
+
+  @Test
+  void pendingEmails_ShouldBeDeliveredAfterRestart() throws InterruptedException {
+    doThrow(new EmailSendingException("down")).when(delegate).sendEmail(anyString(), anyString());
+    properties.getOutbox().setInitialBackoff(Duration.ofHours(1));
+    properties.getOutbox().setMaxBackoff(Duration.ofHours(1));
+    outboxEmailService = newService();
+    outboxEmailService.sendEmail(email, code);
+    outboxEmailService.sendEmail("other@example.com", code);
+    verify(delegate, timeout(1000).times(2)).sendEmail(anyString(), anyString());
+    assertEquals(2, outboxEmailService.getPendingCount());
+    outboxEmailService.destroy();
+
+    delegate = mock(EmailService.class);
+    outboxEmailService = newService();
+
+    verify(delegate, timeout(1000)).sendEmail(email, code);
+    verify(delegate, timeout(1000)).sendEmail("other@example.com", code);
+  }
+
+  @Test
+  void deliveredEmails_ShouldNotBeSentAgainAfterRestart() throws InterruptedException {
+    outboxEmailService = newService();
+    outboxEmailService.sendEmail(email, code);
+    verify(delegate, timeout(1000)).sendEmail(email, code);
+    outboxEmailService.destroy();
+
+    outboxEmailService = newService();
+
+    assertEquals(0, outboxEmailService.getPendingCount());
+    verify(delegate, after(200).times(1)).sendEmail(email, code);
+  }
+
+  @Test
+  void compact_ShouldDeleteDeliveredSegmentsAndKeepPendingMessages() throws Exception {
+    doThrow(new EmailSendingException("down")).when(delegate).sendEmail("stuck@example.com", code);
+    properties.getOutbox().setMaxAttempts(Integer.MAX_VALUE);
+    properties.getOutbox().setInitialBackoff(Duration.ofHours(1));
+    properties.getOutbox().setMaxBackoff(Duration.ofHours(1));
+    outboxEmailService = newService();
+
+    outboxEmailService.sendEmail("stuck@example.com", code);
+    for (int i = 0; i < 50; i++) {
+      outboxEmailService.sendEmail(email, code);
+      verify(delegate, timeout(1000).times(i + 1)).sendEmail(email, code);
+    }
+    assertEquals(1, outboxEmailService.getPendingCount());
+    long segmentsBefore = segmentCount();
+
+    outboxEmailService.compact();
+
+    assertEquals(1, segmentCount());
+    assertTrue(segmentsBefore > 1);
+    outboxEmailService.destroy();
+
+    outboxEmailService = newService();
+    assertEquals(1, outboxEmailService.getPendingCount());
+  }
+
+  @Test
+  void sendEmail_ShouldThrow_WhenShuttingDown() throws InterruptedException {
+    outboxEmailService = newService();
+    outboxEmailService.destroy();
+
+    assertThrows(EmailSendingException.class, () -> outboxEmailService.sendEmail(email, code));
+    verify(delegate, never()).sendEmail(email, code);
+    outboxEmailService = null;
+  }
+
+  @Test
+  void constructor_ShouldRefuseOutboxInUseByAnotherInstance() {
+    outboxEmailService = newService();
+
+    assertThrows(IllegalStateException.class, this::newService);
+  }
+
+  private OutboxEmailService newService() {
+    return new OutboxEmailService(delegate, properties, Duration.ofMinutes(5), meterRegistry);
+  }
+
+  private long segmentCount() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(path -> path.getFileName().toString().endsWith(".log")).count();
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.nulianov.twofactorauthentication.client.ClusterNodeClient;
+import com.nulianov.twofactorauthentication.config.ClusterProperties;
+import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.model.TwoFactorAuthRequest;
+import com.nulianov.twofactorauthentication.model.VerificationResult;
+import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import com.nulianov.twofactorauthentication.repository.CodeRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.net.URI;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class OwnerTwoFactorAuthServiceTest {
+
+  private static final URI PREVIOUS = URI.create("http://previous:8080");
+
+  private TwoFactorAuthServiceImpl localService;
+
+  private CodeRepository codeRepository;
+
+  private ClusterNodeClient clusterNodeClient;
+
+  private SimpleMeterRegistry meterRegistry;
+
+  private OwnerTwoFactorAuthService ownerService;
+
+  private final String email = "test@example.com";
+  private final CodeData released = new CodeData("123456", System.currentTimeMillis(), 1);
+
+  @BeforeEach
+  void setUp() {
+    localService = mock(TwoFactorAuthServiceImpl.class);
+    codeRepository = mock(CodeRepository.class);
+    ClusterMembership clusterMembership = mock(ClusterMembership.class);
+    clusterNodeClient = mock(ClusterNodeClient.class);
+    meterRegistry = new SimpleMeterRegistry();
+    ClusterProperties properties = new ClusterProperties();
+    properties.setToken("secret");
+    ownerService = new OwnerTwoFactorAuthService(localService, codeRepository, clusterMembership, clusterNodeClient,
+        properties, meterRegistry);
+
+    when(clusterMembership.previousOwner(email)).thenReturn("previous");
+    when(clusterMembership.url("previous")).thenReturn(PREVIOUS);
+    when(clusterNodeClient.releaseCode(PREVIOUS, "secret", new TwoFactorAuthRequest(email, null)))
+        .thenReturn(released);
+    when(localService.verifyCode(email, "123456")).thenReturn(VerificationResult.of(VerificationStatus.SUCCESS));
+  }
+
+  @Test
+  void verifyCode_ShouldTakeOverCodeFromPreviousOwner_WhenNoneIsPendingHere() {
+    when(codeRepository.saveIfAbsent(email, released)).thenReturn(true);
+
+    ownerService.verifyCode(email, "123456");
+
+    verify(codeRepository).saveIfAbsent(email, released);
+    assertEquals(1, meterRegistry.get("twofactor.cluster.handoffs").counter().count());
+  }
+
+  @Test
+  void verifyCode_ShouldNotCountTakeover_WhenCodeWasInitiatedHereMeanwhile() {
+    when(codeRepository.saveIfAbsent(email, released)).thenReturn(false);
+
+    ownerService.verifyCode(email, "123456");
+
+    verify(localService).verifyCode(email, "123456");
+    assertEquals(0, meterRegistry.get("twofactor.cluster.handoffs").counter().count());
+  }
+}
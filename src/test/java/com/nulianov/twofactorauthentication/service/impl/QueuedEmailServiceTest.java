@@ -0,0 +1,245 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.nulianov.twofactorauthentication.config.EmailDispatchProperties;
+import com.nulianov.twofactorauthentication.config.EmailDispatchProperties.OverflowPolicy;
+import com.nulianov.twofactorauthentication.exception.EmailSendingException;
+import com.nulianov.twofactorauthentication.service.EmailService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class QueuedEmailServiceTest {
+
+  private EmailService delegate;
+
+  private EmailDispatchProperties properties;
+
+  private QueuedEmailService queuedEmailService;
+
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  private final String email = "test@example.com";
+  private final String code = "123456";
+
+  @BeforeEach
+  void setUp() {
+    delegate = mock(EmailService.class);
+    properties = new EmailDispatchProperties();
+    properties.setQueueCapacity(1);
+    properties.setWorkerThreads(1);
+  }
+
+  @AfterEach
+  void tearDown() throws InterruptedException {
+    release.countDown();
+    queuedEmailService.destroy();
+  }
+
+  @Test
+  void sendEmail_ShouldDeliverThroughDelegate() {
+    queuedEmailService = new QueuedEmailService(delegate, properties);
+
+    queuedEmailService.sendEmail(email, code);
+
+    verify(delegate, timeout(1000)).sendEmail(email, code);
+  }
+
+  @Test
+  void sendEmail_ShouldDeliverFromVirtualThreadsWhenEnabled() {
+    Thread[] worker = new Thread[1];
+    doAnswer(invocation -> {
+      worker[0] = Thread.currentThread();
+      return null;
+    }).when(delegate).sendEmail(email, code);
+    queuedEmailService = new QueuedEmailService(delegate, properties, true);
+
+    queuedEmailService.sendEmail(email, code);
+
+    verify(delegate, timeout(1000)).sendEmail(email, code);
+    assertTrue(worker[0].isVirtual());
+  }
+
+  @Test
+  void sendEmail_ShouldSendBeyondWorkerThreadsUpToConcurrencyLimit_WhenVirtualThreadsEnabled() throws Exception {
+    properties.setQueueCapacity(10);
+    properties.setMaxConcurrentSends(3);
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(3);
+    doAnswer(invocation -> {
+      maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+      started.countDown();
+      awaitRelease();
+      inFlight.decrementAndGet();
+      return null;
+    }).when(delegate).sendEmail(anyString(), anyString());
+    queuedEmailService = new QueuedEmailService(delegate, properties, true);
+
+    for (int i = 0; i < 5; i++) {
+      queuedEmailService.sendEmail("user" + i + "@example.com", code);
+    }
+
+    assertTrue(started.await(1, TimeUnit.SECONDS));
+    Thread.sleep(200);
+    assertEquals(3, maxInFlight.get());
+    release.countDown();
+    verify(delegate, timeout(1000).times(5)).sendEmail(anyString(), anyString());
+  }
+
+  @Test
+  void sendEmail_ShouldCoalesceQueuedEmailsForSameRecipient() throws InterruptedException {
+    queuedEmailService = new QueuedEmailService(delegate, properties);
+    blockWorker();
+
+    queuedEmailService.sendEmail(email, "111111");
+    queuedEmailService.sendEmail(email, code);
+    release.countDown();
+
+    verify(delegate, timeout(1000)).sendEmail(email, code);
+    verify(delegate, never()).sendEmail(email, "111111");
+  }
+
+  @Test
+  void sendEmail_ShouldRejectWhenQueueIsFull() throws InterruptedException {
+    queuedEmailService = new QueuedEmailService(delegate, properties);
+    blockWorker();
+
+    queuedEmailService.sendEmail(email, code);
+
+    EmailSendingException exception = assertThrows(
+        EmailSendingException.class,
+        () -> queuedEmailService.sendEmail("other@example.com", code)
+    );
+    assertEquals("Email dispatch queue is full.", exception.getMessage());
+  }
+
+  @Test
+  void sendEmail_ShouldSendReplacedCode_WhenRejectingConcurrently() throws Exception {
+    Set<String> delivered = ConcurrentHashMap.newKeySet();
+    CountDownLatch started = new CountDownLatch(1);
+    queuedEmailService = new QueuedEmailService((recipient, sent) -> {
+      if (recipient.equals("blocker@example.com")) {
+        started.countDown();
+        awaitRelease();
+      }
+      delivered.add(recipient);
+    }, properties);
+    queuedEmailService.sendEmail("blocker@example.com", code);
+    assertTrue(started.await(1, TimeUnit.SECONDS));
+    queuedEmailService.sendEmail("filler@example.com", code);
+
+    ExecutorService callers = Executors.newFixedThreadPool(2);
+    try {
+      for (int i = 0; i < 500; i++) {
+        String recipient = "race" + i + "@example.com";
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        List<Future<Boolean>> calls = new ArrayList<>();
+        for (String racingCode : List.of("111111", "222222")) {
+          calls.add(callers.submit(() -> {
+            barrier.await();
+            try {
+              queuedEmailService.sendEmail(recipient, racingCode);
+              return true;
+            } catch (EmailSendingException e) {
+              return false;
+            }
+          }));
+        }
+        boolean accepted = false;
+        for (Future<Boolean> call : calls) {
+          accepted |= call.get(5, TimeUnit.SECONDS);
+        }
+
+        // The worker is blocked and the queue full, so an accepted email can only have been sent by a caller
+        assertEquals(accepted, delivered.contains(recipient), recipient);
+      }
+    } finally {
+      callers.shutdownNow();
+    }
+  }
+
+  @Test
+  void sendEmail_ShouldDropOldestWhenQueueIsFull() throws InterruptedException {
+    properties.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+    queuedEmailService = new QueuedEmailService(delegate, properties);
+    blockWorker();
+
+    queuedEmailService.sendEmail(email, code);
+    queuedEmailService.sendEmail("other@example.com", code);
+    release.countDown();
+
+    verify(delegate, timeout(1000)).sendEmail("other@example.com", code);
+    verify(delegate, never()).sendEmail(email, code);
+  }
+
+  @Test
+  void sendEmail_ShouldSendOnCallerThreadWhenQueueIsFull() throws InterruptedException {
+    properties.setOverflowPolicy(OverflowPolicy.CALLER_RUNS);
+    queuedEmailService = new QueuedEmailService(delegate, properties);
+    blockWorker();
+
+    queuedEmailService.sendEmail(email, code);
+    queuedEmailService.sendEmail("other@example.com", code);
+
+    verify(delegate, times(1)).sendEmail("other@example.com", code);
+  }
+
+  @Test
+  void sendEmail_ShouldKeepDeliveringAfterDelegateFailure() {
+    doThrow(new EmailSendingException("Failed to send verification email."))
+        .when(delegate).sendEmail(email, code);
+    properties.setQueueCapacity(10);
+    queuedEmailService = new QueuedEmailService(delegate, properties);
+
+    queuedEmailService.sendEmail(email, code);
+    queuedEmailService.sendEmail("other@example.com", code);
+
+    verify(delegate, timeout(1000)).sendEmail("other@example.com", code);
+  }
+
+  private void awaitRelease() {
+    try {
+      release.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Occupies the single worker with a message that is held until {@link #release} is counted down.
+   */
+  private void blockWorker() throws InterruptedException {
+    CountDownLatch started = new CountDownLatch(1);
+    doAnswer(invocation -> {
+      started.countDown();
+      release.await(5, TimeUnit.SECONDS);
+      return null;
+    }).when(delegate).sendEmail("blocker@example.com", code);
+
+    queuedEmailService.sendEmail("blocker@example.com", code);
+    assertTrue(started.await(1, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,136 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.nulianov.twofactorauthentication.config.CodeGeneratorProperties;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class SecureRandomCodeGeneratorTest {
+
+  @Test
+  void generate_ShouldReturnSixDigitCodes_WithDefaultProperties() {
+    SecureRandomCodeGenerator generator = new SecureRandomCodeGenerator(new CodeGeneratorProperties());
+
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(generator.generate().matches("\\d{6}"));
+    }
+  }
+
+  @Test
+  void generate_ShouldUseConfiguredLengthAndAlphabet() {
+    CodeGeneratorProperties properties = new CodeGeneratorProperties();
+    properties.setLength(10);
+    properties.setAlphabet("ABCDEFGHJKMNPQRSTVWXYZ23456789");
+    SecureRandomCodeGenerator generator = new SecureRandomCodeGenerator(properties);
+
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(generator.generate().matches("[ABCDEFGHJKMNPQRSTVWXYZ2-9]{10}"));
+    }
+  }
+
+  @Test
+  void generate_ShouldSkipBytesThatWouldFavourTheFirstCharacters() {
+    // 256 is not a multiple of 10, so the bytes 250 to 255 must be discarded rather than mapped to 0 to 5
+    SecureRandomCodeGenerator generator =
+        new SecureRandomCodeGenerator(4, "0123456789", 8, () -> new FixedRandom(250, 3, 255, 14, 249, 27, 0, 0));
+
+    assertEquals("3497", generator.generate());
+  }
+
+  @Test
+  void generate_ShouldDrawRandomBytesInBulk() {
+    AtomicInteger draws = new AtomicInteger();
+    SecureRandomCodeGenerator generator = new SecureRandomCodeGenerator(6, "0123456789", 60, () -> new FixedRandom(7) {
+      @Override
+      public void nextBytes(byte[] bytes) {
+        draws.incrementAndGet();
+        super.nextBytes(bytes);
+      }
+    });
+
+    for (int i = 0; i < 10; i++) {
+      assertEquals("777777", generator.generate());
+    }
+    assertEquals(1, draws.get());
+
+    generator.generate();
+    assertEquals(2, draws.get());
+  }
+
+  @Test
+  void generate_ShouldSpreadCharactersEvenly() {
+    SecureRandomCodeGenerator generator = new SecureRandomCodeGenerator(new CodeGeneratorProperties());
+    int[] counts = new int[10];
+
+    for (int i = 0; i < 20_000; i++) {
+      for (char c : generator.generate().toCharArray()) {
+        counts[c - '0']++;
+      }
+    }
+
+    for (int count : counts) {
+      assertTrue(count > 11_000 && count < 13_000, "Digit count " + count + " is far from 12000");
+    }
+  }
+
+  @Test
+  void generate_ShouldReturnDistinctCodes_OnVirtualThreads() throws Exception {
+    SecureRandomCodeGenerator generator = new SecureRandomCodeGenerator(12, "0123456789", 256, SecureRandom::new);
+    List<Future<String>> codes = new ArrayList<>();
+
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < 1000; i++) {
+        codes.add(executor.submit(generator::generate));
+      }
+      Set<String> distinct = new HashSet<>();
+      for (Future<String> code : codes) {
+        assertTrue(code.get().matches("\\d{12}"));
+        distinct.add(code.get());
+      }
+      assertEquals(1000, distinct.size());
+    }
+  }
+
+  @Test
+  void constructor_ShouldRejectInvalidSettings() {
+    assertThrows(IllegalArgumentException.class,
+        () -> new SecureRandomCodeGenerator(0, "0123456789", 256, SecureRandom::new));
+    assertThrows(IllegalArgumentException.class,
+        () -> new SecureRandomCodeGenerator(6, "7", 256, SecureRandom::new));
+    assertThrows(IllegalArgumentException.class,
+        () -> new SecureRandomCodeGenerator(6, "0123456780", 256, SecureRandom::new));
+    assertThrows(IllegalArgumentException.class,
+        () -> new SecureRandomCodeGenerator(6, "0123456789", 0, SecureRandom::new));
+  }
+
+  /**
+   * Returns the given byte values over and over.
+   */
+  private static class FixedRandom extends SecureRandom {
+
+    private final int[] values;
+    private int next;
+
+    FixedRandom(int... values) {
+      this.values = values;
+    }
+
+    @Override
+    public void nextBytes(byte[] bytes) {
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] = (byte) values[next++ % values.length];
+      }
+    }
+  }
+}
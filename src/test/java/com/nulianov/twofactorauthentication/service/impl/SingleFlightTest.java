@@ -0,0 +1,97 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class SingleFlightTest {
+
+  private final SingleFlight<String, Integer> singleFlight = new SingleFlight<>();
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+  @AfterEach
+  void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  void execute_ShouldRunOnceAndShareResult_WhenCallsOverlap() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    Future<Integer> leader = executor.submit(() -> singleFlight.execute("key", () -> {
+      started.countDown();
+      await(release);
+      return calls.incrementAndGet();
+    }));
+    started.await(1, TimeUnit.SECONDS);
+    List<Future<Integer>> followers = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      followers.add(executor.submit(() -> singleFlight.execute("key", calls::incrementAndGet)));
+    }
+    Thread.sleep(50);
+    release.countDown();
+
+    assertEquals(1, leader.get(1, TimeUnit.SECONDS));
+    for (Future<Integer> follower : followers) {
+      assertEquals(1, follower.get(1, TimeUnit.SECONDS));
+    }
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  void execute_ShouldRunAgain_AfterPreviousCallCompleted() {
+    AtomicInteger calls = new AtomicInteger();
+
+    singleFlight.execute("key", calls::incrementAndGet);
+    singleFlight.execute("key", calls::incrementAndGet);
+
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  void execute_ShouldShareException_WithWaitingCallers() throws Exception {
+    IllegalStateException failure = new IllegalStateException("failed");
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    Future<Integer> leader = executor.submit(() -> singleFlight.execute("key", () -> {
+      started.countDown();
+      await(release);
+      throw failure;
+    }));
+    started.await(1, TimeUnit.SECONDS);
+    Future<Integer> follower = executor.submit(() -> singleFlight.execute("key", () -> 1));
+    Thread.sleep(50);
+    release.countDown();
+
+    ExecutionException leaderFailure = assertThrows(ExecutionException.class, () -> leader.get(1, TimeUnit.SECONDS));
+    ExecutionException followerFailure =
+        assertThrows(ExecutionException.class, () -> follower.get(1, TimeUnit.SECONDS));
+    assertSame(failure, leaderFailure.getCause());
+    assertSame(failure, followerFailure.getCause());
+    assertEquals(2, singleFlight.execute("key", () -> 2));
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(1, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.icegreen.greenmail.configuration.GreenMailConfiguration;
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.util.GreenMailUtil;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import com.nulianov.twofactorauthentication.config.SmtpProperties;
+import com.nulianov.twofactorauthentication.exception.EmailSendingException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.mail.internet.MimeMessage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+class SmtpEmailServiceTest {
+
+  @RegisterExtension
+  static GreenMailExtension greenMail = new GreenMailExtension(ServerSetupTest.SMTP.dynamicPort())
+      .withConfiguration(GreenMailConfiguration.aConfig().withUser("sender", "secret"));
+
+  private final String emailSubject = "Your verification code";
+  private final String emailBodyTemplate = "Your code is: {code}";
+
+  private SimpleMeterRegistry meterRegistry;
+  private SmtpProperties properties;
+  private SmtpEmailService smtpEmailService;
+
+  @BeforeEach
+  void setUp() {
+    meterRegistry = new SimpleMeterRegistry();
+    properties = new SmtpProperties();
+    properties.setHost("127.0.0.1");
+    properties.setPort(greenMail.getSmtp().getPort());
+    properties.setUsername("sender");
+    properties.setPassword("secret");
+    properties.setFrom("no-reply@example.com");
+    properties.setPoolSize(2);
+    smtpEmailService = new SmtpEmailService(properties, emailSubject, emailBodyTemplate, meterRegistry);
+  }
+
+  @AfterEach
+  void tearDown() {
+    smtpEmailService.destroy();
+  }
+
+  @Test
+  void sendEmail_ShouldDeliverCodeOverSmtp() throws Exception {
+    smtpEmailService.sendEmail("test@example.com", "123456");
+
+    MimeMessage[] messages = greenMail.getReceivedMessages();
+    assertEquals(1, messages.length);
+    assertEquals("test@example.com", messages[0].getAllRecipients()[0].toString());
+    assertEquals("no-reply@example.com", messages[0].getFrom()[0].toString());
+    assertEquals(emailSubject, messages[0].getSubject());
+    assertEquals("Your code is: 123456", GreenMailUtil.getBody(messages[0]).trim());
+    assertEquals(1, meterRegistry.timer("twofactor.email.send", "outcome", "success").count());
+  }
+
+  @Test
+  void sendEmail_ShouldReuseConnections() throws InterruptedException {
+    ExecutorService senders = Executors.newFixedThreadPool(4);
+    for (int i = 0; i < 40; i++) {
+      String email = "user" + i + "@example.com";
+      senders.execute(() -> smtpEmailService.sendEmail(email, "123456"));
+    }
+    senders.shutdown();
+    assertTrue(senders.awaitTermination(30, TimeUnit.SECONDS));
+
+    assertEquals(40, greenMail.getReceivedMessages().length);
+    assertTrue(smtpEmailService.getIdleConnections() <= properties.getPoolSize());
+    assertTrue(smtpEmailService.getIdleConnections() >= 1);
+  }
+
+  @Test
+  void sendEmail_ShouldReplaceConnection_AfterMaxMessages() {
+    properties.setMaxMessagesPerConnection(2);
+    smtpEmailService = new SmtpEmailService(properties, emailSubject, emailBodyTemplate, meterRegistry);
+
+    smtpEmailService.sendEmail("first@example.com", "123456");
+    assertEquals(1, smtpEmailService.getIdleConnections());
+    smtpEmailService.sendEmail("second@example.com", "123456");
+
+    assertEquals(0, smtpEmailService.getIdleConnections());
+    assertEquals(2, greenMail.getReceivedMessages().length);
+  }
+
+  @Test
+  void sendEmail_ShouldThrowEmailSendingException_WhenServerIsUnreachable() {
+    properties.setPort(1);
+    smtpEmailService = new SmtpEmailService(properties, emailSubject, emailBodyTemplate, meterRegistry);
+
+    EmailSendingException exception = assertThrows(
+        EmailSendingException.class,
+        () -> smtpEmailService.sendEmail("test@example.com", "123456")
+    );
+    assertEquals("Failed to send verification email.", exception.getMessage());
+    assertEquals(1, meterRegistry.timer("twofactor.email.send", "outcome", "failure").count());
+  }
+}
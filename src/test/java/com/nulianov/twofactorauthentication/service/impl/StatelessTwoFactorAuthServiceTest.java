@@ -0,0 +1,203 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.nulianov.twofactorauthentication.config.ChallengeProperties;
+import com.nulianov.twofactorauthentication.config.ClusterProperties;
+import com.nulianov.twofactorauthentication.config.TwoFactorAuthProperties;
+import com.nulianov.twofactorauthentication.exception.RateLimitExceededException;
+import com.nulianov.twofactorauthentication.model.CodeIssue;
+import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import com.nulianov.twofactorauthentication.service.CodeGenerator;
+import com.nulianov.twofactorauthentication.service.EmailService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class StatelessTwoFactorAuthServiceTest {
+
+  private static final String SECRET = Base64.getEncoder().encodeToString(new byte[32]);
+
+  private TwoFactorAuthProperties properties;
+
+  private ChallengeProperties challengeProperties;
+
+  private EmailService emailService;
+
+  private CodeGenerator codeGenerator;
+
+  private SimpleMeterRegistry meterRegistry;
+
+  private final AtomicLong clock = new AtomicLong(1_700_000_000L);
+
+  private final AtomicReference<String> sentCode = new AtomicReference<>();
+
+  private final String email = "test@example.com";
+
+  @BeforeEach
+  void setUp() {
+    properties = new TwoFactorAuthProperties();
+    properties.setCodeValidityDuration(300);
+    properties.setResendInterval(60);
+    properties.setMaxAttempts(3);
+    challengeProperties = new ChallengeProperties();
+    challengeProperties.setSecret(SECRET);
+    emailService = mock(EmailService.class);
+    doAnswer(invocation -> {
+      sentCode.set(invocation.getArgument(1));
+      return null;
+    }).when(emailService).sendEmail(eq(email), anyString());
+    codeGenerator = mock(CodeGenerator.class);
+    when(codeGenerator.generate()).thenReturn("123456", "654321", "111111");
+    meterRegistry = new SimpleMeterRegistry();
+  }
+
+  @Test
+  void verifyCode_ShouldSucceedOnce_WhenCodeMatchesChallenge() {
+    StatelessTwoFactorAuthService service = newService();
+    String challenge = service.initiateChallenge(email);
+
+    assertEquals(VerificationStatus.SUCCESS, service.verifyCode(email, sentCode.get(), challenge).status());
+    assertEquals(VerificationStatus.INVALID_CODE, service.verifyCode(email, sentCode.get(), challenge).status());
+    assertEquals(1, meterRegistry.counter("twofactor.verification", "status", "SUCCESS").count());
+  }
+
+  @Test
+  void verifyCode_ShouldSucceedOnAnotherInstance_WhenSecretIsShared() {
+    String challenge = newService().initiateChallenge(email);
+
+    assertEquals(VerificationStatus.SUCCESS, newService().verifyCode(email, "123456", challenge).status());
+  }
+
+  @Test
+  void verifyCode_ShouldRejectChallenge_WhenIssuedForAnotherEmailOrMissing() {
+    StatelessTwoFactorAuthService service = newService();
+    String challenge = service.initiateChallenge(email);
+
+    assertEquals(VerificationStatus.INVALID_CODE,
+        service.verifyCode("other@example.com", "123456", challenge).status());
+    assertEquals(VerificationStatus.INVALID_CODE, service.verifyCode(email, "123456").status());
+  }
+
+  @Test
+  void verifyCode_ShouldReturnMaxAttemptsExceeded_WhenAttemptsRunOut() {
+    StatelessTwoFactorAuthService service = newService();
+    String challenge = service.initiateChallenge(email);
+
+    assertEquals(VerificationStatus.INVALID_CODE, service.verifyCode(email, "000000", challenge).status());
+    assertEquals(VerificationStatus.INVALID_CODE, service.verifyCode(email, "000001", challenge).status());
+    assertEquals(VerificationStatus.MAX_ATTEMPTS_EXCEEDED, service.verifyCode(email, "000002", challenge).status());
+    assertEquals(VerificationStatus.INVALID_CODE, service.verifyCode(email, "123456", challenge).status());
+  }
+
+  @Test
+  void verifyCode_ShouldReturnCodeExpired_WhenValidityHasPassed() {
+    StatelessTwoFactorAuthService service = newService();
+    String challenge = service.initiateChallenge(email);
+
+    clock.addAndGet(301);
+
+    assertEquals(VerificationStatus.CODE_EXPIRED, service.verifyCode(email, "123456", challenge).status());
+  }
+
+  @Test
+  void resendChallenge_ShouldRefuse_WhenPreviousChallengeIsYoungerThanInterval() {
+    StatelessTwoFactorAuthService service = newService();
+    String challenge = service.initiateChallenge(email);
+
+    clock.addAndGet(59);
+    assertFalse(service.resendChallenge(email, challenge).issued());
+
+    clock.addAndGet(1);
+    CodeIssue issue = service.resendChallenge(email, challenge);
+    assertTrue(issue.issued());
+    assertNotEquals(challenge, issue.challenge());
+    assertEquals(VerificationStatus.SUCCESS, service.verifyCode(email, "654321", issue.challenge()).status());
+  }
+
+  @Test
+  void resendChallenge_ShouldApplyInterval_WhenChallengeIsLeftOut() {
+    StatelessTwoFactorAuthService service = newService();
+    service.initiateChallenge(email);
+
+    clock.addAndGet(59);
+    assertFalse(service.resendChallenge(email, null).issued());
+    assertFalse(service.resendChallenge(email, "not-a-challenge").issued());
+
+    clock.addAndGet(1);
+    assertTrue(service.resendChallenge(email, null).issued());
+    assertFalse(service.resendChallenge(email, null).issued());
+  }
+
+  @Test
+  void verifyCode_ShouldThrowRateLimitExceeded_WhenTrackerIsFull() {
+    challengeProperties.setTrackedChallenges(1);
+    StatelessTwoFactorAuthService service = newService();
+    String first = service.initiateChallenge(email);
+    String second = service.initiateChallenge("other@example.com");
+    assertEquals(VerificationStatus.INVALID_CODE, service.verifyCode(email, "000000", first).status());
+
+    RateLimitExceededException exception = assertThrows(RateLimitExceededException.class,
+        () -> service.verifyCode("other@example.com", "000000", second));
+
+    assertTrue(exception.getRetryAfter().toSeconds() > 0);
+    assertEquals(VerificationStatus.INVALID_CODE, service.verifyCode(email, "000001", first).status());
+  }
+
+  @Test
+  void resendChallenge_ShouldIssueCode_WhenNoValidPreviousChallengeIsGiven() {
+    StatelessTwoFactorAuthService service = newService();
+
+    CodeIssue issue = service.resendChallenge(email, "not-a-challenge");
+
+    assertTrue(issue.issued());
+    assertEquals("123456", sentCode.get());
+  }
+
+  @Test
+  void constructor_ShouldRefuseClusterMode() {
+    ClusterProperties clusterProperties = new ClusterProperties();
+    clusterProperties.setEnabled(true);
+
+    assertThrows(IllegalStateException.class, () -> new StatelessTwoFactorAuthService(properties,
+        challengeProperties, clusterProperties, mock(TwoFactorAuthServiceImpl.class), emailService, codeGenerator,
+        meterRegistry, clock::get));
+  }
+
+  @Test
+  void constructor_ShouldGenerateKey_WhenNoSecretIsConfigured() {
+    challengeProperties.setSecret("");
+    StatelessTwoFactorAuthService service = newService();
+    String challenge = service.initiateChallenge(email);
+
+    assertEquals(VerificationStatus.SUCCESS, service.verifyCode(email, "123456", challenge).status());
+  }
+
+  @Test
+  void verifyCode_ShouldAcceptChallenge_AfterKeyRotation() {
+    String challenge = newService().initiateChallenge(email);
+    challengeProperties.setPreviousSecrets(List.of(SECRET));
+    challengeProperties.setSecret(Base64.getEncoder().encodeToString(new byte[] {
+        1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}));
+
+    assertEquals(VerificationStatus.SUCCESS, newService().verifyCode(email, "123456", challenge).status());
+  }
+
+  private StatelessTwoFactorAuthService newService() {
+    return new StatelessTwoFactorAuthService(properties, challengeProperties, new ClusterProperties(),
+        mock(TwoFactorAuthServiceImpl.class), emailService, codeGenerator, meterRegistry, clock::get);
+  }
+}
@@ -0,0 +1,115 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.nulianov.twofactorauthentication.config.RateLimitProperties;
+import com.nulianov.twofactorauthentication.exception.RateLimitExceededException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TokenBucketRateLimitServiceTest {
+
+  private final AtomicLong clock = new AtomicLong();
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final String email = "test@example.com";
+  private final String client = "10.0.0.1";
+
+  private RateLimitProperties properties;
+
+  @BeforeEach
+  void setUp() {
+    properties = new RateLimitProperties();
+    properties.setEmail(new RateLimitProperties.Limit(3, Duration.ofSeconds(30)));
+    properties.setClient(new RateLimitProperties.Limit(5, Duration.ofSeconds(5)));
+  }
+
+  @Test
+  void acquire_ShouldRejectEmail_WhenBurstIsExhausted() {
+    TokenBucketRateLimitService rateLimitService = newRateLimitService();
+    for (int i = 0; i < 3; i++) {
+      rateLimitService.acquire(email, "10.0.0." + i);
+    }
+
+    RateLimitExceededException ex = assertThrows(RateLimitExceededException.class,
+        () -> rateLimitService.acquire(email, "10.0.0.9"));
+
+    assertEquals(Duration.ofSeconds(10), ex.getRetryAfter());
+    assertEquals(1, meterRegistry.counter("twofactor.ratelimit.rejected", "scope", "email").count());
+  }
+
+  @Test
+  void acquire_ShouldAdmitAgain_AfterRetryAfterHasElapsed() {
+    TokenBucketRateLimitService rateLimitService = newRateLimitService();
+    for (int i = 0; i < 3; i++) {
+      rateLimitService.acquire(email, client);
+    }
+    assertThrows(RateLimitExceededException.class, () -> rateLimitService.acquire(email, client));
+
+    clock.addAndGet(Duration.ofSeconds(10).toNanos());
+
+    assertDoesNotThrow(() -> rateLimitService.acquire(email, client));
+    assertThrows(RateLimitExceededException.class, () -> rateLimitService.acquire(email, client));
+  }
+
+  @Test
+  void acquire_ShouldCanonicalizeEmail() {
+    TokenBucketRateLimitService rateLimitService = newRateLimitService();
+    rateLimitService.acquire(email, client);
+    rateLimitService.acquire(" Test@Example.COM ", client);
+    rateLimitService.acquire("TEST@example.com", client);
+
+    assertThrows(RateLimitExceededException.class, () -> rateLimitService.acquire(email, client));
+  }
+
+  @Test
+  void acquire_ShouldRejectClient_AcrossDifferentEmails() {
+    TokenBucketRateLimitService rateLimitService = newRateLimitService();
+    for (int i = 0; i < 5; i++) {
+      rateLimitService.acquire("user" + i + "@example.com", client);
+    }
+
+    assertThrows(RateLimitExceededException.class, () -> rateLimitService.acquire("other@example.com", client));
+    assertDoesNotThrow(() -> rateLimitService.acquire("other@example.com", "10.0.0.2"));
+    assertEquals(1, meterRegistry.counter("twofactor.ratelimit.rejected", "scope", "client").count());
+  }
+
+  @Test
+  void acquireClient_ShouldTakeAllPermitsOrNone() {
+    TokenBucketRateLimitService rateLimitService = newRateLimitService();
+    rateLimitService.acquireClient(client, 3);
+
+    assertThrows(RateLimitExceededException.class, () -> rateLimitService.acquireClient(client, 3));
+    assertDoesNotThrow(() -> rateLimitService.acquireClient(client, 2));
+    assertThrows(RateLimitExceededException.class, () -> rateLimitService.acquireClient(client));
+  }
+
+  @Test
+  void acquireClient_ShouldRejectMorePermitsThanCapacity() {
+    TokenBucketRateLimitService rateLimitService = newRateLimitService();
+
+    RateLimitExceededException ex = assertThrows(RateLimitExceededException.class,
+        () -> rateLimitService.acquireClient(client, 6));
+
+    assertEquals(Duration.ofSeconds(5), ex.getRetryAfter());
+    assertDoesNotThrow(() -> rateLimitService.acquireClient(client, 5));
+  }
+
+  @Test
+  void acquire_ShouldAdmitEverything_WhenDisabled() {
+    properties.setEnabled(false);
+    TokenBucketRateLimitService rateLimitService = newRateLimitService();
+
+    for (int i = 0; i < 100; i++) {
+      rateLimitService.acquire(email, client);
+    }
+  }
+
+  private TokenBucketRateLimitService newRateLimitService() {
+    return new TokenBucketRateLimitService(properties, meterRegistry, clock::get);
+  }
+}
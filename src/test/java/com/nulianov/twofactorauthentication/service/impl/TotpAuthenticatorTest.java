@@ -0,0 +1,164 @@
+package com.nulianov.twofactorauthentication.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.nulianov.twofactorauthentication.config.TotpProperties;
+import com.nulianov.twofactorauthentication.model.TotpEnrollment;
+import com.nulianov.twofactorauthentication.model.TotpSecret;
+import com.nulianov.twofactorauthentication.model.VerificationStatus;
+import com.nulianov.twofactorauthentication.repository.impl.InMemoryTotpSecretRepository;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TotpAuthenticatorTest {
+
+  private static final byte[] RFC_SECRET = "12345678901234567890".getBytes(StandardCharsets.US_ASCII);
+
+  private TotpProperties properties;
+
+  private InMemoryTotpSecretRepository repository;
+
+  private final AtomicLong clock = new AtomicLong(1_111_111_109L);
+
+  private final String email = "test@example.com";
+
+  @BeforeEach
+  void setUp() {
+    properties = new TotpProperties();
+    repository = new InMemoryTotpSecretRepository();
+  }
+
+  @Test
+  void generate_ShouldMatchRfc6238TestVectors() {
+    properties.setDigits(8);
+    TotpAuthenticator authenticator = new TotpAuthenticator(properties, repository, clock::get);
+    SecretKeySpec key = new SecretKeySpec(RFC_SECRET, "HmacSHA1");
+
+    assertEquals(94287082, authenticator.generate(key, 59 / 30));
+    assertEquals(7081804, authenticator.generate(key, 1_111_111_109L / 30));
+    assertEquals(14050471, authenticator.generate(key, 1_111_111_111L / 30));
+    assertEquals(89005924, authenticator.generate(key, 1_234_567_890L / 30));
+    assertEquals(69279037, authenticator.generate(key, 2_000_000_000L / 30));
+  }
+
+  @Test
+  void generate_ShouldMatchRfc6238TestVectors_OnVirtualThreads() throws Exception {
+    properties.setDigits(8);
+    TotpAuthenticator authenticator = new TotpAuthenticator(properties, repository, clock::get);
+    SecretKeySpec key = new SecretKeySpec(RFC_SECRET, "HmacSHA1");
+
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      assertEquals(94287082, executor.submit(() -> authenticator.generate(key, 59 / 30)).get());
+      assertEquals(7081804, executor.submit(() -> authenticator.generate(key, 1_111_111_109L / 30)).get());
+    }
+  }
+
+  @Test
+  void verify_ShouldAcceptCurrentCodeOnlyOnce() {
+    properties.setDigits(8);
+    repository.save(email, new TotpSecret(new SecretKeySpec(RFC_SECRET, "HmacSHA1")));
+    TotpAuthenticator authenticator = new TotpAuthenticator(properties, repository, clock::get);
+
+    assertEquals(VerificationStatus.SUCCESS, authenticator.verify(email, "07081804"));
+    assertEquals(VerificationStatus.INVALID_CODE, authenticator.verify(email, "07081804"));
+  }
+
+  @Test
+  void verify_ShouldAcceptCodesWithinAllowedDrift() {
+    properties.setDigits(8);
+    repository.save(email, new TotpSecret(new SecretKeySpec(RFC_SECRET, "HmacSHA1")));
+    TotpAuthenticator authenticator = new TotpAuthenticator(properties, repository, clock::get);
+
+    clock.set(1_111_111_109L + 30);
+    assertEquals(VerificationStatus.SUCCESS, authenticator.verify(email, "07081804"));
+
+    clock.set(1_111_111_109L + 90);
+    repository.save(email, new TotpSecret(new SecretKeySpec(RFC_SECRET, "HmacSHA1")));
+    assertEquals(VerificationStatus.INVALID_CODE, authenticator.verify(email, "07081804"));
+  }
+
+  @Test
+  void verify_ShouldRejectOlderCode_AfterNewerOneWasUsed() {
+    repository.save(email, new TotpSecret(new SecretKeySpec(RFC_SECRET, "HmacSHA1")));
+    TotpAuthenticator authenticator = new TotpAuthenticator(properties, repository, clock::get);
+    SecretKeySpec key = repository.findByEmail(email).key();
+    long step = clock.get() / 30;
+
+    assertEquals(VerificationStatus.SUCCESS, authenticator.verify(email, format(authenticator.generate(key, step))));
+    assertEquals(VerificationStatus.INVALID_CODE,
+        authenticator.verify(email, format(authenticator.generate(key, step - 1))));
+  }
+
+  @Test
+  void verify_ShouldRejectMalformedCodeAndUnknownUser() {
+    repository.save(email, new TotpSecret(new SecretKeySpec(RFC_SECRET, "HmacSHA1")));
+    TotpAuthenticator authenticator = new TotpAuthenticator(properties, repository, clock::get);
+
+    assertEquals(VerificationStatus.INVALID_CODE, authenticator.verify(email, "12a456"));
+    assertEquals(VerificationStatus.INVALID_CODE, authenticator.verify(email, "1234567"));
+    assertEquals(VerificationStatus.INVALID_CODE, authenticator.verify(email, null));
+    assertEquals(VerificationStatus.INVALID_CODE, authenticator.verify("unknown@example.com", "123456"));
+  }
+
+  @Test
+  void verify_ShouldLockOutUser_AfterMaxAttemptsWrongCodes() {
+    properties.setDigits(8);
+    properties.setMaxAttempts(3);
+    properties.setLockout(Duration.ofMinutes(5));
+    repository.save(email, new TotpSecret(new SecretKeySpec(RFC_SECRET, "HmacSHA1")));
+    TotpAuthenticator authenticator = new TotpAuthenticator(properties, repository, clock::get);
+
+    assertEquals(VerificationStatus.INVALID_CODE, authenticator.verify(email, "00000000"));
+    assertEquals(VerificationStatus.INVALID_CODE, authenticator.verify(email, "00000001"));
+    assertEquals(VerificationStatus.MAX_ATTEMPTS_EXCEEDED, authenticator.verify(email, "00000002"));
+    assertEquals(VerificationStatus.MAX_ATTEMPTS_EXCEEDED, authenticator.verify(email, "07081804"));
+
+    clock.addAndGet(Duration.ofMinutes(5).toSeconds());
+    assertEquals(VerificationStatus.INVALID_CODE, authenticator.verify(email, "00000000"));
+  }
+
+  @Test
+  void verify_ShouldResetFailedAttempts_WhenCodeIsAccepted() {
+    properties.setDigits(8);
+    properties.setMaxAttempts(2);
+    repository.save(email, new TotpSecret(new SecretKeySpec(RFC_SECRET, "HmacSHA1")));
+    TotpAuthenticator authenticator = new TotpAuthenticator(properties, repository, clock::get);
+
+    assertEquals(VerificationStatus.INVALID_CODE, authenticator.verify(email, "00000000"));
+    assertEquals(VerificationStatus.SUCCESS, authenticator.verify(email, "07081804"));
+    assertEquals(VerificationStatus.INVALID_CODE, authenticator.verify(email, "00000000"));
+  }
+
+  @Test
+  void enroll_ShouldProvisionSecretUsableForVerification() {
+    TotpAuthenticator authenticator = new TotpAuthenticator(properties, repository, clock::get);
+
+    TotpEnrollment enrollment = authenticator.enroll(email);
+
+    assertEquals(32, enrollment.secret().length());
+    assertTrue(enrollment.uri().startsWith("otpauth://totp/Two-Factor%20Authentication%3Atest%40example.com?secret="
+        + enrollment.secret()));
+    assertTrue(enrollment.uri().endsWith("&algorithm=SHA1&digits=6&period=30"));
+    SecretKeySpec key = repository.findByEmail(email).key();
+    assertEquals(VerificationStatus.SUCCESS,
+        authenticator.verify(email, format(authenticator.generate(key, clock.get() / 30))));
+  }
+
+  @Test
+  void base32_ShouldMatchRfc4648TestVectors() {
+    assertEquals("MY", TotpAuthenticator.base32("f".getBytes(StandardCharsets.US_ASCII)));
+    assertEquals("MZXW6", TotpAuthenticator.base32("foo".getBytes(StandardCharsets.US_ASCII)));
+    assertEquals("MZXW6YTBOI", TotpAuthenticator.base32("foobar".getBytes(StandardCharsets.US_ASCII)));
+  }
+
+  private static String format(int code) {
+    return String.format("%06d", code);
+  }
+}
@@ -2,8 +2,11 @@ package com.nulianov.twofactorauthentication.service.impl;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
@@ -12,14 +15,25 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.nulianov.twofactorauthentication.config.CodeGeneratorProperties;
 import com.nulianov.twofactorauthentication.config.TwoFactorAuthProperties;
 import com.nulianov.twofactorauthentication.model.CodeData;
+import com.nulianov.twofactorauthentication.model.VerificationOutcome;
 import com.nulianov.twofactorauthentication.model.VerificationResult;
 import com.nulianov.twofactorauthentication.model.VerificationStatus;
 import com.nulianov.twofactorauthentication.repository.CodeRepository;
 import com.nulianov.twofactorauthentication.service.CodeVerificationService;
 import com.nulianov.twofactorauthentication.service.EmailService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -31,10 +45,16 @@ class TwoFactorAuthServiceImplTest {
 
   private CodeRepository codeRepository;
 
+  private TotpAuthenticator totpAuthenticator;
+
   private TwoFactorAuthProperties properties;
 
   private TwoFactorAuthServiceImpl twoFactorAuthService;
 
+  private VerificationOutcome outcome;
+
+  private SimpleMeterRegistry meterRegistry;
+
   private final String email = "test@example.com";
   private final String code = "123456";
 
@@ -43,13 +63,18 @@ class TwoFactorAuthServiceImplTest {
     emailService = mock(EmailService.class);
     codeVerificationService = mock(CodeVerificationService.class);
     codeRepository = mock(CodeRepository.class);
+    totpAuthenticator = mock(TotpAuthenticator.class);
     properties = mock(TwoFactorAuthProperties.class);
+    meterRegistry = new SimpleMeterRegistry();
 
     twoFactorAuthService = new TwoFactorAuthServiceImpl(
         properties,
         emailService,
         codeVerificationService,
-        codeRepository
+        codeRepository,
+        new SecureRandomCodeGenerator(new CodeGeneratorProperties()),
+        totpAuthenticator,
+        meterRegistry
     );
 
     when(properties.getCodeValidityDuration()).thenReturn(300);
@@ -65,32 +90,77 @@ class TwoFactorAuthServiceImplTest {
     verify(emailService, times(1)).sendEmail(eq(email), anyString());
   }
 
+  @Test
+  void initiateTwoFactorAuth_ShouldGenerateOneCode_WhenCalledConcurrentlyForSameEmail() throws Exception {
+    CountDownLatch sending = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    doAnswer(invocation -> {
+      sending.countDown();
+      release.await(1, TimeUnit.SECONDS);
+      return null;
+    }).when(emailService).sendEmail(eq(email), anyString());
+
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      List<Future<?>> calls = new ArrayList<>();
+      calls.add(executor.submit(() -> twoFactorAuthService.initiateTwoFactorAuth(email)));
+      assertTrue(sending.await(1, TimeUnit.SECONDS));
+      calls.add(executor.submit(() -> twoFactorAuthService.initiateTwoFactorAuth(email)));
+      calls.add(executor.submit(() -> twoFactorAuthService.resendCode(email)));
+      Thread.sleep(50);
+      release.countDown();
+      for (Future<?> call : calls) {
+        call.get(1, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    verify(codeRepository, times(1)).save(eq(email), any(CodeData.class));
+    verify(emailService, times(1)).sendEmail(eq(email), anyString());
+  }
+
   @Test
   void verifyCode_ShouldReturnSuccess_WhenCodeIsValid() {
     CodeData codeData = new CodeData(code, Instant.now().getEpochSecond());
-    when(codeRepository.findByEmail(email)).thenReturn(codeData);
+    givenStoredCode(codeData);
     when(codeVerificationService.verify(codeData, code)).thenReturn(new VerificationResult(VerificationStatus.SUCCESS));
 
     VerificationResult result = twoFactorAuthService.verifyCode(email, code);
 
     assertEquals(VerificationStatus.SUCCESS, result.status());
-    verify(codeRepository, times(1)).deleteByEmail(email);
+    assertNull(outcome.codeData());
+    assertEquals(1, meterRegistry.counter("twofactor.verification", "status", "SUCCESS").count());
   }
 
   @Test
   void verifyCode_ShouldReturnInvalidCode_WhenNoCodeExists() {
-    when(codeRepository.findByEmail(email)).thenReturn(null);
+    givenStoredCode(null);
 
     VerificationResult result = twoFactorAuthService.verifyCode(email, code);
 
     assertEquals(VerificationStatus.INVALID_CODE, result.status());
-    verify(codeRepository, never()).deleteByEmail(anyString());
+    assertNull(outcome.codeData());
+    verify(codeVerificationService, never()).verify(any(), anyString());
+  }
+
+  @Test
+  void verifyCode_ShouldReturnSharedResultAndOutcome_WhenCodeIsRemoved() {
+    givenStoredCode(null);
+
+    VerificationResult first = twoFactorAuthService.verifyCode(email, code);
+    VerificationOutcome firstOutcome = outcome;
+    VerificationResult second = twoFactorAuthService.verifyCode(email, code);
+
+    assertSame(VerificationResult.of(VerificationStatus.INVALID_CODE), first);
+    assertSame(first, second);
+    assertSame(firstOutcome, outcome);
   }
 
   @Test
   void verifyCode_ShouldHandleInvalidCodeAndIncrementAttempts() {
     CodeData codeData = new CodeData("654321", Instant.now().getEpochSecond());
-    when(codeRepository.findByEmail(email)).thenReturn(codeData);
+    givenStoredCode(codeData);
     when(codeVerificationService.verify(codeData, code)).thenReturn(
         new VerificationResult(VerificationStatus.INVALID_CODE));
     when(properties.getMaxAttempts()).thenReturn(3);
@@ -98,14 +168,13 @@ class TwoFactorAuthServiceImplTest {
     VerificationResult result = twoFactorAuthService.verifyCode(email, code);
 
     assertEquals(VerificationStatus.INVALID_CODE, result.status());
-    verify(codeRepository, times(1)).save(eq(email), any(CodeData.class));
-    verify(codeRepository, never()).deleteByEmail(email);
+    assertEquals(codeData.incrementAttempts(), outcome.codeData());
   }
 
   @Test
   void verifyCode_ShouldReturnMaxAttemptsExceeded_WhenAttemptsExceeded() {
     CodeData codeData = new CodeData("654321", Instant.now().getEpochSecond(), 2);
-    when(codeRepository.findByEmail(email)).thenReturn(codeData);
+    givenStoredCode(codeData);
     when(codeVerificationService.verify(codeData, code)).thenReturn(
         new VerificationResult(VerificationStatus.INVALID_CODE));
     when(properties.getMaxAttempts()).thenReturn(3);
@@ -113,7 +182,18 @@ class TwoFactorAuthServiceImplTest {
     VerificationResult result = twoFactorAuthService.verifyCode(email, code);
 
     assertEquals(VerificationStatus.MAX_ATTEMPTS_EXCEEDED, result.status());
-    verify(codeRepository, times(1)).deleteByEmail(email);
+    assertNull(outcome.codeData());
+  }
+
+  @Test
+  void verifyTotp_ShouldReturnAuthenticatorResultAndCountIt() {
+    when(totpAuthenticator.verify(email, code)).thenReturn(VerificationStatus.SUCCESS);
+
+    VerificationResult result = twoFactorAuthService.verifyTotp(email, code);
+
+    assertEquals(VerificationStatus.SUCCESS, result.status());
+    assertEquals(1, meterRegistry.counter("twofactor.totp.verification", "status", "SUCCESS").count());
+    assertEquals(0, meterRegistry.counter("twofactor.verification", "status", "SUCCESS").count());
   }
 
   @Test
@@ -138,4 +218,15 @@ class TwoFactorAuthServiceImplTest {
     verify(emailService, never()).sendEmail(anyString(), anyString());
     verify(codeRepository, never()).save(anyString(), any(CodeData.class));
   }
-}
\ No newline at end of file
+
+  /**
+   * Makes the mocked repository run the verification step against the given stored code data and records the outcome.
+   */
+  private void givenStoredCode(CodeData codeData) {
+    when(codeRepository.verify(eq(email), any())).thenAnswer(invocation -> {
+      Function<CodeData, VerificationOutcome> step = invocation.getArgument(1);
+      outcome = step.apply(codeData);
+      return outcome.result();
+    });
+  }
+}
@@ -0,0 +1,175 @@
+package com.nulianov.twofactorauthentication.support;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nulianov.twofactorauthentication.model.EmailServiceRequest;
+import com.nulianov.twofactorauthentication.model.EmailServiceResult;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in for the email service: accepts {@code POST /api/email/send} and {@code POST /api/email/send/batch}
+ * and answers after a fixed latency. Batch items addressed to a {@linkplain #reject rejected} recipient are reported
+ * as not accepted, and {@link #fail} and {@link #slowDown} inject faults into every endpoint.
+ */
+public class StubEmailServer implements AutoCloseable {
+
+  private static final int BACKLOG = 16_384;
+
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final AtomicInteger requestCount = new AtomicInteger();
+  private final AtomicInteger messageCount = new AtomicInteger();
+  private final Set<String> rejectedRecipients = ConcurrentHashMap.newKeySet();
+  private final Map<String, String> lastBodies = new ConcurrentHashMap<>();
+  private final Duration latency;
+  private final AtomicInteger remainingFailures = new AtomicInteger();
+  private volatile int failureStatus;
+  private volatile Duration extraLatency = Duration.ZERO;
+
+  private StubEmailServer(Duration latency) throws IOException {
+    this.latency = latency;
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), BACKLOG);
+    this.server.createContext("/api/email/send", this::handleSend);
+    this.server.createContext("/api/email/send/batch", this::handleSendBatch);
+    this.server.setExecutor(executor);
+    this.server.start();
+  }
+
+  public static StubEmailServer start(Duration latency) {
+    try {
+      return new StubEmailServer(latency);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Returns the value to use for {@code email.service.url}.
+   */
+  public String baseUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/api/email";
+  }
+
+  public int requestCount() {
+    return requestCount.get();
+  }
+
+  /**
+   * Returns the number of emails received, counting each item of a batch.
+   */
+  public int messageCount() {
+    return messageCount.get();
+  }
+
+  /**
+   * Returns the body of the last email delivered to the recipient through {@code /send}, or {@code null}.
+   */
+  public String lastBody(String recipient) {
+    return lastBodies.get(recipient);
+  }
+
+  public void reject(String recipient) {
+    rejectedRecipients.add(recipient);
+  }
+
+  /**
+   * Answers the next {@code times} requests with the given status instead of handling them.
+   */
+  public void fail(int status, int times) {
+    failureStatus = status;
+    remainingFailures.set(times);
+  }
+
+  /**
+   * Adds the given delay to every request on top of the base latency.
+   */
+  public void slowDown(Duration delay) {
+    extraLatency = delay;
+  }
+
+  /**
+   * Clears injected failures and delays.
+   */
+  public void heal() {
+    remainingFailures.set(0);
+    extraLatency = Duration.ZERO;
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.close();
+  }
+
+  private void handleSend(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      EmailServiceRequest request = objectMapper.readValue(
+          exchange.getRequestBody().readAllBytes(), EmailServiceRequest.class);
+      requestCount.incrementAndGet();
+      if (injectFault(exchange)) {
+        return;
+      }
+      messageCount.incrementAndGet();
+      lastBodies.put(request.to(), request.body());
+      exchange.sendResponseHeaders(200, -1);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void handleSendBatch(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      EmailServiceRequest[] requests = objectMapper.readValue(
+          exchange.getRequestBody().readAllBytes(), EmailServiceRequest[].class);
+      requestCount.incrementAndGet();
+      if (injectFault(exchange)) {
+        return;
+      }
+      messageCount.addAndGet(requests.length);
+
+      List<EmailServiceResult> results = Arrays.stream(requests)
+          .map(request -> rejectedRecipients.contains(request.to())
+              ? new EmailServiceResult(false, "Recipient rejected")
+              : new EmailServiceResult(true, null))
+          .toList();
+      byte[] body = objectMapper.writeValueAsString(results).getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, body.length);
+      exchange.getResponseBody().write(body);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Sleeps for the configured latency, then answers with the injected failure status if one is pending.
+   *
+   * @return whether the request was failed
+   */
+  private boolean injectFault(HttpExchange exchange) throws IOException, InterruptedException {
+    Duration delay = latency.plus(extraLatency);
+    if (!delay.isZero()) {
+      Thread.sleep(delay);
+    }
+    if (remainingFailures.getAndUpdate(remaining -> Math.max(0, remaining - 1)) > 0) {
+      exchange.sendResponseHeaders(failureStatus, -1);
+      return true;
+    }
+    return false;
+  }
+}
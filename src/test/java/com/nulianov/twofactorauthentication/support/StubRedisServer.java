@@ -0,0 +1,461 @@
+package com.nulianov.twofactorauthentication.support;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Local stand-in for a Redis server, speaking RESP2 and implementing the commands the code store uses: {@code PING},
+ * {@code AUTH}, {@code SELECT}, {@code GET}, {@code SET} (with {@code PX}), {@code DEL}, {@code WATCH},
+ * {@code UNWATCH}, {@code MULTI}, {@code EXEC}, {@code DISCARD}, {@code PUBLISH}, {@code SUBSCRIBE} and {@code SCAN}.
+ *
+ * <p>Every command runs under one lock, so a transaction is atomic. {@link #dropConnections()} disconnects every
+ * client to simulate a network failure, and {@link #setStalled(boolean)} stops answering while keeping the connections
+ * open, as a server that hangs or a network that silently drops packets would.
+ */
+public class StubRedisServer implements AutoCloseable {
+
+  private final ServerSocket serverSocket;
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+  private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+  private final TreeMap<String, Entry> data = new TreeMap<>();
+  private final Map<String, Set<Client>> subscribers = new HashMap<>();
+  private final Map<String, AtomicInteger> commandCounts = new ConcurrentHashMap<>();
+  private final Object lock = new Object();
+  private long version;
+  private volatile boolean stalled;
+
+  private StubRedisServer() throws IOException {
+    this.serverSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+    executor.execute(this::accept);
+  }
+
+  public static StubRedisServer start() {
+    try {
+      return new StubRedisServer();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public int port() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Returns how many times a command was received, for example {@code "GET"}.
+   */
+  public int commandCount(String command) {
+    AtomicInteger count = commandCounts.get(command);
+    return count == null ? 0 : count.get();
+  }
+
+  /**
+   * Returns the number of commands received other than {@code SUBSCRIBE} and {@code SCAN}.
+   */
+  public int dataCommandCount() {
+    return commandCounts.entrySet().stream()
+        .filter(entry -> !entry.getKey().equals("SUBSCRIBE") && !entry.getKey().equals("SCAN"))
+        .mapToInt(entry -> entry.getValue().get())
+        .sum();
+  }
+
+  /**
+   * Returns the stored value, or {@code null}.
+   */
+  public String get(String key) {
+    synchronized (lock) {
+      Entry entry = live(key);
+      return entry == null ? null : entry.value;
+    }
+  }
+
+  /**
+   * Stores a value without publishing anything, as a change made behind the clients' backs.
+   */
+  public void set(String key, String value) {
+    synchronized (lock) {
+      data.put(key, new Entry(value, Long.MAX_VALUE, ++version));
+    }
+  }
+
+  /**
+   * Returns the number of clients subscribed to a channel.
+   */
+  public int subscriberCount(String channel) {
+    synchronized (lock) {
+      Set<Client> clients = subscribers.get(channel);
+      return clients == null ? 0 : clients.size();
+    }
+  }
+
+  /**
+   * Closes every client connection.
+   */
+  public void dropConnections() {
+    for (Socket socket : sockets) {
+      closeQuietly(socket);
+    }
+  }
+
+  /**
+   * While stalled, commands are read and dropped without a reply, and nothing is published.
+   */
+  public void setStalled(boolean stalled) {
+    this.stalled = stalled;
+  }
+
+  @Override
+  public void close() {
+    closeQuietly(serverSocket);
+    dropConnections();
+    executor.shutdownNow();
+  }
+
+  private void accept() {
+    while (!serverSocket.isClosed()) {
+      try {
+        Socket socket = serverSocket.accept();
+        socket.setTcpNoDelay(true);
+        sockets.add(socket);
+        executor.execute(() -> serve(socket));
+      } catch (IOException e) {
+        return;
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    try (socket) {
+      Client client = new Client(socket);
+      while (true) {
+        List<String> command = client.readCommand();
+        if (stalled) {
+          continue;
+        }
+        String name = command.get(0).toUpperCase(Locale.ROOT);
+        commandCounts.computeIfAbsent(name, key -> new AtomicInteger()).incrementAndGet();
+        synchronized (lock) {
+          client.handle(name, command);
+        }
+        // Answer a pipelined batch of commands with one write
+        if (!client.hasPendingInput()) {
+          client.flush();
+        }
+      }
+    } catch (IOException e) {
+      // The client disconnected
+    } finally {
+      synchronized (lock) {
+        subscribers.values().forEach(clients -> clients.removeIf(client -> client.socket == socket));
+      }
+      sockets.remove(socket);
+    }
+  }
+
+  private Entry live(String key) {
+    Entry entry = data.get(key);
+    if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+      data.remove(key);
+      version++;
+      return null;
+    }
+    return entry;
+  }
+
+  private long keyVersion(String key) {
+    Entry entry = live(key);
+    return entry == null ? 0 : entry.version;
+  }
+
+  private static void closeQuietly(AutoCloseable closeable) {
+    try {
+      closeable.close();
+    } catch (Exception ignored) {
+      // Already closed
+    }
+  }
+
+  private record Entry(String value, long expiresAt, long version) {
+  }
+
+  private final class Client {
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final Map<String, Long> watched = new HashMap<>();
+    private List<List<String>> queued;
+    private boolean subscribed;
+
+    Client(Socket socket) throws IOException {
+      this.socket = socket;
+      this.in = new BufferedInputStream(socket.getInputStream());
+      this.out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    List<String> readCommand() throws IOException {
+      String header = readLine();
+      if (!header.startsWith("*")) {
+        throw new IOException("Inline commands are not supported");
+      }
+      int count = Integer.parseInt(header.substring(1));
+      List<String> args = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        int length = Integer.parseInt(readLine().substring(1));
+        byte[] bytes = in.readNBytes(length);
+        in.readNBytes(2);
+        args.add(new String(bytes, StandardCharsets.UTF_8));
+      }
+      return args;
+    }
+
+    void handle(String name, List<String> command) throws IOException {
+      if (queued != null && !Set.of("EXEC", "DISCARD", "MULTI", "WATCH").contains(name)) {
+        queued.add(command);
+        simple("QUEUED");
+        return;
+      }
+      switch (name) {
+        case "PING" -> {
+          if (subscribed) {
+            arrayHeader(2);
+            bulk("pong");
+            bulk("");
+          } else {
+            simple("PONG");
+          }
+        }
+        case "AUTH", "SELECT" -> simple("OK");
+        case "WATCH" -> {
+          for (String key : command.subList(1, command.size())) {
+            watched.put(key, keyVersion(key));
+          }
+          simple("OK");
+        }
+        case "UNWATCH" -> {
+          watched.clear();
+          simple("OK");
+        }
+        case "MULTI" -> {
+          queued = new ArrayList<>();
+          simple("OK");
+        }
+        case "DISCARD" -> {
+          queued = null;
+          watched.clear();
+          simple("OK");
+        }
+        case "EXEC" -> exec();
+        case "SUBSCRIBE" -> {
+          subscribed = true;
+          for (String channel : command.subList(1, command.size())) {
+            subscribers.computeIfAbsent(channel, key -> ConcurrentHashMap.newKeySet()).add(this);
+            arrayHeader(3);
+            bulk("subscribe");
+            bulk(channel);
+            integer(1);
+          }
+        }
+        case "SCAN" -> scan(command);
+        default -> execute(name, command);
+      }
+    }
+
+    private void exec() throws IOException {
+      List<List<String>> commands = queued;
+      queued = null;
+      boolean unchanged = watched.entrySet().stream()
+          .allMatch(entry -> keyVersion(entry.getKey()) == entry.getValue());
+      watched.clear();
+      if (commands == null) {
+        error("ERR EXEC without MULTI");
+        return;
+      }
+      if (!unchanged) {
+        out.write("*-1\r\n".getBytes(StandardCharsets.US_ASCII));
+        return;
+      }
+      arrayHeader(commands.size());
+      for (List<String> command : commands) {
+        execute(command.get(0).toUpperCase(Locale.ROOT), command);
+      }
+    }
+
+    private void execute(String name, List<String> command) throws IOException {
+      switch (name) {
+        case "GET" -> {
+          Entry entry = live(command.get(1));
+          bulk(entry == null ? null : entry.value);
+        }
+        case "SET" -> {
+          long expiresAt = Long.MAX_VALUE;
+          boolean ifAbsent = false;
+          for (int i = 3; i < command.size(); i++) {
+            if (command.get(i).equalsIgnoreCase("PX")) {
+              expiresAt = System.currentTimeMillis() + Long.parseLong(command.get(++i));
+            } else if (command.get(i).equalsIgnoreCase("NX")) {
+              ifAbsent = true;
+            }
+          }
+          if (ifAbsent && live(command.get(1)) != null) {
+            bulk(null);
+            return;
+          }
+          data.put(command.get(1), new Entry(command.get(2), expiresAt, ++version));
+          simple("OK");
+        }
+        case "DEL" -> {
+          int deleted = 0;
+          for (String key : command.subList(1, command.size())) {
+            if (live(key) != null) {
+              data.remove(key);
+              version++;
+              deleted++;
+            }
+          }
+          integer(deleted);
+        }
+        case "PUBLISH" -> {
+          Set<Client> clients = subscribers.getOrDefault(command.get(1), Set.of());
+          for (Client subscriber : clients) {
+            subscriber.message(command.get(1), command.get(2));
+          }
+          integer(clients.size());
+        }
+        default -> error("ERR unknown command '" + name + "'");
+      }
+    }
+
+    private void scan(List<String> command) throws IOException {
+      String cursor = command.get(1);
+      Pattern pattern = null;
+      int count = 10;
+      for (int i = 2; i + 1 < command.size(); i += 2) {
+        if (command.get(i).equalsIgnoreCase("MATCH")) {
+          pattern = glob(command.get(i + 1));
+        } else if (command.get(i).equalsIgnoreCase("COUNT")) {
+          count = Integer.parseInt(command.get(i + 1));
+        }
+      }
+      // The cursor is the last key returned, so the scan continues in key order
+      List<String> keys = new ArrayList<>();
+      String next = "0";
+      var candidates = cursor.equals("0") ? data.keySet() : data.tailMap(cursor, false).keySet();
+      for (String key : List.copyOf(candidates)) {
+        if (keys.size() == count) {
+          next = keys.get(keys.size() - 1);
+          break;
+        }
+        if (live(key) != null && (pattern == null || pattern.matcher(key).matches())) {
+          keys.add(key);
+        }
+      }
+      arrayHeader(2);
+      bulk(next);
+      arrayHeader(keys.size());
+      for (String key : keys) {
+        bulk(key);
+      }
+    }
+
+    private void message(String channel, String payload) {
+      try {
+        synchronized (this) {
+          arrayHeader(3);
+          bulk("message");
+          bulk(channel);
+          bulk(payload);
+          out.flush();
+        }
+      } catch (IOException e) {
+        closeQuietly(socket);
+      }
+    }
+
+    boolean hasPendingInput() throws IOException {
+      return in.available() > 0;
+    }
+
+    synchronized void flush() throws IOException {
+      out.flush();
+    }
+
+    private synchronized void simple(String value) throws IOException {
+      out.write(('+' + value + "\r\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private synchronized void error(String message) throws IOException {
+      out.write(('-' + message + "\r\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private synchronized void integer(long value) throws IOException {
+      out.write((":" + value + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private synchronized void arrayHeader(int count) throws IOException {
+      out.write(("*" + count + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private synchronized void bulk(String value) throws IOException {
+      if (value == null) {
+        out.write("$-1\r\n".getBytes(StandardCharsets.US_ASCII));
+        return;
+      }
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      out.write(("$" + bytes.length + "\r\n").getBytes(StandardCharsets.US_ASCII));
+      out.write(bytes);
+      out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private String readLine() throws IOException {
+      StringBuilder line = new StringBuilder();
+      int c;
+      while ((c = in.read()) != '\r') {
+        if (c == -1) {
+          throw new EOFException();
+        }
+        line.append((char) c);
+      }
+      in.read();
+      return line.toString();
+    }
+
+    private static Pattern glob(String glob) {
+      StringBuilder regex = new StringBuilder();
+      for (int i = 0; i < glob.length(); i++) {
+        char c = glob.charAt(i);
+        if (c == '\\' && i + 1 < glob.length()) {
+          regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+        } else if (c == '*') {
+          regex.append(".*");
+        } else if (c == '?') {
+          regex.append('.');
+        } else {
+          regex.append(Pattern.quote(String.valueOf(c)));
+        }
+      }
+      return Pattern.compile(regex.toString());
+    }
+  }
+}